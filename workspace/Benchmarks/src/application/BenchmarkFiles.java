@@ -0,0 +1,94 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * This class creates the files the benchmarks work on. Their contents come
+ * from a Random with a fixed seed, so every run reads the same bytes and
+ * compressible data doesn't skew one run against another.
+ *
+ */
+final class BenchmarkFiles {
+	static final String FILE_NAME = "bench.bin";
+	static final String KEY_STORE_PASSWORD = "changeit";
+	private static final long SEED = 49152;
+
+	private BenchmarkFiles() {
+	}
+
+	/**
+	 * Creates an empty temporary directory.
+	 */
+	static File newDirectory(String prefix) throws IOException {
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	/**
+	 * Returns size bytes of random data.
+	 */
+	static byte[] randomBytes(int size) {
+		final byte[] data = new byte[size];
+		new Random(SEED).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Creates FILE_NAME in the directory, filled with size random bytes.
+	 */
+	static File createFile(File directory, int size) throws IOException {
+		final File file = new File(directory, FILE_NAME);
+		Files.write(file.toPath(), randomBytes(size));
+		return file;
+	}
+
+	/**
+	 * Creates a PKCS12 key store in the directory with a self-signed
+	 * certificate for localhost, protected by KEY_STORE_PASSWORD. It serves as
+	 * the server's key store and the client's trust store.
+	 */
+	static File createKeyStore(File directory) throws IOException {
+		final File keyStore = new File(directory, "localhost.p12");
+		final String keytool = new File(System.getProperty("java.home"), "bin/keytool").getPath();
+		final Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost", "-keyalg", "EC",
+				"-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1", "-storetype",
+				"PKCS12", "-keystore", keyStore.getPath(), "-storepass", KEY_STORE_PASSWORD).inheritIO().start();
+		try {
+			if (process.waitFor() != 0) {
+				throw new IOException("keytool could not create " + keyStore);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		return keyStore;
+	}
+
+	/**
+	 * Deletes the directory and everything in it.
+	 */
+	static void delete(File directory) throws IOException {
+		if (directory == null || !directory.exists()) {
+			return;
+		}
+		Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
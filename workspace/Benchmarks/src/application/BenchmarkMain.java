@@ -0,0 +1,66 @@
+package application;
+
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the gc profiler and saves the results as JSON,
+ * so that the results before and after a change can be compared, for
+ * instance with JMH Visualizer. The first argument, if any, is a regular
+ * expression selecting the benchmarks to run, such as "Loopback".
+ *
+ * The Benchmarks project builds against the FTPApplication sources and
+ * needs jmh-core and jmh-generator-annprocess (1.37) on its build path, with
+ * annotation processing enabled so that JMH can generate its harness. The
+ * benchmarks create their files in the temporary directory and delete them
+ * afterwards.
+ *
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws RunnerException {
+		final String include = (args.length > 0) ? args[0] : ".*Benchmark.*";
+		final String resultFile = "jmh-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json";
+		final Options options = new OptionsBuilder().include(include).addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON).result(resultFile).build();
+		final Collection<RunResult> results = new Runner(options).run();
+		System.out.println();
+		System.out.println("Results saved to " + resultFile);
+		for (RunResult result : results) {
+			printSummary(result);
+		}
+	}
+
+	// Prints the throughput of the benchmarks that count bytes and the
+	// allocation rate of every benchmark.
+	private static void printSummary(RunResult result) {
+		final StringBuilder line = new StringBuilder(result.getParams().getBenchmark());
+		for (String key : result.getParams().getParamsKeys()) {
+			line.append(' ').append(key).append('=').append(result.getParams().getParam(key));
+		}
+		final Map<String, Result> secondary = result.getSecondaryResults();
+		final Result bytes = secondary.get("bytes");
+		if (bytes != null) {
+			line.append(String.format(": %.1f MB/s", bytes.getScore() / 1e6));
+		}
+		for (Map.Entry<String, Result> entry : secondary.entrySet()) {
+			if (entry.getKey().endsWith("gc.alloc.rate")) {
+				line.append(String.format(", allocating %.1f MB/s", entry.getValue().getScore()));
+			} else if (entry.getKey().endsWith("gc.alloc.rate.norm")) {
+				line.append(String.format(" (%.0f B/op)", entry.getValue().getScore()));
+			}
+		}
+		System.out.println(line);
+	}
+}
@@ -0,0 +1,84 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures listing a large directory. The server no longer walks the
+ * directory for every client the way listFilesForFolder() did; a FileCatalog
+ * scans it once and keeps a snapshot until the directory changes. So this
+ * measures the full scan, which is what every connection used to cost and
+ * what a change to the directory costs now, and the serialization of the
+ * listing, which every object-stream client still costs.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class CatalogBenchmark {
+	@Param({ "1000", "10000", "100000" })
+	public int fileCount;
+
+	private File directory;
+	private HashSet<File> listing;
+
+	@Setup
+	public void setUp() throws IOException {
+		directory = BenchmarkFiles.newDirectory("CatalogBenchmark");
+		final byte[] data = new byte[16];
+		for (int i = 0; i < fileCount; i++) {
+			Files.write(new File(directory, "file" + i + ".dat").toPath(), data);
+		}
+		listing = new FileCatalog(directory).getSnapshot().getFiles();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		BenchmarkFiles.delete(directory);
+	}
+
+	@Benchmark
+	public HashSet<File> scanDirectory() {
+		return new FileCatalog(directory).getSnapshot().getFiles();
+	}
+
+	@Benchmark
+	public long serializeListing() throws IOException {
+		final long[] count = new long[1];
+		final ObjectOutputStream out = new ObjectOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				count[0]++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				count[0] += len;
+			}
+		});
+		out.writeObject(listing);
+		out.flush();
+		return count[0];
+	}
+}
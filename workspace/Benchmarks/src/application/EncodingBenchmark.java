@@ -0,0 +1,145 @@
+package application;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the two ways a file is put on the wire: Java serialization of a
+ * FileEvent holding the whole file, as the object-stream protocol does, and
+ * the DATA frames a FramedSession writes in answer to a GET frame, with and
+ * without checksum trailers. Both write into a sink that only counts the
+ * bytes, so the socket's cost is left out; the loopback benchmark measures
+ * it.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class EncodingBenchmark {
+	@Param({ "1024", "65536", "1048576", "16777216" })
+	public int fileSize;
+
+	@Param({ "false", "true" })
+	public boolean checksums;
+
+	private File directory;
+	private FileCatalog catalog;
+	private FileEvent fileEvent;
+	private byte[] serialized;
+	private byte[] getFrame;
+
+	@Setup
+	public void setUp() throws IOException {
+		directory = BenchmarkFiles.newDirectory("EncodingBenchmark");
+		BenchmarkFiles.createFile(directory, fileSize);
+		catalog = new FileCatalog(directory);
+		fileEvent = new TCPServer(null, new byte[0], catalog).getFileEvent(BenchmarkFiles.FILE_NAME);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(fileSize + 1024);
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(fileEvent);
+		}
+		serialized = bytes.toByteArray();
+		final GetRequest request = new GetRequest(BenchmarkFiles.FILE_NAME, 0, -1, 0, 0, checksums);
+		final byte[] payload = request.toPayload();
+		final ByteBuffer frame = ByteBuffer.allocate(FrameHeader.SIZE + payload.length);
+		new FrameHeader(Opcode.GET, request.getFlags(), 1, payload.length).write(frame);
+		frame.put(payload);
+		getFrame = frame.array();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		BenchmarkFiles.delete(directory);
+	}
+
+	@Benchmark
+	public long serializeFileEvent() throws IOException {
+		final CountingStream sink = new CountingStream();
+		final ObjectOutputStream out = new ObjectOutputStream(sink);
+		out.writeObject(fileEvent);
+		out.flush();
+		return sink.count;
+	}
+
+	@Benchmark
+	public Object deserializeFileEvent() throws IOException, ClassNotFoundException {
+		return new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+	}
+
+	@Benchmark
+	public long encodeFrames() throws IOException {
+		final FramedSession session = new FramedSession(catalog);
+		session.setCompressionLevel(0);
+		session.acceptPreamble();
+		final CountingChannel sink = new CountingChannel();
+		// The answer to the preamble has to go before requests are handled.
+		session.write(sink);
+		session.read(Channels.newChannel(new ByteArrayInputStream(getFrame)));
+		session.process();
+		while (!session.write(sink)) {
+			// The sink takes everything; only the flow could stop a write.
+		}
+		session.close();
+		return sink.count;
+	}
+
+	private static final class CountingStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	private static final class CountingChannel implements WritableByteChannel {
+		private long count;
+
+		@Override
+		public int write(ByteBuffer src) {
+			final int length = src.remaining();
+			src.position(src.limit());
+			count += length;
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures TCPServer.getFileEvent(), which reads a whole file into the
+ * FileEvent sent to object-stream clients that don't take zero-copy bodies.
+ * The file is read from the page cache, since it was just written; the
+ * FileCache is off.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class FileEventBenchmark {
+	@Param({ "1024", "65536", "1048576", "16777216" })
+	public int fileSize;
+
+	private File directory;
+	private TCPServer server;
+
+	@Setup
+	public void setUp() throws IOException {
+		directory = BenchmarkFiles.newDirectory("FileEventBenchmark");
+		BenchmarkFiles.createFile(directory, fileSize);
+		server = new TCPServer(null, new byte[0], new FileCatalog(directory));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		BenchmarkFiles.delete(directory);
+	}
+
+	@Benchmark
+	public FileEvent getFileEvent() {
+		return server.getFileEvent(BenchmarkFiles.FILE_NAME);
+	}
+}
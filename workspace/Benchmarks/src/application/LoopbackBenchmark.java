@@ -0,0 +1,122 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures whole downloads over the loopback interface: a TCPServerManager
+ * serving one file and a connected TCPClient downloading it again and again
+ * with either protocol. The client doesn't force files to disk, so the
+ * numbers show the cost of the protocol and not of the disk.
+ *
+ * With tls set, the connection is encrypted with a self-signed certificate
+ * that is generated for the run. The client keeps its connection, so the
+ * numbers show the cost of encrypting the transfers and not of handshakes.
+ *
+ * Besides downloads per second, every run reports the file bytes received
+ * per second in the "bytes" counter; BenchmarkMain turns it into MB/s. Run
+ * with the gc profiler to see the allocation rate.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class LoopbackBenchmark {
+	@Param({ "65536", "1048576", "67108864" })
+	public int fileSize;
+
+	@Param({ "FRAMED", "OBJECT_STREAM" })
+	public WireProtocol protocol;
+
+	@Param({ "false", "true" })
+	public boolean tls;
+
+	private File serverDirectory;
+	private File clientDirectory;
+	private File keyDirectory;
+	private TCPServerManager manager;
+	private TCPClient client;
+
+	/**
+	 * Counts the file bytes received, which JMH reports per second.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() throws IOException, GeneralSecurityException {
+		serverDirectory = BenchmarkFiles.newDirectory("LoopbackBenchmark-server");
+		clientDirectory = BenchmarkFiles.newDirectory("LoopbackBenchmark-client");
+		BenchmarkFiles.createFile(serverDirectory, fileSize);
+		TlsContext serverTls = null;
+		TlsContext clientTls = null;
+		if (tls) {
+			keyDirectory = BenchmarkFiles.newDirectory("LoopbackBenchmark-tls");
+			final File keyStore = BenchmarkFiles.createKeyStore(keyDirectory);
+			final char[] password = BenchmarkFiles.KEY_STORE_PASSWORD.toCharArray();
+			serverTls = TlsContext.load(keyStore, password, null, null);
+			clientTls = TlsContext.load(null, null, keyStore, password);
+		}
+		final int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		manager = new TCPServerManager(port, Runtime.getRuntime().availableProcessors());
+		manager.setDirectory(serverDirectory);
+		manager.setTls(serverTls);
+		final Thread thread = new Thread(manager, "TCPServerManager");
+		thread.setDaemon(true);
+		thread.start();
+		client = new TCPClient("localhost", port, protocol);
+		client.setDownloadDirectory(clientDirectory);
+		client.setSyncPolicy(SyncPolicy.NONE);
+		client.setTls(clientTls);
+		// Retries until the manager is listening.
+		client.connect();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		client.close();
+		manager.close();
+		BenchmarkFiles.delete(serverDirectory);
+		BenchmarkFiles.delete(clientDirectory);
+		BenchmarkFiles.delete(keyDirectory);
+	}
+
+	@Benchmark
+	public boolean download(Counters counters) throws IOException {
+		final boolean saved = client.download(BenchmarkFiles.FILE_NAME);
+		counters.bytes += fileSize;
+		return saved;
+	}
+}
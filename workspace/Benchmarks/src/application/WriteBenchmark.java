@@ -0,0 +1,66 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures TCPClient.createAndWriteFile(), which saves the data of a
+ * FileEvent to a .part file and renames it, under each SyncPolicy. With
+ * SyncPolicy.FILE and DIRECTORY the numbers depend on the disk more than on
+ * the code, so compare them only between runs on the same machine.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class WriteBenchmark {
+	@Param({ "1024", "65536", "1048576", "16777216" })
+	public int fileSize;
+
+	@Param({ "NONE", "FILE", "DIRECTORY" })
+	public SyncPolicy syncPolicy;
+
+	private File directory;
+	private TCPClient client;
+	private FileEvent fileEvent;
+
+	@Setup
+	public void setUp() throws IOException {
+		directory = BenchmarkFiles.newDirectory("WriteBenchmark");
+		client = new TCPClient();
+		client.setDownloadDirectory(directory);
+		client.setSyncPolicy(syncPolicy);
+		fileEvent = new FileEvent();
+		fileEvent.setFilename(BenchmarkFiles.FILE_NAME);
+		fileEvent.setFileSize(fileSize);
+		fileEvent.setFileData(BenchmarkFiles.randomBytes(fileSize));
+		fileEvent.setStatus(FileStatus.SUCCESS);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		BenchmarkFiles.delete(directory);
+	}
+
+	@Benchmark
+	public boolean createAndWriteFile() {
+		return client.createAndWriteFile(fileEvent);
+	}
+}
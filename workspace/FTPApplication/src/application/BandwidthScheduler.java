@@ -0,0 +1,355 @@
+package application;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class shapes the server's outgoing file data. There are three limits,
+ * each in bytes per second and each off when 0: a global limit on everything
+ * the server sends, a limit per client IP address, and a limit per session.
+ *
+ * Every file transfer is a Flow with its own TokenBucket. Whenever a transfer
+ * starts or ends, or a limit changes, and every REBALANCE_NANOS while flows
+ * are sending, the available bandwidth is divided among the active flows by
+ * weighted max-min fairness: each flow is first limited by the session limit
+ * and by its weighted part of its client's limit, and the global limit is
+ * then shared out so that flows limited below their fair share keep their
+ * limit and the rest split what is left.
+ *
+ * The global limit is work-conserving. A flow that did not use up its rate
+ * during the last interval, because its client reads slowly or its socket is
+ * full, is limited to DEMAND_HEADROOM times the rate it did send at, so the
+ * rest of its share goes to the flows that are waiting for bandwidth. Once it
+ * has to wait for its bucket again, it competes for its full share from the
+ * next interval on.
+ *
+ * A sender never waits longer than REBALANCE_NANOS for its bucket, so a
+ * limit that changes or a rebalance that raises its rate reaches a waiting
+ * sender within that time, however low its rate was when it started waiting.
+ *
+ * Transfers of at most smallFileSize bytes weigh SMALL_FILE_WEIGHT times as
+ * much as bulk transfers, so a small file gets through quickly even while
+ * large ones are using up the link.
+ *
+ */
+final class BandwidthScheduler {
+	public static final long DEFAULT_SMALL_FILE_SIZE = 4 * FramedSession.CHUNK_SIZE;
+	/** How many times a bulk transfer's share a small transfer gets. */
+	public static final int SMALL_FILE_WEIGHT = 8;
+	// Senders are not woken for fewer bytes than this.
+	private static final long MIN_GRANT = 16 * 1024;
+	// How often the shares are recomputed from what the flows sent.
+	private static final long REBALANCE_NANOS = 100000000L;
+	// How much more than it sent a flow that did not use its rate may send.
+	private static final double DEMAND_HEADROOM = 1.25;
+	// The least a flow that did not use its rate is limited to, in bytes per
+	// second.
+	private static final long MIN_DEMAND = 64 * 1024;
+
+	private final List<Flow> flows;
+	private final AtomicLong bytesSent;
+	private long globalLimit;
+	private long clientLimit;
+	private long sessionLimit;
+	private long smallFileSize;
+	private volatile long lastRebalance;
+
+	/**
+	 * Constructs a scheduler without limits.
+	 */
+	public BandwidthScheduler() {
+		flows = new ArrayList<>();
+		bytesSent = new AtomicLong();
+		smallFileSize = DEFAULT_SMALL_FILE_SIZE;
+		lastRebalance = System.nanoTime();
+	}
+
+	/**
+	 * Starts shaping a transfer. The flow must be closed once the transfer
+	 * ends.
+	 *
+	 * @param client
+	 *            The address of the client receiving the transfer.
+	 * @param length
+	 *            The number of file bytes to send.
+	 */
+	public synchronized Flow open(String client, long length) {
+		final Flow flow = new Flow(client, (length <= smallFileSize) ? SMALL_FILE_WEIGHT : 1);
+		flows.add(flow);
+		rebalance();
+		return flow;
+	}
+
+	private synchronized void close(Flow flow) {
+		if (flows.remove(flow)) {
+			rebalance();
+		}
+	}
+
+	/**
+	 * Sets the number of bytes per second the server may send in total, or 0
+	 * for no limit. Running transfers adopt the new limit within
+	 * REBALANCE_NANOS.
+	 */
+	public synchronized void setGlobalLimit(long globalLimit) {
+		this.globalLimit = Math.max(0, globalLimit);
+		rebalance();
+	}
+
+	public synchronized long getGlobalLimit() {
+		return globalLimit;
+	}
+
+	/**
+	 * Sets the number of bytes per second the server may send to one client
+	 * IP address, or 0 for no limit.
+	 */
+	public synchronized void setClientLimit(long clientLimit) {
+		this.clientLimit = Math.max(0, clientLimit);
+		rebalance();
+	}
+
+	public synchronized long getClientLimit() {
+		return clientLimit;
+	}
+
+	/**
+	 * Sets the number of bytes per second the server may send to one
+	 * session, or 0 for no limit.
+	 */
+	public synchronized void setSessionLimit(long sessionLimit) {
+		this.sessionLimit = Math.max(0, sessionLimit);
+		rebalance();
+	}
+
+	public synchronized long getSessionLimit() {
+		return sessionLimit;
+	}
+
+	/**
+	 * Sets the length up to which a transfer counts as small. Transfers that
+	 * are already running keep their weight.
+	 */
+	public synchronized void setSmallFileSize(long smallFileSize) {
+		this.smallFileSize = smallFileSize;
+	}
+
+	public synchronized long getSmallFileSize() {
+		return smallFileSize;
+	}
+
+	/**
+	 * Returns the number of transfers being shaped.
+	 */
+	public synchronized int getActiveCount() {
+		return flows.size();
+	}
+
+	/**
+	 * Returns the number of file bytes sent through the scheduler.
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	// Measures what the flows sent since the last interval and divides the
+	// bandwidth again, unless another sender just did.
+	private synchronized void rebalanceIfDue() {
+		final long now = System.nanoTime();
+		final long elapsed = now - lastRebalance;
+		if (elapsed < REBALANCE_NANOS) {
+			return;
+		}
+		for (Flow flow : flows) {
+			flow.measure(elapsed, lastRebalance);
+		}
+		lastRebalance = now;
+		rebalance();
+	}
+
+	/**
+	 * Divides the bandwidth among the flows. Flows without any limit get a
+	 * rate of 0, which lets them send as fast as their sockets allow.
+	 */
+	private void rebalance() {
+		final Map<String, Integer> clientWeights = new HashMap<>();
+		for (Flow flow : flows) {
+			clientWeights.merge(flow.client, flow.weight, Integer::sum);
+		}
+		for (Flow flow : flows) {
+			long limit = (sessionLimit > 0) ? sessionLimit : Long.MAX_VALUE;
+			if (clientLimit > 0) {
+				limit = Math.min(limit, clientLimit * flow.weight / clientWeights.get(flow.client));
+			}
+			flow.limit = Math.max(1, limit);
+		}
+		if (globalLimit == 0) {
+			for (Flow flow : flows) {
+				flow.bucket.setRate((flow.limit == Long.MAX_VALUE) ? 0 : flow.limit);
+			}
+			return;
+		}
+		// Settle the flows whose own limit is below their share of what is
+		// left, until every remaining flow can use its full share.
+		final List<Flow> unsettled = new ArrayList<>(flows);
+		long remaining = globalLimit;
+		while (!unsettled.isEmpty()) {
+			long weights = 0;
+			for (Flow flow : unsettled) {
+				weights += flow.weight;
+			}
+			boolean settled = false;
+			final Iterator<Flow> iterator = unsettled.iterator();
+			while (iterator.hasNext()) {
+				final Flow flow = iterator.next();
+				final long limit = Math.min(flow.limit, flow.demand);
+				if (limit <= (double) remaining * flow.weight / weights) {
+					flow.bucket.setRate(limit);
+					remaining -= limit;
+					iterator.remove();
+					settled = true;
+				}
+			}
+			if (!settled) {
+				for (Flow flow : unsettled) {
+					flow.bucket.setRate(Math.max(1, remaining * flow.weight / weights));
+				}
+				return;
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("BandwidthScheduler[%d transfers, global %d B/s, client %d B/s, session %d B/s, %d bytes]",
+				flows.size(), globalLimit, clientLimit, sessionLimit, getBytesSent());
+	}
+
+	/**
+	 * The shaping of one transfer. A flow is used by one thread at a time.
+	 */
+	final class Flow {
+		private final String client;
+		private final int weight;
+		private final TokenBucket bucket;
+		private final long openedNanos;
+		// The bytes sent since the last interval.
+		private final AtomicLong sent;
+		// Whether the flow had to wait for its bucket since the last
+		// interval.
+		private volatile boolean heldBack;
+		// The flow's own limit, before the global limit is shared out.
+		private long limit;
+		// The most the flow is expected to use, from what it sent during the
+		// last interval.
+		private long demand;
+
+		Flow(String client, int weight) {
+			this.client = client;
+			this.weight = weight;
+			bucket = new TokenBucket(0);
+			openedNanos = System.nanoTime();
+			sent = new AtomicLong();
+			demand = Long.MAX_VALUE;
+		}
+
+		// Sets the demand from the bytes sent during the interval of the
+		// given length, which started at the given time. A flow that had to
+		// wait for its bucket, or that did not send during the whole
+		// interval, may use all it gets.
+		private void measure(long elapsedNanos, long startNanos) {
+			final long bytes = sent.getAndSet(0);
+			if (heldBack || openedNanos > startNanos) {
+				demand = Long.MAX_VALUE;
+			} else {
+				demand = Math.max(MIN_DEMAND, (long) (DEMAND_HEADROOM * bytes * 1e9 / elapsedNanos));
+			}
+			heldBack = false;
+		}
+
+		/**
+		 * Returns how many of the wanted bytes may be sent now, which is 0
+		 * if the flow is too far ahead of its rate. Bytes that end up not
+		 * being sent must be given back.
+		 */
+		public long grant(long wanted) {
+			final long granted = bucket.take(wanted, MIN_GRANT);
+			bytesSent.addAndGet(granted);
+			sent.addAndGet(granted);
+			if (granted == 0 && wanted > 0) {
+				heldBack = true;
+			}
+			if (System.nanoTime() - lastRebalance >= REBALANCE_NANOS) {
+				rebalanceIfDue();
+			}
+			return granted;
+		}
+
+		/**
+		 * Returns bytes obtained from grant() that were not sent.
+		 */
+		public void giveBack(long unused) {
+			if (unused > 0) {
+				bucket.giveBack(unused);
+				bytesSent.addAndGet(-unused);
+				sent.addAndGet(-unused);
+			}
+		}
+
+		/**
+		 * Returns how long to wait before grant() will allow bytes again, in
+		 * nanoseconds, but at most REBALANCE_NANOS, after which the flow's
+		 * rate may have changed.
+		 */
+		public long nanosUntilGrant() {
+			return Math.min(REBALANCE_NANOS, bucket.nanosUntil(MIN_GRANT));
+		}
+
+		/**
+		 * Waits until some of the wanted bytes may be sent, for senders that
+		 * own their thread.
+		 *
+		 * @return the number of bytes that may be sent, at least 1.
+		 * @throws InterruptedIOException
+		 *             If the thread was interrupted while waiting.
+		 */
+		public long acquire(long wanted) throws InterruptedIOException {
+			while (true) {
+				final long granted = grant(wanted);
+				if (granted > 0) {
+					return granted;
+				}
+				LockSupport.parkNanos(nanosUntilGrant());
+				if (Thread.interrupted()) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for bandwidth.");
+				}
+			}
+		}
+
+		/**
+		 * Returns the flow's current rate in bytes per second, or 0 if it is
+		 * not limited.
+		 */
+		public long getRate() {
+			return bucket.getRate();
+		}
+
+		public boolean isSmall() {
+			return weight > 1;
+		}
+
+		/**
+		 * Ends the transfer, giving its share to the other flows.
+		 */
+		public void close() {
+			BandwidthScheduler.this.close(this);
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package application;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class holds the signatures of the blocks of a file that a client
+ * already has a copy of, which the server compares the current file against
+ * to send only what changed, see DeltaEncoder.
+ *
+ * The file is cut into blocks of equal size, except for a shorter last block.
+ * Each block has two signatures: a weak checksum that can be rolled forward
+ * one byte at a time, so the server can look for the block at every offset of
+ * its file cheaply, and a strong checksum, the first 8 bytes of the block's
+ * MD5, which confirms a match of the weak one. The weak checksum is the one
+ * rsync uses: the sum of the block's bytes in the low 16 bits, and the sum of
+ * the running sums in the high 16 bits.
+ *
+ */
+final class BlockSignatures {
+	public static final int MIN_BLOCK_SIZE = 2048;
+	public static final int MAX_BLOCK_SIZE = 1 << 20;
+	/** The bytes that each block takes in a DeltaRequest. */
+	public static final int ENTRY_SIZE = 12;
+	/** The most blocks that fit into a DeltaRequest. */
+	public static final int MAX_BLOCKS = (FrameHeader.MAX_CONTROL_PAYLOAD - 4096) / ENTRY_SIZE;
+	private static final String STRONG_ALGORITHM = "MD5";
+	private static final int READ_SIZE = 256 * 1024;
+
+	private final int blockSize;
+	private final long fileSize;
+	private final int[] weak;
+	private final long[] strong;
+
+	BlockSignatures(int blockSize, long fileSize, int[] weak, long[] strong) {
+		this.blockSize = blockSize;
+		this.fileSize = fileSize;
+		this.weak = weak;
+		this.strong = strong;
+	}
+
+	/**
+	 * Reads a file and computes the signatures of its blocks.
+	 *
+	 * @throws IOException
+	 *             If the file could not be read.
+	 */
+	public static BlockSignatures of(FileChannel file) throws IOException {
+		final long size = file.size();
+		final int blockSize = chooseBlockSize(size);
+		final int count = blockCount(size, blockSize);
+		final int[] weak = new int[count];
+		final long[] strong = new long[count];
+		final MessageDigest md5 = newStrongDigest();
+		final byte[] scratch = new byte[16];
+		// Whole blocks are read at a time.
+		final ByteBuffer buffer = ByteBuffer.allocate(Math.max(blockSize, READ_SIZE / blockSize * blockSize));
+		final byte[] bytes = buffer.array();
+		long position = 0;
+		int block = 0;
+		while (position < size) {
+			buffer.clear();
+			final long wanted = Math.min(buffer.capacity(), size - position);
+			buffer.limit((int) wanted);
+			while (buffer.hasRemaining()) {
+				if (file.read(buffer, position + buffer.position()) < 0) {
+					throw new IOException("The file shrank while its signatures were computed.");
+				}
+			}
+			for (int offset = 0; offset < wanted; offset += blockSize) {
+				final int length = (int) Math.min(blockSize, wanted - offset);
+				weak[block] = weakChecksum(bytes, offset, length);
+				strong[block] = strongChecksum(md5, bytes, offset, length, scratch);
+				block++;
+			}
+			position += wanted;
+		}
+		return new BlockSignatures(blockSize, size, weak, strong);
+	}
+
+	/**
+	 * Returns the block size for a file of the given size: about the square
+	 * root of the size, as rsync picks it, rounded up to a power of two, but
+	 * large enough for the signatures to fit into a DeltaRequest.
+	 */
+	static int chooseBlockSize(long fileSize) {
+		final long wanted = Math.max((long) Math.sqrt(fileSize), (fileSize + MAX_BLOCKS - 1) / MAX_BLOCKS);
+		int blockSize = MIN_BLOCK_SIZE;
+		while (blockSize < wanted && blockSize < MAX_BLOCK_SIZE) {
+			blockSize <<= 1;
+		}
+		return blockSize;
+	}
+
+	/**
+	 * Returns true if the signatures of a file of the given size fit into a
+	 * DeltaRequest.
+	 */
+	public static boolean isSupported(long fileSize) {
+		return fileSize <= (long) MAX_BLOCKS * MAX_BLOCK_SIZE;
+	}
+
+	static int blockCount(long fileSize, int blockSize) {
+		return (int) ((fileSize + blockSize - 1) / blockSize);
+	}
+
+	/**
+	 * Returns the weak checksum of the given bytes.
+	 */
+	static int weakChecksum(byte[] data, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		for (int i = offset; i < offset + length; i++) {
+			a += data[i] & 0xFF;
+			b += a;
+		}
+		return (a & 0xFFFF) | (b << 16);
+	}
+
+	/**
+	 * Returns the weak checksum of the block one byte further on: without the
+	 * byte that leaves it, and with the byte that enters it.
+	 */
+	static int roll(int checksum, int blockSize, byte out, byte in) {
+		final int a = (checksum - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+		final int b = ((checksum >>> 16) - blockSize * (out & 0xFF) + a) & 0xFFFF;
+		return a | (b << 16);
+	}
+
+	/**
+	 * Returns the strong checksum of the given bytes.
+	 *
+	 * @param md5
+	 *            A digest made by newStrongDigest().
+	 * @param scratch
+	 *            An array of at least 16 bytes that the digest is put into.
+	 */
+	static long strongChecksum(MessageDigest md5, byte[] data, int offset, int length, byte[] scratch) {
+		md5.update(data, offset, length);
+		try {
+			md5.digest(scratch, 0, 16);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+		return ByteBuffer.wrap(scratch).getLong();
+	}
+
+	static MessageDigest newStrongDigest() {
+		try {
+			return MessageDigest.getInstance(STRONG_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM is required to support MD5.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Returns the size of the file the signatures were computed from.
+	 */
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public int getBlockCount() {
+		return weak.length;
+	}
+
+	/**
+	 * Returns the length of the given block, which is the block size for all
+	 * blocks but the last.
+	 */
+	public int getBlockLength(int block) {
+		return (int) Math.min(blockSize, fileSize - (long) block * blockSize);
+	}
+
+	public int getWeak(int block) {
+		return weak[block];
+	}
+
+	public long getStrong(int block) {
+		return strong[block];
+	}
+
+	void write(ByteBuffer out) {
+		out.putInt(blockSize).putLong(fileSize).putInt(weak.length);
+		for (int i = 0; i < weak.length; i++) {
+			out.putInt(weak[i]).putLong(strong[i]);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes that write() puts.
+	 */
+	int getEncodedSize() {
+		return 16 + ENTRY_SIZE * weak.length;
+	}
+
+	/**
+	 * Reads signatures written by write().
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the block size or count are invalid, or the buffer is
+	 *             too short.
+	 */
+	static BlockSignatures read(ByteBuffer in) {
+		if (in.remaining() < 16) {
+			throw new IllegalArgumentException("Truncated signatures");
+		}
+		final int blockSize = in.getInt();
+		final long fileSize = in.getLong();
+		final int count = in.getInt();
+		if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || fileSize < 0 || count > MAX_BLOCKS
+				|| count != blockCount(fileSize, blockSize)) {
+			throw new IllegalArgumentException(
+					"Invalid signatures of " + count + " blocks of " + blockSize + " bytes for " + fileSize + " bytes");
+		}
+		if (in.remaining() < (long) ENTRY_SIZE * count) {
+			throw new IllegalArgumentException("Truncated signatures");
+		}
+		final int[] weak = new int[count];
+		final long[] strong = new long[count];
+		for (int i = 0; i < count; i++) {
+			weak[i] = in.getInt();
+			strong[i] = in.getLong();
+		}
+		return new BlockSignatures(blockSize, fileSize, weak, strong);
+	}
+}
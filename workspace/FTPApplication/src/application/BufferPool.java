@@ -0,0 +1,99 @@
+package application;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out direct buffers of one size and takes them back once
+ * they are empty, so that connections that only need a buffer while data is
+ * in flight don't allocate one for every record and don't hold one while they
+ * are idle. Direct buffers are expensive to allocate and are only freed by
+ * the garbage collector, so reusing them also keeps the JVM's direct memory
+ * flat.
+ *
+ * At most maxIdle released buffers are kept; buffers released beyond that
+ * are left to the garbage collector.
+ *
+ */
+final class BufferPool {
+	private final int bufferSize;
+	private final int maxIdle;
+	private final ConcurrentLinkedQueue<ByteBuffer> idle;
+	private final AtomicInteger idleCount;
+	private final AtomicLong allocations;
+	private final AtomicLong reuses;
+
+	/**
+	 * Constructs a pool.
+	 *
+	 * @param bufferSize
+	 *            The capacity of every buffer.
+	 * @param maxIdle
+	 *            The number of released buffers kept for reuse.
+	 */
+	public BufferPool(int bufferSize, int maxIdle) {
+		this.bufferSize = bufferSize;
+		this.maxIdle = maxIdle;
+		idle = new ConcurrentLinkedQueue<>();
+		idleCount = new AtomicInteger();
+		allocations = new AtomicLong();
+		reuses = new AtomicLong();
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Returns an empty buffer, which is cleared for writing. It must be given
+	 * back with release() once it is no longer used.
+	 */
+	public ByteBuffer acquire() {
+		final ByteBuffer buffer = idle.poll();
+		if (buffer == null) {
+			allocations.incrementAndGet();
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		idleCount.decrementAndGet();
+		reuses.incrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Gives back a buffer returned by acquire(). The buffer must not be used
+	 * afterwards. Buffers of another size are ignored.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() != bufferSize || idleCount.incrementAndGet() > maxIdle) {
+			if (buffer.capacity() == bufferSize) {
+				idleCount.decrementAndGet();
+			}
+			return;
+		}
+		buffer.clear();
+		idle.add(buffer);
+	}
+
+	/**
+	 * Returns the number of buffers that were allocated because none was idle.
+	 */
+	public long getAllocationCount() {
+		return allocations.get();
+	}
+
+	/**
+	 * Returns the number of times an idle buffer was handed out again.
+	 */
+	public long getReuseCount() {
+		return reuses.get();
+	}
+
+	/**
+	 * Returns the number of buffers kept for reuse.
+	 */
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+}
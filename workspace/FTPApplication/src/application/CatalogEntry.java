@@ -0,0 +1,71 @@
+package application;
+
+/**
+ * This class describes one file of a FileCatalog. Entries are immutable; when
+ * a file changes, the catalog replaces its entry.
+ *
+ */
+public final class CatalogEntry implements Comparable<CatalogEntry> {
+	private final String name;
+	private final long size;
+	private final long lastModified;
+	private final byte[] contentHash;
+
+	public CatalogEntry(String name, long size, long lastModified) {
+		this(name, size, lastModified, null);
+	}
+
+	/**
+	 * Constructs an entry whose content hash is known.
+	 *
+	 * @param contentHash
+	 *            The SHA-256 of the file's contents, or null.
+	 */
+	public CatalogEntry(String name, long size, long lastModified, byte[] contentHash) {
+		this.name = name;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.contentHash = contentHash;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the time the file was last modified, in milliseconds since the
+	 * epoch.
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Returns the SHA-256 of the file's contents, or null if it was not
+	 * asked for or could not be computed. The array must not be modified.
+	 */
+	public byte[] getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * Returns a copy of this entry with the given content hash.
+	 */
+	public CatalogEntry withContentHash(byte[] contentHash) {
+		return new CatalogEntry(name, size, lastModified, contentHash);
+	}
+
+	@Override
+	public int compareTo(CatalogEntry other) {
+		return name.compareTo(other.name);
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + size + " bytes)";
+	}
+}
@@ -0,0 +1,159 @@
+package application;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * This class checks the DATA frames of a checksummed response. When a GET
+ * frame has FLAG_CHECKSUM set, every DATA frame answering it has the flag set
+ * too, and its payload ends with a trailer after the file's bytes:
+ *
+ * <pre>
+ * CRC32C   4 bytes, the CRC32C of this frame's file bytes
+ * digest   32 bytes, only in the last frame: the SHA-256 of all file bytes
+ *          sent in the response
+ * </pre>
+ *
+ * The verifier records every chunk whose CRC32C does not match, or that could
+ * not be written, so that only those chunks have to be requested again.
+ *
+ */
+final class ChecksumVerifier {
+	public static final int CRC_SIZE = 4;
+	public static final int DIGEST_SIZE = 32;
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private final CRC32C crc;
+	private final MessageDigest digest;
+	private final List<long[]> badChunks;
+	private byte[] expectedDigest;
+	private boolean digestMatched;
+
+	public ChecksumVerifier() {
+		crc = new CRC32C();
+		digest = newDigest();
+		badChunks = new ArrayList<>();
+	}
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM is required to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns true if the DATA frame ends with a checksum trailer.
+	 */
+	public static boolean hasTrailer(FrameHeader header) {
+		return (header.getFlags() & FrameHeader.FLAG_CHECKSUM) != 0;
+	}
+
+	/**
+	 * Returns the number of file bytes in the DATA frame's payload.
+	 *
+	 * @throws ProtocolException
+	 *             If the payload is too short to hold its trailer.
+	 */
+	public static int dataLength(FrameHeader header) throws ProtocolException {
+		if (!hasTrailer(header)) {
+			return header.getLength();
+		}
+		final int length = header.getLength() - CRC_SIZE - (header.isLast() ? DIGEST_SIZE : 0);
+		if (length < 0) {
+			throw new ProtocolException("Truncated checksum in " + header);
+		}
+		return length;
+	}
+
+	/**
+	 * Adds file bytes of the current chunk.
+	 */
+	public void update(byte[] bytes, int offset, int length) {
+		crc.update(bytes, offset, length);
+		digest.update(bytes, offset, length);
+	}
+
+	/**
+	 * Reads the trailer of a DATA frame whose file bytes have all been passed
+	 * to update(), and records the chunk if it has to be requested again.
+	 *
+	 * @param position
+	 *            The position of the chunk in the file.
+	 * @param length
+	 *            The number of file bytes in the chunk.
+	 * @param written
+	 *            Whether the chunk was written successfully.
+	 * @throws IOException
+	 */
+	public void readTrailer(DataInput in, FrameHeader header, long position, int length, boolean written)
+			throws IOException {
+		final int expectedCrc = in.readInt();
+		if (!written || expectedCrc != (int) crc.getValue()) {
+			badChunks.add(new long[] { position, length });
+		}
+		crc.reset();
+		if (header.isLast()) {
+			expectedDigest = new byte[DIGEST_SIZE];
+			in.readFully(expectedDigest);
+			digestMatched = MessageDigest.isEqual(expectedDigest, digest.digest());
+		}
+	}
+
+	/**
+	 * Returns true once the last frame's trailer has been read.
+	 */
+	public boolean isComplete() {
+		return expectedDigest != null;
+	}
+
+	/**
+	 * Returns the position and length of every chunk that arrived corrupt or
+	 * could not be written.
+	 */
+	public List<long[]> getBadChunks() {
+		return badChunks;
+	}
+
+	/**
+	 * Returns true if the digest of the bytes as they arrived matches the
+	 * server's.
+	 */
+	public boolean isDigestMatched() {
+		return digestMatched;
+	}
+
+	/**
+	 * Returns true if the given range of the channel has the digest that the
+	 * server sent.
+	 *
+	 * @throws IOException
+	 *             If the channel could not be read.
+	 */
+	public boolean matchesDigest(FileChannel channel, long position, long length) throws IOException {
+		final MessageDigest fileDigest = newDigest();
+		final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		final long end = position + length;
+		while (position < end) {
+			buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+			final int read = channel.read(buffer, position);
+			if (read < 0) {
+				return false;
+			}
+			position += read;
+			buffer.flip();
+			fileDigest.update(buffer);
+		}
+		return MessageDigest.isEqual(expectedDigest, fileDigest.digest());
+	}
+}
@@ -0,0 +1,56 @@
+package application;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class holds the metrics of every TCPClient in the JVM in the default
+ * MetricsRegistry.
+ *
+ */
+final class ClientMetrics {
+	static final LongAdder BYTES_RECEIVED = registry().counter("ftp_client_bytes_received_total",
+			"File bytes received, before decompression.");
+	static final LongAdder FILES_DOWNLOADED = registry().counter("ftp_client_files_downloaded_total",
+			"Files saved under their final name.");
+	static final LongAdder BYTES_SENT = registry().counter("ftp_client_bytes_sent_total",
+			"File bytes sent in uploads.");
+	static final LongAdder FILES_UPLOADED = registry().counter("ftp_client_files_uploaded_total",
+			"Files uploaded and published by the server.");
+	static final LongAdder FILES_SKIPPED = registry().counter("ftp_client_files_skipped_total",
+			"Files not downloaded because their contents were already on disk.");
+	static final LatencyHistogram FIRST_BYTE = registry().histogram("ftp_client_first_byte_seconds",
+			"Time from sending a request for a file to receiving the start of the answer.");
+	static final LatencyHistogram TRANSFER = registry().histogram("ftp_client_transfer_seconds",
+			"Time from sending a request for a file to saving it.");
+	static final LatencyHistogram CONNECT = registry().histogram("ftp_client_connect_seconds",
+			"Time to open the TCP connection.");
+	static final LatencyHistogram TLS_HANDSHAKE = registry().histogram("ftp_client_tls_handshake_seconds",
+			"Time to exchange the TLS handshake, full or resumed.");
+	static final LatencyHistogram HANDSHAKE = registry().histogram("ftp_client_handshake_seconds",
+			"Time to exchange the protocol's handshake.");
+	static final LatencyHistogram LISTING = registry().histogram("ftp_client_listing_seconds",
+			"Time to receive the listing of available files.");
+
+	private ClientMetrics() {
+	}
+
+	private static MetricsRegistry registry() {
+		return MetricsRegistry.getDefault();
+	}
+
+	/**
+	 * Returns the counter of retries of the given kind: connect, reconnect,
+	 * request or chunk.
+	 */
+	static LongAdder retry(String kind) {
+		return registry().counter("ftp_client_retries_total", "Retries by kind.", "kind", kind);
+	}
+
+	/**
+	 * Returns the counter of errors with the given cause: an ErrorCode sent by
+	 * the server, or the class of an exception.
+	 */
+	static LongAdder error(String cause) {
+		return registry().counter("ftp_client_errors_total", "Errors by cause.", "cause", cause);
+	}
+}
@@ -0,0 +1,224 @@
+package application;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This enumeration contains the compression codecs that a framed connection
+ * can negotiate. Each codec has a bit in the mask exchanged in HELLO frames;
+ * the client offers the codecs it can decode and the server answers with the
+ * one it will use, or with 0 for none.
+ *
+ * A DATA frame with FLAG_COMPRESSED set starts with the number of file bytes
+ * in the chunk as an int, followed by the chunk compressed on its own with
+ * the connection's codec. Every chunk is compressed independently, so ranges
+ * and retransmitted chunks can be decoded without the chunks before them.
+ *
+ */
+enum Codec {
+	DEFLATE(0x01) {
+		@Override
+		public Compressor newCompressor(int level) {
+			final Deflater deflater = new Deflater(level, true);
+			return new Compressor() {
+				@Override
+				public int compress(ByteBuffer input, byte[] output, int offset) {
+					final int length = input.remaining();
+					deflater.reset();
+					deflater.setInput(input.duplicate());
+					deflater.finish();
+					final int end = offset + length;
+					int position = offset;
+					while (!deflater.finished()) {
+						if (position == end) {
+							return -1;
+						}
+						position += deflater.deflate(output, position, end - position);
+					}
+					return position - offset;
+				}
+
+				@Override
+				public void end() {
+					deflater.end();
+				}
+			};
+		}
+
+		@Override
+		public Decompressor newDecompressor() {
+			final Inflater inflater = new Inflater(true);
+			return new Decompressor() {
+				@Override
+				public void decompress(byte[] input, int length, byte[] output, int outputLength)
+						throws DataFormatException {
+					inflater.reset();
+					inflater.setInput(input, 0, length);
+					int position = 0;
+					while (position < outputLength) {
+						final int inflated = inflater.inflate(output, position, outputLength - position);
+						if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+							throw new DataFormatException("Compressed chunk ended after " + position + " of "
+									+ outputLength + " bytes");
+						}
+						position += inflated;
+					}
+				}
+
+				@Override
+				public void end() {
+					inflater.end();
+				}
+			};
+		}
+	};
+
+	/** The level used when none is configured; it favours throughput. */
+	public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+	/**
+	 * A file is not compressed if the first SAMPLE_SIZE bytes shrink by less
+	 * than this ratio.
+	 */
+	public static final double SKIP_RATIO = 0.9;
+	public static final int SAMPLE_SIZE = 8 * 1024;
+
+	// The leading bytes of common formats that are already compressed.
+	private static final byte[][] COMPRESSED_MAGIC = { { 0x1F, (byte) 0x8B }, // gzip
+			{ 0x50, 0x4B, 0x03, 0x04 }, // zip, jar, docx
+			{ 0x28, (byte) 0xB5, 0x2F, (byte) 0xFD }, // zstd
+			{ (byte) 0xFD, 0x37, 0x7A, 0x58, 0x5A, 0x00 }, // xz
+			{ 0x42, 0x5A, 0x68 }, // bzip2
+			{ 0x37, 0x7A, (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C }, // 7z
+			{ 0x52, 0x61, 0x72, 0x21, 0x1A, 0x07 }, // rar
+			{ 0x04, 0x22, 0x4D, 0x18 }, // lz4
+			{ (byte) 0x89, 0x50, 0x4E, 0x47 }, // png
+			{ (byte) 0xFF, (byte) 0xD8, (byte) 0xFF }, // jpeg
+			{ 0x47, 0x49, 0x46, 0x38 }, // gif
+			{ 0x1A, 0x45, (byte) 0xDF, (byte) 0xA3 }, // mkv, webm
+			{ 0x49, 0x44, 0x33 }, // mp3
+	};
+
+	private final int bit;
+
+	private Codec(int bit) {
+		this.bit = bit;
+	}
+
+	public int getBit() {
+		return bit;
+	}
+
+	/**
+	 * Returns a compressor using the given level. The compressor must be
+	 * ended once it is no longer used.
+	 */
+	public abstract Compressor newCompressor(int level);
+
+	/**
+	 * Returns a decompressor. The decompressor must be ended once it is no
+	 * longer used.
+	 */
+	public abstract Decompressor newDecompressor();
+
+	/**
+	 * Returns the mask of every codec.
+	 */
+	public static int supportedMask() {
+		int mask = 0;
+		for (Codec codec : values()) {
+			mask |= codec.bit;
+		}
+		return mask;
+	}
+
+	/**
+	 * Returns the first codec in the mask, or null if it contains none.
+	 */
+	public static Codec fromMask(int mask) {
+		for (Codec codec : values()) {
+			if ((mask & codec.bit) != 0) {
+				return codec;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if the file starts like a format that is already
+	 * compressed, so compressing it again would waste CPU time.
+	 *
+	 * @throws IOException
+	 */
+	public static boolean isCompressedFormat(FileChannel file) throws IOException {
+		final ByteBuffer head = ByteBuffer.allocate(12);
+		while (head.hasRemaining() && file.read(head, head.position()) > 0) {
+			// Read until the buffer is full or the file ends.
+		}
+		head.flip();
+		return isCompressedFormat(head);
+	}
+
+	/**
+	 * Returns true if the bytes from the buffer's position on start like a
+	 * format that is already compressed.
+	 */
+	public static boolean isCompressedFormat(ByteBuffer contents) {
+		final ByteBuffer head = contents.slice();
+		for (byte[] magic : COMPRESSED_MAGIC) {
+			if (startsWith(head, magic, 0)) {
+				return true;
+			}
+		}
+		// MP4 and QuickTime files have "ftyp" at offset 4.
+		return startsWith(head, new byte[] { 0x66, 0x74, 0x79, 0x70 }, 4);
+	}
+
+	private static boolean startsWith(ByteBuffer head, byte[] magic, int offset) {
+		if (head.limit() < offset + magic.length) {
+			return false;
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if (head.get(offset + i) != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compresses chunks one at a time.
+	 */
+	interface Compressor {
+		/**
+		 * Compresses the remaining bytes of input into output, starting at the
+		 * given offset. The input's position is not changed, and a direct
+		 * input is read in place.
+		 *
+		 * @return the number of compressed bytes, or -1 if they would not be
+		 *         fewer than the input's remaining bytes.
+		 */
+		int compress(ByteBuffer input, byte[] output, int offset);
+
+		void end();
+	}
+
+	/**
+	 * Decompresses chunks one at a time.
+	 */
+	interface Decompressor {
+		/**
+		 * Decompresses the first length bytes of input, which must decode to
+		 * exactly outputLength bytes, into output.
+		 *
+		 * @throws DataFormatException
+		 *             If the input is not a valid compressed chunk.
+		 */
+		void decompress(byte[] input, int length, byte[] output, int outputLength) throws DataFormatException;
+
+		void end();
+	}
+}
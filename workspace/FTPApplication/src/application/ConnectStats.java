@@ -0,0 +1,102 @@
+package application;
+
+/**
+ * This class records how long a TCPClient took to connect to a server: the
+ * time spent opening the TCP connection, negotiating TLS, exchanging the
+ * protocol's handshake and receiving the listing of available files, each
+ * measured for the attempt that succeeded, and the total time including
+ * failed attempts and the delays between them.
+ *
+ */
+public class ConnectStats {
+	private final String address;
+	private final int attempts;
+	private final long connectNanos;
+	private final long tlsNanos;
+	private final boolean tlsResumed;
+	private final long handshakeNanos;
+	private final long listingNanos;
+	private final long totalNanos;
+
+	ConnectStats(String address, int attempts, long connectNanos, long tlsNanos, boolean tlsResumed, long handshakeNanos,
+			long listingNanos, long totalNanos) {
+		this.address = address;
+		this.attempts = attempts;
+		this.connectNanos = connectNanos;
+		this.tlsNanos = tlsNanos;
+		this.tlsResumed = tlsResumed;
+		this.handshakeNanos = handshakeNanos;
+		this.listingNanos = listingNanos;
+		this.totalNanos = totalNanos;
+	}
+
+	/**
+	 * Returns the server's address as host:port.
+	 */
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * Returns the number of attempts it took to connect, at least 1.
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Returns the time spent opening the TCP connection, in nanoseconds.
+	 */
+	public long getConnectNanos() {
+		return connectNanos;
+	}
+
+	/**
+	 * Returns the time spent on the TLS handshake, in nanoseconds; 0 if the
+	 * connection is not encrypted.
+	 */
+	public long getTlsNanos() {
+		return tlsNanos;
+	}
+
+	/**
+	 * Returns true if the TLS handshake resumed the session of an earlier
+	 * connection instead of negotiating a new one.
+	 */
+	public boolean isTlsResumed() {
+		return tlsResumed;
+	}
+
+	/**
+	 * Returns the time spent exchanging the protocol's preamble and HELLO
+	 * frames, or the object stream headers, in nanoseconds.
+	 */
+	public long getHandshakeNanos() {
+		return handshakeNanos;
+	}
+
+	/**
+	 * Returns the time spent receiving the listing of available files, in
+	 * nanoseconds; 0 if no listing was requested.
+	 */
+	public long getListingNanos() {
+		return listingNanos;
+	}
+
+	/**
+	 * Returns the time from the first attempt until the connection was ready,
+	 * in nanoseconds.
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	@Override
+	public String toString() {
+		final String tls = (tlsNanos == 0) ? ""
+				: String.format(", TLS %.1f ms (%s)", tlsNanos / 1e6, tlsResumed ? "resumed" : "full");
+		return String.format("%s: connect %.1f ms%s, handshake %.1f ms, listing %.1f ms, %.1f ms in %d attempt%s",
+				address, connectNanos / 1e6, tls, handshakeNanos / 1e6, listingNanos / 1e6, totalNanos / 1e6,
+				attempts, (attempts == 1) ? "" : "s");
+	}
+}
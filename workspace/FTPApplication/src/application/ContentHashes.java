@@ -0,0 +1,341 @@
+package application;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * This class knows the SHA-256 of the contents of files. A file's hash is
+ * computed the first time it is asked for and remembered along with the
+ * file's size and modification time; it is computed again only once either
+ * of them changes.
+ *
+ * The hashes can be kept in a store file, so they survive restarts. The store
+ * is written at most once per SAVE_INTERVAL_MILLIS while hashes are being
+ * computed, and when the index is closed. It is written to a temporary file
+ * first and renamed over the old store, so a crash never leaves it
+ * truncated. Hashes of files that no longer exist are dropped when the store
+ * is written.
+ *
+ * The server uses one index for the files of its FileCatalog, and the client
+ * one for its downloaded files and its content store. The server's sessions
+ * never wait for a hash: they call lookup(), which queues a hash that is not
+ * known to be computed on a background thread, along with the saves of the
+ * store that computing it triggers.
+ *
+ */
+final class ContentHashes {
+	public static final int HASH_SIZE = ChecksumVerifier.DIGEST_SIZE;
+	private static final int STORE_MAGIC = 0x46484153;
+	private static final int STORE_VERSION = 1;
+	private static final long SAVE_INTERVAL_MILLIS = 10_000;
+	private static final int READ_SIZE = 256 * 1024;
+
+	/**
+	 * The hash of one version of a file.
+	 */
+	private static final class Record {
+		final long size;
+		final long lastModified;
+		final byte[] hash;
+
+		Record(long size, long lastModified, byte[] hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	// The hashes by absolute path.
+	private final ConcurrentHashMap<String, Record> records;
+	private final File store;
+	// The absolute paths of the files queued for the hasher.
+	private final Set<String> queued;
+	private final ExecutorService hasher;
+	private volatile boolean dirty;
+	private long lastSave;
+
+	/**
+	 * Constructs an index and reads the hashes kept in the store, if it
+	 * exists.
+	 *
+	 * @param store
+	 *            The file the hashes are kept in, or null to keep them only
+	 *            in memory.
+	 */
+	public ContentHashes(File store) {
+		this.store = store;
+		records = new ConcurrentHashMap<>();
+		queued = ConcurrentHashMap.newKeySet();
+		hasher = Executors.newSingleThreadExecutor((runnable) -> {
+			Thread t = new Thread(runnable, "ContentHashes-hasher");
+			t.setDaemon(true);
+			return t;
+		});
+		lastSave = System.currentTimeMillis();
+		if (store != null) {
+			load();
+		}
+	}
+
+	public File getStore() {
+		return store;
+	}
+
+	/**
+	 * Returns the hash of the file, computing it if the file changed since it
+	 * was last computed.
+	 *
+	 * @throws IOException
+	 *             If the file could not be read.
+	 */
+	public byte[] get(File file) throws IOException {
+		return get(file, file.length(), file.lastModified());
+	}
+
+	/**
+	 * Returns the hash of the file, which has the given size and modification
+	 * time, computing it if it is not known for that version of the file.
+	 *
+	 * @throws IOException
+	 *             If the file could not be read or changed while it was read.
+	 */
+	public byte[] get(File file, long size, long lastModified) throws IOException {
+		final byte[] known = peek(file, size, lastModified);
+		if (known != null) {
+			return known;
+		}
+		final byte[] hash = compute(file, size);
+		if (file.length() != size || file.lastModified() != lastModified) {
+			throw new IOException(file + " changed while it was hashed.");
+		}
+		records.put(file.getAbsolutePath(), new Record(size, lastModified, hash));
+		dirty = true;
+		saveIfDue();
+		return hash;
+	}
+
+	/**
+	 * Remembers the hash of the given version of the file, which is already
+	 * known, such as that of a file that was just uploaded.
+	 */
+	public void put(File file, long size, long lastModified, byte[] hash) {
+		records.put(file.getAbsolutePath(), new Record(size, lastModified, hash));
+		dirty = true;
+	}
+
+	/**
+	 * Returns the hash of the given version of the file if it is known, or
+	 * null otherwise.
+	 */
+	public byte[] peek(File file, long size, long lastModified) {
+		final Record record = records.get(file.getAbsolutePath());
+		if (record == null || record.size != size || record.lastModified != lastModified) {
+			return null;
+		}
+		return record.hash;
+	}
+
+	/**
+	 * Returns the hash of the given version of the file if it is known, or
+	 * null otherwise. A hash that is not known is computed on a background
+	 * thread, so that a later lookup finds it.
+	 */
+	public byte[] lookup(File file, long size, long lastModified) {
+		final byte[] known = peek(file, size, lastModified);
+		if (known == null) {
+			queue(file, size, lastModified);
+		}
+		return known;
+	}
+
+	/**
+	 * Computes the hash of the given version of the file on a background
+	 * thread, unless it is known or already queued.
+	 */
+	public void queue(File file, long size, long lastModified) {
+		final String path = file.getAbsolutePath();
+		if (peek(file, size, lastModified) == null && queued.add(path)) {
+			try {
+				hasher.execute(() -> {
+					try {
+						get(file, size, lastModified);
+					} catch (IOException e) {
+						// The file changed or vanished.
+					} finally {
+						queued.remove(path);
+					}
+					// Changes made while the file was queued or hashed could
+					// not queue it again, so its new version is queued now.
+					if (file.isFile() && (file.length() != size || file.lastModified() != lastModified)) {
+						queue(file, file.length(), file.lastModified());
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				queued.remove(path);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of files waiting for their hash to be computed in
+	 * the background.
+	 */
+	public int getQueuedCount() {
+		return queued.size();
+	}
+
+	/**
+	 * Returns the number of files whose hash is known.
+	 */
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * Computes the hash of the first size bytes of the file.
+	 *
+	 * @throws IOException
+	 *             If the file could not be read or is shorter.
+	 */
+	static byte[] compute(File file, long size) throws IOException {
+		final MessageDigest digest = ChecksumVerifier.newDigest();
+		final ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long position = 0;
+			while (position < size) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), size - position));
+				final int read = channel.read(buffer, position);
+				if (read < 0) {
+					throw new IOException(file + " shrank while it was hashed.");
+				}
+				buffer.flip();
+				digest.update(buffer);
+				position += read;
+			}
+		}
+		return digest.digest();
+	}
+
+	private void saveIfDue() {
+		if (store == null) {
+			return;
+		}
+		synchronized (this) {
+			if (System.currentTimeMillis() - lastSave < SAVE_INTERVAL_MILLIS) {
+				return;
+			}
+		}
+		save();
+	}
+
+	/**
+	 * Writes the known hashes to the store, if there is one and hashes were
+	 * computed since it was last written.
+	 */
+	public synchronized void save() {
+		lastSave = System.currentTimeMillis();
+		if (store == null || !dirty) {
+			return;
+		}
+		dirty = false;
+		final File temporary = new File(store.getPath() + ".tmp");
+		try {
+			final File parent = store.getAbsoluteFile().getParentFile();
+			if (parent != null) {
+				parent.mkdirs();
+			}
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temporary)))) {
+				out.writeInt(STORE_MAGIC);
+				out.writeInt(STORE_VERSION);
+				for (Map.Entry<String, Record> entry : records.entrySet()) {
+					if (!new File(entry.getKey()).isFile()) {
+						records.remove(entry.getKey(), entry.getValue());
+						continue;
+					}
+					final Record record = entry.getValue();
+					out.writeBoolean(true);
+					out.writeUTF(entry.getKey());
+					out.writeLong(record.size);
+					out.writeLong(record.lastModified);
+					out.write(record.hash);
+				}
+				out.writeBoolean(false);
+			}
+			try {
+				Files.move(temporary.toPath(), store.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary.toPath(), store.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			temporary.delete();
+			dirty = true;
+		}
+	}
+
+	// Reads the store. A store that can't be read is ignored; its hashes are
+	// computed again when they are asked for.
+	private void load() {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(store)))) {
+			if (in.readInt() != STORE_MAGIC || in.readInt() != STORE_VERSION) {
+				System.out.println("Ignoring " + store + ", which is not a hash store of this version.");
+				return;
+			}
+			while (in.readBoolean()) {
+				final String path = in.readUTF();
+				final long size = in.readLong();
+				final long lastModified = in.readLong();
+				final byte[] hash = new byte[HASH_SIZE];
+				in.readFully(hash);
+				records.put(path, new Record(size, lastModified, hash));
+			}
+		} catch (FileNotFoundException e) {
+			// Nothing was stored yet.
+		} catch (IOException e) {
+			e.printStackTrace();
+			records.clear();
+		}
+	}
+
+	/**
+	 * Stops computing queued hashes and writes the known hashes to the store.
+	 */
+	public void close() {
+		hasher.shutdownNow();
+		save();
+	}
+
+	/**
+	 * Returns the hash in hexadecimal, which is how files are named in a
+	 * content store.
+	 */
+	public static String toHex(byte[] hash) {
+		final StringBuilder hex = new StringBuilder(2 * hash.length);
+		for (byte b : hash) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,150 @@
+package application;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * This class rebuilds a file from the client's copy of an older version and
+ * the instructions of a DeltaEncoder, as they arrive in DATA frames. Blocks
+ * are copied from the old copy and literal bytes are taken from the frames,
+ * and both are written to the new file in order. The new file's SHA-256 is
+ * computed along the way and compared with the one the END instruction
+ * carries, so a block that only matched by coincidence is detected.
+ *
+ */
+final class DeltaDecoder {
+	private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+	private final BlockSignatures signatures;
+	private final FileChannel base;
+	private final FileChannel out;
+	private final long size;
+	private final MessageDigest digest;
+	private final ByteBuffer copyBuffer;
+	private long position;
+	private long copiedBytes;
+	private boolean finished;
+	private boolean verified;
+
+	/**
+	 * Constructs a decoder.
+	 *
+	 * @param signatures
+	 *            The signatures that were sent of the old copy.
+	 * @param base
+	 *            The old copy.
+	 * @param out
+	 *            The channel the new file is written to, from position 0.
+	 * @param size
+	 *            The size of the new file.
+	 */
+	DeltaDecoder(BlockSignatures signatures, FileChannel base, FileChannel out, long size) {
+		this.signatures = signatures;
+		this.base = base;
+		this.out = out;
+		this.size = size;
+		digest = ChecksumVerifier.newDigest();
+		copyBuffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+	}
+
+	/**
+	 * Applies the instructions in a DATA frame's payload.
+	 *
+	 * @return true once the END instruction has been applied.
+	 * @throws ProtocolException
+	 *             If the instructions are malformed or refer to blocks the
+	 *             old copy doesn't have.
+	 * @throws IOException
+	 *             If a file could not be read or written.
+	 */
+	boolean apply(ByteBuffer payload) throws IOException {
+		try {
+			while (payload.hasRemaining()) {
+				if (finished) {
+					throw new ProtocolException("Delta instructions after END");
+				}
+				final int instruction = payload.get();
+				if (instruction == DeltaEncoder.COPY) {
+					copy(payload.getInt(), payload.getInt());
+				} else if (instruction == DeltaEncoder.LITERAL) {
+					final int length = payload.getInt();
+					if (length < 0 || length > payload.remaining()) {
+						throw new ProtocolException("Truncated literal of " + length + " bytes");
+					}
+					final ByteBuffer literal = payload.duplicate();
+					literal.limit(literal.position() + length);
+					payload.position(payload.position() + length);
+					write(literal);
+				} else if (instruction == DeltaEncoder.END) {
+					final byte[] expected = new byte[ChecksumVerifier.DIGEST_SIZE];
+					payload.get(expected);
+					verified = position == size && MessageDigest.isEqual(expected, digest.digest());
+					finished = true;
+				} else {
+					throw new ProtocolException("Unknown delta instruction " + instruction);
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new ProtocolException("Truncated delta instruction");
+		}
+		return finished;
+	}
+
+	// Copies count blocks of the old copy, starting at the given one.
+	private void copy(int first, int count) throws IOException {
+		if (first < 0 || count <= 0 || count > signatures.getBlockCount() - first) {
+			throw new ProtocolException("Invalid blocks " + first + "+" + count + " of " + signatures.getBlockCount());
+		}
+		long from = (long) first * signatures.getBlockSize();
+		final long end = Math.min(signatures.getFileSize(), from + (long) count * signatures.getBlockSize());
+		copiedBytes += end - from;
+		while (from < end) {
+			copyBuffer.clear();
+			copyBuffer.limit((int) Math.min(copyBuffer.capacity(), end - from));
+			while (copyBuffer.hasRemaining()) {
+				if (base.read(copyBuffer, from + copyBuffer.position()) < 0) {
+					throw new IOException("The old copy changed while the delta was applied.");
+				}
+			}
+			copyBuffer.flip();
+			from += copyBuffer.remaining();
+			write(copyBuffer);
+		}
+	}
+
+	private void write(ByteBuffer bytes) throws IOException {
+		if (bytes.remaining() > size - position) {
+			throw new ProtocolException("The delta is longer than the file");
+		}
+		digest.update(bytes.duplicate());
+		while (bytes.hasRemaining()) {
+			position += out.write(bytes, position);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of the new file written so far.
+	 */
+	long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Returns the number of bytes taken from the old copy so far.
+	 */
+	long getCopiedBytes() {
+		return copiedBytes;
+	}
+
+	/**
+	 * Returns true if the END instruction was applied and the new file has the
+	 * size and SHA-256 the server sent.
+	 */
+	boolean isVerified() {
+		return verified;
+	}
+}
@@ -0,0 +1,273 @@
+package application;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * This class computes the differences between a file and the client's copy
+ * of it, described by the copy's BlockSignatures, the way rsync does: it
+ * slides a window of one block over the file, rolling the weak checksum
+ * forward one byte at a time, and wherever the window's checksums match a
+ * block of the copy, it tells the client to copy that block instead of
+ * sending the bytes. The bytes between matches are sent literally.
+ *
+ * The differences are a sequence of instructions:
+ *
+ * <pre>
+ * COPY     byte 0, int first block, int count: copy count consecutive blocks
+ *          of the client's copy, starting at the given one
+ * LITERAL  byte 1, int length, length bytes: the next bytes of the file
+ * END      byte 2, 32 bytes: the SHA-256 of the whole file
+ * </pre>
+ *
+ * The instructions are produced incrementally, one DATA frame's worth at a
+ * time, so a session can send them while it computes them. Each call reads
+ * at most INPUT_BUDGET bytes of the file, so even an unchanged file, which
+ * encodes to almost nothing, doesn't keep the event loop busy for long.
+ *
+ */
+final class DeltaEncoder {
+	static final int COPY = 0;
+	static final int LITERAL = 1;
+	static final int END = 2;
+	/** The most bytes in one LITERAL instruction. */
+	static final int MAX_LITERAL = 64 * 1024;
+	// The amount of instructions after which encode() returns.
+	private static final int FRAME_TARGET = FramedSession.CHUNK_SIZE;
+	// The most bytes of the file that encode() reads per call.
+	private static final int INPUT_BUDGET = 4 << 20;
+	private static final int READ_SIZE = 256 * 1024;
+
+	private final BlockSignatures signatures;
+	private final FileChannel source;
+	private final long size;
+	private final int blockSize;
+	// The full-length blocks, chained by the hash of their weak checksums.
+	private final int[] heads;
+	private final int[] next;
+	private final MessageDigest md5;
+	private final MessageDigest fileDigest;
+	private final byte[] scratch;
+	// Holds the bytes of the file from windowStart to windowStart +
+	// windowLength, which always include those from literalStart to one
+	// past the end of the block at position.
+	private final byte[] window;
+	private long windowStart;
+	private int windowLength;
+	// The start of the block being looked for in the signatures.
+	private long position;
+	// The first byte that is neither sent nor covered by a COPY.
+	private long literalStart;
+	private int weak;
+	private boolean weakValid;
+	// A run of consecutive blocks not yet written as a COPY.
+	private int runStart;
+	private int runLength;
+	private long literalBytes;
+
+	/**
+	 * Constructs an encoder of the file's first size bytes.
+	 */
+	DeltaEncoder(BlockSignatures signatures, FileChannel source, long size) {
+		this.signatures = signatures;
+		this.source = source;
+		this.size = size;
+		blockSize = signatures.getBlockSize();
+		final int count = signatures.getBlockCount();
+		heads = new int[Integer.highestOneBit(Math.max(1, count)) << 2];
+		Arrays.fill(heads, -1);
+		next = new int[count];
+		// Insert backwards, so each chain lists its blocks in file order.
+		for (int block = count - 1; block >= 0; block--) {
+			next[block] = -1;
+			if (signatures.getBlockLength(block) == blockSize) {
+				final int slot = slot(signatures.getWeak(block));
+				next[block] = heads[slot];
+				heads[slot] = block;
+			}
+		}
+		md5 = BlockSignatures.newStrongDigest();
+		fileDigest = ChecksumVerifier.newDigest();
+		scratch = new byte[16];
+		window = new byte[MAX_LITERAL + blockSize + READ_SIZE];
+		runStart = -1;
+	}
+
+	/**
+	 * Returns the most bytes that one call of encode() can append.
+	 */
+	int getMaxPayloadSize() {
+		// A call stops once it passes FRAME_TARGET, after at most one
+		// iteration that flushes a literal of up to MAX_LITERAL + blockSize
+		// bytes, up to four COPY instructions and END.
+		return FRAME_TARGET + MAX_LITERAL + blockSize + 5 * (2 + blockSize / MAX_LITERAL) + 128;
+	}
+
+	/**
+	 * Returns the number of bytes sent literally so far.
+	 */
+	long getLiteralBytes() {
+		return literalBytes;
+	}
+
+	private int slot(int checksum) {
+		return (checksum ^ (checksum >>> 13)) & (heads.length - 1);
+	}
+
+	/**
+	 * Appends the instructions for the next part of the file to the buffer,
+	 * which must have getMaxPayloadSize() bytes remaining.
+	 *
+	 * @return true if the instructions end with END, which follows the
+	 *         instructions for the end of the file.
+	 * @throws IOException
+	 *             If the file could not be read or was truncated.
+	 */
+	boolean encode(ByteBuffer out) throws IOException {
+		final long budgetEnd = position + INPUT_BUDGET;
+		while (out.position() < FRAME_TARGET && position < budgetEnd) {
+			fill();
+			if (size - position < blockSize) {
+				finish(out);
+				return true;
+			}
+			final int offset = (int) (position - windowStart);
+			if (!weakValid) {
+				weak = BlockSignatures.weakChecksum(window, offset, blockSize);
+				weakValid = true;
+			}
+			final int block = find(offset);
+			if (block >= 0) {
+				flushLiteral(out);
+				addCopy(block, out);
+				position += blockSize;
+				literalStart = position;
+				weakValid = false;
+			} else {
+				if (position + blockSize < size) {
+					weak = BlockSignatures.roll(weak, blockSize, window[offset], window[offset + blockSize]);
+				} else {
+					weakValid = false;
+				}
+				position++;
+				if (position - literalStart >= MAX_LITERAL) {
+					flushLiteral(out);
+				}
+			}
+		}
+		flushRun(out);
+		return false;
+	}
+
+	/**
+	 * Encodes the rest of the file, which is shorter than a block. It can
+	 * only match the last block of the client's copy.
+	 */
+	private void finish(ByteBuffer out) {
+		final int remaining = (int) (size - position);
+		final int last = signatures.getBlockCount() - 1;
+		if (remaining > 0 && last >= 0 && signatures.getBlockLength(last) == remaining) {
+			final int offset = (int) (position - windowStart);
+			if (BlockSignatures.weakChecksum(window, offset, remaining) == signatures.getWeak(last)
+					&& BlockSignatures.strongChecksum(md5, window, offset, remaining, scratch) == signatures
+							.getStrong(last)) {
+				flushLiteral(out);
+				addCopy(last, out);
+				literalStart = size;
+			}
+		}
+		position = size;
+		flushLiteral(out);
+		flushRun(out);
+		out.put((byte) END).put(fileDigest.digest());
+	}
+
+	/**
+	 * Returns a full-length block of the client's copy that equals the block
+	 * at the given offset of the window, or -1 if there is none. The block
+	 * following the current run is preferred, so runs stay long.
+	 */
+	private int find(int offset) {
+		int found = -1;
+		boolean strongKnown = false;
+		long strong = 0;
+		for (int block = heads[slot(weak)]; block >= 0; block = next[block]) {
+			if (signatures.getWeak(block) != weak) {
+				continue;
+			}
+			if (!strongKnown) {
+				strong = BlockSignatures.strongChecksum(md5, window, offset, blockSize, scratch);
+				strongKnown = true;
+			}
+			if (signatures.getStrong(block) == strong) {
+				if (runStart >= 0 && block == runStart + runLength) {
+					return block;
+				}
+				if (found < 0) {
+					found = block;
+				}
+			}
+		}
+		return found;
+	}
+
+	private void addCopy(int block, ByteBuffer out) {
+		if (runStart >= 0 && block == runStart + runLength) {
+			runLength++;
+			return;
+		}
+		flushRun(out);
+		runStart = block;
+		runLength = 1;
+	}
+
+	private void flushRun(ByteBuffer out) {
+		if (runLength > 0) {
+			out.put((byte) COPY).putInt(runStart).putInt(runLength);
+			runStart = -1;
+			runLength = 0;
+		}
+	}
+
+	// Writes the bytes from literalStart to position as LITERAL instructions.
+	private void flushLiteral(ByteBuffer out) {
+		if (literalStart == position) {
+			return;
+		}
+		flushRun(out);
+		while (literalStart < position) {
+			final int length = (int) Math.min(MAX_LITERAL, position - literalStart);
+			out.put((byte) LITERAL).putInt(length).put(window, (int) (literalStart - windowStart), length);
+			literalStart += length;
+			literalBytes += length;
+		}
+	}
+
+	/**
+	 * Makes sure the window holds the block at position and the byte after
+	 * it, if the file has them. The bytes before literalStart are dropped to
+	 * make room.
+	 */
+	private void fill() throws IOException {
+		final long needed = Math.min(size, position + blockSize + 1);
+		if (needed <= windowStart + windowLength) {
+			return;
+		}
+		final int keep = (int) (windowStart + windowLength - literalStart);
+		System.arraycopy(window, (int) (literalStart - windowStart), window, 0, keep);
+		windowStart = literalStart;
+		final ByteBuffer buffer = ByteBuffer.wrap(window, keep,
+				(int) Math.min(window.length - keep, size - (windowStart + keep)));
+		while (buffer.hasRemaining()) {
+			if (source.read(buffer, windowStart + buffer.position()) < 0) {
+				throw new IOException("The file was truncated during transfer.");
+			}
+		}
+		// Every byte of the file is read exactly once.
+		fileDigest.update(window, keep, buffer.position() - keep);
+		windowLength = buffer.position();
+	}
+}
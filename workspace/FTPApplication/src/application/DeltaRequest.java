@@ -0,0 +1,73 @@
+package application;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class is the payload of a DELTA frame, which asks for a file as the
+ * differences to the client's copy of it. The payload is the client's
+ * BlockSignatures followed by the file's name in UTF-8:
+ *
+ * <pre>
+ * block size    int
+ * file size     long, the size of the client's copy
+ * block count   int
+ * blocks        for each block, its weak checksum (int) and strong checksum
+ *               (long)
+ * name          the rest of the payload
+ * </pre>
+ *
+ * Clients only send DELTA frames to servers that accepted HELLO_BIT in the
+ * HELLO exchange.
+ *
+ */
+final class DeltaRequest {
+	/**
+	 * The bit of the HELLO masks with which a client offers delta transfers
+	 * and a server accepts them. It is above the bits of the Codecs.
+	 */
+	public static final int HELLO_BIT = 1 << 16;
+
+	private final String fileName;
+	private final BlockSignatures signatures;
+
+	public DeltaRequest(String fileName, BlockSignatures signatures) {
+		this.fileName = fileName;
+		this.signatures = signatures;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public BlockSignatures getSignatures() {
+		return signatures;
+	}
+
+	public byte[] toPayload() {
+		final byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer payload = ByteBuffer.allocate(signatures.getEncodedSize() + name.length);
+		signatures.write(payload);
+		payload.put(name);
+		return payload.array();
+	}
+
+	/**
+	 * Decodes the payload of a DELTA frame.
+	 *
+	 * @throws ProtocolException
+	 *             If the signatures are malformed.
+	 */
+	public static DeltaRequest fromPayload(FrameHeader header, byte[] payload) throws ProtocolException {
+		final ByteBuffer buffer = ByteBuffer.wrap(payload);
+		final BlockSignatures signatures;
+		try {
+			signatures = BlockSignatures.read(buffer);
+		} catch (IllegalArgumentException e) {
+			throw new ProtocolException(e.getMessage() + " in " + header);
+		}
+		final String name = new String(payload, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+		return new DeltaRequest(name, signatures);
+	}
+}
@@ -0,0 +1,184 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class writes one downloaded file. The bytes go to a .part file next to
+ * the target, through a FileChannel, as they arrive; once the download is
+ * complete, the .part file is forced to disk according to the SyncPolicy and
+ * renamed to the target in a single step. A download that fails therefore
+ * never leaves a truncated file under the target's name.
+ *
+ * The .part file is extended to the size of the file before any data is
+ * written, so that a download that can't fit on the disk fails before it
+ * starts, and the file does not have to grow with every chunk.
+ *
+ */
+final class DownloadFile {
+	private final File target;
+	private final File part;
+	private final SyncPolicy syncPolicy;
+	private FileChannel channel;
+
+	/**
+	 * Constructs a download of the given target file.
+	 */
+	public DownloadFile(File target, SyncPolicy syncPolicy) {
+		this.target = target;
+		this.part = new File(target.getPath() + TCPClient.PART_SUFFIX);
+		this.syncPolicy = syncPolicy;
+	}
+
+	/**
+	 * Constructs a download of a file named by the server into the directory.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the name is not the name of a file within the directory.
+	 */
+	public static DownloadFile in(File directory, String fileName, SyncPolicy syncPolicy) {
+		if (fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")
+				|| !new File(fileName).getName().equals(fileName)) {
+			throw new IllegalArgumentException("Not a file name: " + fileName);
+		}
+		return new DownloadFile(new File(directory, fileName), syncPolicy);
+	}
+
+	public File getTarget() {
+		return target;
+	}
+
+	public File getPart() {
+		return part;
+	}
+
+	/**
+	 * Opens the .part file, keeping its first length bytes and dropping the
+	 * rest. Bytes are written to the returned channel at their positions in
+	 * the file. The channel is also readable, so written ranges can be
+	 * verified.
+	 *
+	 * @throws IOException
+	 *             If the .part file could not be opened.
+	 */
+	public FileChannel open(long length) throws IOException {
+		close();
+		channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		channel.truncate(length);
+		return channel;
+	}
+
+	/**
+	 * Extends the open .part file to the given size.
+	 *
+	 * @throws IOException
+	 *             If the disk does not have room for the rest of the file.
+	 */
+	public void preallocate(long size) throws IOException {
+		final long current = channel.size();
+		if (size <= current) {
+			return;
+		}
+		final File directory = part.getAbsoluteFile().getParentFile();
+		final long usable = directory.getUsableSpace();
+		// 0 means that the space could not be determined.
+		if (usable > 0 && usable < size - current) {
+			throw new IOException("Not enough space in " + directory + " for " + target.getName() + ": "
+					+ (size - current) + " bytes needed, " + usable + " available");
+		}
+		// Java can't reserve blocks without writing them; writing the last
+		// byte sets the file's final length.
+		channel.write(ByteBuffer.allocate(1), size - 1);
+	}
+
+	/**
+	 * Cuts the .part file down to the given length and closes it, so that a
+	 * later attempt can resume from its end.
+	 */
+	public void keep(long length) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			if (channel.size() > length) {
+				channel.truncate(length);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		close();
+	}
+
+	/**
+	 * Forces the .part file to disk as required by the SyncPolicy, closes it
+	 * and renames it to the target, replacing any existing file.
+	 *
+	 * @throws IOException
+	 *             If the file could not be forced, closed or renamed. The
+	 *             .part file is kept.
+	 */
+	public void commit() throws IOException {
+		if (channel != null) {
+			if (syncPolicy != SyncPolicy.NONE) {
+				channel.force(true);
+			}
+			if (!close()) {
+				throw new IOException("Could not close " + part);
+			}
+		}
+		try {
+			Files.move(part.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		if (syncPolicy == SyncPolicy.DIRECTORY) {
+			forceDirectory();
+		}
+	}
+
+	// Not every platform can open a directory; there the rename is left to
+	// the file system.
+	private void forceDirectory() {
+		try (FileChannel directory = FileChannel.open(target.getAbsoluteFile().getParentFile().toPath(),
+				StandardOpenOption.READ)) {
+			directory.force(true);
+		} catch (IOException e) {
+			// Nothing more can be done.
+		}
+	}
+
+	/**
+	 * Closes and deletes the .part file.
+	 */
+	public void delete() {
+		close();
+		part.delete();
+	}
+
+	/**
+	 * Closes the .part file, if it is open.
+	 *
+	 * @return true if it was closed without errors.
+	 */
+	public boolean close() {
+		if (channel == null) {
+			return true;
+		}
+		try {
+			channel.close();
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			channel = null;
+		}
+	}
+}
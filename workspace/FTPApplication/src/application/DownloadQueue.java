@@ -0,0 +1,380 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class downloads files in the background, a configurable number at a
+ * time. Every running download has a connection of its own; connections are
+ * kept open and reused for the next file in the queue.
+ *
+ * Each queued file is represented by a Transfer, which records the progress
+ * reported by its TCPClient. Transfers are only written by the downloading
+ * threads; a user interface reads them by polling, so downloads never wait
+ * for the interface and the interface is never flooded with updates.
+ *
+ */
+final class DownloadQueue {
+	public static final int DEFAULT_CONCURRENCY = 3;
+
+	/**
+	 * The states of a Transfer.
+	 */
+	enum State {
+		QUEUED, RUNNING, DONE, FAILED, CANCELLED;
+
+		/**
+		 * Returns true if the transfer will not change any more.
+		 */
+		public boolean isFinished() {
+			return this == DONE || this == FAILED || this == CANCELLED;
+		}
+	}
+
+	private final TCPClient template;
+	private final ThreadPoolExecutor executor;
+	private final ArrayDeque<TCPClient> idleClients;
+	private final List<Transfer> transfers;
+
+	/**
+	 * Constructs a queue whose connections are made like the given client's:
+	 * to the same server, with the same protocol and options, saving files
+	 * in the same directory.
+	 *
+	 * @param concurrency
+	 *            The number of files downloaded at the same time.
+	 */
+	public DownloadQueue(TCPClient template, int concurrency) {
+		this.template = template;
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), (runnable) -> {
+					Thread t = new Thread(runnable, "Download-" + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		idleClients = new ArrayDeque<>();
+		transfers = new CopyOnWriteArrayList<>();
+	}
+
+	/**
+	 * Adds a file to the end of the queue.
+	 *
+	 * @return the transfer of the file.
+	 */
+	public Transfer add(String fileName) {
+		final Transfer transfer = new Transfer(fileName);
+		transfers.add(transfer);
+		transfer.future = executor.submit(() -> download(transfer));
+		return transfer;
+	}
+
+	/**
+	 * Returns every transfer that was added, in the order they were added.
+	 */
+	public List<Transfer> getTransfers() {
+		return transfers;
+	}
+
+	/**
+	 * Removes the finished transfers from the list.
+	 */
+	public void clearFinished() {
+		transfers.removeIf((transfer) -> transfer.getState().isFinished());
+	}
+
+	public int getConcurrency() {
+		return executor.getCorePoolSize();
+	}
+
+	/**
+	 * Changes the number of files downloaded at the same time. Running
+	 * downloads are not interrupted when the number is lowered; fewer new
+	 * ones are started until enough of them have finished.
+	 */
+	public void setConcurrency(int concurrency) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("At least one download must be able to run");
+		}
+		// The core size may never exceed the maximum size.
+		if (concurrency > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(concurrency);
+			executor.setCorePoolSize(concurrency);
+		} else {
+			executor.setCorePoolSize(concurrency);
+			executor.setMaximumPoolSize(concurrency);
+		}
+	}
+
+	/**
+	 * Cancels every transfer and closes every connection.
+	 */
+	public void shutdown() {
+		for (Transfer transfer : transfers) {
+			transfer.cancel();
+		}
+		executor.shutdownNow();
+		synchronized (idleClients) {
+			for (TCPClient client : idleClients) {
+				closeQuietly(client);
+			}
+			idleClients.clear();
+		}
+	}
+
+	private void download(Transfer transfer) {
+		if (!transfer.begin()) {
+			return;
+		}
+		final TCPClient client = takeClient();
+		transfer.client = client;
+		client.setTransferListener(transfer);
+		boolean reusable = false;
+		try {
+			final boolean saved = client.download(transfer.fileName);
+			transfer.finish(saved ? State.DONE : State.FAILED, saved ? null : "The file could not be saved.");
+			reusable = true;
+		} catch (ServerException e) {
+			// The connection is still in order.
+			transfer.finish(State.FAILED, e.getMessage());
+			reusable = true;
+		} catch (IOException e) {
+			transfer.finish(transfer.cancelled ? State.CANCELLED : State.FAILED, e.getMessage());
+		} finally {
+			client.setTransferListener(null);
+			transfer.client = null;
+			// A cancelled download leaves the connection in the middle of a
+			// response.
+			if (reusable && !transfer.cancelled) {
+				releaseClient(client);
+			} else {
+				closeQuietly(client);
+			}
+		}
+	}
+
+	private TCPClient takeClient() {
+		synchronized (idleClients) {
+			final TCPClient idle = idleClients.poll();
+			if (idle != null) {
+				return idle;
+			}
+		}
+		final TCPClient client = template.copy();
+		client.setFetchListing(false);
+		return client;
+	}
+
+	private void releaseClient(TCPClient client) {
+		synchronized (idleClients) {
+			if (!executor.isShutdown() && idleClients.size() < getConcurrency()) {
+				idleClients.add(client);
+				return;
+			}
+		}
+		closeQuietly(client);
+	}
+
+	private static void closeQuietly(TCPClient client) {
+		if (client.getSocket() == null) {
+			return;
+		}
+		try {
+			client.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * One queued file, and the progress of its download. Sizes and positions
+	 * are -1 until the server has described the file.
+	 */
+	static final class Transfer implements TransferListener {
+		// The weight of the newest sample in the current rate.
+		private static final double RATE_SMOOTHING = 0.5;
+
+		private final String fileName;
+		private volatile State state;
+		private volatile String message;
+		private volatile long size;
+		private volatile long position;
+		// The bytes that were already on disk when the download started.
+		private volatile long offset;
+		private volatile long startNanos;
+		private volatile long endNanos;
+		private volatile boolean cancelled;
+		private volatile TCPClient client;
+		private volatile Future<?> future;
+		// Only used by the thread calling sample().
+		private long sampleNanos;
+		private long samplePosition;
+		private double currentRate;
+
+		Transfer(String fileName) {
+			this.fileName = fileName;
+			state = State.QUEUED;
+			size = -1;
+			position = -1;
+		}
+
+		// Moves a queued transfer to RUNNING, unless it was cancelled.
+		private synchronized boolean begin() {
+			if (cancelled) {
+				return false;
+			}
+			state = State.RUNNING;
+			startNanos = System.nanoTime();
+			return true;
+		}
+
+		private synchronized void finish(State state, String message) {
+			this.state = state;
+			this.message = message;
+			endNanos = System.nanoTime();
+		}
+
+		@Override
+		public void started(String fileName, long fileSize, long offset) {
+			size = fileSize;
+			position = offset;
+			if (this.offset == 0) {
+				this.offset = offset;
+			}
+		}
+
+		@Override
+		public void progress(String fileName, long position) {
+			this.position = position;
+		}
+
+		/**
+		 * Stops the transfer. A queued transfer never starts; a running one
+		 * is interrupted and its partly downloaded file is deleted.
+		 */
+		public void cancel() {
+			final TCPClient running;
+			synchronized (this) {
+				if (state.isFinished()) {
+					return;
+				}
+				cancelled = true;
+				if (state == State.QUEUED) {
+					state = State.CANCELLED;
+					if (future != null) {
+						future.cancel(false);
+					}
+					return;
+				}
+				running = client;
+			}
+			if (future != null) {
+				future.cancel(true);
+			}
+			// Reading from a socket can't be interrupted, but closing it ends
+			// the read.
+			if (running != null && running.getSocket() != null) {
+				try {
+					running.getSocket().close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * Updates the current rate with the bytes received since the last
+		 * call. This is meant to be called periodically by a single thread.
+		 */
+		public void sample() {
+			final long now = System.nanoTime();
+			final long current = Math.max(0, position);
+			if (sampleNanos != 0 && now > sampleNanos && state == State.RUNNING) {
+				final double rate = (current - samplePosition) * 1e9 / (now - sampleNanos);
+				currentRate = (currentRate == 0) ? rate : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * currentRate;
+			} else if (state != State.RUNNING) {
+				currentRate = 0;
+			}
+			sampleNanos = now;
+			samplePosition = current;
+		}
+
+		public String getFileName() {
+			return fileName;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		/**
+		 * Returns why the transfer failed or was cancelled, or null.
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * Returns the fraction of the file received, from 0 to 1, or -1 if the
+		 * size is not known yet.
+		 */
+		public double getProgress() {
+			if (state == State.DONE) {
+				return 1;
+			}
+			if (size < 0 || position < 0) {
+				return -1;
+			}
+			return (size == 0) ? 1 : (double) position / size;
+		}
+
+		/**
+		 * Returns the rate at which bytes arrived recently, in bytes per
+		 * second, as of the last call to sample().
+		 */
+		public double getCurrentRate() {
+			return currentRate;
+		}
+
+		/**
+		 * Returns the rate at which bytes arrived since the download started,
+		 * in bytes per second.
+		 */
+		public double getAverageRate() {
+			final long start = startNanos;
+			if (start == 0 || position <= offset) {
+				return 0;
+			}
+			final long end = state.isFinished() ? endNanos : System.nanoTime();
+			return (end > start) ? (position - offset) * 1e9 / (end - start) : 0;
+		}
+
+		/**
+		 * Returns the estimated number of seconds until the download is
+		 * complete, or -1 if it can't be estimated.
+		 */
+		public long getSecondsRemaining() {
+			if (state != State.RUNNING || size < 0 || position < 0) {
+				return -1;
+			}
+			final double rate = (currentRate > 0) ? currentRate : getAverageRate();
+			return (rate > 0) ? (long) Math.ceil((size - position) / rate) : -1;
+		}
+	}
+}
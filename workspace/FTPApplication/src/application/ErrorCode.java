@@ -0,0 +1,32 @@
+package application;
+
+/**
+ * This enumeration contains the reasons a server can give in an ERROR frame.
+ *
+ */
+public enum ErrorCode {
+	NOT_FOUND(1), IO_ERROR(2), BAD_REQUEST(3);
+
+	private final int code;
+
+	private ErrorCode(int code) {
+		this.code = code;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * Returns the ErrorCode with the given wire value. Unknown values are
+	 * reported as IO_ERROR.
+	 */
+	public static ErrorCode fromCode(int code) {
+		for (ErrorCode errorCode : values()) {
+			if (errorCode.code == code) {
+				return errorCode;
+			}
+		}
+		return IO_ERROR;
+	}
+}
@@ -0,0 +1,425 @@
+package application;
+
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class multiplexes many framed connections on a single thread using a
+ * Selector. Every connection registered with the loop gets its own
+ * FramedSession, which holds all of the connection's protocol state, so an
+ * idle connection costs a selection key and a small buffer instead of a
+ * thread.
+ *
+ * Connections whose clients turn out to speak the object-stream protocol are
+ * removed from the selector and handed to a TCPServer run by the
+ * SessionExecutor.
+ *
+ * A session whose transfer is ahead of its share of the BandwidthScheduler is
+ * taken out of the selection until its flow has bytes to send again, so a
+ * throttled transfer neither spins nor blocks the loop.
+ *
+ * Work of a session that blocks on the disk, such as publishing an upload,
+ * runs on a task of the SessionExecutor. The session is taken out of the
+ * selection until the task is done and the loop has resumed it.
+ *
+ * If the loop has a TlsContext, every connection is encrypted by a
+ * TlsChannel between the socket and the session. The TLS handshake runs on
+ * the loop's thread, except for its certificate and key exchange work, which
+ * runs on tasks of the SessionExecutor in the same way.
+ *
+ */
+final class EventLoop implements RunnableEndPoint {
+	private final FileCatalog catalog;
+	private final SessionExecutor executor;
+	private final BandwidthScheduler scheduler;
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<SocketChannel> registrations;
+	private final List<SelectionKey> handoffs;
+	// The connections whose blocking work or TLS tasks are done.
+	private final ConcurrentLinkedQueue<SelectionKey> resumptions;
+	// The System.nanoTime() at which each throttled session may write again.
+	private final Map<SelectionKey, Long> throttled;
+	private volatile boolean running;
+	private volatile int compressionLevel;
+	private volatile boolean uploadsEnabled;
+	private volatile TlsContext tls;
+
+	/**
+	 * A registered connection: the session and the channel it reads and
+	 * writes, which is the socket itself or the TlsChannel encrypting it.
+	 */
+	private static final class Connection {
+		final FramedSession session;
+		final ByteChannel channel;
+		final TlsChannel tlsChannel;
+
+		Connection(FramedSession session, ByteChannel channel, TlsChannel tlsChannel) {
+			this.session = session;
+			this.channel = channel;
+			this.tlsChannel = tlsChannel;
+		}
+
+		// Returns true if encrypted bytes wait for the socket to take them.
+		boolean hasPendingOutput() {
+			return tlsChannel != null && tlsChannel.hasPendingOutput();
+		}
+
+		// Returns true if bytes were taken from the socket that the session
+		// has not read yet.
+		boolean hasBufferedInput() {
+			return tlsChannel != null && tlsChannel.hasBufferedInput();
+		}
+	}
+
+	/**
+	 * Constructs an EventLoop serving the files in the given catalog.
+	 *
+	 * @param catalog
+	 *            The server's available files.
+	 * @param executor
+	 *            Runs the TCPServers of object-stream clients.
+	 * @param scheduler
+	 *            Shapes the file transfers of every session, or null.
+	 * @throws IOException
+	 *             If the selector could not be opened.
+	 */
+	public EventLoop(FileCatalog catalog, SessionExecutor executor, BandwidthScheduler scheduler)
+			throws IOException {
+		this.catalog = catalog;
+		this.executor = executor;
+		this.scheduler = scheduler;
+		selector = Selector.open();
+		registrations = new ConcurrentLinkedQueue<>();
+		handoffs = new ArrayList<>();
+		resumptions = new ConcurrentLinkedQueue<>();
+		throttled = new HashMap<>();
+		running = true;
+		compressionLevel = Codec.DEFAULT_LEVEL;
+	}
+
+	/**
+	 * Sets the level that sessions registered from now on compress file
+	 * chunks with, if their clients negotiate compression. Level 0 turns
+	 * compression off.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Selects whether sessions registered from now on accept uploads.
+	 */
+	public void setUploadsEnabled(boolean uploadsEnabled) {
+		this.uploadsEnabled = uploadsEnabled;
+	}
+
+	/**
+	 * Sets the TLS context that connections registered from now on are
+	 * encrypted with, or null to leave them in plaintext.
+	 */
+	public void setTls(TlsContext tls) {
+		this.tls = tls;
+	}
+
+	/**
+	 * Adds an accepted connection to this loop. This method may be called
+	 * from any thread.
+	 */
+	public void register(SocketChannel channel) {
+		registrations.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Returns the number of connections currently handled by this loop.
+	 */
+	public int getConnectionCount() {
+		try {
+			return selector.keys().size();
+		} catch (ClosedSelectorException e) {
+			return 0;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select(selectTimeout());
+				registerPending();
+				resumeBlocked();
+				resumeThrottled();
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					handle(key);
+				}
+				if (!handoffs.isEmpty()) {
+					handOff();
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (running) {
+				e.printStackTrace();
+			}
+		} finally {
+			closeAll();
+		}
+	}
+
+	// Returns how long to wait for I/O before a throttled session may write
+	// again, in milliseconds; 0 to wait indefinitely.
+	private long selectTimeout() {
+		if (throttled.isEmpty()) {
+			return 0;
+		}
+		long earliest = Long.MAX_VALUE;
+		for (long resume : throttled.values()) {
+			earliest = Math.min(earliest, resume);
+		}
+		return Math.max(1, (earliest - System.nanoTime() + 999999) / 1000000);
+	}
+
+	/**
+	 * Lets the throttled sessions whose flows have bytes again wait for their
+	 * sockets to accept them.
+	 */
+	private void resumeThrottled() {
+		final long now = System.nanoTime();
+		final Iterator<Map.Entry<SelectionKey, Long>> entries = throttled.entrySet().iterator();
+		while (entries.hasNext()) {
+			final Map.Entry<SelectionKey, Long> entry = entries.next();
+			if (entry.getValue() <= now) {
+				entries.remove();
+				if (entry.getKey().isValid()) {
+					entry.getKey().interestOps(SelectionKey.OP_WRITE);
+				}
+			}
+		}
+	}
+
+	private void registerPending() {
+		SocketChannel channel;
+		while ((channel = registrations.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				final FramedSession session = new FramedSession(catalog);
+				session.setCompressionLevel(compressionLevel);
+				session.setUploadsEnabled(uploadsEnabled);
+				if (scheduler != null) {
+					session.setScheduler(scheduler, channel.socket().getInetAddress().getHostAddress());
+				}
+				final TlsChannel tlsChannel = (tls == null) ? null : tls.newServerChannel(channel);
+				final SelectionKey key = channel.register(selector, SelectionKey.OP_READ,
+						new Connection(session, (tlsChannel == null) ? channel : tlsChannel, tlsChannel));
+				final Runnable resume = () -> {
+					resumptions.add(key);
+					selector.wakeup();
+				};
+				session.setBlockingExecutor(executor::executeTask, resume);
+				if (tlsChannel != null) {
+					tlsChannel.setTaskExecutor(executor::executeTask, resume);
+				}
+				ServerMetrics.SESSIONS.increment();
+			} catch (IOException e) {
+				e.printStackTrace();
+				closeQuietly(channel);
+			}
+		}
+	}
+
+	/**
+	 * Finishes the blocking work or continues the TLS handshake of the
+	 * connections whose tasks are done, and advances their sessions. The
+	 * sessions of closed connections cleaned up after their tasks themselves.
+	 */
+	private void resumeBlocked() {
+		SelectionKey key;
+		while ((key = resumptions.poll()) != null) {
+			if (!key.isValid()) {
+				continue;
+			}
+			final Connection connection = (Connection) key.attachment();
+			try {
+				connection.session.resume();
+				if (connection.tlsChannel != null) {
+					connection.tlsChannel.flush();
+				}
+				advance(key, connection);
+			} catch (IOException e) {
+				closeOnError(key, e);
+			}
+		}
+	}
+
+	/**
+	 * Reads or writes the connection that is ready, and advances its session.
+	 */
+	private void handle(SelectionKey key) {
+		final Connection connection = (Connection) key.attachment();
+		final FramedSession session = connection.session;
+		final ByteChannel channel = connection.channel;
+		try {
+			if (key.isReadable()) {
+				if (session.read(channel) < 0) {
+					close(key);
+					return;
+				}
+			} else if (key.isWritable()) {
+				if (connection.tlsChannel == null || connection.tlsChannel.flush()) {
+					session.write(channel);
+				}
+			}
+			advance(key, connection);
+		} catch (IOException e) {
+			closeOnError(key, e);
+		}
+	}
+
+	/**
+	 * Handles the session's buffered requests and selects what its connection
+	 * waits for next. Reading is suspended while a session has output pending,
+	 * so a slow reader can't make the server buffer more than one response for
+	 * it. A throttled session is not selected at all until its flow has bytes
+	 * to send, nor a blocked session or a TLS handshake until its task is
+	 * done. A TLS connection whose records were already taken from the socket
+	 * is read again at once, as the selector would not report them.
+	 */
+	private void advance(SelectionKey key, Connection connection) throws IOException {
+		final FramedSession session = connection.session;
+		final ByteChannel channel = connection.channel;
+		while (true) {
+			while (!session.hasPendingOutput() && session.process()) {
+				// Keep handling requests that were already buffered.
+			}
+			if (session.getState() == FramedSession.State.NOT_FRAMED) {
+				handoffs.add(key);
+				return;
+			}
+			if (session.hasPendingOutput() && session.write(channel)) {
+				while (!session.hasPendingOutput() && session.process()) {
+					// Handle the next buffered request.
+				}
+			}
+			if (session.hasPendingOutput() || connection.hasPendingOutput() || !connection.hasBufferedInput()
+					|| session.isBlocked()) {
+				break;
+			}
+			if (session.read(channel) < 0) {
+				close(key);
+				return;
+			}
+		}
+		final boolean writing = session.hasPendingOutput() || connection.hasPendingOutput();
+		if (connection.tlsChannel != null && connection.tlsChannel.isRunningTasks()) {
+			key.interestOps(0);
+			return;
+		}
+		if (session.isBlocked()) {
+			key.interestOps(writing ? SelectionKey.OP_WRITE : 0);
+			return;
+		}
+		final long throttleNanos = session.getThrottleNanos();
+		if (throttleNanos > 0) {
+			key.interestOps(0);
+			throttled.put(key, System.nanoTime() + throttleNanos);
+			return;
+		}
+		key.interestOps(writing ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	private void closeOnError(SelectionKey key, IOException e) {
+		System.out.println("Closing connection: " + e.getMessage());
+		ServerMetrics.error(e.getClass().getSimpleName()).increment();
+		close(key);
+	}
+
+	/**
+	 * Moves the connections of object-stream clients to blocking TCPServers,
+	 * replaying the bytes that were already read from them.
+	 */
+	private void handOff() throws IOException {
+		for (SelectionKey key : handoffs) {
+			key.cancel();
+		}
+		// A channel can only be made blocking once its cancelled key has been
+		// removed from the selector, which happens during the next selection.
+		selector.selectNow();
+		for (SelectionKey key : handoffs) {
+			final SocketChannel channel = (SocketChannel) key.channel();
+			final Connection connection = (Connection) key.attachment();
+			try {
+				channel.configureBlocking(true);
+				final TCPServer server = new TCPServer(channel.socket(), connection.session.takeBufferedInput(),
+						catalog);
+				server.setTlsChannel(connection.tlsChannel);
+				server.setExecutor(executor);
+				server.setScheduler(scheduler);
+				executor.execute(server);
+			} catch (IOException e) {
+				e.printStackTrace();
+				closeQuietly(channel);
+			}
+		}
+		handoffs.clear();
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		throttled.remove(key);
+		final Connection connection = (Connection) key.attachment();
+		connection.session.close();
+		if (connection.tlsChannel != null) {
+			try {
+				connection.tlsChannel.close();
+			} catch (IOException e) {
+				// The socket is closed below.
+			}
+		}
+		closeQuietly((SocketChannel) key.channel());
+	}
+
+	private void closeAll() {
+		try {
+			for (SelectionKey key : selector.keys()) {
+				close(key);
+			}
+			selector.close();
+		} catch (ClosedSelectorException | IOException e) {
+			// Already closed.
+		}
+		SocketChannel channel;
+		while ((channel = registrations.poll()) != null) {
+			closeQuietly(channel);
+		}
+		resumptions.clear();
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops the loop and closes all of its connections.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+	}
+}
@@ -0,0 +1,346 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the contents of frequently requested files in direct
+ * ByteBuffers, so that they can be sent without touching the disk and without
+ * being copied onto the heap. The cache holds at most budget bytes.
+ *
+ * Every request for a file is counted in a FrequencySketch. A file that is
+ * not cached is loaded on a background thread once it has been requested at
+ * least twice, if it fits in the free budget or if it has been requested more
+ * often than every least recently used file that would have to be evicted to
+ * make room for it (TinyLFU admission with LRU eviction). One-off downloads
+ * therefore never push hot files out.
+ *
+ * Entries remember the size and modification time of the file they were
+ * loaded from, and are dropped as soon as the FileCatalog reports different
+ * ones.
+ *
+ */
+final class FileCache {
+	public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+	// Requests seen before a file may be loaded.
+	private static final int MIN_ADMISSION_FREQUENCY = 2;
+
+	private final long budget;
+	private final long maxEntrySize;
+	// In access order, so the first entry is the least recently used one.
+	private final LinkedHashMap<String, Entry> entries;
+	private final FrequencySketch sketch;
+	private final Set<String> loading;
+	private final ExecutorService loader;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong loads;
+	private final AtomicLong evictions;
+	private final AtomicLong invalidations;
+	private final AtomicLong rejections;
+	private long usedBytes;
+
+	/**
+	 * Constructs a cache.
+	 *
+	 * @param budget
+	 *            The maximum number of bytes held by the cache.
+	 */
+	public FileCache(long budget) {
+		this.budget = budget;
+		// A single file may not take more than half of the cache.
+		maxEntrySize = Math.min(budget / 2, Integer.MAX_VALUE);
+		entries = new LinkedHashMap<>(16, 0.75f, true);
+		sketch = new FrequencySketch(1024);
+		loading = new HashSet<>();
+		loader = Executors.newSingleThreadExecutor((runnable) -> {
+			Thread t = new Thread(runnable, "FileCache-loader");
+			t.setDaemon(true);
+			return t;
+		});
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		loads = new AtomicLong();
+		evictions = new AtomicLong();
+		invalidations = new AtomicLong();
+		rejections = new AtomicLong();
+		usedBytes = 0;
+	}
+
+	/**
+	 * Returns the contents of the file described by the catalog entry, or
+	 * null if they are not cached. The returned buffer is a read-only view of
+	 * its own; the caller may change its position and limit.
+	 *
+	 * A miss may start loading the file in the background, so that a later
+	 * request hits.
+	 *
+	 * @param entry
+	 *            The catalog's current description of the file.
+	 * @param file
+	 *            The file itself.
+	 */
+	public ByteBuffer get(CatalogEntry entry, File file) {
+		final String name = entry.getName();
+		synchronized (this) {
+			sketch.increment(name);
+			final Entry cached = entries.get(name);
+			if (cached != null) {
+				if (cached.size == entry.getSize() && cached.lastModified == entry.getLastModified()) {
+					hits.incrementAndGet();
+					return cached.contents.duplicate();
+				}
+				remove(name);
+				invalidations.incrementAndGet();
+			}
+			misses.incrementAndGet();
+			if (entry.getSize() > maxEntrySize || loading.contains(name)
+					|| sketch.frequency(name) < MIN_ADMISSION_FREQUENCY) {
+				return null;
+			}
+			loading.add(name);
+		}
+		try {
+			loader.execute(() -> load(entry, file));
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				loading.remove(name);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the file into a direct buffer and admits it if the file is still
+	 * the one described by the entry.
+	 */
+	private void load(CatalogEntry entry, File file) {
+		final String name = entry.getName();
+		try {
+			final ByteBuffer contents = ByteBuffer.allocateDirect((int) entry.getSize());
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				while (contents.hasRemaining()) {
+					if (channel.read(contents, contents.position()) < 0) {
+						// The file shrank since it was cataloged.
+						return;
+					}
+				}
+				if (channel.size() != entry.getSize() || file.lastModified() != entry.getLastModified()) {
+					return;
+				}
+			}
+			contents.flip();
+			admit(new Entry(name, entry.getSize(), entry.getLastModified(), contents.asReadOnlyBuffer()));
+		} catch (IOException | OutOfMemoryError e) {
+			// Direct memory is exhausted or the file is unreadable; the file
+			// is simply served from disk.
+			System.out.println("Could not cache " + name + ": " + e);
+		} finally {
+			synchronized (this) {
+				loading.remove(name);
+			}
+		}
+	}
+
+	/**
+	 * Adds the entry, evicting least recently used entries that are requested
+	 * less often than it. If that does not free enough space, the entry is
+	 * rejected and nothing is evicted.
+	 */
+	private synchronized void admit(Entry entry) {
+		final int frequency = sketch.frequency(entry.name);
+		final List<Entry> victims = new ArrayList<>();
+		long free = budget - usedBytes;
+		final Iterator<Entry> lru = entries.values().iterator();
+		while (free < entry.size && lru.hasNext()) {
+			final Entry victim = lru.next();
+			if (sketch.frequency(victim.name) >= frequency) {
+				rejections.incrementAndGet();
+				return;
+			}
+			victims.add(victim);
+			free += victim.size;
+		}
+		if (free < entry.size) {
+			rejections.incrementAndGet();
+			return;
+		}
+		for (Entry victim : victims) {
+			remove(victim.name);
+			evictions.incrementAndGet();
+		}
+		entries.put(entry.name, entry);
+		usedBytes += entry.size;
+		loads.incrementAndGet();
+	}
+
+	private void remove(String name) {
+		final Entry removed = entries.remove(name);
+		if (removed != null) {
+			usedBytes -= removed.size;
+		}
+	}
+
+	/**
+	 * Drops every entry and stops loading files.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		usedBytes = 0;
+		loader.shutdownNow();
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of files that were loaded into the cache.
+	 */
+	public long getLoadCount() {
+		return loads.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the number of entries dropped because their file changed.
+	 */
+	public long getInvalidationCount() {
+		return invalidations.get();
+	}
+
+	/**
+	 * Returns the number of loaded files that were not admitted because the
+	 * cache was full of more frequently requested files.
+	 */
+	public long getRejectionCount() {
+		return rejections.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"FileCache[%d files, %d of %d bytes, %d hits, %d misses, %d loads, %d evictions, "
+						+ "%d invalidations, %d rejections]",
+				getEntryCount(), getUsedBytes(), budget, getHitCount(), getMissCount(), getLoadCount(),
+				getEvictionCount(), getInvalidationCount(), getRejectionCount());
+	}
+
+	/**
+	 * The cached contents of one file.
+	 */
+	private static final class Entry {
+		private final String name;
+		private final long size;
+		private final long lastModified;
+		private final ByteBuffer contents;
+
+		Entry(String name, long size, long lastModified, ByteBuffer contents) {
+			this.name = name;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.contents = contents;
+		}
+	}
+
+	/**
+	 * This class estimates how often each name was requested recently, with a
+	 * count-min sketch of 4-bit counters. All counters are halved after every
+	 * 10 * width increments, so that old popularity fades.
+	 */
+	static final class FrequencySketch {
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+		private final byte[][] counters;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		/**
+		 * Constructs a sketch.
+		 *
+		 * @param width
+		 *            The number of counters per row, rounded up to a power of
+		 *            two.
+		 */
+		FrequencySketch(int width) {
+			final int size = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+			counters = new byte[DEPTH][size];
+			mask = size - 1;
+			sampleSize = 10 * size;
+		}
+
+		void increment(String name) {
+			final int hash = name.hashCode();
+			boolean added = false;
+			for (int i = 0; i < DEPTH; i++) {
+				final int index = index(hash, i);
+				if (counters[i][index] < MAX_COUNT) {
+					counters[i][index]++;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize) {
+				age();
+			}
+		}
+
+		int frequency(String name) {
+			final int hash = name.hashCode();
+			int frequency = MAX_COUNT;
+			for (int i = 0; i < DEPTH; i++) {
+				frequency = Math.min(frequency, counters[i][index(hash, i)]);
+			}
+			return frequency;
+		}
+
+		private int index(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+			h ^= h >>> 16;
+			return h & mask;
+		}
+
+		private void age() {
+			for (byte[] row : counters) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] >>= 1;
+				}
+			}
+			additions /= 2;
+		}
+	}
+}
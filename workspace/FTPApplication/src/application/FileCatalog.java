@@ -0,0 +1,461 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class is the index of the files available in the server's directory.
+ * The directory is scanned once when the catalog is created; afterwards, a
+ * running catalog keeps itself up to date with a WatchService, adding,
+ * replacing and removing entries as files are created, modified and deleted.
+ *
+ * Sessions never read the live index. They call getSnapshot(), which returns
+ * an immutable Snapshot that is shared by every session until the next change
+ * to the directory, so a handshake costs no disk I/O no matter how many files
+ * the directory holds.
+ *
+ * If the catalog has a ContentHashes index, listings can carry the content
+ * hashes of their files. Hashes are computed in the background as files are
+ * added to the catalog or change, or when a listing asks for one that is not
+ * known, and remembered until the file changes; listings sent meanwhile carry
+ * the file's entry without a hash.
+ *
+ */
+final class FileCatalog implements RunnableEndPoint {
+	private final File directory;
+	private final ConcurrentHashMap<String, CatalogEntry> entries;
+	private final Object snapshotLock;
+	private volatile Snapshot snapshot;
+	private volatile FileCache cache;
+	private volatile MappedRegionPool regionPool;
+	private volatile ContentHashes contentHashes;
+	private WatchService watchService;
+
+	/**
+	 * Constructs a catalog of the given directory and scans it.
+	 *
+	 * @param directory
+	 *            The directory containing the server's available files.
+	 */
+	public FileCatalog(File directory) {
+		this.directory = directory;
+		entries = new ConcurrentHashMap<>();
+		snapshotLock = new Object();
+		rescan();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the cache holding the contents of the catalog's hot files, or
+	 * null if there is none.
+	 */
+	public FileCache getCache() {
+		return cache;
+	}
+
+	public void setCache(FileCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Returns the pool that large files are mapped through, or null if files
+	 * are not mapped.
+	 */
+	public MappedRegionPool getRegionPool() {
+		return regionPool;
+	}
+
+	public void setRegionPool(MappedRegionPool regionPool) {
+		this.regionPool = regionPool;
+	}
+
+	/**
+	 * Returns the index of the files' content hashes, or null if listings
+	 * don't carry hashes.
+	 */
+	public ContentHashes getContentHashes() {
+		return contentHashes;
+	}
+
+	/**
+	 * Sets the index of the files' content hashes, and starts computing the
+	 * hashes that it does not know in the background.
+	 */
+	public void setContentHashes(ContentHashes contentHashes) {
+		this.contentHashes = contentHashes;
+		if (contentHashes != null) {
+			for (CatalogEntry entry : entries.values()) {
+				queueHash(entry);
+			}
+		}
+	}
+
+	private void queueHash(CatalogEntry entry) {
+		final ContentHashes hashes = contentHashes;
+		if (hashes != null) {
+			hashes.queue(new File(directory, entry.getName()), entry.getSize(), entry.getLastModified());
+		}
+	}
+
+	/**
+	 * Returns the page with the content hash of each of its entries whose
+	 * hash is known. The entries of the other files are returned without a
+	 * hash, and their hashes are computed in the background. This never
+	 * reads the files, so it may be called on an EventLoop's thread. The
+	 * catalog must have a ContentHashes index.
+	 */
+	public ListPage addContentHashes(ListPage page) {
+		final ContentHashes hashes = contentHashes;
+		final List<CatalogEntry> hashed = new ArrayList<>(page.getEntries().size());
+		for (CatalogEntry entry : page.getEntries()) {
+			final File file = new File(directory, entry.getName());
+			hashed.add(entry.withContentHash(hashes.lookup(file, entry.getSize(), entry.getLastModified())));
+		}
+		return new ListPage(hashed, page.getTotal(), page.hasMore());
+	}
+
+	/**
+	 * Returns the current contents of the catalog. The snapshot is rebuilt
+	 * lazily after the directory changes.
+	 */
+	public Snapshot getSnapshot() {
+		Snapshot current = snapshot;
+		if (current == null) {
+			synchronized (snapshotLock) {
+				current = snapshot;
+				if (current == null) {
+					current = new Snapshot(directory, entries.values());
+					snapshot = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Returns the file with the given name if it is in the catalog, or null
+	 * otherwise. Names that are not in the catalog can't refer to files
+	 * outside of the directory.
+	 */
+	public File resolve(String name) {
+		return entries.containsKey(name) ? new File(directory, name) : null;
+	}
+
+	/**
+	 * Returns the entry of the file with the given name, or null if it is not
+	 * in the catalog.
+	 */
+	public CatalogEntry getEntry(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Adds, replaces or removes the entry of the file with the given name at
+	 * once, rather than when the WatchService reports the change. This is how
+	 * an uploaded file becomes visible to every client as soon as it is
+	 * published.
+	 */
+	public void update(String name) {
+		refresh(directory.toPath().resolve(name));
+	}
+
+	/**
+	 * Replaces the whole index with the directory's current contents.
+	 */
+	private void rescan() {
+		final Map<String, CatalogEntry> scanned = new HashMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+			for (Path path : stream) {
+				final CatalogEntry entry = readEntry(path);
+				if (entry != null) {
+					scanned.put(entry.getName(), entry);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		entries.keySet().retainAll(scanned.keySet());
+		entries.putAll(scanned);
+		for (CatalogEntry entry : scanned.values()) {
+			queueHash(entry);
+		}
+		invalidate();
+	}
+
+	/**
+	 * Adds, replaces or removes the entry of a single file.
+	 */
+	private void refresh(Path path) {
+		final CatalogEntry entry = readEntry(path);
+		if (entry == null) {
+			entries.remove(path.getFileName().toString());
+		} else {
+			entries.put(entry.getName(), entry);
+			queueHash(entry);
+		}
+		invalidate();
+	}
+
+	// Returns the entry of a regular file, or null if the path is not one or
+	// is the temporary file of an upload.
+	private static CatalogEntry readEntry(Path path) {
+		if (UploadFile.isTemporary(path.getFileName().toString())) {
+			return null;
+		}
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+			if (!attributes.isRegularFile()) {
+				return null;
+			}
+			return new CatalogEntry(path.getFileName().toString(), attributes.size(),
+					attributes.lastModifiedTime().toMillis());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void invalidate() {
+		synchronized (snapshotLock) {
+			snapshot = null;
+		}
+	}
+
+	/**
+	 * Watches the directory and applies every change to the catalog until the
+	 * catalog is closed.
+	 */
+	@Override
+	public void run() {
+		final Path dir = directory.toPath();
+		try {
+			synchronized (this) {
+				watchService = dir.getFileSystem().newWatchService();
+				dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+			// Files created before the watch was registered would be missed.
+			rescan();
+			while (true) {
+				final WatchKey key = watchService.take();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						rescan();
+					} else {
+						refresh(dir.resolve((Path) event.context()));
+					}
+				}
+				if (!key.reset()) {
+					System.out.println(directory + " is no longer accessible.");
+					return;
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// The catalog was closed.
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops watching the directory.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (watchService != null) {
+			watchService.close();
+		}
+	}
+
+	/**
+	 * This class is an immutable view of a FileCatalog at one point in time.
+	 */
+	static final class Snapshot {
+		// The most bytes of entries put in one page, well below the largest
+		// frame a client accepts.
+		private static final int PAGE_BUDGET = 512 * 1024;
+		// The bytes of an entry besides its name: the name's length, the size
+		// and the modification time.
+		private static final int ENTRY_OVERHEAD = 18;
+		// The bytes a content hash adds to an entry.
+		private static final int HASH_OVERHEAD = 1 + ContentHashes.HASH_SIZE;
+
+		private final File directory;
+		private final CatalogEntry[] byName;
+		private final List<CatalogEntry> sorted;
+		private volatile HashSet<File> files;
+		private volatile CatalogEntry[] bySize;
+		private volatile CatalogEntry[] byModified;
+
+		private Snapshot(File directory, Iterable<CatalogEntry> entries) {
+			this.directory = directory;
+			final ArrayList<CatalogEntry> list = new ArrayList<>();
+			for (CatalogEntry entry : entries) {
+				list.add(entry);
+			}
+			byName = list.toArray(new CatalogEntry[list.size()]);
+			Arrays.sort(byName);
+			sorted = Collections.unmodifiableList(Arrays.asList(byName));
+		}
+
+		/**
+		 * Returns the entries sorted by name.
+		 */
+		public List<CatalogEntry> getEntries() {
+			return sorted;
+		}
+
+		public int size() {
+			return sorted.size();
+		}
+
+		/**
+		 * Returns the files as the set sent to object-stream clients. The set
+		 * is built once per snapshot and must not be modified.
+		 */
+		public HashSet<File> getFiles() {
+			HashSet<File> result = files;
+			if (result == null) {
+				result = new HashSet<>();
+				for (CatalogEntry entry : sorted) {
+					result.add(new File(directory, entry.getName()));
+				}
+				files = result;
+			}
+			return result;
+		}
+
+		/**
+		 * Returns the entries in the given order. The orders other than by name
+		 * are sorted the first time they are asked for.
+		 */
+		private CatalogEntry[] sortedBy(ListOrder order) {
+			if (order == ListOrder.NAME) {
+				return byName;
+			}
+			CatalogEntry[] result = (order == ListOrder.SIZE) ? bySize : byModified;
+			if (result == null) {
+				result = byName.clone();
+				Arrays.sort(result, order.comparator());
+				if (order == ListOrder.SIZE) {
+					bySize = result;
+				} else {
+					byModified = result;
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Returns one page of the entries matching the request. The entries are
+		 * sorted once per snapshot, so the page is found by binary search on
+		 * the request's cursor and, when sorted by name, its prefix, and only
+		 * the entries of the page are visited unless the request has a glob.
+		 *
+		 * @throws java.util.regex.PatternSyntaxException
+		 *             If the request's glob is malformed.
+		 */
+		public ListPage list(ListRequest request) {
+			final ListOrder order = request.getOrder();
+			final CatalogEntry[] entries = sortedBy(order);
+			final String prefix = request.getPrefix();
+			final Matcher glob = request.isGlob() ? request.toRegex().matcher("") : null;
+
+			// The candidates are entries[from] to entries[to - 1].
+			int from = 0;
+			int to = entries.length;
+			if (order == ListOrder.NAME && !prefix.isEmpty()) {
+				from = firstIndex(entries, 0, to, (e) -> e.getName().compareTo(prefix) >= 0);
+				to = firstIndex(entries, from, to, (e) -> !e.getName().startsWith(prefix));
+			}
+			final int total;
+			if (glob == null && (order == ListOrder.NAME || prefix.isEmpty())) {
+				total = to - from;
+			} else {
+				total = -1;
+			}
+			final CatalogEntry after = request.getAfter();
+			final boolean descending = request.isDescending();
+			if (after != null) {
+				if (descending) {
+					to = firstIndex(entries, from, to, (e) -> order.compare(e, after) >= 0);
+				} else {
+					from = firstIndex(entries, from, to, (e) -> order.compare(e, after) > 0);
+				}
+			}
+
+			final List<CatalogEntry> page = new ArrayList<>(Math.min(request.getLimit(), Math.max(0, to - from)));
+			int bytes = 0;
+			final int step = descending ? -1 : 1;
+			int i = descending ? to - 1 : from;
+			for (; i >= from && i < to; i += step) {
+				final CatalogEntry entry = entries[i];
+				if (!matches(entry, prefix, glob)) {
+					continue;
+				}
+				final int cost = ENTRY_OVERHEAD + 3 * entry.getName().length()
+						+ (request.hasContentHashes() ? HASH_OVERHEAD : 0);
+				if (page.size() >= request.getLimit() || (!page.isEmpty() && bytes + cost > PAGE_BUDGET)) {
+					break;
+				}
+				page.add(entry);
+				bytes += cost;
+			}
+			// The loop stopped either at the end or at an entry that matches
+			// but did not fit.
+			return new ListPage(page, total, i >= from && i < to);
+		}
+
+		private static boolean matches(CatalogEntry entry, String prefix, Matcher glob) {
+			if (glob != null) {
+				return glob.reset(entry.getName()).matches();
+			}
+			return entry.getName().startsWith(prefix);
+		}
+
+		/**
+		 * Returns the first index from start to end - 1 whose entry satisfies
+		 * the condition, or end if none does. The condition must be false for
+		 * a leading run of the entries and true for the rest.
+		 */
+		private static int firstIndex(CatalogEntry[] entries, int start, int end, Predicate<CatalogEntry> condition) {
+			int low = start;
+			int high = end;
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (condition.test(entries[middle])) {
+					high = middle;
+				} else {
+					low = middle + 1;
+				}
+			}
+			return low;
+		}
+	}
+}
@@ -3,7 +3,10 @@ package application;
 import java.io.Serializable;
 
 /**
- * This class is used to contain all of the necessary data within a file.
+ * This class is used to contain all of the necessary data within a file. When
+ * the server sends a file in zero-copy mode, the FileEvent only carries the
+ * file's metadata and the file's bytes follow it directly on the socket, in
+ * which case {@link #isBodyStreamed()} returns true and the file data is null.
  * @author Alec J Strickland
  *
  */
@@ -17,6 +20,7 @@ public class FileEvent implements Serializable {
 	private long fileSize;
 	private byte[] fileData;
 	private FileStatus status;
+	private boolean bodyStreamed;
 
 	public String getFilename() {
 		return filename;
@@ -49,4 +53,16 @@ public class FileEvent implements Serializable {
 	public void setFileData(byte[] data) {
 		fileData = data;
 	}
+
+	/**
+	 * Returns true if the file's bytes are not contained in this object, but
+	 * are instead written to the stream immediately after it.
+	 */
+	public boolean isBodyStreamed() {
+		return bodyStreamed;
+	}
+
+	public void setBodyStreamed(boolean bodyStreamed) {
+		this.bodyStreamed = bodyStreamed;
+	}
 }
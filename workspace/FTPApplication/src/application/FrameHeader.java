@@ -0,0 +1,148 @@
+package application;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class represents the fixed-size header that precedes every message of
+ * the framed protocol. A header is SIZE bytes long and is laid out in network
+ * byte order as follows:
+ *
+ * <pre>
+ * offset 0  opcode      1 byte
+ * offset 1  flags       1 byte
+ * offset 2  reserved    2 bytes, always 0
+ * offset 4  request id  4 bytes
+ * offset 8  length      4 bytes, the number of payload bytes that follow
+ * </pre>
+ *
+ * A framed connection begins with both end-points sending MAGIC, which lets
+ * the server tell it apart from an object stream (whose header starts with
+ * 0xACED).
+ *
+ */
+final class FrameHeader {
+	public static final int SIZE = 12;
+	public static final int MAGIC = 0x46545031; // "FTP1"
+	/** Marks the last DATA frame of a file. */
+	public static final int FLAG_LAST = 0x01;
+	/**
+	 * Marks a GET frame that requests a byte range, see GetRequest, and the
+	 * ACK and DATA frames of an upload that ask for and carry chunks again,
+	 * see PutRequest.
+	 */
+	public static final int FLAG_RANGE = 0x02;
+	/**
+	 * Marks a GET frame asking for checksums, and the DATA frames carrying
+	 * them, see ChecksumVerifier.
+	 */
+	public static final int FLAG_CHECKSUM = 0x04;
+	/** Marks a DATA frame whose chunk is compressed, see Codec. */
+	public static final int FLAG_COMPRESSED = 0x08;
+	/** Marks a LIST frame carrying a ListRequest or a ListPage. */
+	public static final int FLAG_PAGED = 0x10;
+	/** Marks a DATA frame carrying DeltaEncoder instructions. */
+	public static final int FLAG_DELTA = 0x20;
+	/** Marks a paged LIST frame whose entries carry content hashes. */
+	public static final int FLAG_HASHES = 0x40;
+	/** The largest payload accepted for anything but a DATA frame. */
+	public static final int MAX_CONTROL_PAYLOAD = 1 << 20;
+	/** The largest payload accepted for a DATA frame. */
+	public static final int MAX_DATA_PAYLOAD = 16 << 20;
+
+	private final Opcode opcode;
+	private final int flags;
+	private final int requestId;
+	private final int length;
+
+	public FrameHeader(Opcode opcode, int flags, int requestId, int length) {
+		this.opcode = opcode;
+		this.flags = flags;
+		this.requestId = requestId;
+		this.length = length;
+	}
+
+	public Opcode getOpcode() {
+		return opcode;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public boolean isLast() {
+		return (flags & FLAG_LAST) != 0;
+	}
+
+	/**
+	 * Writes this header to the buffer at its current position.
+	 */
+	public void write(ByteBuffer buffer) {
+		buffer.put((byte) opcode.getCode());
+		buffer.put((byte) flags);
+		buffer.putShort((short) 0);
+		buffer.putInt(requestId);
+		buffer.putInt(length);
+	}
+
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(opcode.getCode());
+		out.writeByte(flags);
+		out.writeShort(0);
+		out.writeInt(requestId);
+		out.writeInt(length);
+	}
+
+	/**
+	 * Reads a header from the buffer, which must have at least SIZE bytes
+	 * remaining.
+	 *
+	 * @throws ProtocolException
+	 *             If the header is malformed.
+	 */
+	public static FrameHeader read(ByteBuffer buffer) throws ProtocolException {
+		final int code = buffer.get() & 0xFF;
+		final int flags = buffer.get() & 0xFF;
+		buffer.getShort();
+		final int requestId = buffer.getInt();
+		final int length = buffer.getInt();
+		return validate(code, flags, requestId, length);
+	}
+
+	public static FrameHeader read(DataInput in) throws IOException {
+		final int code = in.readUnsignedByte();
+		final int flags = in.readUnsignedByte();
+		in.readShort();
+		final int requestId = in.readInt();
+		final int length = in.readInt();
+		return validate(code, flags, requestId, length);
+	}
+
+	private static FrameHeader validate(int code, int flags, int requestId, int length) throws ProtocolException {
+		final Opcode opcode = Opcode.fromCode(code);
+		if (opcode == null) {
+			throw new ProtocolException("Unknown opcode " + code);
+		}
+		final int max = (opcode == Opcode.DATA) ? MAX_DATA_PAYLOAD : MAX_CONTROL_PAYLOAD;
+		if (length < 0 || length > max) {
+			throw new ProtocolException("Invalid " + opcode + " payload length " + length);
+		}
+		return new FrameHeader(opcode, flags, requestId, length);
+	}
+
+	@Override
+	public String toString() {
+		return opcode + "[id=" + requestId + ", flags=" + flags + ", length=" + length + "]";
+	}
+}
@@ -0,0 +1,1197 @@
+package application;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.PatternSyntaxException;
+import java.util.zip.CRC32C;
+
+/**
+ * This class is the protocol state machine of one framed connection. It does
+ * no I/O of its own; the owner reads bytes into it with read(), lets it handle
+ * complete requests with process() and drains its responses with write(). The
+ * same session works on a blocking channel driven by a TCPServer thread and on
+ * a non-blocking channel driven by an EventLoop.
+ *
+ * A session handles one request at a time: process() stops as soon as a
+ * request has produced output, and the owner must drain that output before
+ * calling process() again. Requests that arrive in the meantime wait in the
+ * input buffer.
+ *
+ * If uploads are enabled, a client can also send a file with a PUT frame and
+ * DATA frames. Each DATA frame of an upload is written to disk as soon as it
+ * is complete, straight from the input buffer, which therefore never holds
+ * more than one frame of it.
+ *
+ * Creating and publishing an upload's file blocks on the disk. If the session
+ * has a blocking executor, that work runs on it: the session is blocked until
+ * the work is done and its owner has called resume(), and process() handles
+ * nothing in the meantime. Otherwise the work runs on the owner's thread.
+ *
+ * If the session has a BandwidthScheduler, the file bytes of every transfer
+ * are shaped by it. A write() that stops because the transfer is ahead of its
+ * share of the bandwidth says how long to wait with getThrottleNanos().
+ *
+ */
+final class FramedSession {
+	/** The number of file bytes sent in each DATA frame. */
+	static final int CHUNK_SIZE = 256 * 1024;
+	// Idle connections only hold a small buffer; it grows for large payloads.
+	private static final int INITIAL_BUFFER_SIZE = 512;
+	// The completion of blocking work that threw an exception.
+	private static final Runnable FAILED = () -> {
+	};
+
+	/**
+	 * The states of a session's input side.
+	 */
+	enum State {
+		/** Waiting for the client's MAGIC preamble. */
+		PREAMBLE,
+		/** Waiting for a FrameHeader. */
+		HEADER,
+		/** Waiting for the payload of the current frame. */
+		PAYLOAD,
+		/** The client did not send MAGIC; it speaks the object stream. */
+		NOT_FRAMED;
+	}
+
+	private final FileCatalog catalog;
+	private final ArrayDeque<ByteBuffer> pending;
+	private ByteBuffer in;
+	private State state;
+	private FrameHeader header;
+	private Transfer transfer;
+	private int compressionLevel;
+	// The codec negotiated with the client, if any.
+	private Codec codec;
+	private Codec.Compressor compressor;
+	private BandwidthScheduler scheduler;
+	private String clientAddress;
+	private long throttleNanos;
+	private boolean uploadsEnabled;
+	// The upload in progress, and the id of the PUT that started it.
+	private UploadFile upload;
+	private int uploadId;
+	private Executor blockingExecutor;
+	private Runnable onBlockingDone;
+	private boolean blocked;
+	// What is left to do of the blocking work that finished, guarded by this.
+	private Runnable completion;
+	private boolean closed;
+
+	/**
+	 * Constructs a session that serves the files in the given catalog and
+	 * expects the client's preamble as its first input.
+	 */
+	public FramedSession(FileCatalog catalog) {
+		this.catalog = catalog;
+		pending = new ArrayDeque<>();
+		in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		state = State.PREAMBLE;
+		compressionLevel = Codec.DEFAULT_LEVEL;
+	}
+
+	/**
+	 * Sets the level that file chunks are compressed with if the client
+	 * negotiates compression. Level 0 turns compression off. This must be
+	 * called before the client's HELLO frame is handled.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Selects whether the client may upload files into the catalog's
+	 * directory. Uploads are refused by default.
+	 */
+	public void setUploadsEnabled(boolean uploadsEnabled) {
+		this.uploadsEnabled = uploadsEnabled;
+	}
+
+	/**
+	 * Shapes the file transfers of this session with the given scheduler.
+	 *
+	 * @param clientAddress
+	 *            The IP address of the client, which the scheduler's
+	 *            per-client limit applies to.
+	 */
+	public void setScheduler(BandwidthScheduler scheduler, String clientAddress) {
+		this.scheduler = scheduler;
+		this.clientAddress = clientAddress;
+	}
+
+	/**
+	 * Runs the work that blocks on the disk on the given executor instead of
+	 * the owner's thread. Once such work is done, onDone is called on the
+	 * executor's thread, and the owner must call resume() on its own thread
+	 * before it drives the session again.
+	 */
+	public void setBlockingExecutor(Executor executor, Runnable onDone) {
+		blockingExecutor = executor;
+		onBlockingDone = onDone;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Returns true while work that blocks on the disk runs for the session.
+	 */
+	public boolean isBlocked() {
+		return blocked;
+	}
+
+	/**
+	 * Finishes the blocking work that is done, on the owner's thread, which
+	 * may queue output.
+	 *
+	 * @throws IOException
+	 *             If the work failed unexpectedly.
+	 */
+	public void resume() throws IOException {
+		final Runnable done;
+		synchronized (this) {
+			done = completion;
+			completion = null;
+		}
+		if (done == null) {
+			return;
+		}
+		blocked = false;
+		if (done == FAILED) {
+			throw new IOException("A request of the session failed or was rejected");
+		}
+		done.run();
+	}
+
+	/**
+	 * Skips the PREAMBLE state for a connection whose preamble was already
+	 * read by the owner, and queues the server's answer to it.
+	 */
+	public void acceptPreamble() {
+		pending.add(magic());
+		state = State.HEADER;
+	}
+
+	/**
+	 * Returns the bytes that were read but not yet handled. This is how the
+	 * owner gets back the stream header of a client that turned out not to
+	 * speak the framed protocol.
+	 */
+	public byte[] takeBufferedInput() {
+		in.flip();
+		final byte[] bytes = new byte[in.remaining()];
+		in.get(bytes);
+		in.clear();
+		return bytes;
+	}
+
+	/**
+	 * Reads as many bytes as the channel provides into the input buffer.
+	 *
+	 * @return the number of bytes read, or -1 at the end of the stream.
+	 * @throws IOException
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		if (!in.hasRemaining()) {
+			in = grow(in, in.capacity() * 2);
+		}
+		return channel.read(in);
+	}
+
+	/**
+	 * Handles the requests in the input buffer until one of them produces
+	 * output or the buffer holds no complete frame.
+	 *
+	 * @return true if at least one frame was handled.
+	 * @throws ProtocolException
+	 *             If the client violated the protocol.
+	 * @throws IOException
+	 */
+	public boolean process() throws IOException {
+		boolean handled = false;
+		in.flip();
+		try {
+			while (!hasPendingOutput() && !blocked) {
+				if (state == State.PREAMBLE) {
+					if (in.remaining() < 4) {
+						break;
+					}
+					in.mark();
+					if (in.getInt() != FrameHeader.MAGIC) {
+						in.reset();
+						state = State.NOT_FRAMED;
+						break;
+					}
+					pending.add(magic());
+					state = State.HEADER;
+					handled = true;
+				} else if (state == State.HEADER) {
+					if (in.remaining() < FrameHeader.SIZE) {
+						break;
+					}
+					header = FrameHeader.read(in);
+					if (header.getOpcode() == Opcode.DATA) {
+						checkUploadFrame(header);
+					}
+					state = State.PAYLOAD;
+				} else if (state == State.PAYLOAD) {
+					if (in.remaining() < header.getLength()) {
+						if (in.capacity() < header.getLength()) {
+							in.compact();
+							in = grow(in, header.getLength());
+							in.flip();
+						}
+						break;
+					}
+					state = State.HEADER;
+					if (header.getOpcode() == Opcode.DATA) {
+						final ByteBuffer payload = in.slice();
+						payload.limit(header.getLength());
+						in.position(in.position() + header.getLength());
+						receiveUploadFrame(header, payload);
+					} else {
+						final byte[] payload = new byte[header.getLength()];
+						in.get(payload);
+						handle(header, payload);
+					}
+					handled = true;
+				} else {
+					break;
+				}
+			}
+		} finally {
+			in.compact();
+		}
+		return handled;
+	}
+
+	/**
+	 * Returns true while the response being written includes a file.
+	 */
+	public boolean isTransferring() {
+		return transfer != null;
+	}
+
+	public boolean hasPendingOutput() {
+		return !pending.isEmpty() || transfer != null;
+	}
+
+	/**
+	 * Writes as much pending output as the channel accepts.
+	 *
+	 * @return true if all pending output has been written.
+	 * @throws IOException
+	 */
+	public boolean write(WritableByteChannel channel) throws IOException {
+		throttleNanos = 0;
+		while (!pending.isEmpty()) {
+			final ByteBuffer buffer = pending.peek();
+			channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				return false;
+			}
+			pending.poll();
+		}
+		if (transfer != null) {
+			if (!transfer.writeTo(channel)) {
+				throttleNanos = transfer.throttleNanos;
+				return false;
+			}
+			transfer.close();
+			transfer = null;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns how long the owner should wait before calling write() again if
+	 * the last call stopped because the transfer used up its share of the
+	 * bandwidth, in nanoseconds; 0 if it stopped because the channel was full
+	 * or did not stop.
+	 */
+	public long getThrottleNanos() {
+		return throttleNanos;
+	}
+
+	/**
+	 * Releases the file held by an unfinished transfer, and deletes the file
+	 * of an unfinished upload. Blocking work that is still running cleans up
+	 * after itself once it is done.
+	 */
+	public synchronized void close() {
+		closed = true;
+		final Runnable done = completion;
+		completion = null;
+		if (done != null && done != FAILED) {
+			done.run();
+		}
+		release();
+	}
+
+	private void release() {
+		if (transfer != null) {
+			transfer.close();
+			transfer = null;
+		}
+		if (upload != null) {
+			upload.abort();
+			upload = null;
+		}
+		if (compressor != null) {
+			compressor.end();
+			compressor = null;
+		}
+		pending.clear();
+	}
+
+	private void handle(FrameHeader request, byte[] payload) throws IOException {
+		switch (request.getOpcode()) {
+		case LIST:
+			if ((request.getFlags() & FrameHeader.FLAG_PAGED) != 0) {
+				sendListingPage(request.getRequestId(), ListRequest.fromPayload(request, payload));
+			} else {
+				sendListing(request.getRequestId());
+			}
+			break;
+		case GET:
+			sendFile(request.getRequestId(), GetRequest.fromPayload(request, payload));
+			break;
+		case DELTA:
+			sendDelta(request.getRequestId(), DeltaRequest.fromPayload(request, payload));
+			break;
+		case ACK:
+			// The client saved the file; nothing is waiting on this.
+			break;
+		case HELLO:
+			negotiate(request, payload);
+			break;
+		case PUT:
+			if (upload != null) {
+				throw new ProtocolException("PUT while uploading " + upload.getTarget().getName());
+			}
+			startUpload(request.getRequestId(), PutRequest.fromPayload(request, payload));
+			break;
+		default:
+			sendError(request.getRequestId(), ErrorCode.BAD_REQUEST, "Unexpected " + request.getOpcode() + " frame");
+		}
+	}
+
+	/**
+	 * Answers a HELLO frame with the codec that this session will compress
+	 * file chunks with, chosen from the codecs the client offered, and with
+	 * DeltaRequest.HELLO_BIT if the client offered delta transfers.
+	 *
+	 * @throws ProtocolException
+	 *             If the payload is malformed.
+	 */
+	private void negotiate(FrameHeader request, byte[] payload) throws ProtocolException {
+		if (payload.length < 4) {
+			throw new ProtocolException("Truncated " + request);
+		}
+		final int offered = ByteBuffer.wrap(payload).getInt();
+		if (compressor != null) {
+			compressor.end();
+			compressor = null;
+		}
+		codec = (compressionLevel > 0) ? Codec.fromMask(offered & Codec.supportedMask()) : null;
+		if (codec != null) {
+			compressor = codec.newCompressor(compressionLevel);
+		}
+		final ByteBuffer answer = ByteBuffer.allocate(4);
+		answer.putInt(((codec == null) ? 0 : codec.getBit()) | (offered & DeltaRequest.HELLO_BIT)).flip();
+		queueFrame(new FrameHeader(Opcode.HELLO, 0, request.getRequestId(), 4), answer);
+	}
+
+	/**
+	 * Queues a LIST frame containing the name and size of every available
+	 * file. Only clients that predate paged listings ask for it.
+	 */
+	private void sendListing(int requestId) throws IOException {
+		final long start = System.nanoTime();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		final List<CatalogEntry> entries = catalog.getSnapshot().getEntries();
+		out.writeInt(entries.size());
+		for (CatalogEntry entry : entries) {
+			out.writeUTF(entry.getName());
+			out.writeLong(entry.getSize());
+		}
+		queueFrame(new FrameHeader(Opcode.LIST, 0, requestId, bytes.size()), ByteBuffer.wrap(bytes.toByteArray()));
+		ServerMetrics.LISTING.recordSince(start);
+	}
+
+	/**
+	 * Queues a LIST frame with FLAG_PAGED set, whose payload is the ListPage
+	 * answering the request. If the request asks for content hashes and the
+	 * catalog keeps them, the page carries them and FLAG_HASHES is set.
+	 */
+	private void sendListingPage(int requestId, ListRequest request) throws IOException {
+		final long start = System.nanoTime();
+		final ListPage page;
+		try {
+			page = catalog.getSnapshot().list(request);
+		} catch (PatternSyntaxException e) {
+			sendError(requestId, ErrorCode.BAD_REQUEST, "Malformed pattern " + request.getPattern());
+			return;
+		}
+		final boolean hashes = request.hasContentHashes() && catalog.getContentHashes() != null;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		if (hashes) {
+			catalog.addContentHashes(page).write(new DataOutputStream(bytes), true);
+		} else {
+			page.write(new DataOutputStream(bytes));
+		}
+		queueFrame(new FrameHeader(Opcode.LIST, FrameHeader.FLAG_PAGED | (hashes ? FrameHeader.FLAG_HASHES : 0),
+				requestId, bytes.size()), ByteBuffer.wrap(bytes.toByteArray()));
+		ServerMetrics.LISTING.recordSince(start);
+	}
+
+	/**
+	 * Answers a GET request with an ACK frame, followed by the requested bytes
+	 * in DATA frames of at most CHUNK_SIZE bytes. The last DATA frame has
+	 * FLAG_LAST set. The ACK's payload is a GetResponse. The whole file is sent
+	 * if the client's copy of the file is stale. If the request has
+	 * FLAG_CHECKSUM set, every DATA frame ends with a checksum trailer. If
+	 * the session negotiated a codec, chunks are compressed unless the file is
+	 * in a compressed format or its first chunk hardly shrinks. Large files
+	 * whose chunks are checksummed or compressed are read through the
+	 * catalog's MappedRegionPool, if it has one. The transfer is shaped by the
+	 * session's BandwidthScheduler, if it has one.
+	 */
+	private void sendFile(int requestId, GetRequest request) {
+		final String fileName = request.getFileName();
+		final CatalogEntry entry = catalog.getEntry(fileName);
+		if (entry == null) {
+			sendError(requestId, ErrorCode.NOT_FOUND, fileName + " does not exist");
+			return;
+		}
+		final File file = new File(catalog.getDirectory(), fileName);
+		final FileCache cache = catalog.getCache();
+		// A cached file is described by its catalog entry and sent from
+		// memory, without touching the disk.
+		final ByteBuffer cached = (cache == null) ? null : cache.get(entry, file);
+		FileChannel source = null;
+		final long size;
+		final long lastModified;
+		if (cached != null) {
+			size = entry.getSize();
+			lastModified = entry.getLastModified();
+		} else {
+			try {
+				source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				size = source.size();
+			} catch (IOException e) {
+				closeQuietly(source);
+				sendError(requestId, ErrorCode.IO_ERROR, e.toString());
+				return;
+			}
+			lastModified = file.lastModified();
+		}
+		long offset = request.getOffset();
+		long length = request.getLength();
+		if (!request.matches(size, lastModified)) {
+			offset = 0;
+			length = -1;
+		}
+		if (offset > size) {
+			closeQuietly(source);
+			sendError(requestId, ErrorCode.BAD_REQUEST, "Offset " + offset + " is beyond the end of " + fileName);
+			return;
+		}
+		if (length < 0 || length > size - offset) {
+			length = size - offset;
+		}
+		final ByteBuffer ack = ByteBuffer.allocate(FrameHeader.SIZE + GetResponse.SIZE);
+		new FrameHeader(Opcode.ACK, 0, requestId, GetResponse.SIZE).write(ack);
+		ack.putLong(size).putLong(lastModified).putLong(offset).putLong(length).flip();
+		pending.add(ack);
+		boolean compress = compressor != null;
+		if (compress) {
+			try {
+				compress = !((cached != null) ? Codec.isCompressedFormat(cached) : Codec.isCompressedFormat(source));
+			} catch (IOException e) {
+				closeQuietly(source);
+				sendError(requestId, ErrorCode.IO_ERROR, e.toString());
+				return;
+			}
+		}
+		final MappedRegionPool regionPool = catalog.getRegionPool();
+		MappedFileReader mapped = null;
+		if (source != null && regionPool != null && size >= MappedRegionPool.MIN_FILE_SIZE
+				&& (request.isChecksummed() || compress)) {
+			mapped = new MappedFileReader(regionPool, file, size, lastModified);
+		}
+		final BandwidthScheduler.Flow flow = (scheduler == null) ? null : scheduler.open(clientAddress, length);
+		transfer = new FileTransfer(fileName, source, cached, mapped, flow, requestId, offset, offset + length,
+				request.isChecksummed(), codec, compress ? compressor : null);
+	}
+
+	/**
+	 * Answers a DELTA request with an ACK frame describing the whole file,
+	 * followed by DATA frames with FLAG_DELTA set whose payloads are the
+	 * DeltaEncoder's instructions for turning the client's copy into the
+	 * file. The last DATA frame has FLAG_LAST set. The file is always read
+	 * from disk, and the instructions are neither compressed nor checksummed;
+	 * the END instruction carries the file's SHA-256. The transfer is shaped
+	 * by the session's BandwidthScheduler, if it has one.
+	 */
+	private void sendDelta(int requestId, DeltaRequest request) {
+		final String fileName = request.getFileName();
+		final CatalogEntry entry = catalog.getEntry(fileName);
+		if (entry == null) {
+			sendError(requestId, ErrorCode.NOT_FOUND, fileName + " does not exist");
+			return;
+		}
+		final File file = new File(catalog.getDirectory(), fileName);
+		FileChannel source = null;
+		final long size;
+		try {
+			source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			size = source.size();
+		} catch (IOException e) {
+			closeQuietly(source);
+			sendError(requestId, ErrorCode.IO_ERROR, e.toString());
+			return;
+		}
+		final ByteBuffer ack = ByteBuffer.allocate(FrameHeader.SIZE + GetResponse.SIZE);
+		new FrameHeader(Opcode.ACK, 0, requestId, GetResponse.SIZE).write(ack);
+		ack.putLong(size).putLong(file.lastModified()).putLong(0).putLong(size).flip();
+		pending.add(ack);
+		final BandwidthScheduler.Flow flow = (scheduler == null) ? null : scheduler.open(clientAddress, size);
+		transfer = new DeltaTransfer(fileName, new DeltaEncoder(request.getSignatures(), source, size), source, flow,
+				requestId);
+	}
+
+	/**
+	 * Answers a PUT request with an empty ACK frame once the upload's
+	 * temporary file has been created, or with an ERROR frame if uploads are
+	 * disabled or the file can't be created.
+	 */
+	private void startUpload(int requestId, PutRequest request) {
+		if (!uploadsEnabled) {
+			sendError(requestId, ErrorCode.BAD_REQUEST, "Uploads are disabled");
+			return;
+		}
+		final File directory = catalog.getDirectory();
+		runBlocking(() -> {
+			final UploadFile created;
+			try {
+				created = UploadFile.create(directory, request);
+			} catch (IllegalArgumentException e) {
+				return () -> sendError(requestId, ErrorCode.BAD_REQUEST, e.getMessage());
+			} catch (IOException e) {
+				return () -> sendError(requestId, ErrorCode.IO_ERROR, e.toString());
+			}
+			return () -> {
+				upload = created;
+				uploadId = requestId;
+				queueFrame(new FrameHeader(Opcode.ACK, 0, requestId, 0), ByteBuffer.allocate(0));
+			};
+		}, null);
+	}
+
+	/**
+	 * Rejects a DATA frame that is not part of the upload in progress, whose
+	 * checksum trailer does not match the PUT, or that is larger than a chunk
+	 * and its trailer, before its payload is buffered.
+	 *
+	 * @throws ProtocolException
+	 *             If the frame is unexpected or too large.
+	 */
+	private void checkUploadFrame(FrameHeader frame) throws ProtocolException {
+		if (upload == null || frame.getRequestId() != uploadId
+				|| ((frame.getFlags() & FrameHeader.FLAG_RANGE) != 0) != upload.isRepairing()) {
+			throw new ProtocolException("Unexpected " + frame);
+		}
+		if (ChecksumVerifier.hasTrailer(frame) != upload.isChecksummed()) {
+			throw new ProtocolException((upload.isChecksummed() ? "Missing" : "Unexpected") + " checksum in " + frame);
+		}
+		if (frame.getLength() > UploadFile.POSITION_SIZE + CHUNK_SIZE + ChecksumVerifier.CRC_SIZE
+				+ ChecksumVerifier.DIGEST_SIZE) {
+			throw new ProtocolException("Upload chunk too large in " + frame);
+		}
+	}
+
+	/**
+	 * Writes a DATA frame of the upload in progress. After the last frame, the
+	 * client is asked for the chunks that failed their checksums with an ACK
+	 * frame with FLAG_RANGE set, if there are any. Otherwise the file is
+	 * published and added to the catalog, and the PUT is answered with an ACK
+	 * frame carrying the file's GetResponse, or with an ERROR frame if the
+	 * upload failed.
+	 *
+	 * @throws ProtocolException
+	 *             If the frames hold more or fewer bytes than announced.
+	 */
+	private void receiveUploadFrame(FrameHeader frame, ByteBuffer payload) throws ProtocolException {
+		final long before = upload.getBytesReceived();
+		final boolean last = ((frame.getFlags() & FrameHeader.FLAG_RANGE) != 0) ? upload.writeRepair(frame, payload)
+				: upload.write(frame, payload);
+		ServerMetrics.BYTES_RECEIVED.add(upload.getBytesReceived() - before);
+		if (!last) {
+			return;
+		}
+		final UploadFile finished = upload;
+		final int requestId = uploadId;
+		if (finished.needsRepair()) {
+			final List<long[]> chunks = finished.startRepair();
+			if (!chunks.isEmpty()) {
+				ServerMetrics.CHUNKS_RESENT.add(chunks.size());
+				System.out.println("Asking for " + chunks.size() + " chunks of " + finished.getTarget().getName()
+						+ " again.");
+				final ByteBuffer ack = PutRequest.chunksToPayload(chunks);
+				queueFrame(new FrameHeader(Opcode.ACK, FrameHeader.FLAG_RANGE, requestId, ack.remaining()), ack);
+				return;
+			}
+		}
+		upload = null;
+		runBlocking(() -> {
+			final File file = finished.getTarget();
+			try {
+				finished.publish();
+			} catch (IOException e) {
+				return () -> sendError(requestId, ErrorCode.IO_ERROR, e.getMessage());
+			}
+			final long size = file.length();
+			final long lastModified = file.lastModified();
+			final ContentHashes hashes = catalog.getContentHashes();
+			if (hashes != null) {
+				// Before the catalog sees the file, so it is not hashed again.
+				hashes.put(file, size, lastModified, finished.getHash());
+			}
+			catalog.update(file.getName());
+			return () -> {
+				ServerMetrics.FILES_RECEIVED.increment();
+				System.out.println("Received upload of " + file.getName() + ".");
+				final ByteBuffer ack = ByteBuffer.allocate(GetResponse.SIZE);
+				ack.putLong(size).putLong(lastModified).putLong(0).putLong(size).flip();
+				queueFrame(new FrameHeader(Opcode.ACK, 0, requestId, GetResponse.SIZE), ack);
+			};
+		}, finished::abort);
+	}
+
+	/**
+	 * Runs work that blocks on the disk on the blocking executor, or on the
+	 * owner's thread if there is none, and then the Runnable it returns on the
+	 * owner's thread. If the session was closed in the meantime, the Runnable
+	 * runs on the executor's thread and the session releases what it holds
+	 * again.
+	 *
+	 * @param rejected
+	 *            Cleans up if the executor rejects the work, or null.
+	 */
+	private void runBlocking(BlockingWork work, Runnable rejected) {
+		if (blockingExecutor == null) {
+			work.run().run();
+			return;
+		}
+		blocked = true;
+		try {
+			blockingExecutor.execute(() -> finishBlocking(work));
+		} catch (RejectedExecutionException e) {
+			// The server is overloaded; the owner closes the connection.
+			if (rejected != null) {
+				rejected.run();
+			}
+			synchronized (this) {
+				completion = FAILED;
+			}
+			onBlockingDone.run();
+		}
+	}
+
+	// Runs the work on the blocking executor's thread.
+	private void finishBlocking(BlockingWork work) {
+		Runnable done;
+		try {
+			done = work.run();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			done = FAILED;
+		}
+		synchronized (this) {
+			if (closed) {
+				done.run();
+				release();
+				return;
+			}
+			completion = done;
+		}
+		onBlockingDone.run();
+	}
+
+	/**
+	 * This interface is work of a request that blocks on the disk. It returns
+	 * what is left to do on the session owner's thread.
+	 */
+	private interface BlockingWork {
+		Runnable run();
+	}
+
+	/**
+	 * Queues an ERROR frame for the given request.
+	 */
+	private void sendError(int requestId, ErrorCode code, String message) {
+		ServerMetrics.error(code.name()).increment();
+		final byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer payload = ByteBuffer.allocate(2 + text.length);
+		payload.putShort((short) code.getCode()).put(text).flip();
+		queueFrame(new FrameHeader(Opcode.ERROR, 0, requestId, payload.remaining()), payload);
+	}
+
+	private void queueFrame(FrameHeader frameHeader, ByteBuffer payload) {
+		final ByteBuffer frame = ByteBuffer.allocate(FrameHeader.SIZE + payload.remaining());
+		frameHeader.write(frame);
+		frame.put(payload).flip();
+		pending.add(frame);
+	}
+
+	private static ByteBuffer magic() {
+		final ByteBuffer buffer = ByteBuffer.allocate(4);
+		buffer.putInt(FrameHeader.MAGIC).flip();
+		return buffer;
+	}
+
+	// Returns a buffer with at least the given capacity holding the contents
+	// of the buffer, which must be in write mode.
+	private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+		if (buffer.capacity() >= capacity) {
+			return buffer;
+		}
+		final ByteBuffer grown = ByteBuffer.allocate(Math.max(capacity, FrameHeader.SIZE));
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The frames of a response that is sent in parts, as the channel accepts
+	 * them. The bytes of the frames' bodies are shaped by the transfer's flow.
+	 */
+	private abstract static class Transfer {
+		// Null if the transfer is not shaped.
+		final BandwidthScheduler.Flow flow;
+		// How long to wait for the flow after writeTo() returned false.
+		long throttleNanos;
+
+		Transfer(BandwidthScheduler.Flow flow) {
+			this.flow = flow;
+		}
+
+		/**
+		 * Writes as much of the response as the channel accepts.
+		 *
+		 * @return true once the last frame has been written, false if the
+		 *         channel is full or the flow allows no more bytes for now.
+		 * @throws IOException
+		 *             If a file could not be read or ended early. The
+		 *             connection can't be reused afterwards.
+		 */
+		abstract boolean writeTo(WritableByteChannel channel) throws IOException;
+
+		// Returns how many of the wanted file bytes the flow allows now. If it
+		// allows none, throttleNanos is set to how long to wait.
+		long allow(long wanted) {
+			if (flow == null) {
+				return wanted;
+			}
+			final long granted = flow.grant(wanted);
+			if (granted == 0) {
+				throttleNanos = flow.nanosUntilGrant();
+			}
+			return granted;
+		}
+
+		void giveBack(long unused) {
+			if (flow != null) {
+				flow.giveBack(unused);
+			}
+		}
+
+		// Returns true once the whole buffer has been written, writing no
+		// more of it than the flow allows.
+		boolean writeShaped(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				final int allowed = (int) allow(buffer.remaining());
+				if (allowed == 0) {
+					return false;
+				}
+				final int limit = buffer.limit();
+				buffer.limit(buffer.position() + allowed);
+				final int written;
+				try {
+					written = channel.write(buffer);
+				} finally {
+					buffer.limit(limit);
+				}
+				giveBack(allowed - written);
+				ServerMetrics.BYTES_SENT.add(written);
+				if (written < allowed) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// Returns true once the whole buffer has been written.
+		static boolean writeBuffer(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+			if (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			return !buffer.hasRemaining();
+		}
+
+		void close() {
+			if (flow != null) {
+				flow.close();
+			}
+		}
+	}
+
+	/**
+	 * The DATA frames of a delta being sent. Each frame's payload is encoded
+	 * just before it is sent, so the session never holds more than one frame
+	 * of the delta.
+	 */
+	private static final class DeltaTransfer extends Transfer {
+		private final String fileName;
+		private final DeltaEncoder encoder;
+		private final FileChannel source;
+		private final int requestId;
+		private final ByteBuffer frameHeader;
+		private final ByteBuffer body;
+		private final long startNanos;
+		private boolean last;
+
+		DeltaTransfer(String fileName, DeltaEncoder encoder, FileChannel source, BandwidthScheduler.Flow flow,
+				int requestId) {
+			super(flow);
+			this.fileName = fileName;
+			this.encoder = encoder;
+			this.source = source;
+			this.requestId = requestId;
+			startNanos = System.nanoTime();
+			frameHeader = ByteBuffer.allocate(FrameHeader.SIZE);
+			body = ByteBuffer.allocate(encoder.getMaxPayloadSize());
+			frameHeader.flip();
+			body.flip();
+		}
+
+		@Override
+		boolean writeTo(WritableByteChannel channel) throws IOException {
+			throttleNanos = 0;
+			while (true) {
+				if (!frameHeader.hasRemaining() && !body.hasRemaining()) {
+					if (last) {
+						System.out.println("Sent a delta of " + fileName + " with " + encoder.getLiteralBytes()
+								+ " literal bytes");
+						ServerMetrics.FILES_SERVED.increment();
+						ServerMetrics.TRANSFER.recordSince(startNanos);
+						return true;
+					}
+					body.clear();
+					last = encoder.encode(body);
+					body.flip();
+					frameHeader.clear();
+					new FrameHeader(Opcode.DATA, FrameHeader.FLAG_DELTA | (last ? FrameHeader.FLAG_LAST : 0), requestId,
+							body.remaining()).write(frameHeader);
+					frameHeader.flip();
+				}
+				if (!writeBuffer(channel, frameHeader)) {
+					return false;
+				}
+				if (!writeShaped(channel, body)) {
+					return false;
+				}
+			}
+		}
+
+		@Override
+		void close() {
+			closeQuietly(source);
+			super.close();
+		}
+	}
+
+	/**
+	 * The DATA frames of a file, or of a range of it, being sent. The file's
+	 * bytes go from the file to the socket with FileChannel.transferTo, or
+	 * straight from the FileCache's buffer if the file is cached. When
+	 * checksums were requested or the chunks are compressed, each chunk of an
+	 * uncached file is taken from a mapped window of the file, or read into a
+	 * buffer if the file is not mapped, so that the bytes that are checksummed
+	 * and compressed are exactly the bytes that are sent. The bytes sent for a
+	 * chunk's body are shaped by the transfer's flow; frame headers and
+	 * trailers are not.
+	 */
+	private static final class FileTransfer extends Transfer {
+		private final String fileName;
+		// Exactly one of source and cached is set.
+		private final FileChannel source;
+		private final ByteBuffer cached;
+		// Set if the buffered chunks of source are read from mappings.
+		private final MappedFileReader mapped;
+		private final int requestId;
+		private final long end;
+		private final boolean checksums;
+		private final Codec codec;
+		private final ByteBuffer chunkHeader;
+		private final ByteBuffer trailer;
+		private final TransferStats stats;
+		private final CRC32C crc;
+		private final MessageDigest digest;
+		// Null when the file is not compressed.
+		private Codec.Compressor compressor;
+		// Only used for buffered chunks; raw only if they are read.
+		private byte[] raw;
+		private byte[] compressedData;
+		// The bytes of the current chunk that are not sent with transferTo.
+		private ByteBuffer body;
+		private long position;
+		private long chunkEnd;
+		private boolean last;
+		private boolean buffered;
+		private boolean loaded;
+		private boolean sampled;
+		private final long startNanos;
+
+		/**
+		 * Constructs a transfer of the bytes from start to end.
+		 *
+		 * @param source
+		 *            The file, or null if it is cached.
+		 * @param cached
+		 *            The file's cached contents, or null.
+		 * @param mapped
+		 *            The reader of the file's mappings, or null to read
+		 *            buffered chunks from source.
+		 * @param flow
+		 *            The flow shaping the transfer, or null.
+		 * @param checksums
+		 *            Whether the DATA frames carry checksum trailers.
+		 * @param codec
+		 *            The codec negotiated by the session, or null.
+		 * @param compressor
+		 *            The session's compressor, or null if the file should not
+		 *            be compressed.
+		 */
+		FileTransfer(String fileName, FileChannel source, ByteBuffer cached, MappedFileReader mapped,
+				BandwidthScheduler.Flow flow, int requestId, long start, long end, boolean checksums, Codec codec,
+				Codec.Compressor compressor) {
+			super(flow);
+			this.fileName = fileName;
+			this.source = source;
+			this.cached = cached;
+			this.mapped = mapped;
+			this.requestId = requestId;
+			this.position = start;
+			this.end = end;
+			this.checksums = checksums;
+			this.codec = codec;
+			this.compressor = compressor;
+			startNanos = System.nanoTime();
+			chunkHeader = ByteBuffer.allocate(FrameHeader.SIZE);
+			trailer = ByteBuffer.allocate(ChecksumVerifier.CRC_SIZE + ChecksumVerifier.DIGEST_SIZE);
+			stats = new TransferStats(fileName);
+			crc = checksums ? new CRC32C() : null;
+			digest = checksums ? ChecksumVerifier.newDigest() : null;
+			startChunk();
+		}
+
+		// Prepares the DATA frame starting at position. The header of a
+		// buffered chunk is only known once the chunk has been loaded.
+		private void startChunk() {
+			final int length = (int) Math.min(CHUNK_SIZE, end - position);
+			last = position + length == end;
+			chunkEnd = position + length;
+			buffered = checksums || compressor != null;
+			loaded = false;
+			if (!buffered) {
+				chunkHeader.clear();
+				new FrameHeader(Opcode.DATA, last ? FrameHeader.FLAG_LAST : 0, requestId, length).write(chunkHeader);
+				chunkHeader.flip();
+				trailer.clear().flip();
+				stats.addChunk(length, length);
+				if (cached != null) {
+					body = slice(position, length);
+					position = chunkEnd;
+				}
+			}
+		}
+
+		// Returns a view of the cached bytes of the given range.
+		private ByteBuffer slice(long start, int length) {
+			final ByteBuffer view = cached.duplicate();
+			view.position((int) start).limit((int) start + length);
+			return view.slice();
+		}
+
+		// Gets the current chunk's bytes, compresses them if that makes them
+		// smaller, and prepares the chunk's header and trailer.
+		private void loadChunk() throws IOException {
+			final int length = (int) (chunkEnd - position);
+			final ByteBuffer chunk;
+			if (cached != null) {
+				chunk = slice(position, length);
+			} else if (mapped != null) {
+				chunk = mapped.read(position, length);
+			} else {
+				if (raw == null) {
+					raw = new byte[(int) Math.min(CHUNK_SIZE, end - position)];
+				}
+				chunk = ByteBuffer.wrap(raw, 0, length);
+				while (chunk.hasRemaining()) {
+					if (source.read(chunk, position + chunk.position()) < 0) {
+						throw new IOException(fileName + " was truncated during transfer.");
+					}
+				}
+				chunk.flip();
+			}
+			int flags = last ? FrameHeader.FLAG_LAST : 0;
+			int compressed = -1;
+			if (compressor != null) {
+				if (compressedData == null) {
+					compressedData = new byte[4 + (int) Math.min(CHUNK_SIZE, end - position)];
+				}
+				if (!sampled) {
+					// The start of the file decides whether the file is worth
+					// compressing, which costs little even for small files.
+					final int sample = Math.min(length, Codec.SAMPLE_SIZE);
+					final long start = TransferStats.cpuTime();
+					final ByteBuffer head = chunk.duplicate();
+					head.limit(head.position() + sample);
+					final int sampleCompressed = compressor.compress(head, compressedData, 4);
+					stats.addCodecTime(codec, TransferStats.cpuTime() - start);
+					if (sampleCompressed < 0 || sampleCompressed > sample * Codec.SKIP_RATIO) {
+						compressor = null;
+					}
+					sampled = true;
+				}
+				if (compressor != null) {
+					final long start = TransferStats.cpuTime();
+					compressed = compressor.compress(chunk, compressedData, 4);
+					stats.addCodecTime(codec, TransferStats.cpuTime() - start);
+				}
+			}
+			if (compressed >= 0) {
+				flags |= FrameHeader.FLAG_COMPRESSED;
+				body = ByteBuffer.wrap(compressedData, 0, 4 + compressed);
+				body.putInt(0, length);
+			} else {
+				body = chunk;
+			}
+			stats.addChunk(length, body.remaining());
+			trailer.clear();
+			if (checksums) {
+				flags |= FrameHeader.FLAG_CHECKSUM;
+				crc.reset();
+				crc.update(chunk.duplicate());
+				digest.update(chunk.duplicate());
+				trailer.putInt((int) crc.getValue());
+				if (last) {
+					trailer.put(digest.digest());
+				}
+			}
+			trailer.flip();
+			chunkHeader.clear();
+			new FrameHeader(Opcode.DATA, flags, requestId, body.remaining() + trailer.remaining()).write(chunkHeader);
+			chunkHeader.flip();
+			position = chunkEnd;
+			loaded = true;
+		}
+
+		@Override
+		boolean writeTo(WritableByteChannel channel) throws IOException {
+			throttleNanos = 0;
+			while (true) {
+				if (buffered && !loaded) {
+					try {
+						loadChunk();
+					} catch (InternalError e) {
+						// Reading a mapping beyond the end of a file that
+						// shrank faults.
+						throw new IOException(fileName + " was truncated during transfer.", e);
+					}
+				}
+				if (!writeBuffer(channel, chunkHeader)) {
+					return false;
+				}
+				if (body != null && !writeShaped(channel, body)) {
+					return false;
+				}
+				if (!writeBuffer(channel, trailer)) {
+					return false;
+				}
+				while (position < chunkEnd) {
+					final long allowed = allow(chunkEnd - position);
+					if (allowed == 0) {
+						return false;
+					}
+					final long sent = (channel instanceof TlsChannel)
+							? ((TlsChannel) channel).transferFrom(source, position, allowed)
+							: source.transferTo(position, allowed, channel);
+					giveBack(allowed - Math.max(0, sent));
+					if (sent > 0) {
+						ServerMetrics.BYTES_SENT.add(sent);
+					}
+					if (sent <= 0) {
+						// transferTo returns 0 once it reaches the end of the
+						// file, which means the file shrank after its size
+						// was sent; otherwise the socket is full.
+						if (position >= source.size()) {
+							throw new IOException(fileName + " was truncated during transfer.");
+						}
+						return false;
+					}
+					position += sent;
+				}
+				body = null;
+				if (last) {
+					if (stats.isCompressed()) {
+						System.out.println("Sent " + stats);
+					}
+					ServerMetrics.FILES_SERVED.increment();
+					ServerMetrics.TRANSFER.recordSince(startNanos);
+					return true;
+				}
+				startChunk();
+			}
+		}
+
+		@Override
+		void close() {
+			closeQuietly(source);
+			if (mapped != null) {
+				mapped.close();
+			}
+			super.close();
+		}
+	}
+}
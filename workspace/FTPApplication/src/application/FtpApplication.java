@@ -1,44 +1,77 @@
 package application;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.net.SocketTimeoutException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.PauseTransition;
+import javafx.animation.Timeline;
 import javafx.application.Application;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
+import javafx.application.Platform;
+import javafx.beans.property.SimpleDoubleProperty;
+import javafx.beans.property.SimpleStringProperty;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Group;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.control.Spinner;
 import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableRow;
 import javafx.scene.control.TableView;
 import javafx.scene.control.TextField;
-import javafx.scene.control.cell.PropertyValueFactory;
+import javafx.scene.control.cell.ProgressBarTableCell;
 import javafx.scene.input.KeyCode;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.scene.text.Text;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 
 /**
  * This class creates a JavaFX GUI that is used to download files off of a
  * TCPServer object. This class connects to the server by creating a TCPClient
- * object and executing it using a Thread.
+ * object and calling its connectAsync() method, so the window keeps responding
+ * while the client connects.
  * 
  * At no time does this class instantiate a TCPServer object; the server must be
  * executed independently of this class.
  * 
+ * The server's files are shown by a RemoteFileList, which the server filters
+ * and sorts and which is loaded page by page as the user scrolls, so the
+ * window opens as quickly for a hundred thousand files as for ten.
+ * 
+ * Downloads run in the background on a DownloadQueue, so the window stays
+ * responsive while files are transferred. The progress of every download is
+ * polled a few times per second and shown in a table.
+ * 
  * @author Alec J Strickland
  *
  */
 public class FtpApplication extends Application {
+	// How often the download table is refreshed.
+	private static final Duration REFRESH_INTERVAL = Duration.millis(250);
+	// How often the loaded part of the file listing is checked for changes.
+	private static final Duration LISTING_REFRESH_INTERVAL = Duration.seconds(5);
+	// How long typing must pause before the listing is filtered.
+	private static final Duration FILTER_DELAY = Duration.millis(150);
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+			.withZone(ZoneId.systemDefault());
+	private static final int MAX_CONCURRENCY = 16;
 	private TCPClient client;
+	private DownloadQueue queue;
+	private RemoteFileList files;
 	private boolean invalidInputLabelExists;
 	private boolean timeoutLabelExists;
 
@@ -59,6 +92,8 @@ public class FtpApplication extends Application {
 	@Override
 	public void start(Stage arg0) throws Exception {
 		Stage stage = arg0;
+		// Publish the client's metrics to JMX consoles such as JConsole.
+		MetricsRegistry.getDefault().registerMBean();
 		stage.setTitle("FTP Application");
 		stage.setWidth(400);
 		stage.setHeight(220);
@@ -85,6 +120,7 @@ public class FtpApplication extends Application {
 		final Label invalidInputLabel = new Label("Invalid Input.");
 		invalidInputLabel.setStyle("-fx-text-fill: red;");
 		final Label timeoutLabel = new Label("Connection timed out");
+		final Label connectingLabel = new Label("Connecting...");
 
 		timeoutLabel.setStyle("-fx-text-fill: red;");
 		enter.setOnAction((event) -> {
@@ -94,34 +130,34 @@ public class FtpApplication extends Application {
 				// Once it is known that both values are valid, enter
 				// the main screen.
 				client = new TCPClient(ipFieldText, Integer.parseInt(portFieldText));
-				// Start TCP connection and thread
-				Thread t = new Thread(client);
-				t.setDaemon(true);
-				t.start();
-				long start = System.nanoTime();
-				long end = 0;
-				long totalTime = 0;
-				long timeoutTime = 3000000000L; // 3 seconds
-				while (!client.isReady()) {
-					Thread.yield();
-					end = System.nanoTime();
-					totalTime = end - start;
-					// time-out occurs if handshake takes at least 3 seconds.
-					if (totalTime >= timeoutTime) {
-						if (invalidInputLabelExists) {
-							grid.getChildren().remove(invalidInputLabel);
-							invalidInputLabelExists = false;
-						}
-						if (!timeoutLabelExists) {
-							grid.add(timeoutLabel, 2, 1);
-							timeoutLabelExists = true;
-						}
-						break;
-					}
+				// The main screen loads the listing a page at a time.
+				client.setFetchListing(false);
+				if (invalidInputLabelExists) {
+					grid.getChildren().remove(invalidInputLabel);
+					invalidInputLabelExists = false;
 				}
-				if (client.isReady()) {
-					mainScreen(stage);
+				if (timeoutLabelExists) {
+					grid.getChildren().remove(timeoutLabel);
+					timeoutLabelExists = false;
 				}
+				grid.add(connectingLabel, 2, 1);
+				enter.setDisable(true);
+				// Connect in the background and come back to the FX thread
+				// once the client is ready or has given up.
+				client.connectAsync().whenComplete((stats, failure) -> Platform.runLater(() -> {
+					grid.getChildren().remove(connectingLabel);
+					enter.setDisable(false);
+					if (failure == null) {
+						System.out.println("Connected to " + stats);
+						mainScreen(stage);
+						return;
+					}
+					System.out.println("Could not connect: " + failure.getMessage());
+					timeoutLabel.setText((failure instanceof SocketTimeoutException) ? "Connection timed out"
+							: "Could not connect");
+					grid.add(timeoutLabel, 2, 1);
+					timeoutLabelExists = true;
+				}));
 			} else {
 				if (!invalidInputLabelExists) {
 					if (timeoutLabelExists) {
@@ -205,7 +241,7 @@ public class FtpApplication extends Application {
 	 *            The original stage for the application.
 	 */
 	private void mainScreen(Stage stage) {
-		final int WIDTH = 350;
+		final int WIDTH = 1000;
 		final int HEIGHT = 600;
 		final GridPane grid = new GridPane();
 		grid.setAlignment(Pos.TOP_LEFT);
@@ -218,56 +254,157 @@ public class FtpApplication extends Application {
 		hbox.setPadding(new Insets(0, 0, 0, 60));
 		grid.add(hbox, 0, 0);
 
-		// Retrieve file names from TCPClient thread
-		final HashSet<File> filesSet = client.getFiles();
-		LinkedList<File> fileList = new LinkedList<>();
-		// Add files to list so that they can be sorted
-		for (File file : filesSet) {
-			fileList.add(file);
-		}
-		Collections.sort(fileList);
-		ObservableList<File> data;
-
 		/*
 		 * ~~~~~~~~~~~~~~~~~~~~~~~ Display files on GUI ~~~~~~~~~~~~~~~~~~~~~~~
 		 */
 
-		// Establish TableColumn object
-		final TableColumn<File, String> fileCol = new TableColumn<>("Files");
-		fileCol.setCellValueFactory(new PropertyValueFactory<File, String>("Name"));
-		// Establish TableView object that will contain the TableColumn object
-		final TableView<File> tableView = new TableView<>();
+		files = new RemoteFileList(client);
+		// Establish TableColumn objects
+		final TableColumn<CatalogEntry, String> fileCol = new TableColumn<>("Files");
+		fileCol.setCellValueFactory((row) -> new SimpleStringProperty(row.getValue().getName()));
+		final TableColumn<CatalogEntry, String> sizeCol = new TableColumn<>("Size");
+		sizeCol.setCellValueFactory((row) -> new SimpleStringProperty(formatSize(row.getValue().getSize())));
+		sizeCol.setStyle("-fx-alignment: CENTER-RIGHT;");
+		final TableColumn<CatalogEntry, String> dateCol = new TableColumn<>("Modified");
+		dateCol.setCellValueFactory((row) -> new SimpleStringProperty(
+				DATE_FORMAT.format(Instant.ofEpochMilli(row.getValue().getLastModified()))));
+		// Establish TableView object that will contain the TableColumn objects
+		final TableView<CatalogEntry> tableView = new TableView<>(files.getItems());
 		tableView.setEditable(false);
-		// Force tableView to have 300 width
-		tableView.setMinWidth(300);
-		tableView.setMaxWidth(300);
+		// Several files can be queued at once.
+		tableView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+		tableView.setMinWidth(420);
+		tableView.setMaxWidth(420);
 		tableView.getColumns().add(fileCol);
-		// Fit width of fileCol to the width of tableView.
-		fileCol.prefWidthProperty().bind(tableView.widthProperty());
-		fileCol.setResizable(false);
+		tableView.getColumns().add(sizeCol);
+		tableView.getColumns().add(dateCol);
+		fileCol.setPrefWidth(200);
+		sizeCol.setPrefWidth(80);
+		dateCol.setPrefWidth(120);
 		tableView.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
-		// Add fileList to tableView
-		data = FXCollections.observableList(fileList);
-		tableView.setItems(data);
+		// The server sorts the listing; only the loaded rows are on the client.
+		tableView.setSortPolicy((table) -> {
+			if (table.getSortOrder().isEmpty()) {
+				files.setOrder(ListOrder.NAME, false);
+				return true;
+			}
+			final TableColumn<CatalogEntry, ?> column = table.getSortOrder().get(0);
+			final ListOrder order = (column == sizeCol) ? ListOrder.SIZE
+					: (column == dateCol) ? ListOrder.MODIFIED : ListOrder.NAME;
+			files.setOrder(order, column.getSortType() == TableColumn.SortType.DESCENDING);
+			return true;
+		});
+		// Rows are only created for the visible part of the table, so the next
+		// page is loaded when the user scrolls close to the last loaded row.
+		tableView.setRowFactory((table) -> new TableRow<CatalogEntry>() {
+			@Override
+			protected void updateItem(CatalogEntry item, boolean empty) {
+				super.updateItem(item, empty);
+				if (!empty) {
+					files.prefetch(getIndex());
+				}
+			}
+		});
+		// Filter the listing once the user stops typing.
+		final TextField searchField = new TextField();
+		searchField.setPromptText("Search files");
+		final PauseTransition filterDelay = new PauseTransition(FILTER_DELAY);
+		filterDelay.setOnFinished((event) -> files.setFilter(searchField.getText()));
+		searchField.textProperty().addListener((obs, oldValue, newValue) -> filterDelay.playFromStart());
+		final Label listingLabel = new Label();
+		listingLabel.textProperty().bind(files.statusProperty());
+		final Timeline listingRefresher = new Timeline(
+				new KeyFrame(LISTING_REFRESH_INTERVAL, (event) -> files.refresh()));
+		listingRefresher.setCycleCount(Animation.INDEFINITE);
+		listingRefresher.play();
+
+		/*
+		 * ~~~~~~~~~~~~~~~~~~~~~~~ Display downloads on GUI ~~~~~~~~~~~~~~~~~~~~
+		 */
+
+		queue = new DownloadQueue(client, DownloadQueue.DEFAULT_CONCURRENCY);
+		final TableView<TransferRow> transferView = new TableView<>();
+		transferView.setEditable(false);
+		transferView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+		transferView.setMinWidth(500);
+		transferView.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+		final TableColumn<TransferRow, String> nameCol = new TableColumn<>("Download");
+		nameCol.setCellValueFactory((row) -> row.getValue().name);
+		final TableColumn<TransferRow, Double> progressCol = new TableColumn<>("Progress");
+		progressCol.setCellValueFactory((row) -> row.getValue().progress.asObject());
+		progressCol.setCellFactory(ProgressBarTableCell.forTableColumn());
+		final TableColumn<TransferRow, String> rateCol = new TableColumn<>("Speed (avg)");
+		rateCol.setCellValueFactory((row) -> row.getValue().rate);
+		final TableColumn<TransferRow, String> etaCol = new TableColumn<>("ETA");
+		etaCol.setCellValueFactory((row) -> row.getValue().eta);
+		final TableColumn<TransferRow, String> statusCol = new TableColumn<>("Status");
+		statusCol.setCellValueFactory((row) -> row.getValue().status);
+		transferView.getColumns().add(nameCol);
+		transferView.getColumns().add(progressCol);
+		transferView.getColumns().add(rateCol);
+		transferView.getColumns().add(etaCol);
+		transferView.getColumns().add(statusCol);
+		final Map<DownloadQueue.Transfer, TransferRow> rows = new IdentityHashMap<>();
+		// Poll the transfers instead of having every received chunk post an
+		// update to the Application Thread.
+		final Timeline refresher = new Timeline(new KeyFrame(REFRESH_INTERVAL, (event) -> {
+			for (DownloadQueue.Transfer transfer : queue.getTransfers()) {
+				TransferRow row = rows.get(transfer);
+				if (row == null) {
+					row = new TransferRow(transfer);
+					rows.put(transfer, row);
+					transferView.getItems().add(row);
+				}
+				row.update();
+			}
+		}));
+		refresher.setCycleCount(Animation.INDEFINITE);
+		refresher.play();
 
-		// Establish download button that will download the currently selected
-		// file.
+		// Establish download button that will queue the currently selected
+		// files.
 		final Button downloadBtn = new Button("Download");
 		// Make the button disabled until a file is selected.
 		downloadBtn.setDisable(true);
 		downloadBtn.setOnAction((event) -> {
-			final File selectedFile = tableView.getSelectionModel().getSelectedItem();
-			try {
-				client.sendInput(selectedFile);
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
+			for (CatalogEntry selectedFile : tableView.getSelectionModel().getSelectedItems()) {
+				queue.add(selectedFile.getName());
+			}
+		});
+		// Establish cancel button that will stop the selected downloads.
+		final Button cancelBtn = new Button("Cancel");
+		cancelBtn.setOnAction((event) -> {
+			for (TransferRow row : transferView.getSelectionModel().getSelectedItems()) {
+				row.transfer.cancel();
+			}
+		});
+		// Establish clear button that will remove finished downloads.
+		final Button clearBtn = new Button("Clear Finished");
+		clearBtn.setOnAction((event) -> {
+			queue.clearFinished();
+			final List<TransferRow> finished = new ArrayList<>();
+			for (TransferRow row : transferView.getItems()) {
+				if (row.transfer.getState().isFinished()) {
+					finished.add(row);
+					rows.remove(row.transfer);
+				}
 			}
+			transferView.getItems().removeAll(finished);
+		});
+		// The number of files downloaded at the same time.
+		final Label concurrencyLabel = new Label("Parallel downloads:");
+		final Spinner<Integer> concurrencySpinner = new Spinner<>(1, MAX_CONCURRENCY, queue.getConcurrency());
+		concurrencySpinner.setPrefWidth(70);
+		concurrencySpinner.valueProperty().addListener((obs, oldValue, newValue) -> {
+			queue.setConcurrency(newValue);
 		});
 		// Establish exit button
 		final Button exitBtn = new Button("Exit");
 		exitBtn.setOnAction((event) -> {
+			refresher.stop();
+			listingRefresher.stop();
+			files.close();
+			queue.shutdown();
 			try {
 				client.close();
 			} catch (IOException e) {
@@ -279,6 +416,10 @@ public class FtpApplication extends Application {
 		final HBox hbox2 = new HBox();
 		hbox2.getChildren().addAll(downloadBtn, exitBtn);
 		hbox2.setSpacing(30);
+		final HBox hbox3 = new HBox();
+		hbox3.getChildren().addAll(cancelBtn, clearBtn, concurrencyLabel, concurrencySpinner);
+		hbox3.setSpacing(10);
+		hbox3.setAlignment(Pos.CENTER_LEFT);
 
 		// If a file is selected, enable downloadBtn.
 		tableView.getSelectionModel().selectedItemProperty().addListener((obs, oldSelection, newSelection) -> {
@@ -290,11 +431,13 @@ public class FtpApplication extends Application {
 		// Add tableView to the VBox
 		final VBox vbox = new VBox();
 		vbox.setSpacing(10);
-		vbox.getChildren().add(tableView);
+		vbox.getChildren().addAll(searchField, tableView, listingLabel);
 		// add the VBox to the grid
 		grid.add(vbox, 0, 0);
+		grid.add(transferView, 1, 0);
 		// add hbox2 containing the buttons to the grid
 		grid.add(hbox2, 0, 1);
+		grid.add(hbox3, 1, 1);
 		final Scene scene = new Scene(new Group(), WIDTH, HEIGHT);
 		((Group) scene.getRoot()).getChildren().add(grid);
 		stage.setHeight(HEIGHT);
@@ -306,4 +449,75 @@ public class FtpApplication extends Application {
 		});
 		stage.setScene(scene);
 	}
+
+	/**
+	 * Formats a file size in bytes, kilobytes, megabytes or gigabytes.
+	 */
+	private static String formatSize(long bytes) {
+		if (bytes < 1000) {
+			return bytes + " B";
+		} else if (bytes < 1000000) {
+			return String.format("%.1f kB", bytes / 1e3);
+		} else if (bytes < 1000000000) {
+			return String.format("%.1f MB", bytes / 1e6);
+		}
+		return String.format("%.1f GB", bytes / 1e9);
+	}
+
+	/**
+	 * Formats a rate in bytes per second as megabytes per second.
+	 */
+	private static String formatRate(double bytesPerSecond) {
+		return String.format("%.1f MB/s", bytesPerSecond / 1e6);
+	}
+
+	/**
+	 * Formats a number of seconds as h:mm:ss or m:ss.
+	 */
+	private static String formatDuration(long seconds) {
+		if (seconds >= 3600) {
+			return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+		}
+		return String.format("%d:%02d", seconds / 60, seconds % 60);
+	}
+
+	/**
+	 * The values shown for one download in the download table. They are
+	 * copied from the download's Transfer on the Application Thread.
+	 */
+	private static final class TransferRow {
+		private final DownloadQueue.Transfer transfer;
+		private final SimpleStringProperty name;
+		private final SimpleDoubleProperty progress;
+		private final SimpleStringProperty rate;
+		private final SimpleStringProperty eta;
+		private final SimpleStringProperty status;
+
+		TransferRow(DownloadQueue.Transfer transfer) {
+			this.transfer = transfer;
+			name = new SimpleStringProperty(transfer.getFileName());
+			progress = new SimpleDoubleProperty(0);
+			rate = new SimpleStringProperty("");
+			eta = new SimpleStringProperty("");
+			status = new SimpleStringProperty("");
+		}
+
+		void update() {
+			transfer.sample();
+			final DownloadQueue.State state = transfer.getState();
+			final double fraction = transfer.getProgress();
+			// A negative value shows an indeterminate bar.
+			progress.set((state == DownloadQueue.State.RUNNING || fraction >= 0) ? fraction : 0);
+			if (state == DownloadQueue.State.RUNNING) {
+				rate.set(formatRate(transfer.getCurrentRate()) + " (" + formatRate(transfer.getAverageRate()) + ")");
+				final long remaining = transfer.getSecondsRemaining();
+				eta.set((remaining < 0) ? "" : formatDuration(remaining));
+			} else {
+				rate.set(state == DownloadQueue.State.DONE ? "(" + formatRate(transfer.getAverageRate()) + ")" : "");
+				eta.set("");
+			}
+			final String message = transfer.getMessage();
+			status.set((message == null) ? state.toString() : state + ": " + message);
+		}
+	}
 }
@@ -0,0 +1,139 @@
+package application;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class is the payload of a GET frame. A plain GET payload is just the
+ * file's name in UTF-8. A GET frame with FLAG_RANGE set asks for part of a
+ * file, and its payload starts with four longs before the name:
+ *
+ * <pre>
+ * offset                the first byte to send
+ * length                the number of bytes to send, or -1 for the rest
+ * expected size         the size of the file the client already has part of
+ * expected modification that file's modification time, or 0 for none
+ * </pre>
+ *
+ * When the expected size and modification time don't match the server's copy
+ * of the file, the client's part is stale and the whole file is sent instead.
+ *
+ * Either kind of GET frame may also have FLAG_CHECKSUM set, which asks the
+ * server to append a checksum trailer to every DATA frame.
+ *
+ */
+final class GetRequest {
+	private static final int RANGE_SIZE = 32;
+
+	private final String fileName;
+	private final long offset;
+	private final long length;
+	private final long expectedSize;
+	private final long expectedLastModified;
+	private final boolean checksummed;
+
+	public GetRequest(String fileName) {
+		this(fileName, 0, -1, 0, 0);
+	}
+
+	public GetRequest(String fileName, long offset, long length, long expectedSize, long expectedLastModified) {
+		this(fileName, offset, length, expectedSize, expectedLastModified, false);
+	}
+
+	public GetRequest(String fileName, long offset, long length, long expectedSize, long expectedLastModified,
+			boolean checksummed) {
+		this.fileName = fileName;
+		this.offset = offset;
+		this.length = length;
+		this.expectedSize = expectedSize;
+		this.expectedLastModified = expectedLastModified;
+		this.checksummed = checksummed;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Returns the number of bytes requested, or -1 for the rest of the file.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public long getExpectedSize() {
+		return expectedSize;
+	}
+
+	public long getExpectedLastModified() {
+		return expectedLastModified;
+	}
+
+	/**
+	 * Returns true if the DATA frames answering this request should carry
+	 * checksums.
+	 */
+	public boolean isChecksummed() {
+		return checksummed;
+	}
+
+	public boolean isRange() {
+		return offset != 0 || length != -1;
+	}
+
+	/**
+	 * Returns true if the client's part of the file was taken from a file
+	 * with the given size and modification time.
+	 */
+	public boolean matches(long size, long lastModified) {
+		return expectedLastModified == 0 || (expectedSize == size && expectedLastModified == lastModified);
+	}
+
+	/**
+	 * Returns the flags of the GET frame carrying this request.
+	 */
+	public int getFlags() {
+		return (isRange() ? FrameHeader.FLAG_RANGE : 0) | (checksummed ? FrameHeader.FLAG_CHECKSUM : 0);
+	}
+
+	public byte[] toPayload() {
+		final byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+		if (!isRange()) {
+			return name;
+		}
+		final ByteBuffer payload = ByteBuffer.allocate(RANGE_SIZE + name.length);
+		payload.putLong(offset).putLong(length).putLong(expectedSize).putLong(expectedLastModified).put(name);
+		return payload.array();
+	}
+
+	/**
+	 * Decodes the payload of a GET frame.
+	 *
+	 * @throws ProtocolException
+	 *             If the range is malformed.
+	 */
+	public static GetRequest fromPayload(FrameHeader header, byte[] payload) throws ProtocolException {
+		final boolean checksummed = (header.getFlags() & FrameHeader.FLAG_CHECKSUM) != 0;
+		if ((header.getFlags() & FrameHeader.FLAG_RANGE) == 0) {
+			return new GetRequest(new String(payload, StandardCharsets.UTF_8), 0, -1, 0, 0, checksummed);
+		}
+		if (payload.length < RANGE_SIZE) {
+			throw new ProtocolException("Truncated range in " + header);
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap(payload);
+		final long offset = buffer.getLong();
+		final long length = buffer.getLong();
+		final long expectedSize = buffer.getLong();
+		final long expectedLastModified = buffer.getLong();
+		if (offset < 0 || length < -1) {
+			throw new ProtocolException("Invalid range " + offset + "+" + length + " in " + header);
+		}
+		final String name = new String(payload, RANGE_SIZE, payload.length - RANGE_SIZE, StandardCharsets.UTF_8);
+		return new GetRequest(name, offset, length, expectedSize, expectedLastModified, checksummed);
+	}
+}
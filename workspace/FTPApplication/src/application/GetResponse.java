@@ -0,0 +1,52 @@
+package application;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * This class is the payload of the ACK frame with which the server answers a
+ * GET request. It describes the file's current version and the byte range
+ * that the following DATA frames carry.
+ *
+ */
+final class GetResponse {
+	public static final int SIZE = 32;
+
+	private final long fileSize;
+	private final long lastModified;
+	private final long offset;
+	private final long length;
+
+	public GetResponse(long fileSize, long lastModified, long offset, long length) {
+		this.fileSize = fileSize;
+		this.lastModified = lastModified;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Returns the position in the file of the first byte being sent.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Returns the number of bytes being sent.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public static GetResponse read(DataInput in) throws IOException {
+		return new GetResponse(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+	}
+}
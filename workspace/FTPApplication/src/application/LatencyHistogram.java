@@ -0,0 +1,132 @@
+package application;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records durations in a log-linear histogram, in the manner of
+ * HdrHistogram. Every power of two is split into SUB_BUCKETS buckets of equal
+ * width, so any recorded value is known to within 1 / SUB_BUCKETS of itself,
+ * from a nanosecond up to centuries, in a fixed array of counters.
+ *
+ * Recording is lock-free and never allocates: it increments one counter of an
+ * AtomicLongArray, a LongAdder and a LongAccumulator. Quantiles are computed
+ * from the counters when they are read, which may race with recording; a
+ * reader then sees some of the values recorded meanwhile.
+ *
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Values below SUB_BUCKETS have a bucket each; every power of two from
+	// SUB_BUCKETS up to 2^62 has SUB_BUCKETS more.
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final LongAccumulator max;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new LongAccumulator(Math::max, 0);
+	}
+
+	/**
+	 * Records a duration in nanoseconds. Negative values are recorded as 0.
+	 */
+	public void record(long nanos) {
+		final long value = Math.max(0, nanos);
+		counts.incrementAndGet(indexOf(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Records the time elapsed since the given System.nanoTime().
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the sum of all recorded durations, in nanoseconds.
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Returns the longest recorded duration, in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the duration that the given fraction of recorded durations do
+	 * not exceed, in nanoseconds, rounded up to the end of its bucket; 0 if
+	 * nothing was recorded.
+	 *
+	 * @param quantile
+	 *            A fraction from 0 to 1, such as 0.99.
+	 */
+	public long getQuantile(double quantile) {
+		final long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				// The end of the bucket, but never more than was recorded.
+				return Math.min(lowestValueOf(i + 1) - 1, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int shift = exponent - SUB_BUCKET_BITS;
+		final int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+	}
+
+	static long lowestValueOf(int index) {
+		if (index >= BUCKETS) {
+			return Long.MAX_VALUE;
+		}
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		final int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		final int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + subBucket) << shift;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("LatencyHistogram[count %d, p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms]",
+				getCount(), getQuantile(0.5) / 1e6, getQuantile(0.99) / 1e6, getQuantile(0.999) / 1e6,
+				getMax() / 1e6);
+	}
+}
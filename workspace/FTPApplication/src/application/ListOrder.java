@@ -0,0 +1,39 @@
+package application;
+
+import java.util.Comparator;
+
+/**
+ * This enumeration contains the orders a paged listing can be sorted in.
+ * Entries with the same size or modification time are sorted by name, so
+ * every order is total and a page can continue after any entry.
+ *
+ */
+public enum ListOrder {
+	NAME, SIZE, MODIFIED;
+
+	/**
+	 * Returns the value entries are sorted by before their names.
+	 */
+	long keyOf(CatalogEntry entry) {
+		switch (this) {
+		case SIZE:
+			return entry.getSize();
+		case MODIFIED:
+			return entry.getLastModified();
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Compares two entries in this order, ascending.
+	 */
+	int compare(CatalogEntry a, CatalogEntry b) {
+		final int byKey = Long.compare(keyOf(a), keyOf(b));
+		return (byKey != 0) ? byKey : a.getName().compareTo(b.getName());
+	}
+
+	Comparator<CatalogEntry> comparator() {
+		return this::compare;
+	}
+}
@@ -0,0 +1,131 @@
+package application;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is the payload of the LIST frame with which the server answers a
+ * ListRequest: the total number of matching files, if the server could count
+ * them cheaply, followed by the entries of the page and whether more follow.
+ * Each entry is its name, size and modification time. If the page carries
+ * content hashes, each entry is followed by the length of its hash, 0 if it is
+ * not known, and the hash.
+ *
+ */
+public final class ListPage {
+	private final List<CatalogEntry> entries;
+	private final int total;
+	private final boolean more;
+
+	/**
+	 * Constructs a page.
+	 *
+	 * @param total
+	 *            The number of files the whole listing holds, or -1 if it is
+	 *            not known.
+	 * @param more
+	 *            True if entries follow the last one of this page.
+	 */
+	public ListPage(List<CatalogEntry> entries, int total, boolean more) {
+		this.entries = Collections.unmodifiableList(entries);
+		this.total = total;
+		this.more = more;
+	}
+
+	public List<CatalogEntry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Returns the last entry of the page, which the next page starts after,
+	 * or null if the page is empty.
+	 */
+	public CatalogEntry getLast() {
+		return entries.isEmpty() ? null : entries.get(entries.size() - 1);
+	}
+
+	/**
+	 * Returns the number of files the whole listing holds, or -1 if the server
+	 * did not count them. The server counts them unless the listing is
+	 * filtered by a glob or sorted by anything but name.
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns true if the listing continues after this page.
+	 */
+	public boolean hasMore() {
+		return more;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		write(out, false);
+	}
+
+	/**
+	 * Writes the page.
+	 *
+	 * @param contentHashes
+	 *            Whether the content hashes of the entries are written.
+	 */
+	public void write(DataOutput out, boolean contentHashes) throws IOException {
+		out.writeInt(total);
+		out.writeInt(entries.size());
+		for (CatalogEntry entry : entries) {
+			out.writeUTF(entry.getName());
+			out.writeLong(entry.getSize());
+			out.writeLong(entry.getLastModified());
+			if (contentHashes) {
+				final byte[] hash = entry.getContentHash();
+				out.writeByte((hash == null) ? 0 : hash.length);
+				if (hash != null) {
+					out.write(hash);
+				}
+			}
+		}
+		out.writeBoolean(more);
+	}
+
+	public static ListPage read(DataInput in) throws IOException {
+		return read(in, false);
+	}
+
+	/**
+	 * Reads a page.
+	 *
+	 * @param contentHashes
+	 *            Whether the page carries content hashes.
+	 */
+	public static ListPage read(DataInput in, boolean contentHashes) throws IOException {
+		final int total = in.readInt();
+		final int count = in.readInt();
+		final List<CatalogEntry> entries = new ArrayList<>(Math.min(count, ListRequest.MAX_LIMIT));
+		for (int i = 0; i < count; i++) {
+			final String name = in.readUTF();
+			final long size = in.readLong();
+			final long lastModified = in.readLong();
+			byte[] hash = null;
+			if (contentHashes) {
+				final int length = in.readUnsignedByte();
+				if (length > 0) {
+					hash = new byte[length];
+					in.readFully(hash);
+				}
+			}
+			entries.add(new CatalogEntry(name, size, lastModified, hash));
+		}
+		return new ListPage(entries, total, in.readBoolean());
+	}
+
+	@Override
+	public String toString() {
+		return entries.size() + " of " + ((total < 0) ? "?" : Integer.toString(total)) + " files"
+				+ (more ? ", more follow" : "");
+	}
+}
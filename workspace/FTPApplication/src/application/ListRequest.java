@@ -0,0 +1,296 @@
+package application;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.regex.Pattern;
+
+/**
+ * This class is the payload of a LIST frame with FLAG_PAGED set, which asks
+ * for one page of the server's listing:
+ *
+ * <pre>
+ * order        byte, the ordinal of a ListOrder
+ * options      byte, 1 for descending order, 2 if a cursor follows, 4 to
+ *              ask for the content hash of every entry
+ * limit        int, the most entries to return
+ * cursor       size, modification time and name of the last entry of the
+ *              previous page; the page starts after it
+ * pattern      the names to list: a glob such as *.txt, a prefix such as
+ *              "log-", or "" for every file
+ * </pre>
+ *
+ * The cursor is the last entry itself rather than its position, so paging
+ * neither skips nor repeats entries when files are added or removed between
+ * pages.
+ *
+ * A pattern without any of the characters *?[{ matches the names that start
+ * with it. Globs are matched against the whole name and are case-sensitive.
+ *
+ * Servers that keep content hashes answer a request for them with a page
+ * whose LIST frame has FLAG_HASHES set. Older servers ignore the option.
+ *
+ */
+public final class ListRequest {
+	public static final int DEFAULT_LIMIT = 1000;
+	public static final int MAX_LIMIT = 10000;
+	private static final int DESCENDING = 1;
+	private static final int HAS_CURSOR = 2;
+	private static final int CONTENT_HASHES = 4;
+	private static final String GLOB_CHARACTERS = "*?[{";
+
+	private final String pattern;
+	private final ListOrder order;
+	private final boolean descending;
+	private final int limit;
+	private final CatalogEntry after;
+	private final boolean contentHashes;
+
+	/**
+	 * Constructs a request for the first page of files sorted by name.
+	 */
+	public ListRequest() {
+		this("", ListOrder.NAME, false, DEFAULT_LIMIT, null, false);
+	}
+
+	/**
+	 * Constructs a request for the first page of a listing.
+	 *
+	 * @param pattern
+	 *            A glob, a prefix, or "" for every file.
+	 * @param limit
+	 *            The most entries to return, up to MAX_LIMIT.
+	 */
+	public ListRequest(String pattern, ListOrder order, boolean descending, int limit) {
+		this(pattern, order, descending, limit, null, false);
+	}
+
+	private ListRequest(String pattern, ListOrder order, boolean descending, int limit, CatalogEntry after,
+			boolean contentHashes) {
+		this.pattern = (pattern == null) ? "" : pattern;
+		this.order = order;
+		this.descending = descending;
+		this.limit = Math.max(1, Math.min(MAX_LIMIT, limit));
+		this.after = after;
+		this.contentHashes = contentHashes;
+	}
+
+	/**
+	 * Returns a request for a page consisting of the entry of the file with
+	 * the given name, if there is one. The page may hold other entries after
+	 * it.
+	 */
+	public static ListRequest forName(String name) {
+		final StringBuilder glob = new StringBuilder(name.length() + 8);
+		for (int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			if (GLOB_CHARACTERS.indexOf(c) >= 0) {
+				// A bracket expression matches the character literally.
+				glob.append('[').append(c).append(']');
+			} else {
+				glob.append(c);
+			}
+		}
+		return new ListRequest(glob.toString(), ListOrder.NAME, false, 1);
+	}
+
+	/**
+	 * Returns a request for the page of the same listing that follows the
+	 * given entry, usually the last entry of the current page.
+	 */
+	public ListRequest after(CatalogEntry last) {
+		return new ListRequest(pattern, order, descending, limit, last, contentHashes);
+	}
+
+	/**
+	 * Returns the same request, asking for the content hash of every entry.
+	 */
+	public ListRequest withContentHashes() {
+		return new ListRequest(pattern, order, descending, limit, after, true);
+	}
+
+	/**
+	 * Returns true if the request asks for content hashes.
+	 */
+	public boolean hasContentHashes() {
+		return contentHashes;
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	public ListOrder getOrder() {
+		return order;
+	}
+
+	public boolean isDescending() {
+		return descending;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Returns the entry the page starts after, or null for the first page.
+	 */
+	public CatalogEntry getAfter() {
+		return after;
+	}
+
+	/**
+	 * Returns true if the pattern is a glob rather than a prefix.
+	 */
+	public boolean isGlob() {
+		for (int i = 0; i < pattern.length(); i++) {
+			if (GLOB_CHARACTERS.indexOf(pattern.charAt(i)) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the part of the pattern before its first glob character, which
+	 * every listed name starts with.
+	 */
+	public String getPrefix() {
+		for (int i = 0; i < pattern.length(); i++) {
+			if (GLOB_CHARACTERS.indexOf(pattern.charAt(i)) >= 0) {
+				return pattern.substring(0, i);
+			}
+		}
+		return pattern;
+	}
+
+	/**
+	 * Translates the glob into a regular expression. * matches any run of
+	 * characters, ? any one character, [abc] and [!abc] a character class
+	 * and {a,b} either alternative. Unclosed brackets and braces are closed
+	 * at the end of the glob.
+	 *
+	 * @throws java.util.regex.PatternSyntaxException
+	 *             If the glob is malformed, such as a range [z-a].
+	 */
+	Pattern toRegex() {
+		final StringBuilder regex = new StringBuilder(pattern.length() + 8);
+		boolean inClass = false;
+		int braces = 0;
+		for (int i = 0; i < pattern.length(); i++) {
+			final char c = pattern.charAt(i);
+			if (inClass) {
+				if (c == ']') {
+					inClass = false;
+					regex.append(']');
+				} else if (c == '\\' || c == '[' || c == '&') {
+					regex.append('\\').append(c);
+				} else {
+					regex.append(c);
+				}
+				continue;
+			}
+			switch (c) {
+			case '*':
+				regex.append(".*");
+				break;
+			case '?':
+				regex.append('.');
+				break;
+			case '[':
+				inClass = true;
+				regex.append('[');
+				if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '!') {
+					regex.append('^');
+					i++;
+				}
+				break;
+			case '{':
+				braces++;
+				regex.append("(?:");
+				break;
+			case '}':
+				if (braces > 0) {
+					braces--;
+					regex.append(')');
+				} else {
+					regex.append("\\}");
+				}
+				break;
+			case ',':
+				regex.append((braces > 0) ? "|" : ",");
+				break;
+			default:
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		if (inClass) {
+			regex.append(']');
+		}
+		for (; braces > 0; braces--) {
+			regex.append(')');
+		}
+		return Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+
+	/**
+	 * Returns the flags of the LIST frame carrying this request.
+	 */
+	public int getFlags() {
+		return FrameHeader.FLAG_PAGED;
+	}
+
+	public byte[] toPayload() {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + pattern.length());
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(order.ordinal());
+			out.writeByte((descending ? DESCENDING : 0) | ((after != null) ? HAS_CURSOR : 0)
+					| (contentHashes ? CONTENT_HASHES : 0));
+			out.writeInt(limit);
+			if (after != null) {
+				out.writeLong(after.getSize());
+				out.writeLong(after.getLastModified());
+				out.writeUTF(after.getName());
+			}
+			out.writeUTF(pattern);
+		} catch (IOException e) {
+			// A ByteArrayOutputStream doesn't throw.
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes the payload of a paged LIST frame.
+	 *
+	 * @throws ProtocolException
+	 *             If the payload is malformed.
+	 */
+	public static ListRequest fromPayload(FrameHeader header, byte[] payload) throws ProtocolException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		try {
+			final int ordinal = in.readUnsignedByte();
+			if (ordinal >= ListOrder.values().length) {
+				throw new ProtocolException("Unknown order " + ordinal + " in " + header);
+			}
+			final int options = in.readUnsignedByte();
+			final int limit = in.readInt();
+			CatalogEntry after = null;
+			if ((options & HAS_CURSOR) != 0) {
+				final long size = in.readLong();
+				final long lastModified = in.readLong();
+				after = new CatalogEntry(in.readUTF(), size, lastModified);
+			}
+			return new ListRequest(in.readUTF(), ListOrder.values()[ordinal], (options & DESCENDING) != 0, limit,
+					after, (options & CONTENT_HASHES) != 0);
+		} catch (ProtocolException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new ProtocolException("Truncated listing request in " + header);
+		}
+	}
+}
@@ -6,6 +6,8 @@ public class Main {
 
 	public static void main(String[] args) throws IOException {
 		TCPServerManager manager = new TCPServerManager();
+		manager.setMetricsPort(TCPServerManager.DEFAULT_METRICS_PORT);
+		manager.setUploadsEnabled(true);
 		new Thread(manager).start();
 		FtpApplication app = new FtpApplication();
 		app.startApplication();
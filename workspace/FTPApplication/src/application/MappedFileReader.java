@@ -0,0 +1,64 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class reads one file through the windows of a MappedRegionPool. It
+ * holds at most one region at a time, moving to the next window when a read
+ * starts beyond the current one, so reading a file of any size keeps only a
+ * window of it mapped for this reader.
+ *
+ * A reader is used by one thread. Buffers it returns are only valid until
+ * the next read or until it is closed.
+ *
+ */
+final class MappedFileReader {
+	private final MappedRegionPool pool;
+	private final File file;
+	private final long size;
+	private final long lastModified;
+	private MappedRegionPool.Region region;
+
+	/**
+	 * Constructs a reader of the file as it was when it had the given size and
+	 * modification time.
+	 */
+	public MappedFileReader(MappedRegionPool pool, File file, long size, long lastModified) {
+		this.pool = pool;
+		this.file = file;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Returns a read-only view of the given range of the file.
+	 *
+	 * @param length
+	 *            The number of bytes, at most FramedSession.CHUNK_SIZE.
+	 * @throws IOException
+	 *             If the range is beyond the end of the file or the file
+	 *             could not be mapped.
+	 */
+	public ByteBuffer read(long position, int length) throws IOException {
+		if (position + length > size) {
+			throw new IOException(file.getName() + " has no bytes from " + position + " to " + (position + length));
+		}
+		if (region == null || !region.contains(position, length)) {
+			close();
+			region = pool.acquire(file, size, lastModified, position);
+		}
+		return region.slice(position, length);
+	}
+
+	/**
+	 * Releases the region held by the reader.
+	 */
+	public void close() {
+		if (region != null) {
+			pool.release(region);
+			region = null;
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class maps large files into memory in fixed-size windows and shares
+ * the mappings between every session reading the same file, so that any
+ * number of concurrent downloads of a file are served from one copy of its
+ * pages in the page cache, without copying the file onto the heap.
+ *
+ * Window i of a file starts at i * windowSize and is CHUNK_SIZE bytes longer
+ * than windowSize, so that every range of up to CHUNK_SIZE bytes lies within
+ * the window its first byte belongs to.
+ *
+ * Regions are reference counted. A region nobody holds is kept for later
+ * readers until more than maxIdle regions are idle; the least recently used
+ * idle region is then unmapped at once instead of whenever the garbage
+ * collector gets to it. A region is keyed by the size and modification time
+ * of its file as well as by its path, so a changed file is mapped anew.
+ *
+ */
+final class MappedRegionPool {
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+	public static final int DEFAULT_MAX_IDLE = 16;
+	/** Smaller files are read into buffers; mapping them costs more. */
+	public static final long MIN_FILE_SIZE = 4 * FramedSession.CHUNK_SIZE;
+	private static final MethodHandle INVOKE_CLEANER = findCleaner();
+
+	private final int windowSize;
+	private final int maxIdle;
+	private final Map<Key, Region> regions;
+	// In access order, so the first region is the least recently released.
+	private final LinkedHashMap<Key, Region> idle;
+	private final AtomicLong maps;
+	private final AtomicLong reuses;
+	private final AtomicLong unmaps;
+	private boolean closed;
+
+	/**
+	 * Constructs a pool.
+	 *
+	 * @param windowSize
+	 *            The distance between the starts of two windows.
+	 * @param maxIdle
+	 *            The number of unused regions kept mapped.
+	 */
+	public MappedRegionPool(int windowSize, int maxIdle) {
+		if (windowSize < FramedSession.CHUNK_SIZE) {
+			throw new IllegalArgumentException("Windows must hold at least one chunk");
+		}
+		this.windowSize = windowSize;
+		this.maxIdle = maxIdle;
+		regions = new HashMap<>();
+		idle = new LinkedHashMap<>(16, 0.75f, true);
+		maps = new AtomicLong();
+		reuses = new AtomicLong();
+		unmaps = new AtomicLong();
+	}
+
+	/**
+	 * Returns the region of the file containing the given position, mapping
+	 * it if no other reader holds it. The region must be released once it is
+	 * no longer read.
+	 *
+	 * @param file
+	 *            The file to map.
+	 * @param size
+	 *            The size of the file.
+	 * @param lastModified
+	 *            The modification time of the file.
+	 * @param position
+	 *            A position within the file.
+	 * @throws IOException
+	 *             If the file could not be mapped.
+	 */
+	public synchronized Region acquire(File file, long size, long lastModified, long position) throws IOException {
+		if (closed) {
+			throw new IOException("The mapped region pool is closed");
+		}
+		final long index = position / windowSize;
+		final Key key = new Key(file.getPath(), size, lastModified, index);
+		Region region = regions.get(key);
+		if (region != null) {
+			idle.remove(key);
+			reuses.incrementAndGet();
+		} else {
+			final long start = index * windowSize;
+			final long length = Math.min((long) windowSize + FramedSession.CHUNK_SIZE, size - start);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				// The mapping stays valid after the channel is closed.
+				region = new Region(key, start, channel.map(FileChannel.MapMode.READ_ONLY, start, length));
+			}
+			regions.put(key, region);
+			maps.incrementAndGet();
+		}
+		region.references++;
+		return region;
+	}
+
+	/**
+	 * Gives up a region returned by acquire(). No buffer obtained from the
+	 * region may be read afterwards.
+	 */
+	public synchronized void release(Region region) {
+		if (--region.references > 0) {
+			return;
+		}
+		if (closed) {
+			unmap(region);
+			return;
+		}
+		idle.put(region.key, region);
+		final Iterator<Region> lru = idle.values().iterator();
+		while (idle.size() > maxIdle) {
+			final Region victim = lru.next();
+			lru.remove();
+			unmap(victim);
+		}
+	}
+
+	private void unmap(Region region) {
+		regions.remove(region.key);
+		unmaps.incrementAndGet();
+		if (INVOKE_CLEANER != null) {
+			try {
+				INVOKE_CLEANER.invoke(region.buffer);
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Unmaps every idle region and stops mapping new ones. Regions that are
+	 * still held are unmapped when they are released.
+	 */
+	public synchronized void clear() {
+		closed = true;
+		for (Region region : idle.values()) {
+			unmap(region);
+		}
+		idle.clear();
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Returns the number of regions currently mapped, idle or not.
+	 */
+	public synchronized int getMappedCount() {
+		return regions.size();
+	}
+
+	public long getMapCount() {
+		return maps.get();
+	}
+
+	/**
+	 * Returns the number of times an acquired region was already mapped.
+	 */
+	public long getReuseCount() {
+		return reuses.get();
+	}
+
+	public long getUnmapCount() {
+		return unmaps.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("MappedRegionPool[%d mapped, %d maps, %d reuses, %d unmaps]", getMappedCount(),
+				getMapCount(), getReuseCount(), getUnmapCount());
+	}
+
+	/**
+	 * Returns Unsafe.invokeCleaner, which unmaps a MappedByteBuffer at once,
+	 * or null if the JVM does not offer it. Without it, mappings are released
+	 * by the garbage collector.
+	 */
+	private static MethodHandle findCleaner() {
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return MethodHandles.lookup()
+					.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+					.bindTo(field.get(null));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * One mapped window of a file.
+	 */
+	static final class Region {
+		private final Key key;
+		private final long start;
+		private final MappedByteBuffer buffer;
+		private int references;
+
+		Region(Key key, long start, MappedByteBuffer buffer) {
+			this.key = key;
+			this.start = start;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Returns true if the given range of the file lies within the region.
+		 */
+		boolean contains(long position, int length) {
+			return position >= start && position + length <= start + buffer.capacity();
+		}
+
+		/**
+		 * Returns a view of the given range of the file, which must lie
+		 * within the region.
+		 */
+		ByteBuffer slice(long position, int length) {
+			final ByteBuffer view = buffer.duplicate();
+			view.position((int) (position - start)).limit((int) (position - start) + length);
+			return view.slice();
+		}
+	}
+
+	private static final class Key {
+		private final String path;
+		private final long size;
+		private final long lastModified;
+		private final long index;
+
+		Key(String path, long size, long lastModified, long index) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Key other = (Key) obj;
+			return path.equals(other.path) && size == other.size && lastModified == other.lastModified
+					&& index == other.index;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, size, lastModified, index);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package application;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves the metrics of a MetricsRegistry over HTTP, at the path
+ * /metrics, in the Prometheus text format, so that they can be scraped by a
+ * monitoring system or read with curl. Requests are answered by a single
+ * daemon thread.
+ *
+ */
+public class MetricsEndpoint implements RunnableEndPoint {
+	public static final String PATH = "/metrics";
+
+	private final MetricsRegistry registry;
+	private final int port;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	/**
+	 * Constructs an endpoint.
+	 *
+	 * @param registry
+	 *            The metrics to serve.
+	 * @param port
+	 *            The port to listen on, or 0 for any free port.
+	 */
+	public MetricsEndpoint(MetricsRegistry registry, int port) {
+		this.registry = registry;
+		this.port = port;
+	}
+
+	/**
+	 * Starts listening. Requests are served by the endpoint's own thread, so
+	 * this method returns at once.
+	 */
+	@Override
+	public void run() {
+		try {
+			server = HttpServer.create(new InetSocketAddress(port), 16);
+			server.createContext(PATH, this::handle);
+			executor = Executors.newSingleThreadExecutor((runnable) -> {
+				final Thread t = new Thread(runnable, "MetricsEndpoint");
+				t.setDaemon(true);
+				return t;
+			});
+			server.setExecutor(executor);
+			server.start();
+			System.out.println("Serving metrics on port " + getPort() + ".");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the port the endpoint listens on, or -1 if it is not running.
+	 */
+	public int getPort() {
+		return (server == null) ? -1 : server.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			final StringBuilder text = new StringBuilder(4096);
+			registry.writeText(text);
+			final byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Stops listening.
+	 */
+	@Override
+	public void close() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdown();
+			server = null;
+		}
+	}
+}
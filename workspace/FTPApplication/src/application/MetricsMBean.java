@@ -0,0 +1,121 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * This class publishes the metrics of a MetricsRegistry as the read-only
+ * attributes of a JMX MBean. Counters and gauges are Long attributes named
+ * after the metric, with a label's value appended after an underscore. Each
+ * histogram becomes Count, P50, P99, P999 and Max attributes, the durations
+ * in seconds.
+ *
+ * The attributes are listed anew whenever the MBeanInfo is requested, so
+ * metrics created after registration show up as well.
+ *
+ */
+final class MetricsMBean implements DynamicMBean {
+	private final MetricsRegistry registry;
+
+	MetricsMBean(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		for (Map.Entry<String, Object> entry : registry.getMetrics().entrySet()) {
+			final String name = attributeName(entry.getKey());
+			final Object metric = entry.getValue();
+			if (!(metric instanceof LatencyHistogram)) {
+				if (name.equals(attribute)) {
+					return MetricsRegistry.valueOf(metric);
+				}
+				continue;
+			}
+			if (!attribute.startsWith(name)) {
+				continue;
+			}
+			final LatencyHistogram histogram = (LatencyHistogram) metric;
+			switch (attribute.substring(name.length())) {
+			case "_Count":
+				return (double) histogram.getCount();
+			case "_P50":
+				return histogram.getQuantile(0.5) / 1e9;
+			case "_P99":
+				return histogram.getQuantile(0.99) / 1e9;
+			case "_P999":
+				return histogram.getQuantile(0.999) / 1e9;
+			case "_Max":
+				return histogram.getMax() / 1e9;
+			default:
+				break;
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		final AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// Left out, as the DynamicMBean contract asks.
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		final List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (Map.Entry<String, Object> entry : registry.getMetrics().entrySet()) {
+			final String name = attributeName(entry.getKey());
+			if (entry.getValue() instanceof LatencyHistogram) {
+				for (String suffix : new String[] { "_Count", "_P50", "_P99", "_P999", "_Max" }) {
+					attributes.add(new MBeanAttributeInfo(name + suffix, "java.lang.Double", entry.getKey() + suffix,
+							true, false, false));
+				}
+			} else {
+				attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", entry.getKey(), true, false, false));
+			}
+		}
+		return new MBeanInfo(getClass().getName(), "FTP server and client metrics",
+				attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+	}
+
+	// Turns name{label="value"} into name_value.
+	private static String attributeName(String key) {
+		final int brace = key.indexOf('{');
+		if (brace < 0) {
+			return key;
+		}
+		final int quote = key.indexOf('"', brace);
+		return key.substring(0, brace) + "_" + key.substring(quote + 1, key.lastIndexOf('"'));
+	}
+}
@@ -0,0 +1,190 @@
+package application;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class holds the metrics of the server and the client: counters, which
+ * are LongAdders, gauges, which are read from a LongSupplier when the metrics
+ * are published, and LatencyHistograms. Metrics are grouped in families of
+ * the same name that differ by one label, such as the cause of an error.
+ *
+ * Classes look their metrics up once, usually into static fields, and update
+ * them without locking. The registry publishes them as attributes of a JMX
+ * MBean and in the Prometheus text format, which is what a MetricsEndpoint
+ * serves. Durations are published in seconds.
+ *
+ * Metric names start with ftp_server_ or ftp_client_, so the server and a
+ * client running in the same JVM share the default registry.
+ *
+ */
+public final class MetricsRegistry {
+	/** The name the registry's MBean is registered under. */
+	public static final String OBJECT_NAME = "application:type=Metrics";
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+	private final ConcurrentMap<String, Family> families;
+	private boolean registered;
+
+	public MetricsRegistry() {
+		families = new ConcurrentSkipListMap<>();
+	}
+
+	/**
+	 * Returns the registry shared by the whole JVM.
+	 */
+	public static MetricsRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns the counter of the given name, creating it if necessary.
+	 */
+	public LongAdder counter(String name, String help) {
+		return (LongAdder) family(name, help, "counter").children.computeIfAbsent("", (k) -> new LongAdder());
+	}
+
+	/**
+	 * Returns the counter of the given name with the given label value, such
+	 * as ftp_server_errors_total with cause="NOT_FOUND".
+	 */
+	public LongAdder counter(String name, String help, String label, String value) {
+		return (LongAdder) family(name, help, "counter").children.computeIfAbsent(labels(label, value),
+				(k) -> new LongAdder());
+	}
+
+	/**
+	 * Returns the histogram of the given name, creating it if necessary. The
+	 * name should end in _seconds; values are recorded in nanoseconds.
+	 */
+	public LatencyHistogram histogram(String name, String help) {
+		return (LatencyHistogram) family(name, help, "summary").children.computeIfAbsent("",
+				(k) -> new LatencyHistogram());
+	}
+
+	/**
+	 * Publishes the value of the supplier under the given name, replacing any
+	 * gauge of that name.
+	 */
+	public void gauge(String name, String help, LongSupplier supplier) {
+		family(name, help, "gauge").children.put("", supplier);
+	}
+
+	private Family family(String name, String help, String type) {
+		final Family family = families.computeIfAbsent(name, (k) -> new Family(help, type));
+		if (!family.type.equals(type)) {
+			throw new IllegalArgumentException(name + " is a " + family.type + ", not a " + type);
+		}
+		return family;
+	}
+
+	private static String labels(String label, String value) {
+		return label + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text exposition format.
+	 */
+	public void writeText(Appendable out) throws IOException {
+		for (Map.Entry<String, Family> entry : families.entrySet()) {
+			final String name = entry.getKey();
+			final Family family = entry.getValue();
+			out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+			for (Map.Entry<String, Object> child : family.children.entrySet()) {
+				final String labels = child.getKey();
+				final Object metric = child.getValue();
+				if (metric instanceof LatencyHistogram) {
+					final LatencyHistogram histogram = (LatencyHistogram) metric;
+					for (String quantile : new String[] { "0.5", "0.9", "0.99", "0.999" }) {
+						sample(out, name, labels.isEmpty() ? "quantile=\"" + quantile + "\""
+								: labels + ",quantile=\"" + quantile + "\"",
+								seconds(histogram.getQuantile(Double.parseDouble(quantile))));
+					}
+					sample(out, name + "_sum", labels, seconds(histogram.getSum()));
+					sample(out, name + "_count", labels, Long.toString(histogram.getCount()));
+					sample(out, name + "_max", labels, seconds(histogram.getMax()));
+				} else {
+					sample(out, name, labels, Long.toString(valueOf(metric)));
+				}
+			}
+		}
+	}
+
+	private static void sample(Appendable out, String name, String labels, String value) throws IOException {
+		out.append(name);
+		if (!labels.isEmpty()) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(value).append('\n');
+	}
+
+	private static String seconds(long nanos) {
+		return Double.toString(nanos / 1e9);
+	}
+
+	/**
+	 * Returns the current value of a counter or gauge.
+	 */
+	static long valueOf(Object metric) {
+		return (metric instanceof LongAdder) ? ((LongAdder) metric).sum() : ((LongSupplier) metric).getAsLong();
+	}
+
+	/**
+	 * Returns every metric, keyed by its family's name followed by its
+	 * label in braces, if it has one.
+	 */
+	Map<String, Object> getMetrics() {
+		final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+		for (Map.Entry<String, Family> entry : families.entrySet()) {
+			for (Map.Entry<String, Object> child : entry.getValue().children.entrySet()) {
+				final String labels = child.getKey();
+				metrics.put(labels.isEmpty() ? entry.getKey() : entry.getKey() + "{" + labels + "}", child.getValue());
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Registers a MetricsMBean for this registry with the platform MBean
+	 * server under OBJECT_NAME, unless it was already registered. Failures
+	 * are printed, since metrics are not worth failing over.
+	 */
+	public synchronized void registerMBean() {
+		if (registered) {
+			return;
+		}
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(new MetricsMBean(this), name);
+			}
+			registered = true;
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static final class Family {
+		private final String help;
+		private final String type;
+		// Keyed by the label of each metric, or "" if it has none.
+		private final ConcurrentMap<String, Object> children;
+
+		Family(String help, String type) {
+			this.help = help;
+			this.type = type;
+			children = new ConcurrentSkipListMap<>();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package application;
+
+/**
+ * This enumeration contains the message types of the framed protocol. Each
+ * frame on the wire starts with a FrameHeader carrying one of these opcodes.
+ * 
+ * LIST - Requests the server's file listing, or carries it back to the client.
+ * GET - Requests a file, or a byte range of it, by name.
+ * DATA - Carries one chunk of a file's bytes.
+ * ACK - Acknowledges a request. The server's ACK to a GET carries the file's
+ * size and modification time and the range being sent, and the client's ACK
+ * confirms that a file was saved.
+ * ERROR - Reports that a request failed, with an ErrorCode and a message.
+ * HELLO - Negotiates optional features right after MAGIC. The client's HELLO
+ * carries an int mask of the Codecs it can decode, and the server's answer
+ * carries the mask of the Codec it will use, or 0. The client also sets
+ * DeltaRequest.HELLO_BIT to offer delta transfers, and the server keeps it
+ * set in its answer if it accepts them.
+ * DELTA - Requests a file as the differences to the client's copy of it; see
+ * DeltaRequest. It is answered like a GET, but with DATA frames that carry
+ * DeltaEncoder instructions.
+ * PUT - Uploads a file; see PutRequest. The file's bytes follow in DATA
+ * frames from the client, once the server has acknowledged the PUT.
+ *
+ */
+enum Opcode {
+	LIST(1), GET(2), DATA(3), ACK(4), ERROR(5), HELLO(6), DELTA(7), PUT(8);
+
+	private static final Opcode[] BY_CODE = new Opcode[9];
+
+	static {
+		for (Opcode opcode : values()) {
+			BY_CODE[opcode.code] = opcode;
+		}
+	}
+
+	private final int code;
+
+	private Opcode(int code) {
+		this.code = code;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * Returns the Opcode with the given wire value, or null if there is none.
+	 */
+	public static Opcode fromCode(int code) {
+		return (code > 0 && code < BY_CODE.length) ? BY_CODE[code] : null;
+	}
+}
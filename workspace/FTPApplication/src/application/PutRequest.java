@@ -0,0 +1,149 @@
+package application;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is the payload of a PUT frame, which asks the server to accept
+ * an upload. The payload starts with two longs before the file's name in
+ * UTF-8:
+ *
+ * <pre>
+ * size                  the number of bytes that will be uploaded
+ * modification time     the time the file should be marked as last modified,
+ *                       or 0 to leave it at the time of the upload
+ * </pre>
+ *
+ * The server answers with an empty ACK frame, after which the client sends
+ * the file's bytes in DATA frames of at most FramedSession.CHUNK_SIZE bytes,
+ * the last one with FLAG_LAST set. Once the file is published, the server
+ * answers with an ACK frame whose payload is a GetResponse describing it. A
+ * PUT frame with FLAG_CHECKSUM set announces that the DATA frames end with
+ * checksum trailers, as described by ChecksumVerifier.
+ *
+ * If chunks of a checksummed upload failed their checksums, the server
+ * answers the last DATA frame with an ACK frame with FLAG_RANGE set instead,
+ * whose payload lists the chunks:
+ *
+ * <pre>
+ * count                 an int, the number of chunks
+ * count times:
+ *   position            a long, the offset of the chunk in the file
+ *   length              an int, the number of bytes in the chunk
+ * </pre>
+ *
+ * The client sends each listed chunk again in a DATA frame with FLAG_RANGE
+ * set, whose payload is the chunk's position as a long followed by its bytes
+ * and checksum trailer. The last of these frames has FLAG_LAST set and ends
+ * with the SHA-256 of the whole file, after which the server answers as it
+ * did to the first last frame.
+ *
+ */
+final class PutRequest {
+	private static final int HEADER_SIZE = 16;
+	private static final int CHUNK_SIZE = 12;
+
+	private final String fileName;
+	private final long size;
+	private final long lastModified;
+	private final boolean checksummed;
+
+	public PutRequest(String fileName, long size, long lastModified, boolean checksummed) {
+		this.fileName = fileName;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.checksummed = checksummed;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the modification time the file should get, or 0 for none.
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Returns true if the DATA frames of the upload carry checksums.
+	 */
+	public boolean isChecksummed() {
+		return checksummed;
+	}
+
+	/**
+	 * Returns the flags of the PUT frame carrying this request.
+	 */
+	public int getFlags() {
+		return checksummed ? FrameHeader.FLAG_CHECKSUM : 0;
+	}
+
+	public byte[] toPayload() {
+		final byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer payload = ByteBuffer.allocate(HEADER_SIZE + name.length);
+		payload.putLong(size).putLong(lastModified).put(name);
+		return payload.array();
+	}
+
+	/**
+	 * Decodes the payload of a PUT frame.
+	 *
+	 * @throws ProtocolException
+	 *             If the payload is malformed.
+	 */
+	public static PutRequest fromPayload(FrameHeader header, byte[] payload) throws ProtocolException {
+		if (payload.length < HEADER_SIZE) {
+			throw new ProtocolException("Truncated upload in " + header);
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap(payload);
+		final long size = buffer.getLong();
+		final long lastModified = buffer.getLong();
+		if (size < 0 || lastModified < 0) {
+			throw new ProtocolException("Invalid upload of " + size + " bytes in " + header);
+		}
+		final String name = new String(payload, HEADER_SIZE, payload.length - HEADER_SIZE, StandardCharsets.UTF_8);
+		return new PutRequest(name, size, lastModified, (header.getFlags() & FrameHeader.FLAG_CHECKSUM) != 0);
+	}
+
+	/**
+	 * Encodes the chunks an upload needs again, each a position and a length.
+	 */
+	public static ByteBuffer chunksToPayload(List<long[]> chunks) {
+		final ByteBuffer payload = ByteBuffer.allocate(4 + chunks.size() * CHUNK_SIZE);
+		payload.putInt(chunks.size());
+		for (long[] chunk : chunks) {
+			payload.putLong(chunk[0]).putInt((int) chunk[1]);
+		}
+		payload.flip();
+		return payload;
+	}
+
+	/**
+	 * Decodes the payload of an ACK frame that asks for chunks of an upload
+	 * again.
+	 *
+	 * @throws ProtocolException
+	 *             If the payload is malformed.
+	 */
+	public static List<long[]> chunksFromPayload(FrameHeader header, byte[] payload) throws ProtocolException {
+		final ByteBuffer buffer = ByteBuffer.wrap(payload);
+		final int count = (payload.length < 4) ? -1 : buffer.getInt();
+		if (count < 0 || buffer.remaining() != (long) count * CHUNK_SIZE) {
+			throw new ProtocolException("Malformed chunk list in " + header);
+		}
+		final List<long[]> chunks = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			chunks.add(new long[] { buffer.getLong(), buffer.getInt() });
+		}
+		return chunks;
+	}
+}
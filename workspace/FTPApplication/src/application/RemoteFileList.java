@@ -0,0 +1,287 @@
+package application;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+/**
+ * This class is the server's listing as shown by FtpApplication. The listing
+ * is filtered and sorted by the server and loaded page by page: the first
+ * page when the filter or order changes, and the next one whenever a row near
+ * the end of the loaded entries is shown, so a directory of any size opens as
+ * fast as a small one.
+ *
+ * Pages are requested on a background thread and added to the items on the
+ * Application Thread. A request that was overtaken by a newer filter or
+ * order is discarded when it completes. refresh() lists the loaded entries
+ * again and applies only the differences to the items, so changes on the
+ * server show up without rebuilding the list or losing the selection.
+ *
+ * Every method must be called on the Application Thread.
+ *
+ */
+final class RemoteFileList {
+	// The number of entries requested when scrolling.
+	private static final int PAGE_SIZE = 500;
+	// How close to the end of the loaded entries a shown row must be for the
+	// next page to be requested.
+	private static final int PREFETCH_DISTANCE = 100;
+
+	private final TCPClient client;
+	private final ExecutorService executor;
+	private final ObservableList<CatalogEntry> items;
+	private final SimpleStringProperty status;
+	private String pattern;
+	private ListOrder order;
+	private boolean descending;
+	// Incremented whenever the filter or order changes, so that responses to
+	// older requests can be recognized. Read by the background thread.
+	private volatile int generation;
+	private boolean loading;
+	private boolean refreshing;
+	private boolean more;
+	private int total;
+
+	/**
+	 * Constructs an empty list and requests the first page of the listing.
+	 *
+	 * @param client
+	 *            A client using the framed protocol. The list requests every
+	 *            page through it, connecting it again if its connection
+	 *            failed.
+	 */
+	public RemoteFileList(TCPClient client) {
+		this.client = client;
+		executor = Executors.newSingleThreadExecutor((runnable) -> {
+			Thread t = new Thread(runnable, "RemoteFileList");
+			t.setDaemon(true);
+			return t;
+		});
+		items = FXCollections.observableArrayList();
+		status = new SimpleStringProperty("Loading...");
+		pattern = "";
+		order = ListOrder.NAME;
+		total = -1;
+		load(null);
+	}
+
+	/**
+	 * Returns the loaded entries, in the order of the listing.
+	 */
+	public ObservableList<CatalogEntry> getItems() {
+		return items;
+	}
+
+	/**
+	 * Returns a description of how much of the listing is loaded, or of why
+	 * it could not be loaded.
+	 */
+	public ReadOnlyStringProperty statusProperty() {
+		return status;
+	}
+
+	/**
+	 * Shows only the files whose names contain the given text. Text containing
+	 * any of the characters *?[{ is matched as a glob instead, see
+	 * ListRequest.
+	 */
+	public void setFilter(String text) {
+		String filter = (text == null) ? "" : text;
+		if (!filter.isEmpty() && !new ListRequest(filter, order, descending, 1).isGlob()) {
+			filter = "*" + filter + "*";
+		}
+		setQuery(filter, order, descending);
+	}
+
+	/**
+	 * Sorts the listing in the given order.
+	 */
+	public void setOrder(ListOrder order, boolean descending) {
+		setQuery(pattern, order, descending);
+	}
+
+	private void setQuery(String pattern, ListOrder order, boolean descending) {
+		if (pattern.equals(this.pattern) && order == this.order && descending == this.descending) {
+			return;
+		}
+		this.pattern = pattern;
+		this.order = order;
+		this.descending = descending;
+		generation++;
+		refreshing = false;
+		load(null);
+	}
+
+	/**
+	 * Requests the next page if the row at the given index is close to the
+	 * end of the loaded entries. Rows call this whenever they are shown.
+	 */
+	public void prefetch(int index) {
+		if (more && !loading && index >= items.size() - PREFETCH_DISTANCE) {
+			load(items.get(items.size() - 1));
+		}
+	}
+
+	/**
+	 * Requests the page following the given entry, or the first page if it is
+	 * null. The first page replaces the items; later pages are appended.
+	 */
+	private void load(CatalogEntry after) {
+		loading = true;
+		final int expected = generation;
+		final ListRequest first = new ListRequest(pattern, order, descending, PAGE_SIZE);
+		final ListRequest request = (after == null) ? first : first.after(after);
+		executor.execute(() -> {
+			try {
+				final ListPage page = list(request);
+				Platform.runLater(() -> {
+					if (generation != expected) {
+						return;
+					}
+					loading = false;
+					if (after == null) {
+						items.setAll(page.getEntries());
+					} else {
+						items.addAll(page.getEntries());
+					}
+					more = page.hasMore();
+					total = page.getTotal();
+					updateStatus();
+				});
+			} catch (IOException e) {
+				Platform.runLater(() -> {
+					if (generation == expected) {
+						loading = false;
+						status.set("Could not list files: " + e.getMessage());
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Lists the loaded part of the listing again in the background and applies
+	 * the differences to the items: entries of new files are inserted, those
+	 * of deleted files removed and those of modified files replaced.
+	 */
+	public void refresh() {
+		if (loading || refreshing) {
+			return;
+		}
+		if (items.isEmpty()) {
+			load(null);
+			return;
+		}
+		refreshing = true;
+		final int expected = generation;
+		final CatalogEntry bound = items.get(items.size() - 1);
+		final ListRequest first = new ListRequest(pattern, order, descending, ListRequest.MAX_LIMIT);
+		executor.execute(() -> {
+			final List<CatalogEntry> fresh = new ArrayList<>();
+			try {
+				ListRequest request = first;
+				boolean done = false;
+				while (!done && generation == expected) {
+					final ListPage page = list(request);
+					for (CatalogEntry entry : page.getEntries()) {
+						if (compare(entry, bound) > 0) {
+							done = true;
+							break;
+						}
+						fresh.add(entry);
+					}
+					done |= !page.hasMore() || page.getLast() == null;
+					request = request.after(page.getLast());
+				}
+				Platform.runLater(() -> {
+					if (generation == expected) {
+						refreshing = false;
+						merge(fresh, bound);
+						updateStatus();
+					}
+				});
+			} catch (IOException e) {
+				Platform.runLater(() -> {
+					if (generation == expected) {
+						refreshing = false;
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Turns the items up to and including bound into the given entries, which
+	 * are in the same order, with as few changes as possible.
+	 */
+	private void merge(List<CatalogEntry> fresh, CatalogEntry bound) {
+		int i = 0;
+		for (CatalogEntry entry : fresh) {
+			while (i < items.size() && compare(items.get(i), entry) < 0) {
+				items.remove(i);
+			}
+			if (i < items.size() && compare(items.get(i), entry) == 0) {
+				final CatalogEntry old = items.get(i);
+				if (old.getSize() != entry.getSize() || old.getLastModified() != entry.getLastModified()) {
+					items.set(i, entry);
+				}
+			} else {
+				items.add(i, entry);
+			}
+			i++;
+		}
+		while (i < items.size() && compare(items.get(i), bound) <= 0) {
+			items.remove(i);
+		}
+	}
+
+	// Compares two entries in the order of the listing.
+	private int compare(CatalogEntry a, CatalogEntry b) {
+		return descending ? order.compare(b, a) : order.compare(a, b);
+	}
+
+	private void updateStatus() {
+		if (!more) {
+			status.set(String.format("%,d files", items.size()));
+		} else if (total >= 0) {
+			status.set(String.format("%,d of %,d files", items.size(), total));
+		} else {
+			status.set(String.format("%,d+ files", items.size()));
+		}
+	}
+
+	/**
+	 * Requests a page on the background thread. A connection that failed is
+	 * closed, so the next request connects again.
+	 */
+	private ListPage list(ListRequest request) throws IOException {
+		try {
+			return client.list(request);
+		} catch (ServerException e) {
+			throw e;
+		} catch (IOException e) {
+			e.printStackTrace();
+			try {
+				client.close();
+			} catch (IOException closeFailure) {
+				closeFailure.printStackTrace();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops requesting pages. Requests in progress are abandoned.
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,408 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class downloads a single file over several connections at once, which
+ * lets a high-latency link carry more than one TCP window's worth of data per
+ * round trip. The file is split into one segment per connection; each
+ * connection downloads its segment in pieces of pieceSize bytes, and writes
+ * every piece at its position in the destination with positional FileChannel
+ * writes.
+ *
+ * A connection that finishes its segment early steals the upper half of the
+ * segment with the most bytes left, so all connections stay busy until the end
+ * of the file. If a connection fails, its remaining bytes are taken over by
+ * the others, or by a new connection if the others have already finished.
+ *
+ * If the download fails, the .part file is deleted; unlike a download with a
+ * single connection, a segmented one is not resumed.
+ *
+ */
+public class SegmentedDownload {
+	public static final int DEFAULT_PIECE_SIZE = 4 * 1024 * 1024;
+	public static final int DEFAULT_RESTARTS = 3;
+
+	private final TCPClient template;
+	private final String fileName;
+	private final int connections;
+	private final List<Segment> segments;
+	private final List<Worker> workers;
+	private final AtomicLong bytesReceived;
+	private int pieceSize;
+	private int maxRestarts;
+	private TransferListener transferListener;
+	private int steals;
+	private int restarts;
+	private long elapsedNanos;
+
+	/**
+	 * Constructs a SegmentedDownload object.
+	 *
+	 * @param ip
+	 *            String representation of the server's IP address.
+	 * @param port
+	 *            The port that the server is bound to.
+	 * @param fileName
+	 *            The name of the file to download.
+	 * @param connections
+	 *            The number of connections to download with.
+	 */
+	public SegmentedDownload(String ip, int port, String fileName, int connections) {
+		this(new TCPClient(ip, port, WireProtocol.FRAMED), fileName, connections);
+	}
+
+	/**
+	 * Constructs a SegmentedDownload whose connections are made like the given
+	 * client's: to the same server, with the same options.
+	 */
+	SegmentedDownload(TCPClient template, String fileName, int connections) {
+		this.template = template;
+		this.fileName = fileName;
+		this.connections = Math.max(1, connections);
+		segments = new ArrayList<>();
+		workers = new ArrayList<>();
+		bytesReceived = new AtomicLong();
+		pieceSize = DEFAULT_PIECE_SIZE;
+		maxRestarts = DEFAULT_RESTARTS;
+	}
+
+	/**
+	 * Sets the number of bytes requested at a time. Smaller pieces let
+	 * segments be split more evenly, larger pieces cost fewer round trips.
+	 */
+	public void setPieceSize(int pieceSize) {
+		this.pieceSize = pieceSize;
+	}
+
+	/**
+	 * Sets how much of the file is forced to disk before download() returns.
+	 */
+	public void setSyncPolicy(SyncPolicy syncPolicy) {
+		template.setSyncPolicy(syncPolicy);
+	}
+
+	/**
+	 * Sets how many times new connections are made for segments that were
+	 * abandoned by failed connections after the others had finished.
+	 */
+	public void setMaxRestarts(int maxRestarts) {
+		this.maxRestarts = maxRestarts;
+	}
+
+	/**
+	 * Sets the TLS context the connections are encrypted with, or null for
+	 * plaintext. All connections share it, so only the first one does a full
+	 * handshake.
+	 */
+	public void setTls(TlsContext tls) {
+		template.setTls(tls);
+	}
+
+	/**
+	 * Sets the listener that is told about the progress of the download, or
+	 * null for none. The listener is called on the downloading threads, one
+	 * at a time.
+	 */
+	public void setTransferListener(TransferListener transferListener) {
+		this.transferListener = transferListener;
+	}
+
+	/**
+	 * Returns the number of file bytes written so far.
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * Returns the number of times a connection took over part of another
+	 * connection's segment during the last download.
+	 */
+	public int getSteals() {
+		synchronized (segments) {
+			return steals;
+		}
+	}
+
+	/**
+	 * Returns the number of connections made during the last download to
+	 * replace failed ones.
+	 */
+	public int getRestarts() {
+		return restarts;
+	}
+
+	/**
+	 * Returns how long the last call to download() took, in nanoseconds.
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * Downloads the file into the destination. The file is written to a .part
+	 * file next to the destination, which is preallocated to the file's size
+	 * and renamed once every segment is complete.
+	 *
+	 * @param destination
+	 *            The file to create.
+	 * @return the size of the file.
+	 * @throws IOException
+	 *             If the connections kept failing or the file changed on the
+	 *             server during the download.
+	 * @throws TransferCancelledException
+	 *             If the calling thread was interrupted.
+	 */
+	public long download(File destination) throws IOException {
+		final long start = System.nanoTime();
+		final DownloadFile download = new DownloadFile(destination, template.getSyncPolicy());
+		bytesReceived.set(0);
+		restarts = 0;
+		boolean committed = false;
+		TCPClient first = null;
+		try {
+			first = connect();
+			final FileChannel out = download.open(0);
+			// A zero-length range tells us the file's size and version.
+			final GetResponse version = first.receiveRange(fileName, 0, 0, out);
+			final long size = version.getFileSize();
+			download.preallocate(size);
+			if (transferListener != null) {
+				transferListener.started(fileName, size, 0);
+			}
+			final int count = (int) Math.max(1, Math.min(connections, size / pieceSize));
+			final long segmentSize = size / count;
+			final List<Segment> assigned = new ArrayList<>();
+			synchronized (segments) {
+				segments.clear();
+				steals = 0;
+				for (int i = 0; i < count; i++) {
+					final long end = (i == count - 1) ? size : (i + 1) * segmentSize;
+					segments.add(new Segment(i * segmentSize, end));
+				}
+				assigned.addAll(segments);
+			}
+			IOException failure = null;
+			while (true) {
+				for (Segment segment : assigned) {
+					startWorker(first, segment, version, out);
+					// Only the first worker can use the first connection.
+					first = null;
+				}
+				failure = join(failure);
+				// Every worker has finished, so whatever is left was abandoned.
+				assigned.clear();
+				synchronized (segments) {
+					for (Segment segment : segments) {
+						if (segment.remaining() > 0 && assigned.size() < connections) {
+							segment.abandoned = false;
+							assigned.add(segment);
+						}
+					}
+				}
+				if (assigned.isEmpty()) {
+					break;
+				}
+				if (restarts + assigned.size() > maxRestarts) {
+					throw (failure != null) ? failure : new IOException("Could not download all of " + fileName);
+				}
+				restarts += assigned.size();
+			}
+			download.commit();
+			committed = true;
+		} finally {
+			if (first != null) {
+				first.close();
+			}
+			if (!committed) {
+				download.delete();
+			}
+		}
+		elapsedNanos = System.nanoTime() - start;
+		return destination.length();
+	}
+
+	private void startWorker(TCPClient client, Segment segment, GetResponse version, FileChannel out) {
+		final Worker worker = new Worker(client, segment, version, out);
+		synchronized (workers) {
+			workers.add(worker);
+		}
+		worker.thread.start();
+	}
+
+	/**
+	 * Waits for every worker to finish. If the calling thread is interrupted,
+	 * the workers' connections are closed, which ends them.
+	 *
+	 * @return the last failure of a worker, or the given one if none failed.
+	 */
+	private IOException join(IOException failure) throws TransferCancelledException {
+		while (true) {
+			final Worker worker;
+			synchronized (workers) {
+				if (workers.isEmpty()) {
+					return failure;
+				}
+				worker = workers.get(0);
+			}
+			try {
+				worker.thread.join();
+			} catch (InterruptedException e) {
+				synchronized (workers) {
+					for (Worker running : workers) {
+						running.cancel();
+					}
+				}
+				throw new TransferCancelledException(fileName);
+			}
+			synchronized (workers) {
+				workers.remove(0);
+			}
+			if (worker.failure != null) {
+				failure = worker.failure;
+			}
+		}
+	}
+
+	private TCPClient connect() throws IOException {
+		final TCPClient client = template.copy();
+		client.setFetchListing(false);
+		client.connect();
+		return client;
+	}
+
+	/**
+	 * Returns a segment for a connection whose own segment is finished: a
+	 * segment abandoned by a failed connection, or otherwise the upper half of
+	 * the segment with the most bytes left. Returns null once there is nothing
+	 * worth splitting.
+	 */
+	private Segment steal() {
+		synchronized (segments) {
+			Segment victim = null;
+			for (Segment segment : segments) {
+				if (segment.abandoned && segment.remaining() > 0) {
+					segment.abandoned = false;
+					return segment;
+				}
+				if (victim == null || segment.remaining() > victim.remaining()) {
+					victim = segment;
+				}
+			}
+			// Splitting a segment smaller than two pieces gains nothing.
+			if (victim == null || victim.remaining() < 2L * pieceSize) {
+				return null;
+			}
+			final long middle = victim.next + victim.remaining() / 2;
+			final Segment stolen = new Segment(middle, victim.end);
+			victim.end = middle;
+			segments.add(stolen);
+			steals++;
+			return stolen;
+		}
+	}
+
+	/**
+	 * A range of the file that is downloaded by one connection. next and end
+	 * are only accessed while holding the lock on the segments list.
+	 */
+	private static final class Segment {
+		private long next;
+		private long end;
+		private boolean abandoned;
+
+		Segment(long next, long end) {
+			this.next = next;
+			this.end = end;
+		}
+
+		long remaining() {
+			return end - next;
+		}
+	}
+
+	/**
+	 * A connection downloading pieces of its segment, then of stolen ones.
+	 */
+	private final class Worker implements Runnable {
+		private final Thread thread;
+		private final GetResponse version;
+		private final FileChannel out;
+		private volatile TCPClient client;
+		private volatile boolean cancelled;
+		private Segment segment;
+		private IOException failure;
+
+		Worker(TCPClient client, Segment segment, GetResponse version, FileChannel out) {
+			this.client = client;
+			this.segment = segment;
+			this.version = version;
+			this.out = out;
+			thread = new Thread(this, "SegmentedDownload-" + fileName);
+			thread.setDaemon(true);
+		}
+
+		// Closes the connection, which ends a blocked read.
+		void cancel() {
+			cancelled = true;
+			final TCPClient running = client;
+			if (running != null && running.getSocket() != null) {
+				try {
+					running.getSocket().close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (client == null) {
+					client = connect();
+				}
+				while (segment != null && !cancelled) {
+					final long offset;
+					final long length;
+					synchronized (segments) {
+						offset = segment.next;
+						length = Math.min(pieceSize, segment.remaining());
+					}
+					if (length <= 0) {
+						segment = steal();
+						continue;
+					}
+					client.receiveRange(fileName, offset, length, version, out);
+					synchronized (segments) {
+						segment.next = offset + length;
+						final long position = bytesReceived.addAndGet(length);
+						if (transferListener != null) {
+							transferListener.progress(fileName, position);
+						}
+					}
+				}
+			} catch (IOException e) {
+				failure = e;
+				if (segment != null) {
+					synchronized (segments) {
+						segment.abandoned = true;
+					}
+				}
+			} finally {
+				if (client != null) {
+					try {
+						client.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package application;
+
+import java.io.IOException;
+
+/**
+ * This exception is thrown by a TCPClient when the server answers a request
+ * with an ERROR frame. Unlike other IOExceptions, it does not mean that the
+ * connection is broken, so repeating the request after reconnecting is
+ * pointless.
+ *
+ */
+public class ServerException extends IOException {
+	private static final long serialVersionUID = 1L;
+	private final ErrorCode errorCode;
+
+	ServerException(ErrorCode errorCode, String message) {
+		super(errorCode + ": " + message);
+		this.errorCode = errorCode;
+	}
+
+	public ErrorCode getErrorCode() {
+		return errorCode;
+	}
+}
@@ -0,0 +1,46 @@
+package application;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class holds the server's metrics in the default MetricsRegistry. The
+ * gauges that describe a running TCPServerManager are registered by the
+ * manager itself.
+ *
+ */
+final class ServerMetrics {
+	static final LongAdder SESSIONS = registry().counter("ftp_server_sessions_total", "Connections accepted.");
+	static final LongAdder BYTES_SENT = registry().counter("ftp_server_bytes_sent_total",
+			"File bytes sent, after compression.");
+	static final LongAdder FILES_SERVED = registry().counter("ftp_server_files_served_total",
+			"Files or ranges of files sent completely.");
+	static final LongAdder BYTES_RECEIVED = registry().counter("ftp_server_bytes_received_total",
+			"File bytes received in uploads.");
+	static final LongAdder FILES_RECEIVED = registry().counter("ftp_server_files_received_total",
+			"Uploaded files published in the served directory.");
+	static final LongAdder CHUNKS_RESENT = registry().counter("ftp_server_chunks_resent_total",
+			"Upload chunks asked for again after failing their checksums.");
+	static final LatencyHistogram TRANSFER = registry().histogram("ftp_server_transfer_seconds",
+			"Time from handling a request for a file to writing its last byte.");
+	static final LatencyHistogram LISTING = registry().histogram("ftp_server_listing_seconds",
+			"Time to build and queue the listing of available files.");
+	static final LatencyHistogram TLS_HANDSHAKE = registry().histogram("ftp_server_tls_handshake_seconds",
+			"Time from a client's first TLS handshake message to the server's last.");
+	static final LongAdder TLS_RESUMED = registry().counter("ftp_server_tls_resumed_total",
+			"TLS handshakes that resumed an earlier session.");
+
+	private ServerMetrics() {
+	}
+
+	private static MetricsRegistry registry() {
+		return MetricsRegistry.getDefault();
+	}
+
+	/**
+	 * Returns the counter of errors with the given cause: an ErrorCode sent to
+	 * a client, or the class of the exception that closed a connection.
+	 */
+	static LongAdder error(String cause) {
+		return registry().counter("ftp_server_errors_total", "Errors by cause.", "cause", cause);
+	}
+}
@@ -0,0 +1,273 @@
+package application;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs blocking TCPServer sessions with bounded concurrency. At
+ * most maxSessions sessions run at once, each on a thread obtained from a
+ * pluggable ThreadFactory; up to maxQueued further sessions wait for a free
+ * slot, and any beyond that are rejected and closed. Independently of the
+ * number of sessions, at most maxTransfers of them may be sending a file at
+ * the same time.
+ *
+ * Short tasks, such as the disk and handshake work of EventLoop connections,
+ * run on at most maxTasks further threads; up to maxQueued tasks wait for
+ * one, and any beyond that are rejected.
+ *
+ * By default sessions run on virtual threads, so a blocked session only costs
+ * a small heap-allocated stack. On JVMs without virtual threads the default
+ * factory falls back to platform daemon threads.
+ *
+ */
+public class SessionExecutor {
+	public static final int DEFAULT_MAX_SESSIONS = 10000;
+	public static final int DEFAULT_MAX_QUEUED = 1000;
+	public static final int DEFAULT_MAX_TRANSFERS = 64;
+	public static final int DEFAULT_MAX_TASKS = 64;
+
+	private final ThreadFactory threadFactory;
+	private final int maxSessions;
+	private final int maxQueued;
+	private final int maxTasks;
+	private final Semaphore transfers;
+	private final ArrayDeque<RunnableEndPoint> queue;
+	// The sessions that are running, guarded by this.
+	private final Set<RunnableEndPoint> running;
+	private final ArrayDeque<Runnable> tasks;
+	private final AtomicLong rejected;
+	private int active;
+	private int activeTasks;
+
+	public SessionExecutor() {
+		this(defaultThreadFactory(), DEFAULT_MAX_SESSIONS, DEFAULT_MAX_QUEUED, DEFAULT_MAX_TRANSFERS);
+	}
+
+	public SessionExecutor(ThreadFactory threadFactory, int maxSessions, int maxQueued, int maxTransfers) {
+		this(threadFactory, maxSessions, maxQueued, maxTransfers, DEFAULT_MAX_TASKS);
+	}
+
+	/**
+	 * Constructs a SessionExecutor.
+	 *
+	 * @param threadFactory
+	 *            Creates the threads that run the sessions.
+	 * @param maxSessions
+	 *            The maximum number of sessions running at once.
+	 * @param maxQueued
+	 *            The maximum number of sessions waiting to run.
+	 * @param maxTransfers
+	 *            The maximum number of file transfers running at once.
+	 * @param maxTasks
+	 *            The maximum number of tasks running at once.
+	 */
+	public SessionExecutor(ThreadFactory threadFactory, int maxSessions, int maxQueued, int maxTransfers,
+			int maxTasks) {
+		this.threadFactory = threadFactory;
+		this.maxSessions = maxSessions;
+		this.maxQueued = maxQueued;
+		this.maxTasks = maxTasks;
+		transfers = new Semaphore(maxTransfers, true);
+		queue = new ArrayDeque<>();
+		running = new HashSet<>();
+		tasks = new ArrayDeque<>();
+		rejected = new AtomicLong();
+		active = 0;
+	}
+
+	/**
+	 * Returns a factory for virtual threads if the JVM supports them, or for
+	 * platform daemon threads otherwise.
+	 */
+	public static ThreadFactory defaultThreadFactory() {
+		try {
+			final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			final Object builder = ofVirtual.invoke(null);
+			final Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return (runnable) -> {
+				Thread t = new Thread(runnable);
+				t.setDaemon(true);
+				return t;
+			};
+		}
+	}
+
+	/**
+	 * Runs the session as soon as a slot is free. If too many sessions are
+	 * already waiting, the session is closed instead.
+	 *
+	 * @return true if the session was started or queued, false if it was
+	 *         rejected.
+	 */
+	public boolean execute(RunnableEndPoint session) {
+		synchronized (this) {
+			if (active < maxSessions) {
+				active++;
+				start(session);
+				return true;
+			}
+			if (queue.size() < maxQueued) {
+				queue.add(session);
+				return true;
+			}
+		}
+		rejected.incrementAndGet();
+		try {
+			session.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	/**
+	 * Runs a short task, such as work that would block an EventLoop, as soon
+	 * as one of the task threads is free. Tasks are not counted as sessions.
+	 *
+	 * @throws RejectedExecutionException
+	 *             If too many tasks are already waiting.
+	 */
+	public void executeTask(Runnable task) {
+		synchronized (this) {
+			if (activeTasks < maxTasks) {
+				activeTasks++;
+				threadFactory.newThread(() -> runTasks(task)).start();
+				return;
+			}
+			if (tasks.size() < maxQueued) {
+				tasks.add(task);
+				return;
+			}
+		}
+		rejected.incrementAndGet();
+		throw new RejectedExecutionException("Too many tasks are waiting to run.");
+	}
+
+	// Runs the given task, then any tasks that queued up meanwhile.
+	private void runTasks(Runnable first) {
+		Runnable task = first;
+		while (task != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			synchronized (this) {
+				task = tasks.poll();
+				if (task == null) {
+					activeTasks--;
+				}
+			}
+		}
+	}
+
+	private void start(RunnableEndPoint session) {
+		running.add(session);
+		final Thread t = threadFactory.newThread(() -> runSessions(session));
+		t.start();
+	}
+
+	// Runs the given session, then any sessions that queued up meanwhile.
+	private void runSessions(RunnableEndPoint first) {
+		RunnableEndPoint session = first;
+		while (session != null) {
+			try {
+				session.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			synchronized (this) {
+				running.remove(session);
+				session = queue.poll();
+				if (session == null) {
+					active--;
+				} else {
+					running.add(session);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes every running and waiting session. A running session's blocked
+	 * I/O fails, which ends it; waiting sessions are dropped. Sessions
+	 * executed afterwards run as usual.
+	 */
+	public void closeSessions() {
+		final List<RunnableEndPoint> sessions;
+		synchronized (this) {
+			sessions = new ArrayList<>(running);
+			sessions.addAll(queue);
+			queue.clear();
+		}
+		for (RunnableEndPoint session : sessions) {
+			try {
+				session.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Blocks until the calling session may start sending a file. Every call
+	 * must be followed by a call to endTransfer().
+	 *
+	 * @throws IOException
+	 *             If the thread was interrupted while waiting.
+	 */
+	public void beginTransfer() throws IOException {
+		try {
+			transfers.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to send a file.", e);
+		}
+	}
+
+	public void endTransfer() {
+		transfers.release();
+	}
+
+	public synchronized int getActiveCount() {
+		return active;
+	}
+
+	public synchronized int getQueuedCount() {
+		return queue.size();
+	}
+
+	public synchronized int getActiveTaskCount() {
+		return activeTasks;
+	}
+
+	public synchronized int getQueuedTaskCount() {
+		return tasks.size();
+	}
+
+	/**
+	 * Returns the number of sessions and tasks that were rejected.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+}
@@ -0,0 +1,18 @@
+package application;
+
+/**
+ * This enumeration selects how much of a download is forced to disk before
+ * the download is reported as saved. Downloads are always written to a .part
+ * file and renamed to their final name once they are complete, so a file
+ * with its final name is never one that is still being written; the policy
+ * decides whether that also holds after the machine crashes.
+ *
+ * NONE leaves flushing to the operating system, so a crash shortly after a
+ * download may leave the renamed file with missing data. FILE forces the
+ * file's contents to disk before it is renamed. DIRECTORY also forces the
+ * directory after the rename, so that the rename itself survives a crash.
+ *
+ */
+public enum SyncPolicy {
+	NONE, FILE, DIRECTORY;
+}
@@ -1,75 +1,1521 @@
 package application;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+
+import javax.net.ssl.SSLHandshakeException;
 
 /**
  * This class is intended to be executed as its own thread. The user is meant to
  * supply a raw IP address in the form of a string, and a port as an integer.
  * 
+ * The client speaks the framed protocol by default. The original object-stream
+ * protocol can still be selected with the WireProtocol constructor argument.
+ * Downloads are saved in the download directory, the working directory by
+ * default. Each file is streamed to a ".part" file that is preallocated to the
+ * file's size, forced to disk according to the SyncPolicy and renamed once it
+ * is complete, so the client's memory use does not depend on the size of the
+ * file. Framed downloads are resumed from the .part file after the connection
+ * drops.
+ * 
+ * Opening the TCP connection, exchanging the handshake and receiving the
+ * listing each have their own timeout, and connect() retries a failed
+ * connection with an increasing delay. connectAsync() connects on a
+ * background thread, so a user interface never waits for the network.
+ * 
+ * If the client has a TlsContext, the connection is encrypted with TLS before
+ * anything else is sent. The TLS handshake shares the handshake timeout.
+ * Reconnecting to the same server with the same TlsContext resumes the TLS
+ * session, so it costs a single round trip and no certificate checks.
+ * 
  * @author Alec J Strickland
  *
  */
 public class TCPClient implements RunnableEndPoint {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// How many times a framed GET is repeated when the file can't be saved.
+	private static final int MAX_ATTEMPTS = 3;
+	// How many times a framed download reconnects after the connection drops.
+	private static final int MAX_RECONNECTS = 5;
+	private static final long INITIAL_BACKOFF_MILLIS = 500;
+	private static final long MAX_BACKOFF_MILLIS = 8000;
+	/** The default number of GET requests sendInputs() keeps outstanding. */
+	public static final int DEFAULT_PIPELINE_DEPTH = 32;
+	/** Files are downloaded into a file with this suffix, then renamed. */
+	public static final String PART_SUFFIX = ".part";
+	/** The file in the content store that the hashes of local files are kept in. */
+	public static final String HASH_STORE = "hashes.dat";
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 5000;
+	public static final int DEFAULT_LISTING_TIMEOUT_MILLIS = 10000;
+	/** The default number of times connect() tries to connect. */
+	public static final int DEFAULT_CONNECT_ATTEMPTS = 3;
+
+	private HashSet<File> files;
+	private String input;
+	private ObjectOutputStream outToServer;
+	private ObjectInputStream inFromServer;
+	private DataOutputStream frameOut;
+	private DataInputStream frameIn;
+	private Socket clientSocket;
+	// The streams of the connection, which are encrypted by tlsChannel if
+	// the client has a TlsContext.
+	private InputStream socketIn;
+	private OutputStream socketOut;
+	private TlsContext tls;
+	private TlsChannel tlsChannel;
+	private String ipAddress;
+	private int port;
+	private WireProtocol protocol;
+	private int nextRequestId;
+	private long lastRequestNanos;
+	private boolean fetchListing = true;
+	private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+	private int segments = 1;
+	private boolean verifyChecksums = true;
+	private boolean compression = true;
+	private boolean deltaSync;
+	private boolean skipIdentical;
+	private File contentStore;
+	private boolean linkContent;
+	// The hashes of downloaded files and of the files in the content store.
+	private volatile ContentHashes localHashes;
+	private File downloadDirectory = new File(System.getProperty("user.dir"));
+	private SyncPolicy syncPolicy = SyncPolicy.FILE;
+	private TransferListener transferListener;
+	private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+	private int handshakeTimeoutMillis = DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+	private int listingTimeoutMillis = DEFAULT_LISTING_TIMEOUT_MILLIS;
+	private int connectAttempts = DEFAULT_CONNECT_ATTEMPTS;
+	// The time spent in each phase of the last connection attempt.
+	private long connectNanos;
+	private long tlsNanos;
+	private boolean tlsResumed;
+	private long handshakeNanos;
+	private long listingNanos;
+	private ConnectStats lastConnectStats;
+	// The codec negotiated with the server, if any.
+	private Codec codec;
+	private Codec.Decompressor decompressor;
+	// Whether the server accepted delta transfers on this connection.
+	private boolean deltaAccepted;
+	private byte[] compressedBuffer = new byte[0];
+	private byte[] chunkBuffer = new byte[0];
+	// The number of file bytes in the last DATA frame read.
+	private int lastChunkLength;
+	private TransferStats lastTransferStats;
+	// The file versions that the .part files were downloaded from.
+	private final Map<String, GetResponse> partials = new HashMap<>();
+
+	public TCPClient() {
+		protocol = WireProtocol.FRAMED;
+	}
+
+	/**
+	 * Constructs a TCPClient object. The parameters ip and port will be fed to
+	 * the client's socket when connecting to the server.
+	 * 
+	 * @param ip
+	 *            String representation of the raw IP address that the client
+	 *            socket will attempt to handshake with.
+	 * @param port
+	 *            The port that the target server is bound to.
+	 */
+	public TCPClient(String ip, int port) {
+		this(ip, port, WireProtocol.FRAMED);
+	}
+
+	/**
+	 * Constructs a TCPClient object that speaks the given protocol.
+	 * 
+	 * @param ip
+	 *            String representation of the raw IP address that the client
+	 *            socket will attempt to handshake with.
+	 * @param port
+	 *            The port that the target server is bound to.
+	 * @param protocol
+	 *            The protocol used to talk to the server.
+	 */
+	public TCPClient(String ip, int port, WireProtocol protocol) {
+		this.ipAddress = ip;
+		this.port = port;
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Attempts to open a connection with a server once.
+	 * 
+	 * @return true if the client is connected.
+	 * @throws IOException
+	 * @throws UnknownHostException
+	 */
+	private synchronized boolean beginConnection() throws UnknownHostException, IOException {
+		try {
+			openConnection();
+		} catch (IOException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Connects to the server, trying up to connectAttempts times and waiting
+	 * twice as long after each failed attempt. Unlike run(), this method
+	 * reports why the client could not connect.
+	 * 
+	 * @return how long the connection took.
+	 * @throws SocketTimeoutException
+	 *             If the last attempt timed out.
+	 * @throws IOException
+	 *             If the last attempt failed, the host is unknown, the server
+	 *             does not speak the protocol or the thread was interrupted.
+	 */
+	public ConnectStats connect() throws IOException {
+		final long start = System.nanoTime();
+		long backoff = INITIAL_BACKOFF_MILLIS;
+		for (int attempt = 1;; attempt++) {
+			try {
+				synchronized (this) {
+					openConnection();
+					lastConnectStats = new ConnectStats(ipAddress + ":" + port, attempt, connectNanos, tlsNanos,
+							tlsResumed, handshakeNanos, listingNanos, System.nanoTime() - start);
+					return lastConnectStats;
+				}
+			} catch (ServerException e) {
+				// Counted by readError(); trying again would fail the same
+				// way.
+				throw e;
+			} catch (UnknownHostException | ProtocolException | SSLHandshakeException e) {
+				ClientMetrics.error(e.getClass().getSimpleName()).increment();
+				throw e;
+			} catch (IOException e) {
+				ClientMetrics.error(e.getClass().getSimpleName()).increment();
+				if (attempt >= connectAttempts || Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				System.out.println("Could not connect to " + ipAddress + ":" + port + ", retrying: " + e.getMessage());
+				ClientMetrics.retry("connect").increment();
+			}
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while connecting.");
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+		}
+	}
+
+	/**
+	 * Calls connect() on a new daemon thread. The future completes with the
+	 * connection's statistics, or exceptionally with the exception thrown by
+	 * connect(). Cancelling the future closes the socket being connected and
+	 * stops retrying.
+	 */
+	public CompletableFuture<ConnectStats> connectAsync() {
+		final CompletableFuture<ConnectStats> future = new CompletableFuture<>();
+		final Thread thread = new Thread(() -> {
+			try {
+				future.complete(connect());
+			} catch (IOException | RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		}, "Connect-" + ipAddress + ":" + port);
+		thread.setDaemon(true);
+		future.whenComplete((stats, failure) -> {
+			if (future.isCancelled()) {
+				thread.interrupt();
+				try {
+					close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		thread.start();
+		return future;
+	}
+
+	/**
+	 * Opens a connection with the server, exchanges the handshake and
+	 * receives the listing of available files, recording how long each phase
+	 * took. Each phase fails with a SocketTimeoutException naming it if it
+	 * takes longer than its timeout. Downloads have no read timeout.
+	 * 
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private void openConnection() throws IOException {
+		input = null;
+		connectNanos = 0;
+		tlsNanos = 0;
+		tlsResumed = false;
+		handshakeNanos = 0;
+		listingNanos = 0;
+		final Socket socket = new Socket();
+		// Assigned before connecting, so that close() can abort the attempt.
+		clientSocket = socket;
+		String phase = "connecting to";
+		long start = System.nanoTime();
+		try {
+			socket.connect(new InetSocketAddress(ipAddress, port), connectTimeoutMillis);
+			socket.setKeepAlive(true);
+			// Requests are small and answered immediately, so don't let
+			// Nagle's algorithm hold them back.
+			socket.setTcpNoDelay(true);
+			connectNanos = System.nanoTime() - start;
+			ClientMetrics.CONNECT.record(connectNanos);
+			socketIn = socket.getInputStream();
+			socketOut = socket.getOutputStream();
+			tlsChannel = null;
+			if (tls != null) {
+				phase = "negotiating TLS with";
+				start = System.nanoTime();
+				socket.setSoTimeout(handshakeTimeoutMillis);
+				beginTls();
+				tlsNanos = System.nanoTime() - start;
+				ClientMetrics.TLS_HANDSHAKE.record(tlsNanos);
+			}
+
+			phase = "exchanging the handshake with";
+			start = System.nanoTime();
+			socket.setSoTimeout(handshakeTimeoutMillis);
+			if (protocol == WireProtocol.FRAMED) {
+				beginFramedConnection();
+			} else {
+				// Wrap the socket's I/o streams with object streams.
+				outToServer = new ObjectOutputStream(socketOut);
+				inFromServer = new ObjectInputStream(socketIn);
+			}
+			handshakeNanos = System.nanoTime() - start;
+			ClientMetrics.HANDSHAKE.record(handshakeNanos);
+
+			phase = "receiving the listing from";
+			start = System.nanoTime();
+			socket.setSoTimeout(listingTimeoutMillis);
+			if (protocol == WireProtocol.FRAMED) {
+				receiveListing();
+			} else {
+				// Retrieve the available files from the server.
+				files = (HashSet<File>) inFromServer.readObject();
+			}
+			listingNanos = System.nanoTime() - start;
+			ClientMetrics.LISTING.record(listingNanos);
+			socket.setSoTimeout(0);
+		} catch (SocketTimeoutException e) {
+			socket.close();
+			final SocketTimeoutException timeout = new SocketTimeoutException(
+					"Timed out " + phase + " " + ipAddress + ":" + port);
+			timeout.initCause(e);
+			throw timeout;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		} catch (ClassNotFoundException e) {
+			socket.close();
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Exchanges the TLS handshake over the socket's streams, resuming the
+	 * session of an earlier connection to the server if the TlsContext still
+	 * has it, and replaces the streams with encrypted ones.
+	 * 
+	 * @throws SSLHandshakeException
+	 *             If the server's certificate is not trusted or the client
+	 *             and server have no protocol or cipher suite in common.
+	 * @throws IOException
+	 */
+	private void beginTls() throws IOException {
+		final TlsChannel channel = tls.newClientChannel(ipAddress, port, Channels.newChannel(socketIn),
+				Channels.newChannel(socketOut));
+		tlsChannel = channel;
+		channel.handshake();
+		tlsResumed = channel.isResumed();
+		socketIn = Channels.newInputStream(channel);
+		socketOut = Channels.newOutputStream(channel);
+	}
+
+	/**
+	 * Exchanges the framed protocol's preamble with the server and negotiates
+	 * compression and delta transfers. The HELLO frame is sent together with
+	 * the preamble, so negotiating costs no extra round trip.
+	 * 
+	 * @throws IOException
+	 *             If the server does not speak the framed protocol.
+	 */
+	private void beginFramedConnection() throws IOException {
+		frameOut = new DataOutputStream(new BufferedOutputStream(socketOut, BUFFER_SIZE));
+		frameIn = new DataInputStream(new BufferedInputStream(socketIn, BUFFER_SIZE));
+		endDecompressor();
+		frameOut.writeInt(FrameHeader.MAGIC);
+		final int helloId = nextRequestId++;
+		if (compression || deltaSync) {
+			new FrameHeader(Opcode.HELLO, 0, helloId, 4).write(frameOut);
+			frameOut.writeInt((compression ? Codec.supportedMask() : 0) | (deltaSync ? DeltaRequest.HELLO_BIT : 0));
+		}
+		frameOut.flush();
+		if (frameIn.readInt() != FrameHeader.MAGIC) {
+			throw new ProtocolException("The server does not support the framed protocol.");
+		}
+		if (compression || deltaSync) {
+			readHello(helloId);
+		}
+	}
+
+	/**
+	 * Requests the listing of available files over the framed protocol, unless
+	 * the client was told not to fetch it. The listing is received in pages,
+	 * so no frame grows with the number of files.
+	 * 
+	 * @throws IOException
+	 */
+	private void receiveListing() throws IOException {
+		if (!fetchListing) {
+			files = new HashSet<>();
+			return;
+		}
+		final HashSet<File> listing = new HashSet<>();
+		ListRequest request = new ListRequest("", ListOrder.NAME, false, ListRequest.MAX_LIMIT);
+		while (true) {
+			final ListPage page = requestPage(request);
+			for (CatalogEntry entry : page.getEntries()) {
+				listing.add(new File(entry.getName()));
+			}
+			if (!page.hasMore() || page.getLast() == null) {
+				break;
+			}
+			request = request.after(page.getLast());
+		}
+		files = listing;
+	}
+
+	/**
+	 * Sends a paged LIST request and reads the page answering it. A server
+	 * that predates paging ignores the request and sends its whole listing,
+	 * which is returned as a single page.
+	 * 
+	 * @throws IOException
+	 */
+	private ListPage requestPage(ListRequest request) throws IOException {
+		final int requestId = nextRequestId++;
+		final byte[] payload = request.toPayload();
+		new FrameHeader(Opcode.LIST, request.getFlags(), requestId, payload.length).write(frameOut);
+		frameOut.write(payload);
+		frameOut.flush();
+		return readPage(readResponseHeader(requestId));
+	}
+
+	// Reads the page of the LIST frame with the given header.
+	private ListPage readPage(FrameHeader response) throws IOException {
+		if (response.getOpcode() != Opcode.LIST) {
+			throw new ProtocolException("Expected a listing but received " + response);
+		}
+		if ((response.getFlags() & FrameHeader.FLAG_PAGED) != 0) {
+			return ListPage.read(frameIn, (response.getFlags() & FrameHeader.FLAG_HASHES) != 0);
+		}
+		final int count = frameIn.readInt();
+		final List<CatalogEntry> entries = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			final String name = frameIn.readUTF();
+			entries.add(new CatalogEntry(name, frameIn.readLong(), 0));
+		}
+		return new ListPage(entries, count, false);
+	}
+
+	/**
+	 * Reads the server's answer to the client's HELLO frame and prepares to
+	 * decode the codec it chose. Also notes whether it accepted delta
+	 * transfers.
+	 * 
+	 * @throws IOException
+	 */
+	private void readHello(int requestId) throws IOException {
+		try {
+			final FrameHeader response = readResponseHeader(requestId);
+			if (response.getOpcode() != Opcode.HELLO || response.getLength() != 4) {
+				throw new ProtocolException("Expected a HELLO but received " + response);
+			}
+			final int answer = frameIn.readInt();
+			deltaAccepted = (answer & DeltaRequest.HELLO_BIT) != 0;
+			codec = Codec.fromMask(answer);
+			if (codec != null) {
+				decompressor = codec.newDecompressor();
+			}
+		} catch (ServerException e) {
+			// Servers that predate HELLO reject it and never compress.
+		}
+	}
+
+	private void endDecompressor() {
+		if (decompressor != null) {
+			decompressor.end();
+			decompressor = null;
+		}
+		codec = null;
+		deltaAccepted = false;
+	}
+
+	/**
+	 * Reads the next frame header sent by the server, which must answer the
+	 * request with the given id. ERROR frames are turned into exceptions.
+	 * 
+	 * @throws IOException
+	 */
+	private FrameHeader readResponseHeader(int requestId) throws IOException {
+		final FrameHeader header = FrameHeader.read(frameIn);
+		if (header.getRequestId() != requestId) {
+			throw new ProtocolException("Expected a response to request " + requestId + " but received " + header);
+		}
+		if (header.getOpcode() == Opcode.ERROR) {
+			throw readError(header);
+		}
+		return header;
+	}
+
+	/**
+	 * Reads the payload of an ERROR frame.
+	 * 
+	 * @return the error reported by the server.
+	 * @throws IOException
+	 *             If the payload is too short to hold an error code.
+	 */
+	private ServerException readError(FrameHeader header) throws IOException {
+		if (header.getLength() < 2) {
+			throw new ProtocolException("Expected an error code but received " + header);
+		}
+		final byte[] payload = new byte[header.getLength()];
+		frameIn.readFully(payload);
+		final ErrorCode code = ErrorCode.fromCode(((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF));
+		ClientMetrics.error(code.name()).increment();
+		return new ServerException(code, new String(payload, 2, payload.length - 2, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Sends a GET request and reads the ACK frame answering it.
+	 * 
+	 * @return the server's description of the bytes that will follow.
+	 * @throws IOException
+	 */
+	private GetResponse requestFile(int requestId, GetRequest request) throws IOException {
+		final long start = System.nanoTime();
+		final byte[] payload = request.toPayload();
+		new FrameHeader(Opcode.GET, request.getFlags(), requestId, payload.length).write(frameOut);
+		frameOut.write(payload);
+		frameOut.flush();
+		final FrameHeader response = readResponseHeader(requestId);
+		ClientMetrics.FIRST_BYTE.recordSince(start);
+		if (response.getOpcode() != Opcode.ACK || response.getLength() != GetResponse.SIZE) {
+			throw new ProtocolException("Expected the size of " + request.getFileName() + " but received " + response);
+		}
+		return GetResponse.read(frameIn);
+	}
+
+	/**
+	 * Requests a file using the framed protocol and writes it to a .part file
+	 * as its DATA frames arrive. The .part file is renamed to the file's name
+	 * once it is complete. If a .part file of the file's current version is
+	 * left over from an interrupted attempt, only the missing bytes are
+	 * requested. Otherwise, if the server accepted delta transfers and an
+	 * older copy of the file exists, only the differences to that copy are
+	 * requested first. If the file can't be written, the request is repeated
+	 * up to MAX_ATTEMPTS times. If identical files are skipped, nothing is
+	 * requested when the file's contents are already on disk.
+	 * 
+	 * @param fileName
+	 *            The name of the requested file.
+	 * @return true if the file was saved.
+	 * @throws IOException
+	 *             If the server reported an error or the connection failed.
+	 *             The .part file is kept so the download can be resumed.
+	 */
+	private boolean sendFramedInput(String fileName) throws IOException {
+		final DownloadFile download = newDownload(fileName);
+		final File part = download.getPart();
+		final File target = download.getTarget();
+		if (skipIdentical
+				&& skipDownload(download, requestContentHashes(Collections.singletonList(fileName)).get(fileName))) {
+			return true;
+		}
+		if (deltaAccepted && !(partials.containsKey(fileName) && part.isFile()) && target.isFile()
+				&& target.length() >= BlockSignatures.MIN_BLOCK_SIZE && BlockSignatures.isSupported(target.length())
+				&& receiveDelta(fileName, download)) {
+			storeContent(target);
+			return true;
+		}
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			final long start = System.nanoTime();
+			final GetResponse previous = partials.get(fileName);
+			final GetRequest request;
+			if (previous != null && part.isFile()) {
+				request = new GetRequest(fileName, part.length(), -1, previous.getFileSize(),
+						previous.getLastModified(), verifyChecksums);
+			} else {
+				request = new GetRequest(fileName, 0, -1, 0, 0, verifyChecksums);
+			}
+			final int requestId = nextRequestId++;
+			final GetResponse response = requestFile(requestId, request);
+			partials.put(fileName, response);
+			if (transferListener != null) {
+				transferListener.started(fileName, response.getFileSize(), response.getOffset());
+			}
+			FileChannel out = null;
+			try {
+				// Drop whatever the server isn't resuming from.
+				out = download.open(response.getOffset());
+				download.preallocate(response.getOffset() + response.getLength());
+			} catch (IOException e) {
+				e.printStackTrace();
+				download.close();
+				out = null;
+			}
+			final ChecksumVerifier verifier = verifyChecksums ? new ChecksumVerifier() : null;
+			final TransferStats stats = new TransferStats(fileName);
+			boolean saved = false;
+			boolean received = false;
+			try {
+				saved = receiveDataFrames(requestId, fileName, out, response.getOffset(), verifier, stats)
+						&& repairChunks(fileName, response, out, verifier);
+				received = true;
+			} catch (TransferCancelledException e) {
+				// A cancelled download is not resumed.
+				partials.remove(fileName);
+				download.delete();
+				throw e;
+			} finally {
+				if (!received && Thread.currentThread().isInterrupted()) {
+					// Cancelled; the .part file is deleted by the caller.
+					download.close();
+				} else if (!received) {
+					// Keep the complete frames, so the next attempt resumes
+					// after them rather than after the preallocated end.
+					download.keep(response.getOffset() + stats.getFileBytes());
+				}
+			}
+			if (saved) {
+				try {
+					download.commit();
+				} catch (IOException e) {
+					e.printStackTrace();
+					saved = false;
+				}
+			}
+			lastRequestNanos = System.nanoTime() - start;
+			lastTransferStats = stats;
+			if (stats.isCompressed()) {
+				System.out.println("Received " + stats);
+			}
+			partials.remove(fileName);
+			if (saved) {
+				System.out.println("File successfuly saved.");
+				ClientMetrics.FILES_DOWNLOADED.increment();
+				ClientMetrics.TRANSFER.record(lastRequestNanos);
+				// Confirm that file successfully transfered
+				new FrameHeader(Opcode.ACK, 0, requestId, 0).write(frameOut);
+				frameOut.flush();
+				storeContent(target);
+				return true;
+			}
+			download.delete();
+			if (attempt + 1 < MAX_ATTEMPTS) {
+				ClientMetrics.retry("request").increment();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Asks the server for the content hashes of the files. Up to
+	 * pipelineDepth LIST requests are kept on the wire, so a batch of files
+	 * costs about one round trip rather than one per file.
+	 * 
+	 * @return the server's entries of the files, by name. Files the server
+	 *         does not have are left out, and the entries of files whose hash
+	 *         the server does not know yet have none.
+	 * @throws IOException
+	 *             If the connection failed.
+	 */
+	private Map<String, CatalogEntry> requestContentHashes(List<String> fileNames) throws IOException {
+		final Map<String, CatalogEntry> entries = new HashMap<>();
+		final ArrayDeque<Integer> inFlight = new ArrayDeque<>();
+		int next = 0;
+		while (next < fileNames.size() || !inFlight.isEmpty()) {
+			while (next < fileNames.size() && inFlight.size() < pipelineDepth) {
+				final ListRequest request = ListRequest.forName(fileNames.get(next++)).withContentHashes();
+				final int requestId = nextRequestId++;
+				final byte[] payload = request.toPayload();
+				new FrameHeader(Opcode.LIST, request.getFlags(), requestId, payload.length).write(frameOut);
+				frameOut.write(payload);
+				inFlight.add(requestId);
+			}
+			frameOut.flush();
+			// The server answers requests in the order they were sent.
+			final int requestId = inFlight.poll();
+			final FrameHeader response = FrameHeader.read(frameIn);
+			if (response.getRequestId() != requestId) {
+				throw new ProtocolException("Expected a response to request " + requestId + " but received "
+						+ response);
+			}
+			if (response.getOpcode() == Opcode.ERROR) {
+				System.out.println("Could not get a content hash: " + readError(response).getMessage());
+				continue;
+			}
+			for (CatalogEntry entry : readPage(response).getEntries()) {
+				entries.put(entry.getName(), entry);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Saves a file without downloading it if its contents are already on
+	 * disk: if the existing file has the content hash of the server's entry,
+	 * it is kept as it is, and if the content store holds a file with that
+	 * hash, the file is linked or copied from there. Hashes of local files
+	 * are computed once per version of the file.
+	 * 
+	 * @param entry
+	 *            The server's entry of the file, or null if it has none.
+	 * @return true if the file was saved.
+	 */
+	private boolean skipDownload(DownloadFile download, CatalogEntry entry) {
+		if (entry == null || entry.getContentHash() == null) {
+			// The server does not keep hashes, has not computed this one
+			// yet, or could not read the file.
+			return false;
+		}
+		final String fileName = entry.getName();
+		final byte[] hash = entry.getContentHash();
+		final long size = entry.getSize();
+		final File target = download.getTarget();
+		try {
+			if (target.isFile() && target.length() == size && Arrays.equals(localHashes().get(target), hash)) {
+				System.out.println(fileName + " is already up to date.");
+				ClientMetrics.FILES_SKIPPED.increment();
+				storeContent(target);
+				return true;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (contentStore == null) {
+			return false;
+		}
+		final File stored = new File(contentStore, ContentHashes.toHex(hash));
+		try {
+			if (!stored.isFile() || stored.length() != size || !Arrays.equals(localHashes().get(stored), hash)) {
+				return false;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		// The .part file is replaced, so this must not be a resumable
+		// download.
+		if (partials.containsKey(fileName) && download.getPart().isFile()) {
+			return false;
+		}
+		try {
+			Files.deleteIfExists(download.getPart().toPath());
+			linkOrCopy(stored, download.getPart());
+			download.commit();
+		} catch (IOException e) {
+			e.printStackTrace();
+			download.delete();
+			return false;
+		}
+		System.out.println("Took " + fileName + " from the content store.");
+		ClientMetrics.FILES_SKIPPED.increment();
+		return true;
+	}
+
+	/**
+	 * Adds a downloaded file to the content store under the file's hash,
+	 * unless the store already holds it. A stored file that no longer has the
+	 * hash it is named after is replaced. Failures are only reported, since
+	 * the file itself was saved.
+	 */
+	private void storeContent(File file) {
+		if (contentStore == null) {
+			return;
+		}
+		try {
+			final byte[] hash = localHashes().get(file);
+			final File stored = new File(contentStore, ContentHashes.toHex(hash));
+			if (stored.isFile() && Arrays.equals(localHashes().get(stored), hash)) {
+				return;
+			}
+			contentStore.mkdirs();
+			// The copy is renamed into place, so the store never holds part
+			// of a file under a hash.
+			final File temporary = new File(contentStore, stored.getName() + PART_SUFFIX);
+			Files.deleteIfExists(temporary.toPath());
+			linkOrCopy(file, temporary);
+			Files.move(temporary.toPath(), stored.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Creates a hard link to the file if files are linked and the file system
+	 * allows it, or a copy of it otherwise.
+	 */
+	private void linkOrCopy(File from, File to) throws IOException {
+		if (linkContent) {
+			try {
+				Files.createLink(to.toPath(), from.toPath());
+				return;
+			} catch (IOException | UnsupportedOperationException e) {
+				// Links can't cross file systems; copy instead.
+			}
+		}
+		Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	// Returns the index of the local hashes, which is kept in the content
+	// store if there is one.
+	private synchronized ContentHashes localHashes() {
+		if (localHashes == null) {
+			localHashes = new ContentHashes((contentStore == null) ? null : new File(contentStore, HASH_STORE));
+		}
+		return localHashes;
+	}
+
+	/**
+	 * Requests a file as the differences to the existing copy of it and
+	 * rebuilds the file from the copy and those differences in the .part
+	 * file, which replaces the copy once its SHA-256 matches the server's.
+	 * 
+	 * @return true if the file was saved; false if the copy could not be read
+	 *         or the rebuilt file could not be written or didn't match, in
+	 *         which case the whole file should be requested.
+	 * @throws IOException
+	 *             If the server reported an error or the connection failed.
+	 */
+	private boolean receiveDelta(String fileName, DownloadFile download) throws IOException {
+		final long start = System.nanoTime();
+		final BlockSignatures signatures;
+		FileChannel base = null;
+		try {
+			base = FileChannel.open(download.getTarget().toPath(), StandardOpenOption.READ);
+			signatures = BlockSignatures.of(base);
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (base != null) {
+				base.close();
+			}
+			return false;
+		}
+		try {
+			final int requestId = nextRequestId++;
+			final byte[] payload = new DeltaRequest(fileName, signatures).toPayload();
+			new FrameHeader(Opcode.DELTA, 0, requestId, payload.length).write(frameOut);
+			frameOut.write(payload);
+			frameOut.flush();
+			final FrameHeader ack = readResponseHeader(requestId);
+			ClientMetrics.FIRST_BYTE.recordSince(start);
+			if (ack.getOpcode() != Opcode.ACK || ack.getLength() != GetResponse.SIZE) {
+				throw new ProtocolException("Expected the size of " + fileName + " but received " + ack);
+			}
+			final GetResponse response = GetResponse.read(frameIn);
+			if (transferListener != null) {
+				transferListener.started(fileName, response.getFileSize(), 0);
+			}
+			DeltaDecoder decoder = null;
+			try {
+				decoder = new DeltaDecoder(signatures, base, download.open(0), response.getFileSize());
+				download.preallocate(response.getFileSize());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			final TransferStats stats = new TransferStats(fileName);
+			boolean received = false;
+			try {
+				byte[] buffer = chunkBuffer;
+				FrameHeader header;
+				do {
+					header = readResponseHeader(requestId);
+					if (header.getOpcode() != Opcode.DATA || (header.getFlags() & FrameHeader.FLAG_DELTA) == 0) {
+						throw new ProtocolException("Expected a delta of " + fileName + " but received " + header);
+					}
+					if (buffer.length < header.getLength()) {
+						buffer = chunkBuffer = new byte[header.getLength()];
+					}
+					frameIn.readFully(buffer, 0, header.getLength());
+					ClientMetrics.BYTES_RECEIVED.add(header.getLength());
+					final long before = (decoder == null) ? 0 : decoder.getPosition();
+					if (decoder != null) {
+						try {
+							decoder.apply(ByteBuffer.wrap(buffer, 0, header.getLength()));
+						} catch (ProtocolException e) {
+							throw e;
+						} catch (IOException e) {
+							// Read the rest of the delta, then request the
+							// whole file.
+							e.printStackTrace();
+							decoder = null;
+						}
+					}
+					final long position = (decoder == null) ? before : decoder.getPosition();
+					stats.addChunk(position - before, header.getLength());
+					reportProgress(fileName, position);
+				} while (!header.isLast());
+				received = true;
+			} finally {
+				if (!received) {
+					download.delete();
+				}
+			}
+			boolean saved = decoder != null && decoder.isVerified();
+			if (saved) {
+				try {
+					download.commit();
+				} catch (IOException e) {
+					e.printStackTrace();
+					saved = false;
+				}
+			}
+			lastRequestNanos = System.nanoTime() - start;
+			lastTransferStats = stats;
+			if (!saved) {
+				download.delete();
+				ClientMetrics.retry("delta").increment();
+				return false;
+			}
+			System.out.println("Received a delta of " + fileName + ": " + decoder.getCopiedBytes()
+					+ " bytes reused, " + stats.getWireBytes() + " bytes received.");
+			ClientMetrics.FILES_DOWNLOADED.increment();
+			ClientMetrics.TRANSFER.record(lastRequestNanos);
+			new FrameHeader(Opcode.ACK, 0, requestId, 0).write(frameOut);
+			frameOut.flush();
+			return true;
+		} finally {
+			base.close();
+		}
+	}
+
+	/**
+	 * Downloads a byte range of a file into the destination channel, at the
+	 * same position as in the file, using the framed protocol.
+	 * 
+	 * @param fileName
+	 *            The name of the requested file.
+	 * @param offset
+	 *            The position of the first requested byte.
+	 * @param length
+	 *            The number of requested bytes, or -1 for the rest of the file.
+	 * @param destination
+	 *            The channel the bytes are written to. It must be readable if
+	 *            checksums are verified.
+	 * @return the server's description of the bytes that were sent.
+	 * @throws IOException
+	 *             If the bytes could not be received or written.
+	 */
+	public GetResponse receiveRange(String fileName, long offset, long length, FileChannel destination)
+			throws IOException {
+		return receiveRange(fileName, offset, length, null, destination);
+	}
+
+	/**
+	 * Downloads a byte range of a version of a file into the destination
+	 * channel, at the same position as in the file, using the framed protocol.
+	 * 
+	 * @param version
+	 *            The response to an earlier request for the file, or null to
+	 *            accept any version.
+	 * @param destination
+	 *            The channel the bytes are written to. It must be readable if
+	 *            checksums are verified, so the repaired range can be checked.
+	 * @throws IOException
+	 *             If the bytes could not be received or written, or the file
+	 *             no longer matches the given version.
+	 */
+	public synchronized GetResponse receiveRange(String fileName, long offset, long length, GetResponse version,
+			FileChannel destination) throws IOException {
+		if (protocol != WireProtocol.FRAMED) {
+			throw new IOException("Byte ranges require the framed protocol.");
+		}
+		final GetRequest request = (version == null)
+				? new GetRequest(fileName, offset, length, 0, 0, verifyChecksums)
+				: new GetRequest(fileName, offset, length, version.getFileSize(), version.getLastModified(),
+						verifyChecksums);
+		final int requestId = nextRequestId++;
+		final GetResponse response = requestFile(requestId, request);
+		// A different range means the server is sending another version.
+		final boolean expected = response.getOffset() == offset && (length < 0 || response.getLength() == length);
+		final ChecksumVerifier verifier = (expected && verifyChecksums) ? new ChecksumVerifier() : null;
+		if (!receiveDataFrames(requestId, fileName, expected ? destination : null, response.getOffset(), verifier,
+				null) || !repairChunks(fileName, response, destination, verifier)) {
+			throw new IOException(expected ? "Could not write " + fileName + " at offset " + offset
+					: fileName + " changed on the server.");
+		}
+		return response;
+	}
+
+	/**
+	 * Writes the payloads of the DATA frames answering the given request to
+	 * the channel, starting at the given position, until the frame marked as
+	 * last has been read. All frames are always consumed, even if writing
+	 * fails.
+	 * 
+	 * @param out
+	 *            The channel to write to, or null to discard the data.
+	 * @param verifier
+	 *            Checks the frames' checksums, or null if none were requested.
+	 *            Chunks that fail the check or can't be written are recorded
+	 *            by the verifier instead of failing the whole response.
+	 * @param stats
+	 *            Counts the received bytes, or null.
+	 * @return true if the data was written without errors.
+	 * @throws IOException
+	 *             If the connection failed.
+	 */
+	private boolean receiveDataFrames(int requestId, String fileName, FileChannel out, long position,
+			ChecksumVerifier verifier, TransferStats stats) throws IOException {
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		boolean written = out != null;
+		FrameHeader header;
+		do {
+			header = readResponseHeader(requestId);
+			if (header.getOpcode() != Opcode.DATA) {
+				throw new ProtocolException("Expected data for " + fileName + " but received " + header);
+			}
+			written = readDataFrame(buffer, header, written ? out : null, position, verifier, stats) && written;
+			position += lastChunkLength;
+			if (stats != null) {
+				reportProgress(fileName, position);
+			}
+		} while (!header.isLast());
+		return written;
+	}
+
+	/**
+	 * Reads a DATA frame, including its checksum trailer if it has one, and
+	 * writes its file bytes to the channel at the given position. Compressed
+	 * chunks are decompressed first. The number of file bytes in the frame is
+	 * left in lastChunkLength.
+	 * 
+	 * @param stats
+	 *            Counts the received bytes, or null.
+	 * @return true if the bytes were written, or were recorded by the
+	 *         verifier to be requested again.
+	 * @throws IOException
+	 *             If the connection failed.
+	 */
+	private boolean readDataFrame(byte[] buffer, FrameHeader header, FileChannel out, long position,
+			ChecksumVerifier verifier, TransferStats stats) throws IOException {
+		final int payloadLength = ChecksumVerifier.dataLength(header);
+		ClientMetrics.BYTES_RECEIVED.add(payloadLength);
+		final boolean checked = verifier != null && out != null && ChecksumVerifier.hasTrailer(header);
+		final boolean written;
+		if ((header.getFlags() & FrameHeader.FLAG_COMPRESSED) != 0) {
+			written = readCompressedPayload(payloadLength, out, position, checked ? verifier : null, stats);
+		} else {
+			lastChunkLength = payloadLength;
+			written = readDataPayload(buffer, payloadLength, out, position, checked ? verifier : null);
+		}
+		if (stats != null) {
+			stats.addChunk(lastChunkLength, payloadLength);
+		}
+		if (ChecksumVerifier.hasTrailer(header)) {
+			if (checked) {
+				verifier.readTrailer(frameIn, header, position, lastChunkLength, written);
+				return true;
+			}
+			frameIn.skipBytes(header.getLength() - payloadLength);
+		}
+		return written;
+	}
+
+	/**
+	 * Reads the payload of a compressed DATA frame, decompresses it and writes
+	 * it to the channel at the given position. A chunk that can't be
+	 * decompressed is treated like a chunk that can't be written.
+	 * 
+	 * @param out
+	 *            The channel to write to, or null to discard the data.
+	 * @param verifier
+	 *            Receives the decompressed bytes, or null.
+	 * @return true if the chunk was written without errors.
+	 * @throws IOException
+	 *             If the connection failed or compression was not negotiated.
+	 */
+	private boolean readCompressedPayload(int payloadLength, FileChannel out, long position,
+			ChecksumVerifier verifier, TransferStats stats) throws IOException {
+		if (decompressor == null) {
+			throw new ProtocolException("Received a compressed chunk without negotiating compression.");
+		}
+		final int length = frameIn.readInt();
+		final int compressedLength = payloadLength - 4;
+		if (compressedLength < 0 || length < 0 || length > FrameHeader.MAX_DATA_PAYLOAD) {
+			throw new ProtocolException("Invalid compressed chunk of " + length + " bytes");
+		}
+		lastChunkLength = length;
+		if (compressedBuffer.length < compressedLength) {
+			compressedBuffer = new byte[compressedLength];
+		}
+		if (chunkBuffer.length < length) {
+			chunkBuffer = new byte[length];
+		}
+		frameIn.readFully(compressedBuffer, 0, compressedLength);
+		final long start = TransferStats.cpuTime();
+		try {
+			decompressor.decompress(compressedBuffer, compressedLength, chunkBuffer, length);
+		} catch (DataFormatException e) {
+			System.out.println("Could not decompress a chunk at offset " + position + ": " + e.getMessage());
+			return false;
+		} finally {
+			if (stats != null) {
+				stats.addCodecTime(codec, TransferStats.cpuTime() - start);
+			}
+		}
+		if (verifier != null) {
+			verifier.update(chunkBuffer, 0, length);
+		}
+		if (out == null) {
+			return false;
+		}
+		try {
+			final ByteBuffer wrapped = ByteBuffer.wrap(chunkBuffer, 0, length);
+			while (wrapped.hasRemaining()) {
+				position += out.write(wrapped, position);
+			}
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Requests the chunks that the verifier found to be corrupt or unwritten
+	 * again, up to MAX_ATTEMPTS times, then checks the digest of the whole
+	 * response against the bytes in the channel. If nothing had to be
+	 * repaired, the digest of the bytes as they arrived is used instead of
+	 * reading them back.
+	 * 
+	 * @param version
+	 *            The server's response to the original request.
+	 * @param verifier
+	 *            The verifier of the original response, or null if no
+	 *            checksums were requested.
+	 * @return true if the response's bytes in the channel are correct.
+	 * @throws IOException
+	 *             If the connection failed.
+	 */
+	private boolean repairChunks(String fileName, GetResponse version, FileChannel out, ChecksumVerifier verifier)
+			throws IOException {
+		if (verifier == null || !verifier.isComplete()) {
+			// The server did not send checksums.
+			return true;
+		}
+		List<long[]> badChunks = verifier.getBadChunks();
+		if (badChunks.isEmpty()) {
+			return verifier.isDigestMatched();
+		}
+		for (int attempt = 0; attempt < MAX_ATTEMPTS && !badChunks.isEmpty(); attempt++) {
+			final List<long[]> stillBad = new ArrayList<>();
+			ClientMetrics.retry("chunk").add(badChunks.size());
+			for (long[] chunk : badChunks) {
+				System.out.println("Requesting " + chunk[1] + " bytes of " + fileName + " at offset " + chunk[0]
+						+ " again.");
+				final GetRequest request = new GetRequest(fileName, chunk[0], chunk[1], version.getFileSize(),
+						version.getLastModified(), true);
+				final int requestId = nextRequestId++;
+				final GetResponse response = requestFile(requestId, request);
+				if (response.getOffset() != chunk[0] || response.getLength() != chunk[1]) {
+					// The file changed on the server; only a new download helps.
+					receiveDataFrames(requestId, fileName, null, response.getOffset(), null, null);
+					return false;
+				}
+				final ChecksumVerifier chunkVerifier = new ChecksumVerifier();
+				if (!receiveDataFrames(requestId, fileName, out, chunk[0], chunkVerifier, null)
+						|| !chunkVerifier.isComplete()) {
+					return false;
+				}
+				stillBad.addAll(chunkVerifier.getBadChunks());
+			}
+			badChunks = stillBad;
+		}
+		try {
+			return badChunks.isEmpty() && verifier.matchesDigest(out, version.getOffset(), version.getLength());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the payload of a DATA frame and writes it to the channel at the
+	 * given position. The whole payload is always consumed, even if writing
+	 * fails.
+	 * 
+	 * @param buffer
+	 *            The buffer the payload is copied through.
+	 * @param out
+	 *            The channel to write to, or null to discard the data.
+	 * @param verifier
+	 *            Receives the payload's bytes, or null.
+	 * @return true if the payload was written without errors.
+	 * @throws IOException
+	 *             If the connection failed.
+	 */
+	private boolean readDataPayload(byte[] buffer, int length, FileChannel out, long position,
+			ChecksumVerifier verifier) throws IOException {
+		final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+		boolean written = out != null;
+		int remaining = length;
+		while (remaining > 0) {
+			final int read = Math.min(buffer.length, remaining);
+			frameIn.readFully(buffer, 0, read);
+			remaining -= read;
+			if (verifier != null) {
+				verifier.update(buffer, 0, read);
+			}
+			if (written) {
+				try {
+					wrapped.limit(read).position(0);
+					while (wrapped.hasRemaining()) {
+						position += out.write(wrapped, position);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					written = false;
+				}
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Returns the time in nanoseconds between sending the last framed GET
+	 * request and receiving the last byte of its response.
+	 */
+	public long getLastRequestNanos() {
+		return lastRequestNanos;
+	}
+
+	public WireProtocol getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Selects whether the client requests the server's file listing when it
+	 * connects. Clients that only download known files can skip it; getFiles()
+	 * then returns an empty set.
+	 */
+	public void setFetchListing(boolean fetchListing) {
+		this.fetchListing = fetchListing;
+	}
+
+	/**
+	 * Sets the maximum number of GET requests that sendInputs() sends ahead
+	 * of the responses it is waiting for.
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		this.pipelineDepth = Math.max(1, pipelineDepth);
+	}
+
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+
+	/**
+	 * Sets the number of connections that download() splits a file across,
+	 * see SegmentedDownload. With more than one, download() needs the framed
+	 * protocol and opens connections of its own; such downloads are not
+	 * resumed, skipped or delta-synced.
+	 */
+	public void setSegments(int segments) {
+		this.segments = Math.max(1, segments);
+	}
+
+	public int getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Selects whether framed downloads ask the server for checksums. Checked
+	 * downloads only request corrupt or unwritten chunks again, but the
+	 * server can't send checksummed files with zero-copy transfers.
+	 */
+	public void setVerifyChecksums(boolean verifyChecksums) {
+		this.verifyChecksums = verifyChecksums;
+	}
+
+	public boolean isVerifyChecksums() {
+		return verifyChecksums;
+	}
+
+	/**
+	 * Selects whether the client offers to receive compressed chunks when it
+	 * connects. The server decides per file whether compressing is worth it.
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * Selects whether the client offers delta transfers when it connects.
+	 * With them, a file that was already downloaded is updated by receiving
+	 * only the parts that changed. Computing the differences costs the server
+	 * a pass over the file, and the client one over its copy.
+	 */
+	public void setDeltaSync(boolean deltaSync) {
+		this.deltaSync = deltaSync;
+	}
+
+	public boolean isDeltaSync() {
+		return deltaSync;
+	}
+
+	/**
+	 * Selects whether the client asks the server for the content hash of a
+	 * file before downloading it, and skips the download if the file, or a
+	 * file in the content store, already has those contents. This needs the
+	 * framed protocol. sendInputs() asks for the hashes of a whole batch
+	 * before downloading it, pipelining up to getPipelineDepth() requests, so
+	 * the check costs about one round trip per batch; download() costs one
+	 * per file. The server reads every file the first time its hash is asked
+	 * for.
+	 */
+	public void setSkipIdentical(boolean skipIdentical) {
+		this.skipIdentical = skipIdentical;
+	}
+
+	public boolean isSkipIdentical() {
+		return skipIdentical;
+	}
+
+	/**
+	 * Sets the directory in which a copy of every downloaded file is kept,
+	 * named after the file's content hash, or null for none. When identical
+	 * files are skipped, a file whose contents are in the store is taken from
+	 * there instead of being downloaded, whatever its name.
+	 */
+	public synchronized void setContentStore(File contentStore) {
+		if (localHashes != null) {
+			localHashes.close();
+			localHashes = null;
+		}
+		this.contentStore = contentStore;
+	}
+
+	public File getContentStore() {
+		return contentStore;
+	}
+
+	/**
+	 * Selects whether files are hard-linked into and out of the content store
+	 * rather than copied. Links cost no space or time, but a file changed in
+	 * place changes its stored copy as well; such a copy no longer matches
+	 * its hash and is not used. Files are copied where links are not
+	 * possible.
+	 */
+	public void setLinkContent(boolean linkContent) {
+		this.linkContent = linkContent;
+	}
+
+	public boolean isLinkContent() {
+		return linkContent;
+	}
+
+	/**
+	 * Returns the codec negotiated for the current connection, or null.
+	 */
+	Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Returns the statistics of the last framed file download.
+	 */
+	public TransferStats getLastTransferStats() {
+		return lastTransferStats;
+	}
+
+	/**
+	 * Returns how long the last call to connect() took to succeed, or null.
+	 */
+	public ConnectStats getLastConnectStats() {
+		return lastConnectStats;
+	}
 
-	private HashSet<File> files;
-	private String input;
-	private ObjectOutputStream outToServer;
-	private ObjectInputStream inFromServer;
-	private Socket clientSocket;
-	private String ipAddress;
-	private int port;
+	/**
+	 * Sets how long opening the TCP connection may take; 0 waits as long as
+	 * the operating system does.
+	 */
+	public void setConnectTimeout(int millis) {
+		this.connectTimeoutMillis = millis;
+	}
 
-	public TCPClient() {
+	public int getConnectTimeout() {
+		return connectTimeoutMillis;
+	}
+
+	/**
+	 * Sets how long the server may take to answer the protocol's handshake.
+	 */
+	public void setHandshakeTimeout(int millis) {
+		this.handshakeTimeoutMillis = millis;
+	}
 
+	public int getHandshakeTimeout() {
+		return handshakeTimeoutMillis;
 	}
 
 	/**
-	 * Constructs a TCPClient object. The parameters ip and port will be fed to
-	 * the client's socket when connecting to the server.
-	 * 
-	 * @param ip
-	 *            String representation of the raw IP address that the client
-	 *            socket will attempt to handshake with.
-	 * @param port
-	 *            The port that the target server is bound to.
+	 * Sets how long receiving the listing of available files may take.
 	 */
-	public TCPClient(String ip, int port) {
-		this.ipAddress = ip;
-		this.port = port;
+	public void setListingTimeout(int millis) {
+		this.listingTimeoutMillis = millis;
+	}
+
+	public int getListingTimeout() {
+		return listingTimeoutMillis;
+	}
+
+	/**
+	 * Sets the number of times connect() tries to connect before giving up.
+	 */
+	public void setConnectAttempts(int connectAttempts) {
+		this.connectAttempts = Math.max(1, connectAttempts);
+	}
+
+	public int getConnectAttempts() {
+		return connectAttempts;
+	}
+
+	/**
+	 * Sets the TLS context that connections opened from now on are encrypted
+	 * with, or null to connect in plaintext. The server must use TLS too.
+	 */
+	public void setTls(TlsContext tls) {
+		this.tls = tls;
+	}
+
+	public TlsContext getTls() {
+		return tls;
+	}
+
+	/**
+	 * Sets the directory that downloaded files are saved in.
+	 */
+	public void setDownloadDirectory(File downloadDirectory) {
+		this.downloadDirectory = downloadDirectory;
+	}
+
+	public File getDownloadDirectory() {
+		return downloadDirectory;
+	}
+
+	/**
+	 * Sets how much of a download is forced to disk before it is reported as
+	 * saved. The default, SyncPolicy.FILE, forces every file before it gets
+	 * its final name.
+	 */
+	public void setSyncPolicy(SyncPolicy syncPolicy) {
+		this.syncPolicy = syncPolicy;
+	}
+
+	public SyncPolicy getSyncPolicy() {
+		return syncPolicy;
+	}
+
+	/**
+	 * Sets the listener that is told about the progress of every download,
+	 * or null for none. The listener is called on the thread receiving the
+	 * file, once per chunk, so it should return quickly.
+	 */
+	public void setTransferListener(TransferListener transferListener) {
+		this.transferListener = transferListener;
 	}
 
 	/**
-	 * Attempts to open a connection with a server.
+	 * Tells the listener how many bytes of the file have been received, and
+	 * stops the download if the receiving thread has been interrupted.
 	 * 
-	 * @throws IOException
-	 * @throws UnknownHostException
+	 * @throws TransferCancelledException
+	 *             If the thread has been interrupted.
 	 */
-	@SuppressWarnings("unchecked")
-	private synchronized boolean beginConnection() throws UnknownHostException, IOException {
-		input = null;
-		try {
-			// Attempt to handshake
-			clientSocket = new Socket(ipAddress, port);
-			clientSocket.setKeepAlive(true);
-			// Wrap the socket's I/o streams with object streams.
-			outToServer = new ObjectOutputStream(clientSocket.getOutputStream());
-			inFromServer = new ObjectInputStream(clientSocket.getInputStream());
-			// Retrieve the available files from the server.
-			files = (HashSet<File>) inFromServer.readObject();
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			return false;
+	private void reportProgress(String fileName, long position) throws TransferCancelledException {
+		if (transferListener != null) {
+			transferListener.progress(fileName, position);
 		}
-		return true;
+		if (Thread.currentThread().isInterrupted()) {
+			throw new TransferCancelledException(fileName);
+		}
+	}
+
+	// Returns the writer of a file named by the server.
+	private DownloadFile newDownload(String fileName) {
+		return DownloadFile.in(downloadDirectory, fileName, syncPolicy);
+	}
+
+	/**
+	 * Returns a new client that is not connected, to the same server and with
+	 * the same options as this one.
+	 */
+	TCPClient copy() {
+		final TCPClient client = new TCPClient(ipAddress, port, protocol);
+		client.setFetchListing(fetchListing);
+		client.setPipelineDepth(pipelineDepth);
+		client.setSegments(segments);
+		client.setDownloadDirectory(downloadDirectory);
+		client.setSyncPolicy(syncPolicy);
+		client.setVerifyChecksums(verifyChecksums);
+		client.setCompression(compression);
+		client.setDeltaSync(deltaSync);
+		client.setSkipIdentical(skipIdentical);
+		client.setContentStore(contentStore);
+		client.setLinkContent(linkContent);
+		client.setTls(tls);
+		client.setConnectTimeout(connectTimeoutMillis);
+		client.setHandshakeTimeout(handshakeTimeoutMillis);
+		client.setListingTimeout(listingTimeoutMillis);
+		client.setConnectAttempts(connectAttempts);
+		return client;
 	}
 
 	public void setIP(String ip) {
@@ -90,32 +1536,193 @@ public class TCPClient implements RunnableEndPoint {
 
 	/**
 	 * Creates a file containing the data in the argument FileEvent object.
+	 * The data is written to a .part file that is renamed once it is
+	 * complete.
 	 * 
 	 * @param fileEvent
 	 *            Object containing file data
 	 * @return true - The file was successfully created. false - There was a
 	 *         problem writing the file
 	 */
-	private boolean createAndWriteFile(FileEvent fileEvent) {
-		File dstFile = new File(fileEvent.getFilename());
-		FileOutputStream fos = null;
+	boolean createAndWriteFile(FileEvent fileEvent) {
+		DownloadFile download = null;
 		try {
-			fos = new FileOutputStream(dstFile);
-			fos.write(fileEvent.getFileData());
-			fos.flush();
-			fos.close();
+			download = newDownload(fileEvent.getFilename());
+			final FileChannel out = download.open(0);
+			final ByteBuffer data = ByteBuffer.wrap(fileEvent.getFileData());
+			ClientMetrics.BYTES_RECEIVED.add(data.remaining());
+			download.preallocate(data.remaining());
+			while (data.hasRemaining()) {
+				out.write(data, data.position());
+			}
+			download.commit();
+			if (transferListener != null) {
+				transferListener.started(fileEvent.getFilename(), fileEvent.getFileSize(), 0);
+				transferListener.progress(fileEvent.getFilename(), fileEvent.getFileSize());
+			}
 			System.out.println("File successfuly saved.");
 			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
+			if (download != null) {
+				download.delete();
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a file from a FileEvent whose data follows it on the socket. The
+	 * data is streamed to a .part file that is renamed once it is complete.
+	 * Exactly getFileSize() bytes are always consumed from the socket, even if
+	 * writing the file fails, so that the stream stays usable for the next
+	 * FileEvent.
+	 * 
+	 * @param fileEvent
+	 *            Object containing the file's metadata
+	 * @return true - The file was successfully created. false - There was a
+	 *         problem writing the file
+	 * @throws IOException
+	 *             If the connection failed before the whole file was received.
+	 */
+	private boolean receiveAndWriteFile(FileEvent fileEvent) throws IOException {
+		final InputStream in = socketIn;
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+		final long size = fileEvent.getFileSize();
+		long position = 0;
+		DownloadFile download = null;
+		FileChannel out = null;
+		boolean written = true;
+		try {
+			download = newDownload(fileEvent.getFilename());
+			out = download.open(0);
+			download.preallocate(size);
+		} catch (IOException | IllegalArgumentException e) {
+			e.printStackTrace();
+			written = false;
+		}
+		if (transferListener != null) {
+			transferListener.started(fileEvent.getFilename(), size, 0);
+		}
+		try {
+			while (position < size) {
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, size - position));
+				if (read < 0) {
+					throw new EOFException("Connection closed while receiving " + fileEvent.getFilename());
+				}
+				ClientMetrics.BYTES_RECEIVED.add(read);
+				if (written) {
+					try {
+						wrapped.limit(read).position(0);
+						while (wrapped.hasRemaining()) {
+							out.write(wrapped, position + wrapped.position());
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+						written = false;
+					}
+				}
+				position += read;
+				reportProgress(fileEvent.getFilename(), position);
+			}
+			if (written) {
+				try {
+					download.commit();
+				} catch (IOException e) {
+					e.printStackTrace();
+					written = false;
+				}
+			}
+		} finally {
+			if (download != null && (!written || position < size)) {
+				download.delete();
+			}
+		}
+		if (written) {
+			System.out.println("File successfuly saved.");
+		}
+		return written;
+	}
+
+	/**
+	 * Writes the file described by the FileEvent to disk, whether its data is
+	 * contained in the object or streamed after it.
+	 * 
+	 * @return true if the file was received and written without errors.
+	 * @throws IOException
+	 */
+	private boolean receiveFile(FileEvent fileEvent) throws IOException {
+		// FileStatus value will be ERROR if there was a problem while creating
+		// the FileEvent object on the server-side; no data follows it then.
+		if (fileEvent.getStatus() == FileStatus.ERROR) {
+			ClientMetrics.error(ErrorCode.NOT_FOUND.name()).increment();
 			return false;
 		}
+		if (fileEvent.isBodyStreamed()) {
+			return receiveAndWriteFile(fileEvent);
+		}
+		return createAndWriteFile(fileEvent);
 	}
 
 	public HashSet<File> getFiles() {
 		return files;
 	}
 
+	/**
+	 * Requests the listing of available files again. A framed client asks for
+	 * it over its open connection; the object-stream protocol only sends the
+	 * listing to new connections, so such a client reconnects.
+	 * 
+	 * @return the files now available.
+	 * @throws IOException
+	 *             If the connection failed.
+	 */
+	public synchronized HashSet<File> refreshListing() throws IOException {
+		final boolean fetch = fetchListing;
+		fetchListing = true;
+		try {
+			if (protocol == WireProtocol.FRAMED && clientSocket != null && !clientSocket.isClosed()) {
+				final long start = System.nanoTime();
+				receiveListing();
+				ClientMetrics.LISTING.recordSince(start);
+			} else {
+				close();
+				connect();
+			}
+		} finally {
+			fetchListing = fetch;
+		}
+		return files;
+	}
+
+	/**
+	 * Requests one page of the server's listing, connecting first if the
+	 * client is not connected. Pass the request returned by
+	 * request.after(page.getLast()) to receive the next page.
+	 * 
+	 * @return the entries of the page, with their sizes and modification
+	 *         times.
+	 * @throws IOException
+	 *             If the connection failed, or the server rejected the
+	 *             request's pattern.
+	 * @throws UnsupportedOperationException
+	 *             If the client uses the object-stream protocol, which only
+	 *             lists all files at once.
+	 */
+	public synchronized ListPage list(ListRequest request) throws IOException {
+		if (protocol != WireProtocol.FRAMED) {
+			throw new UnsupportedOperationException("Paged listings need the framed protocol");
+		}
+		if (clientSocket == null || clientSocket.isClosed()) {
+			connect();
+		}
+		final long start = System.nanoTime();
+		final ListPage page = requestPage(request);
+		ClientMetrics.LISTING.recordSince(start);
+		return page;
+	}
+
 	public Socket getSocket() {
 		return clientSocket;
 	}
@@ -137,30 +1744,563 @@ public class TCPClient implements RunnableEndPoint {
 			}
 			// Send file request to server.
 			input = file.getName();
-			outToServer.writeObject(input);
-
-			// Stream the FileEvent object
-			FileEvent fileEvent = (FileEvent) inFromServer.readObject();
-			// while (file did not successfully transfer)
-			// FileStatus value will be ERROR if there was a problem while
-			// creating the FileEvent object on the server-side.
-			while (!createAndWriteFile(fileEvent) || fileEvent.getStatus() == FileStatus.ERROR) {
-				// Writing false to the output stream at this stage indicates to
-				// the server that a new FileEvent object needs to be created
-				// and sent to the client.
-				outToServer.writeBoolean(false);
-				fileEvent = (FileEvent) inFromServer.readObject();
-			}
-			// Confirm that file successfully transfered
-			outToServer.writeObject(new Boolean(true));
-			System.out.println("Successfully received " + input + " from server.");
-			outToServer.reset();
+			if (protocol == WireProtocol.FRAMED) {
+				sendFramedInputWithReconnect(input);
+				return;
+			}
+			sendObjectInput(input);
 		} catch (SocketException e) {
 			e.printStackTrace();
 			// beginConnection();
 		}
 	}
 
+	/**
+	 * Requests a file with the object-stream protocol until it is received
+	 * and saved.
+	 * 
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private void sendObjectInput(String fileName) throws IOException, ClassNotFoundException {
+		final long start = System.nanoTime();
+		outToServer.writeObject(fileName);
+
+		// Stream the FileEvent object
+		FileEvent fileEvent = (FileEvent) inFromServer.readObject();
+		ClientMetrics.FIRST_BYTE.recordSince(start);
+		// while (file did not successfully transfer)
+		while (!receiveFile(fileEvent)) {
+			if (Thread.currentThread().isInterrupted()) {
+				// Tell the server to stop resending before giving up.
+				outToServer.writeObject(Boolean.TRUE);
+				outToServer.reset();
+				throw new TransferCancelledException(fileName);
+			}
+			// Writing false to the output stream at this stage indicates to
+			// the server that a new FileEvent object needs to be created
+			// and sent to the client.
+			outToServer.writeObject(Boolean.FALSE);
+			ClientMetrics.retry("request").increment();
+			fileEvent = (FileEvent) inFromServer.readObject();
+		}
+		ClientMetrics.FILES_DOWNLOADED.increment();
+		ClientMetrics.TRANSFER.recordSince(start);
+		// Confirm that file successfully transfered
+		outToServer.writeObject(Boolean.TRUE);
+		System.out.println("Successfully received " + fileName + " from server.");
+		outToServer.reset();
+	}
+
+	/**
+	 * Downloads a single file. Unlike sendInput(), this method reports every
+	 * failure to the caller, which makes it suitable for background threads.
+	 * Framed downloads are resumed after the connection drops, as with
+	 * sendInput(). Interrupting the calling thread cancels the download.
+	 * 
+	 * @return true if the file was saved, false if it could not be written.
+	 * @throws IOException
+	 *             If the server reported an error, the connection failed or
+	 *             the download was cancelled.
+	 */
+	public boolean download(String fileName) throws IOException {
+		if (protocol == WireProtocol.FRAMED && segments > 1) {
+			final SegmentedDownload download = new SegmentedDownload(this, fileName, segments);
+			download.setTransferListener(transferListener);
+			download.download(newDownload(fileName).getTarget());
+			return true;
+		}
+		if (clientSocket == null || clientSocket.isClosed()) {
+			connect();
+		}
+		input = fileName;
+		if (protocol == WireProtocol.FRAMED) {
+			return sendFramedInputWithReconnect(fileName);
+		}
+		try {
+			sendObjectInput(fileName);
+			return true;
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Uploads a file into the server's directory under its own name, see
+	 * upload(File, String).
+	 */
+	public GetResponse upload(File file) throws IOException {
+		return upload(file, file.getName());
+	}
+
+	/**
+	 * Uploads a file into the server's directory, replacing any file of the
+	 * same name there. The file is read and sent in chunks of
+	 * FramedSession.CHUNK_SIZE bytes, so the client's memory use does not
+	 * depend on its size. If checksums are verified, every chunk carries a
+	 * CRC32C and the last one the SHA-256 of the whole file, and the chunks
+	 * that fail their checksums on the server are sent again as it asks for
+	 * them. An upload that the server could not write is repeated up to
+	 * MAX_ATTEMPTS times. Interrupting the calling thread cancels the upload.
+	 * 
+	 * @param fileName
+	 *            The name the file gets on the server.
+	 * @return the server's description of the published file.
+	 * @throws IOException
+	 *             If the file could not be read, the server rejected the
+	 *             upload, the connection failed or the upload was cancelled.
+	 *             The connection is closed if the upload stopped midway.
+	 */
+	public synchronized GetResponse upload(File file, String fileName) throws IOException {
+		if (protocol != WireProtocol.FRAMED) {
+			throw new IOException("Uploads require the framed protocol.");
+		}
+		if (clientSocket == null || clientSocket.isClosed()) {
+			connect();
+		}
+		for (int attempt = 0;; attempt++) {
+			try {
+				final GetResponse response = sendUpload(file, fileName);
+				ClientMetrics.FILES_UPLOADED.increment();
+				System.out.println("Successfully uploaded " + fileName + " to server.");
+				return response;
+			} catch (ServerException e) {
+				if (e.getErrorCode() != ErrorCode.IO_ERROR || attempt + 1 >= MAX_ATTEMPTS) {
+					throw e;
+				}
+				System.out.println("Upload of " + fileName + " failed, retrying: " + e.getMessage());
+				ClientMetrics.retry("upload").increment();
+			}
+		}
+	}
+
+	/**
+	 * Sends a PUT request, streams the file's bytes in DATA frames and reads
+	 * the ACK frame answering the last one, sending chunks again for as long
+	 * as that frame asks for them.
+	 * 
+	 * @throws IOException
+	 */
+	private GetResponse sendUpload(File file, String fileName) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final long size = in.size();
+			final PutRequest request = new PutRequest(fileName, size, file.lastModified(), verifyChecksums);
+			final int requestId = nextRequestId++;
+			final byte[] payload = request.toPayload();
+			new FrameHeader(Opcode.PUT, request.getFlags(), requestId, payload.length).write(frameOut);
+			frameOut.write(payload);
+			frameOut.flush();
+			final FrameHeader accepted = readResponseHeader(requestId);
+			if (accepted.getOpcode() != Opcode.ACK || accepted.getLength() != 0) {
+				throw new ProtocolException("Expected the server to accept " + fileName + " but received " + accepted);
+			}
+			byte[] hash;
+			try {
+				hash = sendUploadFrames(in, size, fileName, requestId);
+			} catch (IOException e) {
+				// The server can't tell where the next frame starts.
+				close();
+				throw e;
+			}
+			while (true) {
+				final FrameHeader response = readResponseHeader(requestId);
+				if (response.getOpcode() == Opcode.ACK && (response.getFlags() & FrameHeader.FLAG_RANGE) != 0
+						&& hash != null) {
+					final byte[] chunks = new byte[response.getLength()];
+					frameIn.readFully(chunks);
+					try {
+						sendRepairFrames(in, PutRequest.chunksFromPayload(response, chunks), hash, fileName, requestId);
+					} catch (IOException e) {
+						close();
+						throw e;
+					}
+				} else if (response.getOpcode() != Opcode.ACK || response.getLength() != GetResponse.SIZE) {
+					throw new ProtocolException("Expected the upload of " + fileName
+							+ " to be acknowledged but received " + response);
+				} else {
+					return GetResponse.read(frameIn);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the bytes of the file in DATA frames, the last of which has
+	 * FLAG_LAST set. An empty file is sent as a single empty frame.
+	 * 
+	 * @return the SHA-256 of the file if checksums are verified, else null.
+	 * @throws IOException
+	 *             If the file changed size while it was read, the connection
+	 *             failed or the thread was interrupted.
+	 */
+	private byte[] sendUploadFrames(FileChannel in, long size, String fileName, int requestId) throws IOException {
+		if (chunkBuffer.length < FramedSession.CHUNK_SIZE) {
+			chunkBuffer = new byte[FramedSession.CHUNK_SIZE];
+		}
+		final ByteBuffer chunk = ByteBuffer.wrap(chunkBuffer);
+		final CRC32C crc = new CRC32C();
+		final MessageDigest digest = verifyChecksums ? ChecksumVerifier.newDigest() : null;
+		byte[] hash = null;
+		long position = 0;
+		boolean last;
+		do {
+			chunk.clear();
+			chunk.limit((int) Math.min(FramedSession.CHUNK_SIZE, size - position));
+			while (chunk.hasRemaining()) {
+				if (in.read(chunk, position + chunk.position()) < 0) {
+					throw new IOException(fileName + " shrank while it was uploaded.");
+				}
+			}
+			final int length = chunk.position();
+			position += length;
+			last = position == size;
+			int flags = last ? FrameHeader.FLAG_LAST : 0;
+			int trailer = 0;
+			if (verifyChecksums) {
+				flags |= FrameHeader.FLAG_CHECKSUM;
+				trailer = ChecksumVerifier.CRC_SIZE + (last ? ChecksumVerifier.DIGEST_SIZE : 0);
+				crc.reset();
+				crc.update(chunkBuffer, 0, length);
+				digest.update(chunkBuffer, 0, length);
+			}
+			new FrameHeader(Opcode.DATA, flags, requestId, length + trailer).write(frameOut);
+			frameOut.write(chunkBuffer, 0, length);
+			if (verifyChecksums) {
+				frameOut.writeInt((int) crc.getValue());
+				if (last) {
+					hash = digest.digest();
+					frameOut.write(hash);
+				}
+			}
+			ClientMetrics.BYTES_SENT.add(length);
+			if (Thread.currentThread().isInterrupted()) {
+				throw new TransferCancelledException(fileName);
+			}
+		} while (!last);
+		frameOut.flush();
+		return hash;
+	}
+
+	/**
+	 * Sends the chunks of the file that the server asks for again, each in a
+	 * DATA frame with FLAG_RANGE set whose payload starts with the chunk's
+	 * position. The last frame has FLAG_LAST set and ends with the SHA-256 of
+	 * the file.
+	 * 
+	 * @throws IOException
+	 *             If a chunk is invalid or could not be read, the connection
+	 *             failed or the thread was interrupted.
+	 */
+	private void sendRepairFrames(FileChannel in, List<long[]> chunks, byte[] hash, String fileName, int requestId)
+			throws IOException {
+		if (chunks.isEmpty()) {
+			throw new ProtocolException("The server asked for no chunks of " + fileName + " again");
+		}
+		ClientMetrics.retry("upload-chunk").add(chunks.size());
+		final CRC32C crc = new CRC32C();
+		for (int i = 0; i < chunks.size(); i++) {
+			final long position = chunks.get(i)[0];
+			final long length = chunks.get(i)[1];
+			if (length < 0 || length > FramedSession.CHUNK_SIZE) {
+				throw new ProtocolException("The server asked for " + length + " bytes of " + fileName + " again");
+			}
+			System.out.println("Sending " + length + " bytes of " + fileName + " at offset " + position + " again.");
+			final ByteBuffer chunk = ByteBuffer.wrap(chunkBuffer, 0, (int) length);
+			while (chunk.hasRemaining()) {
+				if (in.read(chunk, position + chunk.position()) < 0) {
+					throw new IOException(fileName + " shrank while it was uploaded.");
+				}
+			}
+			final boolean last = i == chunks.size() - 1;
+			crc.reset();
+			crc.update(chunkBuffer, 0, (int) length);
+			final int flags = FrameHeader.FLAG_RANGE | FrameHeader.FLAG_CHECKSUM | (last ? FrameHeader.FLAG_LAST : 0);
+			final int trailer = ChecksumVerifier.CRC_SIZE + (last ? ChecksumVerifier.DIGEST_SIZE : 0);
+			new FrameHeader(Opcode.DATA, flags, requestId, UploadFile.POSITION_SIZE + (int) length + trailer)
+					.write(frameOut);
+			frameOut.writeLong(position);
+			frameOut.write(chunkBuffer, 0, (int) length);
+			frameOut.writeInt((int) crc.getValue());
+			if (last) {
+				frameOut.write(hash);
+			}
+			ClientMetrics.BYTES_SENT.add(length);
+			if (Thread.currentThread().isInterrupted()) {
+				throw new TransferCancelledException(fileName);
+			}
+		}
+		frameOut.flush();
+	}
+
+	/**
+	 * Downloads a file with the framed protocol. If the connection drops, the
+	 * client reconnects with an increasing delay and resumes the download
+	 * from its .part file, up to MAX_RECONNECTS times.
+	 * 
+	 * @return true if the file was saved.
+	 * @throws IOException
+	 *             If the server reported an error or the client could not
+	 *             reconnect.
+	 */
+	private boolean sendFramedInputWithReconnect(String fileName) throws IOException {
+		long backoff = INITIAL_BACKOFF_MILLIS;
+		for (int reconnects = 0;; reconnects++) {
+			try {
+				if (sendFramedInput(fileName)) {
+					System.out.println("Successfully received " + fileName + " from server.");
+					return true;
+				}
+				return false;
+			} catch (ServerException | TransferCancelledException e) {
+				throw e;
+			} catch (IOException e) {
+				if (Thread.currentThread().isInterrupted()) {
+					// The connection was closed to cancel the download.
+					partials.remove(fileName);
+					newDownload(fileName).delete();
+					throw new TransferCancelledException(fileName);
+				}
+				if (reconnects >= MAX_RECONNECTS) {
+					throw e;
+				}
+				System.out.println("Connection lost while receiving " + fileName + ", reconnecting: " + e);
+				ClientMetrics.error(e.getClass().getSimpleName()).increment();
+				ClientMetrics.retry("reconnect").increment();
+				close();
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while reconnecting.");
+				}
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+				beginConnection();
+			}
+		}
+	}
+
+	/**
+	 * Requests several files at once and receives them. With the framed
+	 * protocol, up to pipelineDepth GET requests are kept on the wire, so the
+	 * server can start on the next file as soon as it has sent the last one
+	 * and no round trip is spent between files. Responses are matched to their
+	 * requests by request id, and no per-file ACK is sent. With the
+	 * object-stream protocol, the files are requested one after another.
+	 * 
+	 * Files that the server reports as missing, or that can't be saved, are
+	 * left out of the result; the other files are still received. If
+	 * identical files are skipped, the content hashes of all of the files are
+	 * asked for in one pipelined batch before the files are requested.
+	 * 
+	 * @param requested
+	 *            The files to request.
+	 * @return the names of the files that were saved.
+	 * @throws IOException
+	 *             If the connection failed. The files received until then are
+	 *             kept, and the partly received ones are deleted.
+	 */
+	public synchronized List<String> sendInputs(List<File> requested) throws IOException {
+		final List<String> saved = new ArrayList<>();
+		if (clientSocket == null || clientSocket.isClosed()) {
+			beginConnection();
+		}
+		if (protocol != WireProtocol.FRAMED) {
+			for (File file : requested) {
+				try {
+					sendInput(file);
+					saved.add(file.getName());
+				} catch (ClassNotFoundException e) {
+					throw new IOException(e);
+				}
+			}
+			return saved;
+		}
+		final ArrayDeque<String> queue = new ArrayDeque<>();
+		final List<String> names = new ArrayList<>(requested.size());
+		for (File file : requested) {
+			names.add(file.getName());
+		}
+		final Map<String, CatalogEntry> remote = skipIdentical ? requestContentHashes(names)
+				: Collections.emptyMap();
+		for (String name : names) {
+			if (skipIdentical && skipDownload(newDownload(name), remote.get(name))) {
+				saved.add(name);
+			} else {
+				queue.add(name);
+			}
+		}
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		final Map<Integer, PipelinedGet> inFlight = new HashMap<>();
+		// Corrupt chunks are requested again once the pipeline is empty.
+		final ArrayDeque<PipelinedGet> repairs = new ArrayDeque<>();
+		try {
+			while (!queue.isEmpty() || !inFlight.isEmpty()) {
+				while (!queue.isEmpty() && inFlight.size() < pipelineDepth) {
+					final String fileName = queue.poll();
+					final int requestId = nextRequestId++;
+					final GetRequest request = new GetRequest(fileName, 0, -1, 0, 0, verifyChecksums);
+					final byte[] payload = request.toPayload();
+					new FrameHeader(Opcode.GET, request.getFlags(), requestId, payload.length).write(frameOut);
+					frameOut.write(payload);
+					inFlight.put(requestId, new PipelinedGet(fileName));
+				}
+				frameOut.flush();
+				final FrameHeader header = FrameHeader.read(frameIn);
+				final PipelinedGet get = inFlight.get(header.getRequestId());
+				if (get == null) {
+					throw new ProtocolException("Received a response to an unknown request: " + header);
+				}
+				if (get.handle(header, buffer)) {
+					inFlight.remove(header.getRequestId());
+					if (get.needsRepair()) {
+						repairs.add(get);
+					} else if (get.finish()) {
+						System.out.println("Successfully received " + get.fileName + " from server.");
+						saved.add(get.fileName);
+						storeContent(new File(downloadDirectory, get.fileName));
+					}
+				}
+			}
+			while (!repairs.isEmpty()) {
+				final PipelinedGet get = repairs.peek();
+				get.repair();
+				repairs.poll();
+				if (get.finish()) {
+					System.out.println("Successfully received " + get.fileName + " from server.");
+					saved.add(get.fileName);
+					storeContent(new File(downloadDirectory, get.fileName));
+				}
+			}
+		} finally {
+			for (PipelinedGet get : inFlight.values()) {
+				get.abort();
+			}
+			for (PipelinedGet get : repairs) {
+				get.abort();
+			}
+		}
+		return saved;
+	}
+
+	/**
+	 * The state of one response to sendInputs(): an ACK frame describing the
+	 * file, followed by DATA frames, or a single ERROR frame.
+	 */
+	private final class PipelinedGet {
+		private final String fileName;
+		private final DownloadFile download;
+		private GetResponse response;
+		private FileChannel out;
+		private ChecksumVerifier verifier;
+		private final TransferStats stats;
+		private long position;
+		private boolean written;
+
+		PipelinedGet(String fileName) {
+			this.fileName = fileName;
+			download = newDownload(fileName);
+			verifier = verifyChecksums ? new ChecksumVerifier() : null;
+			stats = new TransferStats(fileName);
+		}
+
+		/**
+		 * Handles a frame answering this request.
+		 * 
+		 * @return true if the response is complete.
+		 * @throws IOException
+		 *             If the connection failed or the server violated the
+		 *             protocol.
+		 */
+		boolean handle(FrameHeader header, byte[] buffer) throws IOException {
+			if (header.getOpcode() == Opcode.ERROR) {
+				final ServerException error = readError(header);
+				System.out.println("Could not receive " + fileName + ": " + error.getMessage());
+				return true;
+			}
+			if (response == null) {
+				if (header.getOpcode() != Opcode.ACK || header.getLength() != GetResponse.SIZE) {
+					throw new ProtocolException("Expected the size of " + fileName + " but received " + header);
+				}
+				response = GetResponse.read(frameIn);
+				try {
+					out = download.open(0);
+					written = true;
+					download.preallocate(response.getLength());
+				} catch (IOException e) {
+					e.printStackTrace();
+					written = false;
+				}
+				if (transferListener != null) {
+					transferListener.started(fileName, response.getFileSize(), 0);
+				}
+				return false;
+			}
+			if (header.getOpcode() != Opcode.DATA) {
+				throw new ProtocolException("Expected data for " + fileName + " but received " + header);
+			}
+			written = readDataFrame(buffer, header, written ? out : null, position, verifier, stats) && written;
+			position += lastChunkLength;
+			reportProgress(fileName, position);
+			return header.isLast();
+		}
+
+		/**
+		 * Returns true if some chunks of the complete response have to be
+		 * requested again.
+		 */
+		boolean needsRepair() {
+			return written && verifier != null && !verifier.getBadChunks().isEmpty();
+		}
+
+		/**
+		 * Requests the corrupt chunks again. The connection must not have any
+		 * other requests outstanding.
+		 * 
+		 * @throws IOException
+		 *             If the connection failed.
+		 */
+		void repair() throws IOException {
+			written = repairChunks(fileName, response, out, verifier);
+			// The repair checked the digest of the whole file.
+			verifier = null;
+		}
+
+		/**
+		 * Forces the .part file to disk as the SyncPolicy requires and renames
+		 * it to the file's name.
+		 * 
+		 * @return true if the file was saved.
+		 */
+		boolean finish() {
+			lastTransferStats = stats;
+			if (stats.isCompressed()) {
+				System.out.println("Received " + stats);
+			}
+			final boolean saved = response != null && written
+					&& (verifier == null || !verifier.isComplete() || verifier.isDigestMatched());
+			if (saved) {
+				try {
+					download.commit();
+					ClientMetrics.FILES_DOWNLOADED.increment();
+					return true;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			abort();
+			return false;
+		}
+
+		// Discards the .part file of a response that was not saved.
+		void abort() {
+			if (response != null) {
+				download.delete();
+			} else {
+				download.close();
+			}
+		}
+	}
+
 	/**
 	 * Closes the client socket and interrupts the thread running the TCPClient
 	 * object.
@@ -169,8 +2309,20 @@ public class TCPClient implements RunnableEndPoint {
 	 */
 	@Override
 	public void close() throws IOException {
-		if (!clientSocket.isClosed()) {
-			clientSocket.close();
+		final TlsChannel channel = tlsChannel;
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} finally {
+			if (clientSocket != null && !clientSocket.isClosed()) {
+				clientSocket.close();
+			}
+		}
+		endDecompressor();
+		final ContentHashes hashes = localHashes;
+		if (hashes != null) {
+			hashes.save();
 		}
 	}
 
@@ -189,10 +2341,14 @@ public class TCPClient implements RunnableEndPoint {
 		return clientSocket.isConnected();
 	}
 
+	/**
+	 * Connects to the server with connect(). Use isReady() to find out
+	 * whether it succeeded.
+	 */
 	@Override
 	public void run() {
 		try {
-			beginConnection();
+			connect();
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
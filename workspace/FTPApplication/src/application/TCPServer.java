@@ -7,32 +7,62 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.PushbackInputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLException;
 
 /**
  * This class is intended to be executed as its own thread. It is dependent on a
  * text file in the project directory named "config.cfg", which supplies the
  * directory on the first line containing all available files for the server to
  * transfer, and the port number on the second line which the server will be
- * bound to upon running. All communications are done securely over SSL/TLS
- * security protocols using an SSLServerSocket object to communicate with the
- * client.
+ * bound to upon running. Connections are encrypted with TLS if the server is
+ * given a TlsChannel for its socket; otherwise they are in plaintext.
+ * 
+ * By default, files are sent in zero-copy mode: a FileEvent containing only the
+ * file's metadata is written to the client, followed by the file's bytes, which
+ * are transferred from disk to the socket using FileChannel.transferTo without
+ * ever being copied into the JVM heap.
+ * 
+ * Clients may speak either the original object-stream protocol or the framed
+ * protocol described by FrameHeader. The protocol is detected from the first
+ * four bytes the client sends.
+ * 
+ * If the server has a BandwidthScheduler, the file data it streams is shaped
+ * by it; the thread sleeps whenever a transfer is ahead of its share.
  * 
  * @author Alec J Strickland
  *
  */
 public class TCPServer implements RunnableEndPoint {
-	private final File CFG_FILE = new File("config.cfg");
-	private HashSet<File> files;
+	private static final File CFG_FILE = new File("config.cfg");
+	private FileCatalog catalog;
 	private ObjectInputStream inFromClient;
 	private ObjectOutputStream outToClient;
 	private Socket connectionSocket;
-	private String dir;
+	private byte[] preread;
+	private SessionExecutor executor;
+	private BandwidthScheduler scheduler;
+	private boolean zeroCopy;
+	private int compressionLevel = Codec.DEFAULT_LEVEL;
+	private boolean uploadsEnabled;
+	// Encrypts the connection, or null.
+	private TlsChannel tlsChannel;
 
 	/**
 	 * Constructs a TCPServer object. This constructor retrieves the two data
@@ -43,30 +73,178 @@ public class TCPServer implements RunnableEndPoint {
 	 */
 	public TCPServer() throws FileNotFoundException {
 		String[] configData = getDataFromConfig();
-		dir = configData[0];
-		files = new HashSet<>();
+		catalog = new FileCatalog(new File(configData[0]));
+		preread = new byte[0];
+		zeroCopy = true;
 	}
 
+	/**
+	 * Constructs a TCPServer object for an accepted connection. The client's
+	 * protocol is detected once the object is run. This constructor reads the
+	 * config file and indexes the directory itself; servers created by a
+	 * TCPServerManager share the manager's FileCatalog instead.
+	 * 
+	 * @param connectionSocket
+	 *            The socket connected to the client.
+	 * @throws IOException
+	 */
 	public TCPServer(Socket connectionSocket) throws IOException {
+		this(connectionSocket, new byte[0], new FileCatalog(new File(getDataFromConfig()[0])));
+	}
+
+	/**
+	 * Constructs a TCPServer object for an accepted connection from which some
+	 * bytes have already been read, as happens when an EventLoop hands over a
+	 * client that speaks the object-stream protocol.
+	 * 
+	 * @param connectionSocket
+	 *            The socket connected to the client.
+	 * @param preread
+	 *            The bytes already read from the socket, which are read again
+	 *            before anything else.
+	 * @param catalog
+	 *            The index of the server's available files.
+	 * @throws IOException
+	 */
+	public TCPServer(Socket connectionSocket, byte[] preread, FileCatalog catalog) throws IOException {
 		this.connectionSocket = connectionSocket;
-		try {
-			inFromClient = new ObjectInputStream(this.connectionSocket.getInputStream());
-			outToClient = new ObjectOutputStream(this.connectionSocket.getOutputStream());
-		} catch (IOException e) {
-			close();
+		this.preread = preread;
+		this.catalog = catalog;
+		zeroCopy = true;
+	}
+
+	/**
+	 * Sets the executor running this server. File transfers wait for a free
+	 * transfer slot of the executor before they start.
+	 */
+	public void setExecutor(SessionExecutor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the scheduler that shapes the file data sent by this server, or
+	 * null to send as fast as the socket allows. Files sent whole inside a
+	 * FileEvent are not shaped.
+	 */
+	public void setScheduler(BandwidthScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	// Waits for a transfer slot if this server is run by a SessionExecutor.
+	private void beginTransfer() throws IOException {
+		if (executor != null) {
+			executor.beginTransfer();
+		}
+	}
+
+	private void endTransfer() {
+		if (executor != null) {
+			executor.endTransfer();
+		}
+	}
+
+	public boolean isZeroCopy() {
+		return zeroCopy;
+	}
+
+	/**
+	 * Selects how file data is sent to the client. In zero-copy mode the file
+	 * is streamed from disk to the socket after its metadata; otherwise the
+	 * whole file is read into the FileEvent object before it is sent.
+	 * 
+	 * @param zeroCopy
+	 *            true to stream file data with FileChannel.transferTo.
+	 */
+	public void setZeroCopy(boolean zeroCopy) {
+		this.zeroCopy = zeroCopy;
+	}
+
+	/**
+	 * Sets the level that file chunks are compressed with for framed clients
+	 * that negotiate compression. Level 0 turns compression off.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Selects whether framed clients may upload files into the served
+	 * directory. Uploads are refused by default.
+	 */
+	public void setUploadsEnabled(boolean uploadsEnabled) {
+		this.uploadsEnabled = uploadsEnabled;
+	}
+
+	/**
+	 * Sets the TLS channel wrapping this server's socket, which all of the
+	 * connection's bytes are then read from and written to, or null to talk
+	 * to the client in plaintext. The channel may have exchanged its
+	 * handshake already, as happens when an EventLoop hands over a client.
+	 */
+	public void setTlsChannel(TlsChannel tlsChannel) {
+		this.tlsChannel = tlsChannel;
+	}
+
+	// Returns the stream the client's bytes are read from.
+	private InputStream openInput() throws IOException {
+		return (tlsChannel != null) ? Channels.newInputStream(tlsChannel) : connectionSocket.getInputStream();
+	}
+
+	// Returns the channel the bytes sent to the client are written to.
+	private WritableByteChannel openTarget() throws IOException {
+		if (tlsChannel != null) {
+			return tlsChannel;
+		}
+		return (connectionSocket.getChannel() != null) ? connectionSocket.getChannel()
+				: Channels.newChannel(connectionSocket.getOutputStream());
+	}
+
+	/**
+	 * Reads the first four bytes sent by the client to determine which
+	 * protocol it speaks. Clients speaking the object-stream protocol get
+	 * their socket's streams wrapped with object streams.
+	 * 
+	 * @param in
+	 *            The socket's input stream.
+	 * @return true if the client speaks the framed protocol, false if it
+	 *         speaks the object-stream protocol.
+	 * @throws IOException
+	 */
+	private boolean openStreams(PushbackInputStream in) throws IOException {
+		connectionSocket.setTcpNoDelay(true);
+		in.unread(preread);
+		final byte[] preamble = new byte[4];
+		new DataInputStream(in).readFully(preamble);
+		if (ByteBuffer.wrap(preamble).getInt() == FrameHeader.MAGIC) {
+			return true;
 		}
-		files = new HashSet<>();
-		dir = getDataFromConfig()[0];
+		// The object stream header must be read by the ObjectInputStream.
+		in.unread(preamble);
+		inFromClient = new ObjectInputStream(in);
+		outToClient = new ObjectOutputStream((tlsChannel != null) ? Channels.newOutputStream(tlsChannel)
+				: connectionSocket.getOutputStream());
+		return false;
 	}
 
 	// Closes the socket
 	@Override
 	public void close() throws IOException {
+		if (tlsChannel != null) {
+			tlsChannel.close();
+		}
 		if (!connectionSocket.isClosed()) {
 			connectionSocket.close();
 		}
 	}
 
+	private void closeQuietly() {
+		try {
+			close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Once the beginConnection() method has been called
 	 * 
@@ -78,21 +256,18 @@ public class TCPServer implements RunnableEndPoint {
 		try {
 			// Get client input for file name
 			String clientInput = (String) inFromClient.readObject();
-			// Append '\' to the end of the path if it has not already been
-			// done
-			dir = (dir.charAt(dir.length() - 1) != '\\') ? dir + "\\" : dir;
 
 			// Write fileEvent to the output stream. If their is a problem
 			// with the fileEvent object as it's being created, the client
 			// will request a new one, which will then be created and sent,
 			// and the process will repeat until the
 			// client receives a valid fileEvent object.
-			do {
-				// Get the file data
-				FileEvent fileEvent = getFileEvent(clientInput, dir);
-				// Write the object to the output stream
-				outToClient.writeObject(fileEvent);
-			} while (!((Boolean) inFromClient.readObject()).booleanValue());
+			beginTransfer();
+			try {
+				transferFile(clientInput);
+			} finally {
+				endTransfer();
+			}
 		} catch (SocketException | EOFException e) {
 			return false;
 		}
@@ -100,20 +275,104 @@ public class TCPServer implements RunnableEndPoint {
 	}
 
 	/**
-	 * Adds every file in the given directory to the 'files' HashSet. If the
-	 * given File is not a directory, no files will be added to the HashSet.
+	 * Sends the requested file until the client confirms that it was saved.
 	 * 
-	 * @param folder
-	 *            FIle object representing the folder.
+	 * @param clientInput
+	 *            The name of the requested file.
 	 * @throws IOException
+	 * @throws ClassNotFoundException
 	 */
-	private void listFilesForFolder(final File folder) throws IOException {
-		if (folder.isDirectory()) {
-			for (final File fileEntry : folder.listFiles()) {
-				if (fileEntry.isFile()) {
-					files.add(fileEntry);
+	private void transferFile(String clientInput) throws IOException, ClassNotFoundException {
+		final long start = System.nanoTime();
+		FileEvent fileEvent;
+		do {
+			if (zeroCopy) {
+				// Only the metadata goes through the object stream; the
+				// file's bytes follow it directly on the socket.
+				final File file = catalog.resolve(clientInput);
+				fileEvent = getFileHeader(clientInput, file);
+				outToClient.writeObject(fileEvent);
+				outToClient.flush();
+				if (fileEvent.getStatus() == FileStatus.SUCCESS) {
+					sendFileBody(file, fileEvent.getFileSize());
+				}
+			} else {
+				// Get the file data
+				fileEvent = getFileEvent(clientInput);
+				// Write the object to the output stream
+				outToClient.writeObject(fileEvent);
+				if (fileEvent.getStatus() == FileStatus.SUCCESS) {
+					ServerMetrics.BYTES_SENT.add(fileEvent.getFileSize());
 				}
 			}
+			if (fileEvent.getStatus() != FileStatus.SUCCESS) {
+				ServerMetrics.error(ErrorCode.NOT_FOUND.name()).increment();
+			}
+			// Forget the objects that were written so that the stream
+			// does not hold on to every FileEvent it has ever sent.
+			outToClient.reset();
+		} while (!((Boolean) inFromClient.readObject()).booleanValue());
+		if (fileEvent.getStatus() == FileStatus.SUCCESS) {
+			ServerMetrics.FILES_SERVED.increment();
+			ServerMetrics.TRANSFER.recordSince(start);
+		}
+	}
+
+	/**
+	 * Handles requests from a client speaking the framed protocol until the
+	 * client disconnects. The requests are handled by a FramedSession, which
+	 * is driven here with blocking reads and writes.
+	 * 
+	 * @param in
+	 *            The stream the preamble was read from.
+	 * @throws IOException
+	 *             If the connection failed or the client violated the
+	 *             protocol.
+	 */
+	private void handleFramedClient(InputStream in) throws IOException {
+		final SocketChannel channel = connectionSocket.getChannel();
+		final ReadableByteChannel source = (tlsChannel != null) ? tlsChannel
+				: (channel != null) ? channel : Channels.newChannel(in);
+		final WritableByteChannel target = openTarget();
+		final FramedSession session = new FramedSession(catalog);
+		session.setCompressionLevel(compressionLevel);
+		session.setUploadsEnabled(uploadsEnabled);
+		if (scheduler != null) {
+			session.setScheduler(scheduler, connectionSocket.getInetAddress().getHostAddress());
+		}
+		try {
+			session.acceptPreamble();
+			while (true) {
+				if (session.isTransferring()) {
+					beginTransfer();
+					try {
+						while (!session.write(target)) {
+							// Keep writing until the whole file is sent,
+							// waiting while the transfer is ahead of its share.
+							final long throttleNanos = session.getThrottleNanos();
+							if (throttleNanos > 0) {
+								LockSupport.parkNanos(throttleNanos);
+							}
+						}
+					} finally {
+						endTransfer();
+					}
+				}
+				while (session.hasPendingOutput()) {
+					session.write(target);
+				}
+				if (!session.process()) {
+					try {
+						if (session.read(source) < 0) {
+							return;
+						}
+					} catch (SocketException e) {
+						return;
+					}
+				}
+			}
+		} finally {
+			session.close();
 		}
 	}
 
@@ -126,32 +385,154 @@ public class TCPServer implements RunnableEndPoint {
 	 *         available files.
 	 * @throws FileNotFoundException
 	 */
-	private String[] getDataFromConfig() throws FileNotFoundException {
+	static String[] getDataFromConfig() throws FileNotFoundException {
 		Scanner in = new Scanner(new FileReader(CFG_FILE));
 		String[] configData = new String[] { in.nextLine() };
 		in.close();
 		return configData;
 	}
 
+	/**
+	 * Returns a FileEvent object containing only the metadata of the specified
+	 * file. The file's bytes are expected to be sent separately with
+	 * sendFileBody().
+	 * 
+	 * @param fileName
+	 *            The name the client requested.
+	 * @param file
+	 *            The file within the server's directory, or null if it is not
+	 *            in the catalog.
+	 * @return
+	 */
+	private FileEvent getFileHeader(String fileName, File file) {
+		final FileEvent fileEvent = new FileEvent();
+		fileEvent.setFilename(fileName);
+		fileEvent.setBodyStreamed(true);
+		if (file != null && file.isFile() && file.canRead()) {
+			fileEvent.setFileSize(file.length());
+			fileEvent.setStatus(FileStatus.SUCCESS);
+		} else {
+			fileEvent.setStatus(FileStatus.ERROR);
+		}
+		return fileEvent;
+	}
+
+	/**
+	 * Transfers exactly size bytes of the given file to the client's socket
+	 * using FileChannel.transferTo, which lets the operating system move the
+	 * data from the page cache to the socket (sendfile) when the socket was
+	 * accepted through a channel. Files held by the catalog's FileCache are
+	 * written straight from the cache's buffer instead. Either way, no more
+	 * bytes are sent at a time than the BandwidthScheduler allows.
+	 * 
+	 * @param file
+	 *            The file being sent.
+	 * @param size
+	 *            The number of bytes promised to the client in the header.
+	 * @throws IOException
+	 *             If the file could not be read or ended before size bytes
+	 *             were sent. The connection can't be reused afterwards.
+	 */
+	private void sendFileBody(File file, long size) throws IOException {
+		final WritableByteChannel target = openTarget();
+		final BandwidthScheduler.Flow flow = (scheduler == null) ? null
+				: scheduler.open(connectionSocket.getInetAddress().getHostAddress(), size);
+		try {
+			final ByteBuffer cached = getCached(file, size);
+			if (cached != null) {
+				while (cached.hasRemaining()) {
+					final int allowed = (int) acquire(flow, cached.remaining());
+					final ByteBuffer slice = cached.duplicate();
+					slice.limit(slice.position() + allowed);
+					while (slice.hasRemaining()) {
+						ServerMetrics.BYTES_SENT.add(target.write(slice));
+					}
+					cached.position(slice.position());
+				}
+				return;
+			}
+			try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long position = 0;
+				while (position < size) {
+					final long allowed = acquire(flow, size - position);
+					long sent = (tlsChannel != null) ? tlsChannel.transferFrom(source, position, allowed)
+							: source.transferTo(position, allowed, target);
+					if (flow != null) {
+						flow.giveBack(allowed - Math.max(0, sent));
+					}
+					if (sent > 0) {
+						ServerMetrics.BYTES_SENT.add(sent);
+					}
+					// transferTo returns 0 once it reaches the end of the
+					// file, which means the file shrank after its header was
+					// sent.
+					if (sent <= 0 && position >= source.size()) {
+						throw new IOException(file.getName() + " was truncated during transfer.");
+					}
+					position += sent;
+				}
+			}
+		} finally {
+			if (flow != null) {
+				flow.close();
+			}
+		}
+	}
+
+	// Waits until the flow allows some of the wanted bytes to be sent.
+	private static long acquire(BandwidthScheduler.Flow flow, long wanted) throws IOException {
+		return (flow == null) ? wanted : flow.acquire(wanted);
+	}
+
+	/**
+	 * Returns the cached contents of the file if the catalog's FileCache holds
+	 * them and they have the given size, or null otherwise.
+	 */
+	private ByteBuffer getCached(File file, long size) {
+		final FileCache cache = catalog.getCache();
+		final CatalogEntry entry = catalog.getEntry(file.getName());
+		if (cache == null || entry == null || entry.getSize() != size) {
+			return null;
+		}
+		return cache.get(entry, file);
+	}
+
 	/**
 	 * Returns a FileEvent object containing all of the necessary data from the
-	 * specified file in the specified directory.
+	 * specified file in the catalog. A name that is not in the catalog gets a
+	 * FileEvent with an ERROR status.
 	 * 
 	 * @param fileName
-	 *            String representation of the desired file name within the
-	 *            given directory.
-	 * @param dir
-	 *            String representation of the directory containing the file.
+	 *            The name the client requested.
 	 * @return
 	 */
-	private FileEvent getFileEvent(String fileName, String dir) {
+	FileEvent getFileEvent(String fileName) {
 		final FileEvent fileEvent = new FileEvent();
-		final File file = new File(dir + fileName);
+		final File file = catalog.resolve(fileName);
+		if (file == null) {
+			fileEvent.setFilename(fileName);
+			fileEvent.setStatus(FileStatus.ERROR);
+			return fileEvent;
+		}
 		try {
 			// Establish DataInputStream that will stream the bytes from the
 			// file to the byte array.
+			long len = file.length();
+			// Files this large can't be held in an array; use zero-copy mode.
+			if (len > Integer.MAX_VALUE - 8) {
+				throw new IOException(fileName + " is too large to send in a FileEvent.");
+			}
+			final ByteBuffer cached = getCached(file, len);
+			if (cached != null) {
+				byte[] fileBytes = new byte[(int) len];
+				cached.get(fileBytes);
+				fileEvent.setFilename(fileName);
+				fileEvent.setFileSize(len);
+				fileEvent.setFileData(fileBytes);
+				fileEvent.setStatus(FileStatus.SUCCESS);
+				return fileEvent;
+			}
 			DataInputStream dis = new DataInputStream(new FileInputStream(file));
-			long len = (int) file.length();
 			byte[] fileBytes = new byte[(int) len];
 			int read = 0;
 			int numRead = 0;
@@ -178,18 +559,29 @@ public class TCPServer implements RunnableEndPoint {
 	@Override
 	public void run() {
 		try {
-			// TODO only retrieve files once in TCPServerManager, pass to
-			// TCPServer
-			listFilesForFolder(new File(dir));
+			final PushbackInputStream in = new PushbackInputStream(openInput(), Math.max(4, preread.length));
+			if (openStreams(in)) {
+				handleFramedClient(in);
+				close();
+				return;
+			}
 			// Send the file set to the output stream.
-			outToClient.writeObject(files);
+			final long start = System.nanoTime();
+			outToClient.writeObject(catalog.getSnapshot().getFiles());
+			ServerMetrics.LISTING.recordSince(start);
 			boolean keepRunning = true;
 			while (keepRunning) {
 				keepRunning = handleClient();
 			}
 			close();
+		} catch (ProtocolException | SSLException e) {
+			System.out.println("Closing connection: " + e.getMessage());
+			ServerMetrics.error(e.getClass().getSimpleName()).increment();
+			closeQuietly();
 		} catch (IOException | ClassNotFoundException e) {
 			e.printStackTrace();
+			ServerMetrics.error(e.getClass().getSimpleName()).increment();
+			closeQuietly();
 		}
 	}
 }
@@ -1,35 +1,285 @@
 package application;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Scanner;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /**
- * This class is used to manage TCPServers. It listens for incoming connections
- * starting on port 49152, and increments the port number for each successful
- * connection up to 65535. Each time a connection is made to a socket, that
- * socket is passed to a TCPServer object that gets executed on its own daemon
- * thread.
- * 
+ * This class is used to manage the server's connections. It listens for
+ * incoming connections on a single port, 49152 by default, and hands every
+ * accepted connection to one of a small number of EventLoops, one per core by
+ * default. Each EventLoop multiplexes its connections with a Selector, so an
+ * idle client does not occupy a thread. Clients that speak the object-stream
+ * protocol are passed on to a TCPServer run by the SessionExecutor.
+ *
+ * With zero EventLoops, every connection is handled by its own TCPServer on
+ * the SessionExecutor instead. The SessionExecutor bounds the number of
+ * concurrent sessions and transfers, and runs sessions on virtual threads
+ * when the JVM supports them.
+ *
+ * The config file is read once, when the manager is run, unless the served
+ * directory was set with setDirectory(). The server's directory is indexed
+ * by a single FileCatalog that all sessions share. The catalog follows
+ * changes to the directory on its own daemon thread. The content hashes that
+ * clients ask for are kept in the hash store, so they are computed once per
+ * version of a file rather than once per run.
+ *
+ * Sockets are accepted through a ServerSocketChannel so that files can be sent
+ * to them with FileChannel.transferTo.
+ *
+ * Framed clients can upload files into the served directory if uploads are
+ * enabled, which they are not by default.
+ *
+ * If the manager has a TlsContext, every connection is encrypted with TLS,
+ * and clients that don't speak TLS can't connect. Connections are in
+ * plaintext by default.
+ *
+ * The file data sent to clients is shaped by a BandwidthScheduler with
+ * global, per-client and per-session limits, which can be changed while the
+ * manager is running.
+ *
+ * The manager publishes its metrics, and those of its sessions, in the
+ * default MetricsRegistry, which is registered as a JMX MBean. If a metrics
+ * port is set, they are also served over HTTP by a MetricsEndpoint.
+ *
  * @author Alec J Strickland
  *
  */
-public class TCPServerManager implements Runnable {
-	private final int MIN_PORT = 49152;
-	private final int MAX_PORT = 65535;
-	private int currentPort;
-	private ServerSocket serverSocket;
-	private Socket connectionSocket;
-	private List<ServerSocket> serverSockets;
+public class TCPServerManager implements RunnableEndPoint {
+	public static final int DEFAULT_PORT = 49152;
+	public static final int DEFAULT_METRICS_PORT = 49153;
+	/** The file the content hashes are kept in, next to the config file. */
+	public static final String DEFAULT_HASH_STORE = "content-hashes.dat";
+	// How long close() waits for each EventLoop to close its connections.
+	private static final long LOOP_SHUTDOWN_MILLIS = 5000;
+	private final int port;
+	private final EventLoop[] eventLoops;
+	private final Thread[] loopThreads;
+	private SessionExecutor executor;
+	private final BandwidthScheduler scheduler;
+	private int compressionLevel;
+	private volatile boolean uploadsEnabled;
+	private volatile TlsContext tls;
+	private long cacheBudget;
+	private int mappedWindowSize;
+	private int metricsPort;
+	private MetricsEndpoint metricsEndpoint;
+	private File directory;
+	private File hashStore;
+	private FileCatalog catalog;
+	private ServerSocketChannel serverChannel;
+	private int nextLoop;
 
 	TCPServerManager() {
-		currentPort = MIN_PORT;
-		serverSocket = null;
-		connectionSocket = null;
-		serverSockets = new LinkedList<>();
+		this(DEFAULT_PORT, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructs a TCPServerManager object.
+	 *
+	 * @param port
+	 *            The port that every client connects to.
+	 * @param loopCount
+	 *            The number of EventLoop threads sharing the connections, or
+	 *            0 to handle every connection with a blocking TCPServer.
+	 */
+	public TCPServerManager(int port, int loopCount) {
+		this.port = port;
+		eventLoops = new EventLoop[Math.max(0, loopCount)];
+		loopThreads = new Thread[eventLoops.length];
+		executor = new SessionExecutor();
+		scheduler = new BandwidthScheduler();
+		compressionLevel = Codec.DEFAULT_LEVEL;
+		cacheBudget = FileCache.DEFAULT_BUDGET;
+		mappedWindowSize = MappedRegionPool.DEFAULT_WINDOW_SIZE;
+		metricsPort = -1;
+		hashStore = new File(DEFAULT_HASH_STORE);
+		serverChannel = null;
+		nextLoop = 0;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public SessionExecutor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Replaces the executor that runs blocking TCPServer sessions. This must
+	 * be done before the manager is run.
+	 */
+	public void setExecutor(SessionExecutor executor) {
+		this.executor = executor;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Sets the Deflate level, 1 to 9, that file chunks are sent with to
+	 * clients that negotiate compression, or 0 to never compress. Connections
+	 * that are already open keep their level.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+		for (EventLoop loop : eventLoops) {
+			if (loop != null) {
+				loop.setCompressionLevel(compressionLevel);
+			}
+		}
+	}
+
+	public boolean isUploadsEnabled() {
+		return uploadsEnabled;
+	}
+
+	/**
+	 * Selects whether framed clients may upload files into the served
+	 * directory, replacing files of the same name. Connections that are
+	 * already open keep their setting.
+	 */
+	public void setUploadsEnabled(boolean uploadsEnabled) {
+		this.uploadsEnabled = uploadsEnabled;
+		for (EventLoop loop : eventLoops) {
+			if (loop != null) {
+				loop.setUploadsEnabled(uploadsEnabled);
+			}
+		}
+	}
+
+	public TlsContext getTls() {
+		return tls;
+	}
+
+	/**
+	 * Sets the TLS context that connections are encrypted with, or null to
+	 * accept plaintext connections. Connections that are already open keep
+	 * their setting.
+	 */
+	public void setTls(TlsContext tls) {
+		this.tls = tls;
+		for (EventLoop loop : eventLoops) {
+			if (loop != null) {
+				loop.setTls(tls);
+			}
+		}
+	}
+
+	/**
+	 * Returns the scheduler that shapes the file data sent to clients.
+	 */
+	public BandwidthScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Sets the number of file bytes per second sent to all clients together,
+	 * or 0 for no limit. Running transfers adopt the new limit at once.
+	 */
+	public void setGlobalRateLimit(long bytesPerSecond) {
+		scheduler.setGlobalLimit(bytesPerSecond);
+	}
+
+	/**
+	 * Sets the number of file bytes per second sent to each client IP
+	 * address, or 0 for no limit.
+	 */
+	public void setClientRateLimit(long bytesPerSecond) {
+		scheduler.setClientLimit(bytesPerSecond);
+	}
+
+	/**
+	 * Sets the number of file bytes per second sent to each session, or 0 for
+	 * no limit.
+	 */
+	public void setSessionRateLimit(long bytesPerSecond) {
+		scheduler.setSessionLimit(bytesPerSecond);
+	}
+
+	/**
+	 * Sets the number of bytes of hot files kept in memory, or 0 to serve
+	 * every file from disk. This must be done before the manager is run.
+	 */
+	public void setCacheBudget(long cacheBudget) {
+		this.cacheBudget = cacheBudget;
+	}
+
+	/**
+	 * Returns the cache of hot files, or null if the manager is not running
+	 * or has no cache.
+	 */
+	public FileCache getFileCache() {
+		return (catalog == null) ? null : catalog.getCache();
+	}
+
+	/**
+	 * Sets the size of the windows that large files are mapped in when their
+	 * chunks are checksummed or compressed, or 0 to read such chunks into
+	 * buffers instead. This must be done before the manager is run.
+	 */
+	public void setMappedWindowSize(int mappedWindowSize) {
+		this.mappedWindowSize = mappedWindowSize;
+	}
+
+	/**
+	 * Returns the pool of mapped file windows, or null if the manager is not
+	 * running or does not map files.
+	 */
+	public MappedRegionPool getRegionPool() {
+		return (catalog == null) ? null : catalog.getRegionPool();
+	}
+
+	/**
+	 * Sets the directory whose files are served, instead of the one named in
+	 * the config file. This must be done before the manager is run.
+	 */
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Sets the file the content hashes of the served files are kept in, or
+	 * null to keep them only in memory. This must be done before the manager
+	 * is run.
+	 */
+	public void setHashStore(File hashStore) {
+		this.hashStore = hashStore;
+	}
+
+	/**
+	 * Sets the port that metrics are served on over HTTP, 0 for any free
+	 * port, or -1 to not serve them, which is the default. This must be done
+	 * before the manager is run.
+	 */
+	public void setMetricsPort(int metricsPort) {
+		this.metricsPort = metricsPort;
+	}
+
+	/**
+	 * Returns the endpoint serving metrics, or null if they are not served.
+	 */
+	public MetricsEndpoint getMetricsEndpoint() {
+		return metricsEndpoint;
+	}
+
+	/**
+	 * Returns the number of connections currently open, including queued
+	 * sessions.
+	 */
+	public int getConnectionCount() {
+		int count = executor.getActiveCount() + executor.getQueuedCount();
+		for (EventLoop loop : eventLoops) {
+			if (loop != null) {
+				count += loop.getConnectionCount();
+			}
+		}
+		return count;
 	}
 
 	/**
@@ -38,45 +288,141 @@ public class TCPServerManager implements Runnable {
 	@Override
 	public void run() {
 		try {
-			System.out.println("Push 'x' to terminate servers.");
-//			Scanner in = new Scanner(System.in);
-			while (currentPort < MAX_PORT) {
+			catalog = new FileCatalog(
+					(directory != null) ? directory : new File(TCPServer.getDataFromConfig()[0]));
+			if (cacheBudget > 0) {
+				catalog.setCache(new FileCache(cacheBudget));
+			}
+			if (mappedWindowSize > 0) {
+				catalog.setRegionPool(new MappedRegionPool(mappedWindowSize, MappedRegionPool.DEFAULT_MAX_IDLE));
+			}
+			catalog.setContentHashes(new ContentHashes(hashStore));
+			Thread watcher = new Thread(catalog, "FileCatalog");
+			watcher.setDaemon(true);
+			watcher.start();
+			registerMetrics();
+			for (int i = 0; i < eventLoops.length; i++) {
+				eventLoops[i] = new EventLoop(catalog, executor, scheduler);
+				eventLoops[i].setCompressionLevel(compressionLevel);
+				eventLoops[i].setUploadsEnabled(uploadsEnabled);
+				eventLoops[i].setTls(tls);
+				loopThreads[i] = new Thread(eventLoops[i], "EventLoop-" + i);
+				loopThreads[i].setDaemon(true);
+				loopThreads[i].start();
+			}
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port), 1024);
+			System.out.println("Listening on port " + port + ".");
+			while (serverChannel.isOpen()) {
 				listen();
-//				if (in.next().equals("x")) {
-//					for (ServerSocket s : serverSockets) {
-//						if (!s.isClosed()) {
-//							s.close();
-//						}
-//					}
-//					System.out.println("Sockets closed.");
-//					break;
-//				}
 			}
-//			in.close();
+		} catch (ClosedChannelException e) {
+			// The manager was closed.
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			try {
+				close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// Publishes the gauges that describe this manager and starts serving
+	// the metrics, if a port was set.
+	private void registerMetrics() {
+		final MetricsRegistry registry = MetricsRegistry.getDefault();
+		registry.gauge("ftp_server_sessions_active", "Connections currently open, including queued sessions.",
+				this::getConnectionCount);
+		registry.gauge("ftp_server_sessions_queued", "Blocking sessions waiting for a thread.",
+				executor::getQueuedCount);
+		registry.gauge("ftp_server_sessions_rejected_total", "Blocking sessions and tasks turned away by the executor.",
+				executor::getRejectedCount);
+		registry.gauge("ftp_server_transfers_shaped", "Transfers currently shaped by the scheduler.",
+				scheduler::getActiveCount);
+		registry.gauge("ftp_server_cache_hits_total", "Requests served from the cache of hot files.",
+				() -> (getFileCache() == null) ? 0 : getFileCache().getHitCount());
+		registry.gauge("ftp_server_cache_misses_total", "Requests for files that were not in the cache.",
+				() -> (getFileCache() == null) ? 0 : getFileCache().getMissCount());
+		registry.registerMBean();
+		if (metricsPort >= 0) {
+			metricsEndpoint = new MetricsEndpoint(registry, metricsPort);
+			metricsEndpoint.run();
 		}
 	}
 
 	/**
-	 * Listens for incoming connections from clients.
-	 * 
+	 * Accepts one incoming connection and registers it with the next
+	 * EventLoop, or gives it to a TCPServer if there are no EventLoops.
+	 *
 	 * @throws IOException
 	 */
 	public void listen() throws IOException {
+		final SocketChannel channel = serverChannel.accept();
 		try {
-			TCPServer server = null;
-			serverSocket = new ServerSocket(currentPort);
-			serverSockets.add(serverSocket);
-			connectionSocket = serverSocket.accept();
-			currentPort++;
-			server = new TCPServer(connectionSocket);
-			Thread t = new Thread(server);
-			t.setDaemon(true);
-			t.start();
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().setKeepAlive(true);
 		} catch (IOException e) {
 			e.printStackTrace();
+			channel.close();
+			return;
 		}
+		if (eventLoops.length == 0) {
+			final TCPServer server = new TCPServer(channel.socket(), new byte[0], catalog);
+			server.setExecutor(executor);
+			server.setScheduler(scheduler);
+			server.setCompressionLevel(compressionLevel);
+			server.setUploadsEnabled(uploadsEnabled);
+			if (tls != null) {
+				server.setTlsChannel(tls.newServerChannel(channel));
+			}
+			ServerMetrics.SESSIONS.increment();
+			executor.execute(server);
+			return;
+		}
+		eventLoops[nextLoop].register(channel);
+		nextLoop = (nextLoop + 1) % eventLoops.length;
 	}
 
+	/**
+	 * Stops accepting connections and closes every open connection: those of
+	 * the EventLoops, which are stopped first, and those of the blocking
+	 * sessions run by the executor. The catalog's resources are released once
+	 * the loops are done with them.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (serverChannel != null) {
+			serverChannel.close();
+		}
+		for (int i = 0; i < eventLoops.length; i++) {
+			if (eventLoops[i] != null) {
+				eventLoops[i].close();
+			}
+			if (loopThreads[i] != null && loopThreads[i] != Thread.currentThread()) {
+				try {
+					loopThreads[i].join(LOOP_SHUTDOWN_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		executor.closeSessions();
+		if (metricsEndpoint != null) {
+			metricsEndpoint.close();
+		}
+		if (catalog != null) {
+			catalog.close();
+			if (catalog.getCache() != null) {
+				catalog.getCache().clear();
+			}
+			if (catalog.getRegionPool() != null) {
+				catalog.getRegionPool().clear();
+			}
+			if (catalog.getContentHashes() != null) {
+				catalog.getContentHashes().close();
+			}
+		}
+	}
 }
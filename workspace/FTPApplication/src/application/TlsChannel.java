@@ -0,0 +1,574 @@
+package application;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * This class encrypts a connection with an SSLEngine. It reads and writes
+ * plaintext like the channel it wraps, so a FramedSession or a client's
+ * streams work on it unchanged, and it works on blocking channels as well as
+ * on non-blocking ones driven by an EventLoop.
+ *
+ * The handshake is exchanged by the first read() or write(), or by
+ * handshake(). On a non-blocking channel these return 0 until the handshake
+ * is done; the owner must wait for the channel to become writable while
+ * hasPendingOutput() is true, and keep reading while hasBufferedInput() is
+ * true, since those bytes were already taken from the socket.
+ *
+ * The engine's delegated tasks, which do the handshake's certificate and key
+ * exchange work, run on the calling thread unless the channel has a task
+ * executor. In that case the handshake stops while they run on it, and the
+ * owner continues it with flush() once they are done.
+ *
+ * Encrypted records are held in direct buffers from the TlsContext's
+ * BufferPool, which are taken when a record is read or written and given back
+ * as soon as they are empty. An idle connection holds no buffer. Decrypted
+ * bytes go straight into the caller's buffer when it has room for a whole
+ * record, and through a pooled buffer otherwise.
+ *
+ * read() and write() may be called by different threads. close() may be
+ * called by any thread to abort blocked calls.
+ *
+ */
+final class TlsChannel implements ByteChannel {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	private static final int RECORD_HEADER_SIZE = 5;
+	// The most plaintext one record carries.
+	private static final int MAX_RECORD_DATA = 16 * 1024;
+
+	private final SSLEngine engine;
+	private final ReadableByteChannel in;
+	private final WritableByteChannel out;
+	private final BufferPool pool;
+	private final ReentrantLock readLock;
+	private final ReentrantLock writeLock;
+	// Received bytes that were not decrypted yet, ready to be filled.
+	private ByteBuffer netIn;
+	// Decrypted bytes that were not read yet, ready to be drained.
+	private ByteBuffer appIn;
+	// Encrypted bytes that were not sent yet, ready to be drained.
+	private ByteBuffer netOut;
+	private volatile boolean handshaken;
+	private Executor taskExecutor;
+	private Runnable onTasksDone;
+	private volatile boolean runningTasks;
+	private long handshakeStart;
+	private long handshakeStartMillis;
+	private long handshakeNanos;
+	private boolean inboundDone;
+	private volatile boolean closed;
+
+	TlsChannel(SSLEngine engine, ReadableByteChannel in, WritableByteChannel out, BufferPool pool) {
+		this.engine = engine;
+		this.in = in;
+		this.out = out;
+		this.pool = pool;
+		readLock = new ReentrantLock();
+		writeLock = new ReentrantLock();
+	}
+
+	public SSLEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Runs the delegated tasks of the initial handshake on the given executor
+	 * instead of the calling thread. Once they are done, onDone is called on
+	 * the executor's thread.
+	 */
+	public void setTaskExecutor(Executor executor, Runnable onDone) {
+		taskExecutor = executor;
+		onTasksDone = onDone;
+	}
+
+	/**
+	 * Returns true while delegated tasks run on the task executor, during
+	 * which the handshake does not advance.
+	 */
+	public boolean isRunningTasks() {
+		return runningTasks;
+	}
+
+	/**
+	 * Returns true once the initial handshake is done.
+	 */
+	public boolean isHandshaken() {
+		return handshaken;
+	}
+
+	/**
+	 * Returns how long the initial handshake took, from its first message to
+	 * its last, in nanoseconds.
+	 */
+	public long getHandshakeNanos() {
+		return handshakeNanos;
+	}
+
+	/**
+	 * Returns true if the initial handshake resumed a session that was
+	 * negotiated by an earlier connection. A resumed session keeps the
+	 * creation time of the session it resumes.
+	 */
+	public boolean isResumed() {
+		return handshaken && engine.getSession().getCreationTime() < handshakeStartMillis;
+	}
+
+	/**
+	 * Exchanges as much of the handshake as the channel allows without
+	 * blocking, or the whole handshake if the channel is blocking.
+	 *
+	 * @return true once the handshake is done.
+	 * @throws IOException
+	 *             If the handshake failed or the connection closed during
+	 *             it.
+	 */
+	public boolean handshake() throws IOException {
+		readLock.lock();
+		writeLock.lock();
+		try {
+			ensureOpen();
+			if (handshakeStart == 0) {
+				handshakeStart = System.nanoTime();
+				handshakeStartMillis = System.currentTimeMillis();
+				engine.beginHandshake();
+			}
+			while (true) {
+				if (runningTasks || !flushNetOut()) {
+					return false;
+				}
+				final HandshakeStatus status = engine.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					if (taskExecutor == null || handshaken) {
+						runTasks();
+					} else {
+						startTasks();
+						return false;
+					}
+				} else if (status == HandshakeStatus.NEED_WRAP) {
+					if (wrap(EMPTY).getStatus() == SSLEngineResult.Status.CLOSED && netOut == null) {
+						throw new SSLException("The handshake was closed.");
+					}
+				} else if (status == HandshakeStatus.NEED_UNWRAP || status == HandshakeStatus.NEED_UNWRAP_AGAIN) {
+					if (!unwrapHandshake()) {
+						return false;
+					}
+				} else {
+					releaseNetIn();
+					if (!handshaken) {
+						handshakeNanos = System.nanoTime() - handshakeStart;
+						handshaken = true;
+						if (!engine.getUseClientMode()) {
+							ServerMetrics.TLS_HANDSHAKE.record(handshakeNanos);
+							if (isResumed()) {
+								ServerMetrics.TLS_RESUMED.increment();
+							}
+						}
+					}
+					return true;
+				}
+			}
+		} finally {
+			writeLock.unlock();
+			readLock.unlock();
+		}
+	}
+
+	// Processes one handshake record, reading more bytes if it is
+	// incomplete. Returns false if the channel has none.
+	private boolean unwrapHandshake() throws IOException {
+		final SSLEngineResult result = unwrapStaged();
+		if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+			throw new SSLException("The peer closed the connection during the handshake.");
+		}
+		if (result.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+			return true;
+		}
+		final int read = fill();
+		if (read < 0) {
+			throw new SSLException("The connection closed during the TLS handshake.");
+		}
+		return read > 0;
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	// Runs the delegated tasks on the task executor, one after the other.
+	private void startTasks() throws SSLException {
+		runningTasks = true;
+		try {
+			taskExecutor.execute(() -> {
+				try {
+					runTasks();
+				} finally {
+					runningTasks = false;
+					onTasksDone.run();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			runningTasks = false;
+			throw new SSLException("Too many handshakes are waiting", e);
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!handshaken && !handshake()) {
+			return 0;
+		}
+		readLock.lock();
+		try {
+			ensureOpen();
+			while (true) {
+				if (appIn != null) {
+					final int length = Math.min(appIn.remaining(), dst.remaining());
+					final ByteBuffer slice = appIn.duplicate();
+					slice.limit(slice.position() + length);
+					dst.put(slice);
+					appIn.position(appIn.position() + length);
+					releaseAppIn();
+					return length;
+				}
+				if (inboundDone) {
+					return -1;
+				}
+				if (netIn != null && netIn.position() > 0) {
+					final SSLEngineResult result;
+					if (dst.remaining() >= engine.getSession().getApplicationBufferSize()) {
+						result = unwrap(dst);
+					} else {
+						result = unwrapStaged();
+					}
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						inboundDone = true;
+					}
+					if (needsHandshake(result.getHandshakeStatus())) {
+						// A key update or a session ticket after the
+						// handshake.
+						handshake();
+					}
+					if (result.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+						if (appIn == null && result.bytesProduced() > 0) {
+							return result.bytesProduced();
+						}
+						continue;
+					}
+				}
+				final int read = fill();
+				if (read < 0) {
+					inboundDone = true;
+					try {
+						engine.closeInbound();
+					} catch (SSLException e) {
+						// The peer did not send close_notify. The framed
+						// protocol detects truncated responses on its own.
+					}
+					return -1;
+				}
+				if (read == 0) {
+					return 0;
+				}
+			}
+		} finally {
+			releaseNetIn();
+			readLock.unlock();
+		}
+	}
+
+	private static boolean needsHandshake(HandshakeStatus status) {
+		return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+	}
+
+	/**
+	 * Reads bytes from the channel into netIn, taking a buffer from the pool
+	 * if there is none. A buffer that is full without holding a whole record
+	 * is replaced by a larger one, which is not pooled.
+	 *
+	 * @return the number of bytes read, or -1 at the end of the stream.
+	 */
+	private int fill() throws IOException {
+		if (netIn == null) {
+			netIn = pool.acquire();
+		} else if (!netIn.hasRemaining()) {
+			final ByteBuffer larger = ByteBuffer.allocateDirect(netIn.capacity() * 2);
+			netIn.flip();
+			larger.put(netIn);
+			pool.release(netIn);
+			netIn = larger;
+		}
+		return in.read(netIn);
+	}
+
+	// Decrypts one record from netIn into the buffer.
+	private SSLEngineResult unwrap(ByteBuffer dst) throws SSLException {
+		if (netIn == null) {
+			return engine.unwrap(EMPTY, dst);
+		}
+		netIn.flip();
+		try {
+			return engine.unwrap(netIn, dst);
+		} finally {
+			netIn.compact();
+		}
+	}
+
+	// Decrypts one record from netIn into appIn.
+	private SSLEngineResult unwrapStaged() throws SSLException {
+		if (appIn == null) {
+			appIn = pool.acquire();
+		} else {
+			appIn.compact();
+		}
+		try {
+			final SSLEngineResult result = unwrap(appIn);
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				throw new SSLException("No room for a record of " + engine.getSession().getApplicationBufferSize()
+						+ " bytes");
+			}
+			return result;
+		} finally {
+			appIn.flip();
+			releaseAppIn();
+		}
+	}
+
+	private void releaseNetIn() {
+		if (netIn != null && netIn.position() == 0 && !closed) {
+			pool.release(netIn);
+			netIn = null;
+		}
+	}
+
+	private void releaseAppIn() {
+		if (appIn != null && !appIn.hasRemaining() && !closed) {
+			pool.release(appIn);
+			appIn = null;
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (!handshaken && !handshake()) {
+			return 0;
+		}
+		writeLock.lock();
+		try {
+			ensureOpen();
+			int written = 0;
+			while (src.hasRemaining() && flushNetOut()) {
+				final SSLEngineResult result = wrap(src);
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new ClosedChannelException();
+				}
+				written += result.bytesConsumed();
+			}
+			flushNetOut();
+			return written;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Encrypts bytes of a file, read into a pooled buffer a whole record at a
+	 * time. This replaces FileChannel.transferTo, which can't send a file
+	 * without encrypting it and copies through a temporary buffer of half a
+	 * record for channels other than sockets and files.
+	 *
+	 * @return The number of bytes of the file that were written, which is 0
+	 *         if the channel is full or the position is at the end of the
+	 *         file.
+	 * @throws IOException
+	 */
+	public long transferFrom(FileChannel source, long position, long count) throws IOException {
+		if (!handshaken && !handshake()) {
+			return 0;
+		}
+		writeLock.lock();
+		ByteBuffer buffer = null;
+		try {
+			ensureOpen();
+			long written = 0;
+			while (written < count && flushNetOut()) {
+				if (buffer == null) {
+					buffer = pool.acquire();
+				}
+				buffer.clear();
+				buffer.limit((int) Math.min(MAX_RECORD_DATA, count - written));
+				if (source.read(buffer, position + written) <= 0) {
+					break;
+				}
+				buffer.flip();
+				// A record takes the whole buffer; bytes it did not take are
+				// read again from the file.
+				final SSLEngineResult result = wrap(buffer);
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new ClosedChannelException();
+				}
+				written += result.bytesConsumed();
+			}
+			flushNetOut();
+			return written;
+		} finally {
+			if (buffer != null) {
+				pool.release(buffer);
+			}
+			writeLock.unlock();
+		}
+	}
+
+	// Encrypts one record from the buffer into netOut, which must be empty.
+	private SSLEngineResult wrap(ByteBuffer src) throws SSLException {
+		netOut = pool.acquire();
+		try {
+			final SSLEngineResult result = engine.wrap(src, netOut);
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				throw new SSLException("No room for a record of " + engine.getSession().getPacketBufferSize()
+						+ " bytes");
+			}
+			return result;
+		} finally {
+			netOut.flip();
+			if (!netOut.hasRemaining()) {
+				pool.release(netOut);
+				netOut = null;
+			}
+		}
+	}
+
+	// Writes netOut to the channel. Returns false if the channel did not take
+	// all of it.
+	private boolean flushNetOut() throws IOException {
+		while (netOut != null) {
+			if (out.write(netOut) == 0 && netOut.hasRemaining()) {
+				return false;
+			}
+			if (!netOut.hasRemaining()) {
+				pool.release(netOut);
+				netOut = null;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the encrypted bytes that the channel did not take earlier, and
+	 * continues the handshake if it is waiting for them.
+	 *
+	 * @return true if no encrypted bytes are left to write.
+	 * @throws IOException
+	 */
+	public boolean flush() throws IOException {
+		if (!handshaken) {
+			handshake();
+		}
+		writeLock.lock();
+		try {
+			ensureOpen();
+			return flushNetOut();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns true while encrypted bytes wait to be written by flush().
+	 */
+	public boolean hasPendingOutput() {
+		return netOut != null;
+	}
+
+	/**
+	 * Returns true if bytes were already taken from the socket that read()
+	 * can return: decrypted bytes, or at least one whole record.
+	 */
+	public boolean hasBufferedInput() {
+		if (appIn != null) {
+			return true;
+		}
+		final ByteBuffer received = netIn;
+		if (received == null || received.position() < RECORD_HEADER_SIZE) {
+			return false;
+		}
+		final int length = ((received.get(3) & 0xFF) << 8) | (received.get(4) & 0xFF);
+		return received.position() >= RECORD_HEADER_SIZE + length;
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Sends close_notify, if no write is in progress, and closes the
+	 * underlying channels. Buffers that are not in use by a blocked call are
+	 * given back to the pool.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		engine.closeOutbound();
+		if (writeLock.tryLock()) {
+			try {
+				if (handshaken && netOut == null) {
+					wrap(EMPTY);
+					flushNetOut();
+				}
+			} catch (IOException e) {
+				// The peer is gone.
+			} finally {
+				closed = true;
+				if (netOut != null) {
+					pool.release(netOut);
+					netOut = null;
+				}
+				writeLock.unlock();
+			}
+		}
+		closed = true;
+		try {
+			in.close();
+			out.close();
+		} finally {
+			if (readLock.tryLock()) {
+				try {
+					if (netIn != null) {
+						pool.release(netIn);
+						netIn = null;
+					}
+					if (appIn != null) {
+						pool.release(appIn);
+						appIn = null;
+					}
+				} finally {
+					readLock.unlock();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * This class holds what the TLS connections of a TCPServerManager or a
+ * TCPClient share: the SSLContext with the keys and trusted certificates, the
+ * protocols and cipher suites that may be negotiated, and the BufferPool of
+ * the connections' TLS records.
+ *
+ * Only AES-GCM suites are enabled by default. They are the ones processors
+ * accelerate, and TLS 1.3 allows nothing else that the JDK supports apart
+ * from ChaCha20, which is slower where AES instructions exist.
+ *
+ * The SSLContext also keeps the sessions that were negotiated. A client that
+ * connects to the same host and port again with the same TlsContext resumes
+ * its session, with a TLS 1.3 session ticket or a TLS 1.2 session id, instead
+ * of repeating the full handshake with its certificate checks and key
+ * exchange. Sessions can be resumed for getSessionTimeout() seconds.
+ *
+ */
+public final class TlsContext {
+	/** The protocols enabled by default, in order of preference. */
+	public static final String[] DEFAULT_PROTOCOLS = { "TLSv1.3", "TLSv1.2" };
+	/** The cipher suites enabled by default, in order of preference. */
+	public static final String[] DEFAULT_CIPHER_SUITES = { "TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384",
+			"TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+			"TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384" };
+	public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+	/** The number of idle record buffers kept for reuse. */
+	public static final int DEFAULT_MAX_IDLE_BUFFERS = 256;
+
+	private final SSLContext context;
+	private final BufferPool bufferPool;
+	private volatile String[] protocols;
+	private volatile String[] cipherSuites;
+
+	/**
+	 * Constructs a TlsContext that negotiates with the given SSLContext.
+	 */
+	public TlsContext(SSLContext context) {
+		this.context = context;
+		setSessionTimeout(DEFAULT_SESSION_TIMEOUT_SECONDS);
+		final SSLEngine probe = context.createSSLEngine();
+		protocols = supported(DEFAULT_PROTOCOLS, probe.getSupportedProtocols());
+		cipherSuites = supported(DEFAULT_CIPHER_SUITES, probe.getSupportedCipherSuites());
+		// The buffers hold a whole record, encrypted or decrypted.
+		final int bufferSize = Math.max(probe.getSession().getPacketBufferSize(),
+				probe.getSession().getApplicationBufferSize());
+		bufferPool = new BufferPool(bufferSize, DEFAULT_MAX_IDLE_BUFFERS);
+	}
+
+	/**
+	 * Creates a TlsContext from key store and trust store files, which may be
+	 * PKCS12 or JKS files.
+	 *
+	 * @param keyStore
+	 *            The key store with the private key and certificate this end
+	 *            identifies itself with, or null for none, as for clients.
+	 * @param keyPassword
+	 *            The password of the key store and its key.
+	 * @param trustStore
+	 *            The trust store with the certificates of the peers that are
+	 *            trusted, or null to trust the JVM's default authorities.
+	 * @param trustPassword
+	 *            The password of the trust store, or null.
+	 * @throws IOException
+	 *             If a store could not be read.
+	 * @throws GeneralSecurityException
+	 *             If a store or its keys could not be used.
+	 */
+	public static TlsContext load(File keyStore, char[] keyPassword, File trustStore, char[] trustPassword)
+			throws IOException, GeneralSecurityException {
+		KeyManagerFactory keyManagers = null;
+		if (keyStore != null) {
+			keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(KeyStore.getInstance(keyStore, keyPassword), keyPassword);
+		}
+		TrustManagerFactory trustManagers = null;
+		if (trustStore != null) {
+			trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trustManagers.init(KeyStore.getInstance(trustStore, trustPassword));
+		}
+		final SSLContext context = SSLContext.getInstance("TLS");
+		context.init((keyManagers == null) ? null : keyManagers.getKeyManagers(),
+				(trustManagers == null) ? null : trustManagers.getTrustManagers(), null);
+		return new TlsContext(context);
+	}
+
+	// Returns the wanted names that are supported, in the order they are
+	// wanted.
+	private static String[] supported(String[] wanted, String[] supported) {
+		final List<String> names = new ArrayList<>();
+		for (String name : wanted) {
+			if (Arrays.asList(supported).contains(name)) {
+				names.add(name);
+			}
+		}
+		return names.toArray(new String[0]);
+	}
+
+	public SSLContext getContext() {
+		return context;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	public String[] getProtocols() {
+		return protocols.clone();
+	}
+
+	/**
+	 * Sets the protocols that may be negotiated by connections opened from now
+	 * on, in order of preference.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If none of the protocols is supported.
+	 */
+	public void setProtocols(String... protocols) {
+		final String[] names = supported(protocols, context.getSupportedSSLParameters().getProtocols());
+		if (names.length == 0) {
+			throw new IllegalArgumentException("None of " + Arrays.toString(protocols) + " is supported");
+		}
+		this.protocols = names;
+	}
+
+	public String[] getCipherSuites() {
+		return cipherSuites.clone();
+	}
+
+	/**
+	 * Sets the cipher suites that may be negotiated by connections opened from
+	 * now on, in order of preference. Suites the JDK does not support are
+	 * ignored.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If none of the suites is supported.
+	 */
+	public void setCipherSuites(String... cipherSuites) {
+		final String[] names = supported(cipherSuites, context.getSupportedSSLParameters().getCipherSuites());
+		if (names.length == 0) {
+			throw new IllegalArgumentException("None of " + Arrays.toString(cipherSuites) + " is supported");
+		}
+		this.cipherSuites = names;
+	}
+
+	/**
+	 * Returns how long a negotiated session can be resumed, in seconds.
+	 */
+	public int getSessionTimeout() {
+		return context.getClientSessionContext().getSessionTimeout();
+	}
+
+	/**
+	 * Sets how long a negotiated session can be resumed, in seconds, or 0 for
+	 * no limit.
+	 */
+	public void setSessionTimeout(int seconds) {
+		context.getClientSessionContext().setSessionTimeout(seconds);
+		context.getServerSessionContext().setSessionTimeout(seconds);
+	}
+
+	/**
+	 * Wraps a connection accepted by a server. The handshake is exchanged
+	 * when the channel is first read from.
+	 */
+	TlsChannel newServerChannel(SocketChannel channel) {
+		final SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		configure(engine);
+		return new TlsChannel(engine, channel, channel, bufferPool);
+	}
+
+	/**
+	 * Wraps a client's connection to a server. The host and port identify
+	 * the session to resume, and the host is checked against the server's
+	 * certificate.
+	 *
+	 * @param in
+	 *            The channel the server's records are read from.
+	 * @param out
+	 *            The channel the client's records are written to.
+	 */
+	TlsChannel newClientChannel(String host, int port, ReadableByteChannel in, WritableByteChannel out) {
+		final SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		configure(engine);
+		final SSLParameters parameters = engine.getSSLParameters();
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		engine.setSSLParameters(parameters);
+		return new TlsChannel(engine, in, out, bufferPool);
+	}
+
+	private void configure(SSLEngine engine) {
+		final SSLParameters parameters = engine.getSSLParameters();
+		parameters.setProtocols(protocols);
+		parameters.setCipherSuites(cipherSuites);
+		parameters.setUseCipherSuitesOrder(true);
+		engine.setSSLParameters(parameters);
+	}
+}
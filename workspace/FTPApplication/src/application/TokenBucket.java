@@ -0,0 +1,101 @@
+package application;
+
+/**
+ * This class is a token bucket holding permission to send bytes. Tokens are
+ * added at a fixed rate, up to a capacity of BURST_NANOS worth of them, but
+ * never less than MIN_CAPACITY, so a sender that was idle can only get a
+ * little ahead of its rate. A rate of 0 means the bucket is unlimited.
+ *
+ * The rate can be changed at any time from any thread.
+ *
+ */
+final class TokenBucket {
+	// How long the bucket keeps filling while nobody takes from it.
+	private static final long BURST_NANOS = 50000000L;
+	private static final long MIN_CAPACITY = 64 * 1024;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private long rate;
+	private long capacity;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Constructs a full bucket.
+	 *
+	 * @param rate
+	 *            The number of tokens added per second, or 0 for no limit.
+	 */
+	public TokenBucket(long rate) {
+		lastRefill = System.nanoTime();
+		setRate(rate);
+		tokens = capacity;
+	}
+
+	/**
+	 * Changes the number of tokens added per second. The tokens already in the
+	 * bucket are kept, up to the new capacity.
+	 */
+	public synchronized void setRate(long rate) {
+		refill(System.nanoTime());
+		this.rate = Math.max(0, rate);
+		capacity = Math.max(MIN_CAPACITY, this.rate * BURST_NANOS / NANOS_PER_SECOND);
+		tokens = Math.min(tokens, capacity);
+	}
+
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	public synchronized boolean isUnlimited() {
+		return rate == 0;
+	}
+
+	/**
+	 * Takes up to wanted tokens, but only if at least minimum of them are
+	 * available, so that senders don't wake up for a handful of bytes.
+	 *
+	 * @return the number of tokens taken, 0 if fewer than minimum were
+	 *         available.
+	 */
+	public synchronized long take(long wanted, long minimum) {
+		if (rate == 0) {
+			return wanted;
+		}
+		refill(System.nanoTime());
+		final long available = (long) tokens;
+		if (available < Math.min(wanted, minimum)) {
+			return 0;
+		}
+		final long taken = Math.min(wanted, available);
+		tokens -= taken;
+		return taken;
+	}
+
+	/**
+	 * Puts back tokens that were taken but not used.
+	 */
+	public synchronized void giveBack(long unused) {
+		tokens = Math.min(capacity, tokens + unused);
+	}
+
+	/**
+	 * Returns how long it will take until the given number of tokens are
+	 * available, in nanoseconds; 0 if they are available now.
+	 */
+	public synchronized long nanosUntil(long wanted) {
+		if (rate == 0) {
+			return 0;
+		}
+		refill(System.nanoTime());
+		final double missing = Math.min(wanted, capacity) - tokens;
+		return (missing <= 0) ? 0 : (long) Math.ceil(missing * NANOS_PER_SECOND / rate);
+	}
+
+	private void refill(long now) {
+		if (rate > 0) {
+			tokens = Math.min(capacity, tokens + (double) (now - lastRefill) * rate / NANOS_PER_SECOND);
+		}
+		lastRefill = now;
+	}
+}
@@ -0,0 +1,17 @@
+package application;
+
+import java.io.InterruptedIOException;
+
+/**
+ * This exception is thrown by a TCPClient when the thread receiving or
+ * uploading a file is interrupted. The partly received file is deleted, and
+ * the connection is left in the middle of a transfer, so it must be closed.
+ *
+ */
+public class TransferCancelledException extends InterruptedIOException {
+	private static final long serialVersionUID = 1L;
+
+	TransferCancelledException(String fileName) {
+		super("The transfer of " + fileName + " was cancelled.");
+	}
+}
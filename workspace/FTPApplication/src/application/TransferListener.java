@@ -0,0 +1,29 @@
+package application;
+
+/**
+ * This interface is implemented by objects that follow the downloads of a
+ * TCPClient. Its methods are called on the thread receiving the file.
+ *
+ */
+public interface TransferListener {
+	/**
+	 * Called when the server has described the file and before its bytes
+	 * arrive.
+	 * 
+	 * @param fileSize
+	 *            The size of the file.
+	 * @param offset
+	 *            The number of bytes that were already received by an
+	 *            earlier attempt, and are not sent again.
+	 */
+	void started(String fileName, long fileSize, long offset);
+
+	/**
+	 * Called whenever more of the file has been received.
+	 * 
+	 * @param position
+	 *            The number of the file's bytes received so far, including
+	 *            the offset passed to started().
+	 */
+	void progress(String fileName, long position);
+}
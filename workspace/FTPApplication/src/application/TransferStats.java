@@ -0,0 +1,92 @@
+package application;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * This class counts what one file transfer cost: the number of file bytes
+ * transferred, the number of bytes they took on the wire, and the CPU time
+ * spent compressing or decompressing them.
+ *
+ */
+public class TransferStats {
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final boolean CPU_TIME_SUPPORTED = THREADS.isCurrentThreadCpuTimeSupported();
+
+	private final String fileName;
+	private long fileBytes;
+	private long wireBytes;
+	private long codecNanos;
+	private Codec codec;
+
+	public TransferStats(String fileName) {
+		this.fileName = fileName;
+	}
+
+	/**
+	 * Returns the CPU time of the current thread in nanoseconds, or the wall
+	 * clock time if the JVM can't measure CPU time.
+	 */
+	static long cpuTime() {
+		return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	/**
+	 * Adds a chunk to the transfer.
+	 *
+	 * @param fileBytes
+	 *            The number of file bytes in the chunk.
+	 * @param wireBytes
+	 *            The number of payload bytes the chunk took on the wire.
+	 */
+	void addChunk(long fileBytes, long wireBytes) {
+		this.fileBytes += fileBytes;
+		this.wireBytes += wireBytes;
+	}
+
+	void addCodecTime(Codec codec, long nanos) {
+		this.codec = codec;
+		codecNanos += nanos;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public long getFileBytes() {
+		return fileBytes;
+	}
+
+	public long getWireBytes() {
+		return wireBytes;
+	}
+
+	/**
+	 * Returns the CPU time spent compressing or decompressing, in nanoseconds.
+	 */
+	public long getCodecNanos() {
+		return codecNanos;
+	}
+
+	/**
+	 * Returns the number of file bytes per byte on the wire; 1 if nothing was
+	 * compressed.
+	 */
+	public double getRatio() {
+		return (wireBytes == 0) ? 1 : (double) fileBytes / wireBytes;
+	}
+
+	/**
+	 * Returns true if any chunk was sent compressed.
+	 */
+	public boolean isCompressed() {
+		return wireBytes < fileBytes;
+	}
+
+	@Override
+	public String toString() {
+		final String compression = (codec == null) ? "uncompressed"
+				: String.format("%s ratio %.2fx, %.1f ms CPU", codec, getRatio(), codecNanos / 1e6);
+		return String.format("%s: %d bytes as %d bytes, %s", fileName, fileBytes, wireBytes, compression);
+	}
+}
@@ -0,0 +1,347 @@
+package application;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * This class writes one file uploaded to the server. The bytes of each DATA
+ * frame go straight from the session's input buffer to a temporary file in
+ * the served directory, so an upload holds no more than one frame in memory
+ * whatever the size of the file. The temporary file's name starts with a dot
+ * and ends with TEMP_SUFFIX, which keeps it out of the FileCatalog.
+ *
+ * Checksum trailers are verified as the frames arrive, and the SHA-256 of the
+ * whole file is computed along the way. A chunk that fails its checksum is
+ * not written but recorded, and once the last frame has arrived the client is
+ * asked to send the recorded chunks again, each in a DATA frame with
+ * FLAG_RANGE set whose payload starts with the chunk's position. Chunks are
+ * asked for at most MAX_REPAIR_ROUNDS times. The SHA-256 of a file that had
+ * chunks sent again is computed from the temporary file.
+ *
+ * Once every byte has arrived and matched, the file is forced to disk and
+ * renamed over the target in a single step, so other clients see either the
+ * old file or the complete new one. An upload that fails leaves no trace.
+ *
+ */
+final class UploadFile {
+	/** The suffix of the temporary files of uploads in progress. */
+	public static final String TEMP_SUFFIX = ".upload";
+	/** How many times chunks that failed their checksums are asked for. */
+	public static final int MAX_REPAIR_ROUNDS = 3;
+	/** The bytes before the file bytes of a chunk that is sent again. */
+	public static final int POSITION_SIZE = 8;
+
+	private final File target;
+	private final File temporary;
+	private final FileChannel channel;
+	private final long size;
+	private final long lastModified;
+	private final boolean checksummed;
+	private final CRC32C crc;
+	private final MessageDigest digest;
+	// The position and length of every chunk that has to be sent again.
+	private final List<long[]> badChunks;
+	private long position;
+	private long bytesReceived;
+	private boolean complete;
+	private int repairRounds;
+	private byte[] expectedHash;
+	private byte[] hash;
+	// Why the upload can't be published, or null.
+	private String failure;
+
+	private UploadFile(File target, File temporary, FileChannel channel, PutRequest request) {
+		this.target = target;
+		this.temporary = temporary;
+		this.channel = channel;
+		size = request.getSize();
+		lastModified = request.getLastModified();
+		checksummed = request.isChecksummed();
+		crc = new CRC32C();
+		digest = ChecksumVerifier.newDigest();
+		badChunks = new ArrayList<>();
+	}
+
+	/**
+	 * Creates the temporary file of an upload into the directory and
+	 * extends it to the size of the file.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the name is not the name of a file within the directory,
+	 *             or is reserved for temporary files.
+	 * @throws IOException
+	 *             If the file could not be created or the disk does not have
+	 *             room for it.
+	 */
+	public static UploadFile create(File directory, PutRequest request) throws IOException {
+		final String name = request.getFileName();
+		if (name.isEmpty() || name.equals(".") || name.equals("..") || !new File(name).getName().equals(name)
+				|| isTemporary(name)) {
+			throw new IllegalArgumentException("Not a file name: " + name);
+		}
+		final long usable = directory.getUsableSpace();
+		// 0 means that the space could not be determined.
+		if (usable > 0 && usable < request.getSize()) {
+			throw new IOException("Not enough space for " + name + ": " + request.getSize() + " bytes needed, "
+					+ usable + " available");
+		}
+		final File temporary = Files.createTempFile(directory.toPath(), "." + name + ".", TEMP_SUFFIX).toFile();
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE);
+			if (request.getSize() > 0) {
+				// Writing the last byte sets the file's final length.
+				channel.write(ByteBuffer.allocate(1), request.getSize() - 1);
+			}
+		} catch (IOException e) {
+			if (channel != null) {
+				channel.close();
+			}
+			temporary.delete();
+			throw e;
+		}
+		return new UploadFile(new File(directory, name), temporary, channel, request);
+	}
+
+	/**
+	 * Returns true if the name is that of the temporary file of an upload.
+	 */
+	public static boolean isTemporary(String name) {
+		return name.startsWith(".") && name.endsWith(TEMP_SUFFIX);
+	}
+
+	public File getTarget() {
+		return target;
+	}
+
+	/**
+	 * Returns true if the DATA frames of the upload carry checksums.
+	 */
+	public boolean isChecksummed() {
+		return checksummed;
+	}
+
+	/**
+	 * Returns the number of file bytes received so far, including chunks
+	 * that were sent again.
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Writes the file bytes of a DATA frame and checks its trailer, if it has
+	 * one. A chunk that fails its checksum is recorded to be sent again. A
+	 * chunk that can't be written fails the upload; the rest of the frames
+	 * are still accepted, but not written.
+	 *
+	 * @param payload
+	 *            The frame's payload, which is consumed.
+	 * @return true if the frame was the last one.
+	 * @throws ProtocolException
+	 *             If the frame holds more bytes than were announced, or too
+	 *             few in the last frame.
+	 */
+	public boolean write(FrameHeader header, ByteBuffer payload) throws ProtocolException {
+		final int length = ChecksumVerifier.dataLength(header);
+		if (complete || length > size - position || (header.isLast() && length != size - position)) {
+			throw new ProtocolException("Upload of " + target.getName() + " does not have the announced " + size
+					+ " bytes");
+		}
+		final ByteBuffer data = take(payload, length);
+		if (failure == null) {
+			digest.update(data.duplicate());
+			if (checksummed && !matches(data, payload.getInt())) {
+				badChunks.add(new long[] { position, length });
+			} else {
+				writeAt(data, position);
+			}
+		}
+		position += length;
+		bytesReceived += length;
+		if (header.isLast()) {
+			complete = true;
+			if (checksummed) {
+				expectedHash = new byte[ChecksumVerifier.DIGEST_SIZE];
+				payload.get(expectedHash);
+			}
+			if (badChunks.isEmpty()) {
+				hash = digest.digest();
+				if (failure == null && expectedHash != null && !MessageDigest.isEqual(expectedHash, hash)) {
+					failure = "The SHA-256 of " + target.getName() + " does not match";
+				}
+			}
+		}
+		payload.position(payload.limit());
+		return header.isLast();
+	}
+
+	/**
+	 * Writes a chunk that was asked for again, from a DATA frame with
+	 * FLAG_RANGE set. A chunk that fails its checksum again stays recorded.
+	 *
+	 * @param payload
+	 *            The frame's payload, which is consumed.
+	 * @return true if the frame was the last one the client sends again.
+	 * @throws ProtocolException
+	 *             If no chunks were asked for, or the frame's chunk is not
+	 *             one of them.
+	 */
+	public boolean writeRepair(FrameHeader header, ByteBuffer payload) throws ProtocolException {
+		final int length = ChecksumVerifier.dataLength(header) - POSITION_SIZE;
+		if (!isRepairing() || !ChecksumVerifier.hasTrailer(header) || length < 0) {
+			throw new ProtocolException("Unexpected " + header);
+		}
+		final long at = payload.getLong();
+		long[] chunk = null;
+		for (long[] bad : badChunks) {
+			if (bad[0] == at && bad[1] == length) {
+				chunk = bad;
+			}
+		}
+		if (chunk == null) {
+			throw new ProtocolException("The chunk of " + target.getName() + " at " + at + " was not asked for");
+		}
+		final ByteBuffer data = take(payload, length);
+		if (failure == null && matches(data, payload.getInt())) {
+			writeAt(data, at);
+			badChunks.remove(chunk);
+		}
+		bytesReceived += length;
+		payload.position(payload.limit());
+		return header.isLast();
+	}
+
+	// Returns the next length bytes of the payload, which skips them.
+	private static ByteBuffer take(ByteBuffer payload, int length) {
+		final ByteBuffer data = payload.duplicate();
+		data.limit(data.position() + length);
+		payload.position(payload.position() + length);
+		return data;
+	}
+
+	private boolean matches(ByteBuffer data, int expectedCrc) {
+		crc.reset();
+		crc.update(data.duplicate());
+		return (int) crc.getValue() == expectedCrc;
+	}
+
+	private void writeAt(ByteBuffer data, long at) {
+		try {
+			while (data.hasRemaining()) {
+				at += channel.write(data, at);
+			}
+		} catch (IOException e) {
+			failure = e.toString();
+		}
+	}
+
+	/**
+	 * Returns true while chunks that failed their checksums are being sent
+	 * again.
+	 */
+	public boolean isRepairing() {
+		return complete && failure == null && !badChunks.isEmpty() && repairRounds > 0;
+	}
+
+	/**
+	 * Returns true once the last frame has arrived and chunks have to be
+	 * sent again before the upload can be published.
+	 */
+	public boolean needsRepair() {
+		return complete && failure == null && !badChunks.isEmpty();
+	}
+
+	/**
+	 * Returns the position and length of every chunk that has to be sent
+	 * again, and starts waiting for them. Once the chunks have been asked for
+	 * MAX_REPAIR_ROUNDS times, the upload fails instead and no chunks are
+	 * returned.
+	 */
+	public List<long[]> startRepair() {
+		if (++repairRounds > MAX_REPAIR_ROUNDS) {
+			failure = badChunks.size() + " chunks of " + target.getName() + " failed their checksums "
+					+ MAX_REPAIR_ROUNDS + " times";
+			return new ArrayList<>();
+		}
+		return new ArrayList<>(badChunks);
+	}
+
+	/**
+	 * Returns why the upload can't be published, or null if it can.
+	 */
+	public String getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns the SHA-256 of the uploaded bytes, once the file has been
+	 * published.
+	 */
+	public byte[] getHash() {
+		return hash;
+	}
+
+	/**
+	 * Forces the temporary file to disk, gives it the requested modification
+	 * time and renames it to the target, replacing any existing file. If
+	 * chunks were sent again, the file's SHA-256 is computed from the
+	 * temporary file first and checked. This blocks on the disk.
+	 *
+	 * @throws IOException
+	 *             If the upload failed or the file could not be published.
+	 *             The temporary file is deleted.
+	 */
+	public void publish() throws IOException {
+		try {
+			if (failure == null && !badChunks.isEmpty()) {
+				failure = badChunks.size() + " chunks of " + target.getName() + " were not sent again";
+			}
+			if (failure != null) {
+				throw new IOException(failure);
+			}
+			if (hash == null) {
+				hash = ContentHashes.compute(temporary, size);
+				if (expectedHash != null && !MessageDigest.isEqual(expectedHash, hash)) {
+					throw new IOException("The SHA-256 of " + target.getName() + " does not match");
+				}
+			}
+			channel.force(true);
+			channel.close();
+			if (lastModified > 0) {
+				temporary.setLastModified(lastModified);
+			}
+			try {
+				Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes and deletes the temporary file.
+	 */
+	public void abort() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		temporary.delete();
+	}
+}
@@ -0,0 +1,15 @@
+package application;
+
+/**
+ * This enumeration selects how a TCPClient talks to a TCPServer. The server
+ * detects which protocol a client speaks from the first bytes it sends, so both
+ * can be used against the same server.
+ * 
+ * OBJECT_STREAM is the original protocol, in which Strings, Booleans, the file
+ * set and FileEvent objects are exchanged through Java serialization. FRAMED
+ * is a compact binary protocol made of FrameHeader-prefixed messages.
+ *
+ */
+public enum WireProtocol {
+	OBJECT_STREAM, FRAMED;
+}
@@ -0,0 +1,96 @@
+package packetutils.tester;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This class generates the files a load test downloads. Files are created in
+ * classes, such as many small files and a few large ones, and the sizes
+ * within a class are spread log-uniformly between the class's smallest and
+ * largest size, so a class from 1 KiB to 1 MiB has as many files below
+ * 32 KiB as above. The contents are random and don't compress. The same seed
+ * always generates the same corpus.
+ *
+ */
+final class Corpus {
+	private final File directory;
+	private final Random random;
+	private final Map<String, Long> sizes;
+
+	/**
+	 * Constructs an empty corpus.
+	 *
+	 * @param directory
+	 *            The directory the files are created in.
+	 * @param seed
+	 *            The seed of the sizes and contents of the files.
+	 */
+	Corpus(File directory, long seed) {
+		this.directory = directory;
+		random = new Random(seed);
+		sizes = new HashMap<>();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Creates count files named after the prefix with sizes from minSize to
+	 * maxSize bytes.
+	 *
+	 * @return the names of the new files.
+	 * @throws IOException
+	 *             If a file could not be written.
+	 */
+	public List<String> addFiles(String prefix, int count, long minSize, long maxSize) throws IOException {
+		final List<String> names = new ArrayList<>(count);
+		final double logMin = Math.log(Math.max(1, minSize));
+		final double logMax = Math.log(Math.max(minSize, maxSize));
+		final byte[] buffer = new byte[64 * 1024];
+		for (int i = 0; i < count; i++) {
+			final long size = Math.round(Math.exp(logMin + random.nextDouble() * (logMax - logMin)));
+			final String name = String.format("%s-%05d.dat", prefix, i);
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(directory, name)))) {
+				for (long written = 0; written < size; written += buffer.length) {
+					random.nextBytes(buffer);
+					out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+				}
+			}
+			sizes.put(name, size);
+			names.add(name);
+		}
+		return Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * Returns the size of a file of the corpus, in bytes.
+	 */
+	public long getSize(String name) {
+		return sizes.get(name);
+	}
+
+	/**
+	 * Returns the number of bytes in all files of the corpus.
+	 */
+	public long getTotalSize() {
+		long total = 0;
+		for (long size : sizes.values()) {
+			total += size;
+		}
+		return total;
+	}
+
+	public int getFileCount() {
+		return sizes.size();
+	}
+}
@@ -0,0 +1,195 @@
+package packetutils.tester;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class forwards connections to a server on the loopback interface and
+ * injects faults into chosen ones. Connections are numbered from 0 in the
+ * order they are accepted; each can be slowed down, cut off after a number of
+ * bytes, or have one of its bytes flipped, so tests can check that clients
+ * and servers recover from slow links, dropped connections and corrupted
+ * data.
+ *
+ */
+final class FaultProxy implements Closeable {
+	private static final int BUFFER_SIZE = 8 * 1024;
+	// How often, and how long apart, connecting to a server that is still
+	// starting is tried.
+	private static final int CONNECT_ATTEMPTS = 50;
+	private static final int CONNECT_DELAY_MILLIS = 100;
+
+	private final int targetPort;
+	private final ServerSocket serverSocket;
+	private final Map<Integer, Fault> faults;
+	private int connectionCount;
+
+	/**
+	 * Starts a proxy on a free port for the server on the given port.
+	 *
+	 * @throws IOException
+	 *             If no port could be bound.
+	 */
+	FaultProxy(int targetPort) throws IOException {
+		this.targetPort = targetPort;
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		faults = new ConcurrentHashMap<>();
+		final Thread acceptor = new Thread(this::accept, "FaultProxy-" + serverSocket.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Returns the number of connections accepted so far.
+	 */
+	public synchronized int getConnectionCount() {
+		return connectionCount;
+	}
+
+	/**
+	 * Delays every read of the server's bytes on the given connection.
+	 */
+	public void setDelay(int connection, int millis) {
+		fault(connection).delayMillis = millis;
+	}
+
+	/**
+	 * Closes the given connection once this many of the server's bytes have
+	 * been forwarded on it.
+	 */
+	public void setDropAfter(int connection, long bytes) {
+		fault(connection).dropAfter = bytes;
+	}
+
+	/**
+	 * Flips the lowest bit of the byte at the given position of the stream
+	 * the server sends, or the client sends if fromClient is true.
+	 */
+	public void setCorruptAt(int connection, long position, boolean fromClient) {
+		if (fromClient) {
+			fault(connection).corruptUpstream = position;
+		} else {
+			fault(connection).corruptDownstream = position;
+		}
+	}
+
+	private Fault fault(int connection) {
+		return faults.computeIfAbsent(connection, (key) -> new Fault());
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			final Socket client;
+			final int connection;
+			try {
+				client = serverSocket.accept();
+				synchronized (this) {
+					connection = connectionCount++;
+				}
+			} catch (IOException e) {
+				// The proxy was closed.
+				return;
+			}
+			try {
+				final Socket server = connect();
+				final Fault fault = fault(connection);
+				pump(client, server, fault, true, connection);
+				pump(server, client, fault, false, connection);
+			} catch (IOException e) {
+				e.printStackTrace();
+				closeQuietly(client);
+			}
+		}
+	}
+
+	private Socket connect() throws IOException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return new Socket(InetAddress.getLoopbackAddress(), targetPort);
+			} catch (IOException e) {
+				if (attempt == CONNECT_ATTEMPTS) {
+					throw e;
+				}
+			}
+			try {
+				Thread.sleep(CONNECT_DELAY_MILLIS);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while connecting to port " + targetPort, e);
+			}
+		}
+	}
+
+	// Starts a thread copying one direction of a connection.
+	private void pump(Socket from, Socket to, Fault fault, boolean upstream, int connection) {
+		final Thread t = new Thread(() -> {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			long forwarded = 0;
+			try {
+				final InputStream in = from.getInputStream();
+				final OutputStream out = to.getOutputStream();
+				int read;
+				while ((read = in.read(buffer)) > 0) {
+					if (!upstream && fault.delayMillis > 0) {
+						Thread.sleep(fault.delayMillis);
+					}
+					final long corrupt = upstream ? fault.corruptUpstream : fault.corruptDownstream;
+					if (corrupt >= forwarded && corrupt < forwarded + read) {
+						buffer[(int) (corrupt - forwarded)] ^= 1;
+					}
+					if (!upstream && fault.dropAfter >= 0 && forwarded + read >= fault.dropAfter) {
+						out.write(buffer, 0, (int) (fault.dropAfter - forwarded));
+						break;
+					}
+					out.write(buffer, 0, read);
+					forwarded += read;
+				}
+			} catch (IOException e) {
+				// The other side closed the connection.
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				closeQuietly(from);
+				closeQuietly(to);
+			}
+		}, "FaultProxy-" + connection + (upstream ? "-up" : "-down"));
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops accepting connections. Connections that are open stay open.
+	 */
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+	/**
+	 * The faults of one connection. Positions and sizes are -1 for none.
+	 */
+	private static final class Fault {
+		private volatile int delayMillis;
+		private volatile long dropAfter = -1;
+		private volatile long corruptUpstream = -1;
+		private volatile long corruptDownstream = -1;
+	}
+}
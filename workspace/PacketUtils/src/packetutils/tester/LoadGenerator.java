@@ -0,0 +1,423 @@
+package packetutils.tester;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import application.ServerException;
+import application.SyncPolicy;
+import application.TCPClient;
+import application.TCPServerManager;
+import application.WireProtocol;
+
+/**
+ * This class load-tests a server on the loopback interface. It generates a
+ * corpus of small and large files, serves it with a TCPServerManager, and
+ * runs a number of concurrent clients, each of which sends requests back to
+ * back for the length of the test. Every request is a listing, the download
+ * of a small file or the download of a large file, picked at random with the
+ * configured weights. The results of the warm-up are discarded. With a batch
+ * size above 1, a small-file request downloads that many different small
+ * files with one pipelined TCPClient.sendInputs() call.
+ *
+ * Run it from the command line with options of the form --name=value, for
+ * example:
+ *
+ * <pre>
+ * java packetutils.tester.LoadGenerator --clients=64 --duration=60 --mix=list:1,small:8,large:1
+ *         --small=500:1k-256k --large=8:16m-256m --out=report.json
+ * </pre>
+ *
+ * The report is printed as a table and written as JSON to the --out file, or
+ * to standard output if there is none.
+ *
+ */
+public class LoadGenerator implements Callable<LoadReport> {
+	private int clients = 8;
+	private int durationSeconds = 30;
+	private int warmupSeconds = 5;
+	private int listWeight = 1;
+	private int smallWeight = 8;
+	private int largeWeight = 1;
+	private int smallCount = 200;
+	private long smallMinSize = 1024;
+	private long smallMaxSize = 256 * 1024;
+	private int largeCount = 4;
+	private long largeMinSize = 16 * 1024 * 1024;
+	private long largeMaxSize = 64 * 1024 * 1024;
+	private int batchSize = 1;
+	private WireProtocol protocol = WireProtocol.FRAMED;
+	private SyncPolicy syncPolicy = SyncPolicy.NONE;
+	private int loopCount = Runtime.getRuntime().availableProcessors();
+	private long seed = 49152;
+
+	public static void main(String[] args) throws Exception {
+		final LoadGenerator generator = new LoadGenerator();
+		String out = null;
+		for (String arg : args) {
+			final int equals = arg.indexOf('=');
+			if (!arg.startsWith("--") || equals < 0) {
+				throw new IllegalArgumentException("Expected --name=value but got " + arg);
+			}
+			final String name = arg.substring(2, equals);
+			final String value = arg.substring(equals + 1);
+			if (name.equals("out")) {
+				out = value;
+			} else {
+				generator.set(name, value);
+			}
+		}
+		// The server and the clients log every transfer, which would mix with
+		// the JSON and make the clients wait for each other on System.out.
+		final PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		final LoadReport report;
+		try {
+			report = generator.call();
+		} finally {
+			System.setOut(stdout);
+		}
+		System.err.print(report);
+		if (out == null) {
+			System.out.print(report.toJson());
+		} else {
+			try (PrintStream stream = new PrintStream(out, "UTF-8")) {
+				stream.print(report.toJson());
+			}
+		}
+	}
+
+	/**
+	 * Sets an option by the name it has on the command line.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the name or value is not valid.
+	 */
+	public void set(String name, String value) {
+		switch (name) {
+		case "clients":
+			clients = Integer.parseInt(value);
+			break;
+		case "duration":
+			durationSeconds = Integer.parseInt(value);
+			break;
+		case "warmup":
+			warmupSeconds = Integer.parseInt(value);
+			break;
+		case "mix":
+			// list:1,small:8,large:1
+			listWeight = smallWeight = largeWeight = 0;
+			for (String part : value.split(",")) {
+				final String[] weight = part.split(":");
+				final int w = Integer.parseInt(weight[1]);
+				if (weight[0].equals("list")) {
+					listWeight = w;
+				} else if (weight[0].equals("small")) {
+					smallWeight = w;
+				} else if (weight[0].equals("large")) {
+					largeWeight = w;
+				} else {
+					throw new IllegalArgumentException("Unknown request kind " + weight[0]);
+				}
+			}
+			break;
+		case "small":
+		case "large": {
+			// count:min-max, such as 200:1k-256k
+			final String[] parts = value.split("[:-]");
+			final int count = Integer.parseInt(parts[0]);
+			final long min = parseSize(parts[1]);
+			final long max = parseSize(parts[2]);
+			if (name.equals("small")) {
+				smallCount = count;
+				smallMinSize = min;
+				smallMaxSize = max;
+			} else {
+				largeCount = count;
+				largeMinSize = min;
+				largeMaxSize = max;
+			}
+			break;
+		}
+		case "batch":
+			batchSize = Math.max(1, Integer.parseInt(value));
+			break;
+		case "protocol":
+			protocol = WireProtocol.valueOf(value.toUpperCase());
+			break;
+		case "sync":
+			syncPolicy = SyncPolicy.valueOf(value.toUpperCase());
+			break;
+		case "loops":
+			loopCount = Integer.parseInt(value);
+			break;
+		case "seed":
+			seed = Long.parseLong(value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option --" + name);
+		}
+	}
+
+	// Parses a number of bytes with an optional k, m or g suffix.
+	private static long parseSize(String size) {
+		final char unit = Character.toLowerCase(size.charAt(size.length() - 1));
+		final int shift = (unit == 'k') ? 10 : (unit == 'm') ? 20 : (unit == 'g') ? 30 : 0;
+		return Long.parseLong((shift == 0) ? size : size.substring(0, size.length() - 1)) << shift;
+	}
+
+	/**
+	 * Returns the options in effect, by their command-line names.
+	 */
+	public Map<String, String> getConfig() {
+		final Map<String, String> config = new LinkedHashMap<>();
+		config.put("clients", Integer.toString(clients));
+		config.put("duration", Integer.toString(durationSeconds));
+		config.put("warmup", Integer.toString(warmupSeconds));
+		config.put("mix", "list:" + listWeight + ",small:" + smallWeight + ",large:" + largeWeight);
+		config.put("small", smallCount + ":" + smallMinSize + "-" + smallMaxSize);
+		config.put("large", largeCount + ":" + largeMinSize + "-" + largeMaxSize);
+		config.put("batch", Integer.toString(batchSize));
+		config.put("protocol", protocol.name());
+		config.put("sync", syncPolicy.name());
+		config.put("loops", Integer.toString(loopCount));
+		config.put("seed", Long.toString(seed));
+		config.put("processors", Integer.toString(Runtime.getRuntime().availableProcessors()));
+		config.put("java", System.getProperty("java.version"));
+		return config;
+	}
+
+	/**
+	 * Runs the load test and deletes its files afterwards.
+	 *
+	 * @return the results of the measured part of the test.
+	 */
+	@Override
+	public LoadReport call() throws IOException, InterruptedException {
+		if (listWeight + smallWeight + largeWeight <= 0) {
+			throw new IllegalArgumentException("The mix has no requests.");
+		}
+		final File root = Files.createTempDirectory("LoadGenerator").toFile();
+		TCPServerManager manager = null;
+		try {
+			final File served = new File(root, "served");
+			served.mkdir();
+			final Corpus corpus = new Corpus(served, seed);
+			final List<String> small = corpus.addFiles("small", (smallWeight > 0) ? smallCount : 0, smallMinSize,
+					smallMaxSize);
+			final List<String> large = corpus.addFiles("large", (largeWeight > 0) ? largeCount : 0, largeMinSize,
+					largeMaxSize);
+			System.err.printf("Generated %d files, %.1f MB.%n", corpus.getFileCount(), corpus.getTotalSize() / 1e6);
+
+			final int port;
+			try (ServerSocket socket = new ServerSocket(0)) {
+				port = socket.getLocalPort();
+			}
+			manager = new TCPServerManager(port, loopCount);
+			manager.setDirectory(served);
+			final Thread server = new Thread(manager, "TCPServerManager");
+			server.setDaemon(true);
+			server.start();
+
+			final LoadReport report = new LoadReport(getConfig());
+			final long measureStart = System.nanoTime() + warmupSeconds * 1000000000L;
+			final long deadline = measureStart + durationSeconds * 1000000000L;
+			final Thread[] threads = new Thread[clients];
+			for (int i = 0; i < clients; i++) {
+				final File downloads = new File(root, "client-" + i);
+				downloads.mkdir();
+				final Worker worker = new Worker(port, downloads, new Random(seed + i), corpus, small, large, report,
+						measureStart, deadline);
+				threads[i] = new Thread(worker, "LoadClient-" + i);
+				threads[i].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			report.setDurationSeconds(durationSeconds);
+			return report;
+		} finally {
+			if (manager != null) {
+				manager.close();
+			}
+			delete(root);
+		}
+	}
+
+	static void delete(File directory) throws IOException {
+		Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Sends requests from one client until the deadline. A client whose
+	 * request failed reconnects before its next request, since its connection
+	 * may be broken.
+	 */
+	private final class Worker implements Runnable {
+		private final int port;
+		private final File downloads;
+		private final Random random;
+		private final Corpus corpus;
+		private final List<String> small;
+		private final List<String> large;
+		private final LoadReport report;
+		private final long measureStart;
+		private final long deadline;
+		private TCPClient client;
+
+		Worker(int port, File downloads, Random random, Corpus corpus, List<String> small, List<String> large,
+				LoadReport report, long measureStart, long deadline) {
+			this.port = port;
+			this.downloads = downloads;
+			this.random = random;
+			this.corpus = corpus;
+			this.small = small;
+			this.large = large;
+			this.report = report;
+			this.measureStart = measureStart;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (System.nanoTime() < deadline) {
+					if (client == null && !connect()) {
+						continue;
+					}
+					final LoadReport.Kind kind = pickKind();
+					final long start = System.nanoTime();
+					try {
+						final long bytes = send(kind);
+						if (start >= measureStart) {
+							report.record(kind, System.nanoTime() - start, bytes);
+						}
+					} catch (IOException e) {
+						if (start >= measureStart) {
+							report.recordError(kind, causeOf(e));
+						}
+						closeClient();
+					}
+				}
+			} finally {
+				closeClient();
+			}
+		}
+
+		private boolean connect() {
+			final long start = System.nanoTime();
+			final TCPClient c = new TCPClient("localhost", port, protocol);
+			c.setDownloadDirectory(downloads);
+			c.setSyncPolicy(syncPolicy);
+			c.setFetchListing(false);
+			try {
+				c.connect();
+				if (start >= measureStart) {
+					report.record(LoadReport.Kind.CONNECT, System.nanoTime() - start, 0);
+				}
+				client = c;
+				return true;
+			} catch (IOException e) {
+				if (start >= measureStart) {
+					report.recordError(LoadReport.Kind.CONNECT, causeOf(e));
+				}
+				return false;
+			}
+		}
+
+		private LoadReport.Kind pickKind() {
+			int pick = random.nextInt(listWeight + smallWeight + largeWeight);
+			if (pick < listWeight) {
+				return LoadReport.Kind.LIST;
+			}
+			pick -= listWeight;
+			return (pick < smallWeight) ? LoadReport.Kind.SMALL : LoadReport.Kind.LARGE;
+		}
+
+		// Sends one request and returns the number of file bytes it brought.
+		private long send(LoadReport.Kind kind) throws IOException {
+			if (kind == LoadReport.Kind.LIST) {
+				client.refreshListing();
+				return 0;
+			}
+			if (kind == LoadReport.Kind.SMALL && batchSize > 1) {
+				return sendBatch();
+			}
+			final List<String> names = (kind == LoadReport.Kind.SMALL) ? small : large;
+			final String name = names.get(random.nextInt(names.size()));
+			if (!client.download(name)) {
+				throw new IOException(name + " could not be saved");
+			}
+			return corpus.getSize(name);
+		}
+
+		// Downloads a batch of different small files at once.
+		private long sendBatch() throws IOException {
+			final List<String> names = new ArrayList<>(small);
+			final List<File> files = new ArrayList<>(batchSize);
+			long bytes = 0;
+			while (files.size() < batchSize && !names.isEmpty()) {
+				final String name = names.remove(random.nextInt(names.size()));
+				files.add(new File(name));
+				bytes += corpus.getSize(name);
+			}
+			final List<String> saved = client.sendInputs(files);
+			if (saved.size() != files.size()) {
+				throw new IOException((files.size() - saved.size()) + " of " + files.size()
+						+ " files could not be saved");
+			}
+			return bytes;
+		}
+
+		private void closeClient() {
+			if (client != null) {
+				try {
+					client.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				client = null;
+			}
+		}
+	}
+
+	private static String causeOf(IOException e) {
+		if (e instanceof ServerException) {
+			return ((ServerException) e).getErrorCode().name();
+		}
+		return e.getClass().getSimpleName();
+	}
+}
@@ -0,0 +1,228 @@
+package packetutils.tester;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import application.LatencyHistogram;
+
+/**
+ * This class collects the results of a load test: for every kind of request,
+ * how many completed, how many bytes they brought, how long they took, and
+ * how many failed and why. Client threads record into it concurrently.
+ *
+ * The report is written as JSON by toJson(), for capacity planning scripts,
+ * and as a table by toString().
+ *
+ */
+public final class LoadReport {
+	/**
+	 * The kinds of requests a load test sends. CONNECT is not part of the mix;
+	 * it is recorded whenever a client (re)connects.
+	 */
+	public enum Kind {
+		CONNECT, LIST, SMALL, LARGE
+	}
+
+	private final Map<Kind, Stats> stats;
+	private final Map<String, String> config;
+	private double durationSeconds;
+
+	LoadReport(Map<String, String> config) {
+		this.config = config;
+		stats = new EnumMap<>(Kind.class);
+		for (Kind kind : Kind.values()) {
+			stats.put(kind, new Stats());
+		}
+	}
+
+	/**
+	 * Records a request that completed.
+	 *
+	 * @param nanos
+	 *            How long the request took.
+	 * @param bytes
+	 *            The number of file bytes it received.
+	 */
+	void record(Kind kind, long nanos, long bytes) {
+		final Stats s = stats.get(kind);
+		s.latency.record(nanos);
+		s.bytes.add(bytes);
+	}
+
+	/**
+	 * Records a request that failed.
+	 *
+	 * @param cause
+	 *            The error code or exception class of the failure.
+	 */
+	void recordError(Kind kind, String cause) {
+		stats.get(kind).errors.computeIfAbsent(cause, (k) -> new LongAdder()).increment();
+	}
+
+	void setDurationSeconds(double durationSeconds) {
+		this.durationSeconds = durationSeconds;
+	}
+
+	/**
+	 * Returns the length of the measured part of the test, in seconds.
+	 */
+	public double getDurationSeconds() {
+		return durationSeconds;
+	}
+
+	public long getRequestCount(Kind kind) {
+		return stats.get(kind).latency.getCount();
+	}
+
+	public long getErrorCount(Kind kind) {
+		long count = 0;
+		for (LongAdder adder : stats.get(kind).errors.values()) {
+			count += adder.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the latency histogram of the requests of the given kind, in
+	 * nanoseconds.
+	 */
+	public LatencyHistogram getLatency(Kind kind) {
+		return stats.get(kind).latency;
+	}
+
+	/**
+	 * Returns the number of requests that completed, excluding connects.
+	 */
+	public long getRequestCount() {
+		long count = 0;
+		for (Kind kind : Kind.values()) {
+			count += (kind == Kind.CONNECT) ? 0 : getRequestCount(kind);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of requests and connects that failed.
+	 */
+	public long getErrorCount() {
+		long count = 0;
+		for (Kind kind : Kind.values()) {
+			count += getErrorCount(kind);
+		}
+		return count;
+	}
+
+	public long getBytes() {
+		long bytes = 0;
+		for (Stats s : stats.values()) {
+			bytes += s.bytes.sum();
+		}
+		return bytes;
+	}
+
+	private double perSecond(double value) {
+		return (durationSeconds > 0) ? value / durationSeconds : 0;
+	}
+
+	private static double errorRate(long completed, long failed) {
+		return (completed + failed > 0) ? (double) failed / (completed + failed) : 0;
+	}
+
+	/**
+	 * Returns the report as a JSON object. Latencies are in milliseconds,
+	 * throughput in requests and megabytes (10^6 bytes) per second.
+	 */
+	public String toJson() {
+		final StringBuilder json = new StringBuilder(2048);
+		json.append("{\n  \"config\": {");
+		String separator = "\n";
+		for (Map.Entry<String, String> entry : new TreeMap<>(config).entrySet()) {
+			json.append(separator).append("    ").append(quote(entry.getKey())).append(": ")
+					.append(quote(entry.getValue()));
+			separator = ",\n";
+		}
+		json.append("\n  },\n");
+		json.append("  \"durationSeconds\": ").append(number(durationSeconds)).append(",\n");
+		json.append("  \"totals\": {\n");
+		json.append("    \"requests\": ").append(getRequestCount()).append(",\n");
+		json.append("    \"errors\": ").append(getErrorCount()).append(",\n");
+		json.append("    \"errorRate\": ").append(number(errorRate(getRequestCount(), getErrorCount()))).append(",\n");
+		json.append("    \"requestsPerSecond\": ").append(number(perSecond(getRequestCount()))).append(",\n");
+		json.append("    \"megabytesPerSecond\": ").append(number(perSecond(getBytes() / 1e6))).append("\n");
+		json.append("  },\n  \"requests\": {");
+		separator = "\n";
+		for (Kind kind : Kind.values()) {
+			final Stats s = stats.get(kind);
+			final LatencyHistogram latency = s.latency;
+			final long count = latency.getCount();
+			json.append(separator).append("    ").append(quote(kind.name().toLowerCase())).append(": {\n");
+			json.append("      \"count\": ").append(count).append(",\n");
+			json.append("      \"errors\": ").append(getErrorCount(kind)).append(",\n");
+			json.append("      \"errorRate\": ").append(number(errorRate(count, getErrorCount(kind)))).append(",\n");
+			json.append("      \"requestsPerSecond\": ").append(number(perSecond(count))).append(",\n");
+			json.append("      \"megabytesPerSecond\": ").append(number(perSecond(s.bytes.sum() / 1e6))).append(",\n");
+			json.append("      \"latencyMillis\": {");
+			json.append("\"mean\": ").append(number((count > 0) ? latency.getSum() / 1e6 / count : 0));
+			json.append(", \"p50\": ").append(number(latency.getQuantile(0.5) / 1e6));
+			json.append(", \"p99\": ").append(number(latency.getQuantile(0.99) / 1e6));
+			json.append(", \"p999\": ").append(number(latency.getQuantile(0.999) / 1e6));
+			json.append(", \"max\": ").append(number(latency.getMax() / 1e6)).append("},\n");
+			json.append("      \"errorsByCause\": {");
+			String causeSeparator = "";
+			for (Map.Entry<String, LongAdder> error : new TreeMap<>(s.errors).entrySet()) {
+				json.append(causeSeparator).append(quote(error.getKey())).append(": ").append(error.getValue().sum());
+				causeSeparator = ", ";
+			}
+			json.append("}\n    }");
+			separator = ",\n";
+		}
+		json.append("\n  }\n}\n");
+		return json.toString();
+	}
+
+	private static String number(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	private static String quote(String text) {
+		final StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+		for (char c : text.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < ' ') {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder text = new StringBuilder(String.format(
+				"%.1f s, %d requests (%.1f/s), %.1f MB/s, %d errors%n", durationSeconds, getRequestCount(),
+				perSecond(getRequestCount()), perSecond(getBytes() / 1e6), getErrorCount()));
+		text.append(String.format("%-8s %9s %9s %9s %9s %9s %9s %7s%n", "kind", "count", "req/s", "MB/s", "p50 ms",
+				"p99 ms", "p999 ms", "errors"));
+		for (Kind kind : Kind.values()) {
+			final Stats s = stats.get(kind);
+			text.append(String.format("%-8s %9d %9.1f %9.1f %9.2f %9.2f %9.2f %7d%n", kind.name().toLowerCase(),
+					s.latency.getCount(), perSecond(s.latency.getCount()), perSecond(s.bytes.sum() / 1e6),
+					s.latency.getQuantile(0.5) / 1e6, s.latency.getQuantile(0.99) / 1e6,
+					s.latency.getQuantile(0.999) / 1e6, getErrorCount(kind)));
+		}
+		return text.toString();
+	}
+
+	private static final class Stats {
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final LongAdder bytes = new LongAdder();
+		private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+	}
+}
@@ -1,56 +1,618 @@
 package packetutils.tester;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.junit.Test;
 
-import packetutils.TCPClient;
-import packetutils.TCPServer;
+import application.CatalogEntry;
+import application.ConnectStats;
+import application.ErrorCode;
+import application.ListOrder;
+import application.ListPage;
+import application.ListRequest;
+import application.MetricsRegistry;
+import application.SegmentedDownload;
+import application.ServerException;
+import application.TCPClient;
+import application.TCPServerManager;
+import application.TlsContext;
+import application.WireProtocol;
 
 public class TCPTester {
-	private TCPClient client;
-	private TCPServer server;
+	private static final String KEY_STORE_PASSWORD = "changeit";
+	// The wire values of the framed protocol, for frames the client never
+	// sends; see FrameHeader and Opcode.
+	private static final int FRAME_MAGIC = 0x46545031;
+	private static final int OPCODE_LIST = 1;
+	private static final int OPCODE_GET = 2;
+	private static final int OPCODE_DELTA = 7;
+	private static final int OPCODE_PUT = 8;
+	private static final int FLAG_RANGE = 0x02;
+	private static final int FLAG_PAGED = 0x10;
+	private static final int SOCKET_TIMEOUT_MILLIS = 5000;
+
+	@Test
+	public void downloadTest() throws IOException, InterruptedException {
+		for (WireProtocol protocol : WireProtocol.values()) {
+			final LoadGenerator generator = smallLoad();
+			generator.set("protocol", protocol.name());
+			generator.set("mix", "small:9,large:1");
+			final LoadReport report = generator.call();
+			System.out.print(report);
+			assertTrue(report.getRequestCount(LoadReport.Kind.SMALL) > 0);
+			assertTrue(report.getRequestCount(LoadReport.Kind.LARGE) > 0);
+			assertEquals(0, report.getErrorCount());
+		}
+	}
+
+	@Test
+	public void batchTest() throws IOException, InterruptedException {
+		for (WireProtocol protocol : WireProtocol.values()) {
+			final LoadGenerator generator = smallLoad();
+			generator.set("protocol", protocol.name());
+			generator.set("mix", "small:1");
+			generator.set("batch", "8");
+			final LoadReport report = generator.call();
+			System.out.print(report);
+			assertTrue(report.getRequestCount(LoadReport.Kind.SMALL) > 0);
+			assertEquals(0, report.getErrorCount());
+		}
+	}
+
+	@Test
+	public void handshakeTest() throws IOException, InterruptedException {
+		final LoadGenerator generator = smallLoad();
+		generator.set("mix", "list:1");
+		final LoadReport report = generator.call();
+		System.out.print(report);
+		assertTrue(report.getRequestCount(LoadReport.Kind.CONNECT) >= 4);
+		assertTrue(report.getRequestCount(LoadReport.Kind.LIST) > 0);
+		assertEquals(0, report.getErrorCount());
+	}
+
+	@Test
+	public void reportTest() throws IOException, InterruptedException {
+		final LoadGenerator generator = smallLoad();
+		final String json = generator.call().toJson();
+		assertTrue(json.contains("\"p999\""));
+		assertTrue(json.contains("\"requestsPerSecond\""));
+		assertTrue(json.contains("\"errorsByCause\""));
+	}
 
 	@Test
-	public void downloadTest() throws ClassNotFoundException, IOException {
-		server = new TCPServer();
-		new Thread(server).start();
+	public void tlsTest() throws IOException, InterruptedException, GeneralSecurityException {
+		final File root = Files.createTempDirectory("TCPTester").toFile();
+		TCPServerManager manager = null;
+		try {
+			final File served = new File(root, "served");
+			final File downloads = new File(root, "downloads");
+			served.mkdir();
+			downloads.mkdir();
+			final String name = new Corpus(served, 49152).addFiles("tls", 1, 1 << 20, 4 << 20).get(0);
+			final File keyStore = createKeyStore(root);
+			final char[] password = KEY_STORE_PASSWORD.toCharArray();
+			final int port = freePort();
+			manager = new TCPServerManager(port, 2);
+			manager.setDirectory(served);
+			manager.setTls(TlsContext.load(keyStore, password, null, null));
+			start(manager);
+
+			// Both clients share the context, and with it the session cache.
+			final TlsContext tls = TlsContext.load(null, null, keyStore, password);
+			for (int i = 0; i < 2; i++) {
+				final TCPClient client = new TCPClient("localhost", port, WireProtocol.FRAMED);
+				client.setTls(tls);
+				client.setVerifyChecksums(true);
+				client.setFetchListing(false);
+				client.setDownloadDirectory(downloads);
+				try {
+					final ConnectStats stats = client.connect();
+					System.out.println(stats);
+					assertTrue(stats.getTlsNanos() > 0);
+					if (i == 0) {
+						assertFalse(stats.isTlsResumed());
+					} else {
+						assertTrue(stats.isTlsResumed());
+					}
+					assertTrue(client.download(name));
+					assertEquals(-1,
+							Files.mismatch(new File(served, name).toPath(), new File(downloads, name).toPath()));
+				} finally {
+					client.close();
+				}
+			}
+		} finally {
+			if (manager != null) {
+				manager.close();
+			}
+			LoadGenerator.delete(root);
+		}
+	}
+
+	@Test
+	public void segmentedTest() throws IOException {
+		final File root = Files.createTempDirectory("TCPTester").toFile();
+		TCPServerManager manager = null;
+		FaultProxy proxy = null;
+		try {
+			final File served = new File(root, "served");
+			final File downloads = new File(root, "downloads");
+			served.mkdir();
+			downloads.mkdir();
+			// The size is no multiple of the piece size, so the last segment
+			// is longer than the others.
+			final String name = new Corpus(served, 49152).addFiles("segmented", 1, 3 << 20, 4 << 20).get(0);
+			final File original = new File(served, name);
+			final File copy = new File(downloads, name);
+			manager = new TCPServerManager(freePort(), 2);
+			manager.setDirectory(served);
+			start(manager);
+
+			// The third connection is slow, so the others take over its segment.
+			proxy = new FaultProxy(manager.getPort());
+			proxy.setDelay(2, 5);
+			SegmentedDownload download = new SegmentedDownload("localhost", proxy.getPort(), name, 3);
+			download.setPieceSize(64 * 1024);
+			assertEquals(original.length(), download.download(copy));
+			assertTrue(download.getSteals() > 0);
+			assertEquals(-1, Files.mismatch(original.toPath(), copy.toPath()));
+			proxy.close();
+			copy.delete();
+
+			// The third connection fails after the others have finished, so a
+			// new connection downloads the rest of its segment.
+			proxy = new FaultProxy(manager.getPort());
+			proxy.setDelay(2, 1500);
+			proxy.setDropAfter(2, 1024);
+			download = new SegmentedDownload("localhost", proxy.getPort(), name, 3);
+			download.setPieceSize(64 * 1024);
+			assertEquals(original.length(), download.download(copy));
+			assertTrue(download.getRestarts() > 0);
+			assertEquals(-1, Files.mismatch(original.toPath(), copy.toPath()));
+			proxy.close();
+			copy.delete();
+
+			// Every connection fails once the transfer has started, so the download fails and
+			// leaves nothing behind.
+			proxy = new FaultProxy(manager.getPort());
+			for (int i = 0; i < 16; i++) {
+				proxy.setDropAfter(i, 96 * 1024);
+			}
+			final TCPClient client = new TCPClient("localhost", proxy.getPort(), WireProtocol.FRAMED);
+			client.setSegments(3);
+			client.setDownloadDirectory(downloads);
+			try {
+				client.download(name);
+				fail("The download should have failed.");
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+			assertFalse(copy.exists());
+			assertFalse(new File(downloads, name + TCPClient.PART_SUFFIX).exists());
+		} finally {
+			if (proxy != null) {
+				proxy.close();
+			}
+			if (manager != null) {
+				manager.close();
+			}
+			LoadGenerator.delete(root);
+		}
+	}
+
+	@Test
+	public void chunkRepairTest() throws IOException {
+		final File root = Files.createTempDirectory("TCPTester").toFile();
+		TCPServerManager manager = null;
+		FaultProxy proxy = null;
+		try {
+			final File served = new File(root, "served");
+			final File downloads = new File(root, "downloads");
+			served.mkdir();
+			downloads.mkdir();
+			final String name = new Corpus(served, 49152).addFiles("repair", 1, 1 << 20, 2 << 20).get(0);
+			manager = new TCPServerManager(freePort(), 2);
+			manager.setDirectory(served);
+			start(manager);
+
+			// A flipped bit in the second chunk fails its checksum, and only
+			// that chunk is requested again.
+			proxy = new FaultProxy(manager.getPort());
+			proxy.setCorruptAt(0, 300 * 1024, false);
+			final LongAdder retries = MetricsRegistry.getDefault().counter("ftp_client_retries_total",
+					"Retries by kind.", "kind", "chunk");
+			final long before = retries.sum();
+			final TCPClient client = new TCPClient("localhost", proxy.getPort(), WireProtocol.FRAMED);
+			client.setVerifyChecksums(true);
+			client.setCompression(false);
+			client.setFetchListing(false);
+			client.setDownloadDirectory(downloads);
+			try {
+				client.connect();
+				assertTrue(client.download(name));
+			} finally {
+				client.close();
+			}
+			assertEquals(1, retries.sum() - before);
+			assertEquals(-1, Files.mismatch(new File(served, name).toPath(), new File(downloads, name).toPath()));
+
+			// A range request too short to hold its range is malformed, and
+			// the server drops the connection.
+			try (Socket socket = openFramed(manager.getPort())) {
+				writeFrame(socket, OPCODE_GET, FLAG_RANGE, 1, new byte[3]);
+				assertTrue(isClosedByServer(socket));
+			}
+		} finally {
+			if (proxy != null) {
+				proxy.close();
+			}
+			if (manager != null) {
+				manager.close();
+			}
+			LoadGenerator.delete(root);
+		}
+	}
+
+	@Test
+	public void listTest() throws IOException {
+		final File root = Files.createTempDirectory("TCPTester").toFile();
+		TCPServerManager manager = null;
+		try {
+			final File served = new File(root, "served");
+			served.mkdir();
+			final Corpus corpus = new Corpus(served, 49152);
+			corpus.addFiles("alpha", 5, 1024, 64 * 1024);
+			corpus.addFiles("beta", 3, 1024, 64 * 1024);
+			manager = new TCPServerManager(freePort(), 2);
+			manager.setDirectory(served);
+			start(manager);
+
+			final TCPClient client = new TCPClient("localhost", manager.getPort(), WireProtocol.FRAMED);
+			client.setFetchListing(false);
+			try {
+				// Pages of three continue after the last entry of the previous
+				// page, so every file is listed once, in order.
+				final List<CatalogEntry> entries = listAll(client, new ListRequest("", ListOrder.NAME, false, 3));
+				assertEquals(corpus.getFileCount(), entries.size());
+				for (int i = 1; i < entries.size(); i++) {
+					assertTrue(entries.get(i - 1).getName().compareTo(entries.get(i).getName()) < 0);
+				}
+				for (CatalogEntry entry : entries) {
+					assertEquals(corpus.getSize(entry.getName()), entry.getSize());
+				}
+
+				// Patterns without glob characters are prefixes.
+				assertEquals(3, listAll(client, new ListRequest("beta", ListOrder.NAME, false, 2)).size());
+				assertEquals(5, listAll(client, new ListRequest("alpha-*.dat", ListOrder.NAME, false, 2)).size());
+				assertEquals(4, listAll(client, new ListRequest("*-0000[01].dat", ListOrder.NAME, false, 2)).size());
+				assertEquals(0, listAll(client, new ListRequest("gamma", ListOrder.NAME, false, 2)).size());
+
+				final List<CatalogEntry> bySize = listAll(client, new ListRequest("", ListOrder.SIZE, true, 3));
+				assertEquals(corpus.getFileCount(), bySize.size());
+				for (int i = 1; i < bySize.size(); i++) {
+					assertTrue(bySize.get(i - 1).getSize() >= bySize.get(i).getSize());
+				}
+				final List<CatalogEntry> byTime = listAll(client, new ListRequest("", ListOrder.MODIFIED, false, 3));
+				assertEquals(corpus.getFileCount(), byTime.size());
+				for (int i = 1; i < byTime.size(); i++) {
+					assertTrue(byTime.get(i - 1).getLastModified() <= byTime.get(i).getLastModified());
+				}
+
+				// A malformed glob is rejected, and the connection stays usable.
+				try {
+					client.list(new ListRequest("alpha-[9-0]", ListOrder.NAME, false, 3));
+					fail("A reversed range should be rejected.");
+				} catch (ServerException e) {
+					assertTrue(e.getErrorCode() == ErrorCode.BAD_REQUEST);
+				}
+				assertEquals(3, client.list(new ListRequest("", ListOrder.NAME, false, 3)).getEntries().size());
+			} finally {
+				client.close();
+			}
 
-		// client = new TCPClient("localhost", 9876);
-		new Thread(client).start();
-		while (!client.isReady()) {
-			Thread.yield();
+			// A request for an order that does not exist is malformed, and the
+			// server drops the connection.
+			try (Socket socket = openFramed(manager.getPort())) {
+				final byte[] payload = { 9, 0, 0, 0, 0, 3, 0, 0 };
+				writeFrame(socket, OPCODE_LIST, FLAG_PAGED, 1, payload);
+				assertTrue(isClosedByServer(socket));
+			}
+		} finally {
+			if (manager != null) {
+				manager.close();
+			}
+			LoadGenerator.delete(root);
 		}
-		HashSet<File> files = client.getFiles();
-		List<File> fileList = new ArrayList<>(files);
-		int index = 0;
-		for (int i = 0; i < 70; i++) {
-			index = ThreadLocalRandom.current().nextInt(0, fileList.size());
-			client.sendInput(fileList.get(index));
+	}
+
+	@Test
+	public void deltaTest() throws IOException {
+		final File root = Files.createTempDirectory("TCPTester").toFile();
+		TCPServerManager manager = null;
+		FaultProxy proxy = null;
+		try {
+			final File served = new File(root, "served");
+			final File downloads = new File(root, "downloads");
+			served.mkdir();
+			downloads.mkdir();
+			final String name = new Corpus(served, 49152).addFiles("delta", 1, 2 << 20, 3 << 20).get(0);
+			final File original = new File(served, name);
+			final File copy = new File(downloads, name);
+			final File old = new File(root, name);
+			Files.copy(original.toPath(), old.toPath());
+			// The new version differs in its first 64 KiB and has more bytes
+			// at the end, so it is a LITERAL, then COPYs, then another LITERAL.
+			final Random random = new Random(1);
+			final byte[] changed = new byte[64 * 1024];
+			try (RandomAccessFile file = new RandomAccessFile(original, "rw")) {
+				random.nextBytes(changed);
+				file.write(changed);
+				random.nextBytes(changed);
+				file.seek(file.length());
+				file.write(changed, 0, 10000);
+			}
+			manager = new TCPServerManager(freePort(), 2);
+			manager.setDirectory(served);
+			start(manager);
+			final LongAdder retries = MetricsRegistry.getDefault().counter("ftp_client_retries_total",
+					"Retries by kind.", "kind", "delta");
+
+			// Only the changed blocks are sent.
+			Files.copy(old.toPath(), copy.toPath());
+			long before = retries.sum();
+			TCPClient client = newDeltaClient(manager.getPort(), downloads);
+			try {
+				assertTrue(client.download(name));
+				assertTrue(client.getLastTransferStats().getWireBytes() < original.length() / 4);
+			} finally {
+				client.close();
+			}
+			assertEquals(0, retries.sum() - before);
+			assertEquals(-1, Files.mismatch(original.toPath(), copy.toPath()));
+
+			// A flipped bit in the first LITERAL makes the rebuilt file fail
+			// the digest check, and the whole file is downloaded instead.
+			Files.copy(old.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			proxy = new FaultProxy(manager.getPort());
+			proxy.setCorruptAt(0, 2000, false);
+			before = retries.sum();
+			client = newDeltaClient(proxy.getPort(), downloads);
+			try {
+				assertTrue(client.download(name));
+				assertTrue(client.getLastTransferStats().getWireBytes() >= original.length());
+			} finally {
+				client.close();
+			}
+			assertEquals(1, retries.sum() - before);
+			assertEquals(-1, Files.mismatch(original.toPath(), copy.toPath()));
+
+			// Signatures too short to hold their header are malformed, and the
+			// server drops the connection.
+			try (Socket socket = openFramed(manager.getPort())) {
+				writeFrame(socket, OPCODE_DELTA, 0, 1, new byte[3]);
+				assertTrue(isClosedByServer(socket));
+			}
+		} finally {
+			if (proxy != null) {
+				proxy.close();
+			}
+			if (manager != null) {
+				manager.close();
+			}
+			LoadGenerator.delete(root);
 		}
 	}
 
 	@Test
-	public void handshakeTest() throws IOException {
+	public void uploadTest() throws IOException {
+		final File root = Files.createTempDirectory("TCPTester").toFile();
+		TCPServerManager manager = null;
+		FaultProxy proxy = null;
 		try {
-			for (int i = 0; i < 100; i++) {
-				server = new TCPServer();
-				new Thread(server).start();
-				// client = new TCPClient("localhost", 9876);
-				new Thread(client).start();
-				while (!client.isReady()) {
-					Thread.yield();
+			final File served = new File(root, "served");
+			final File uploads = new File(root, "uploads");
+			served.mkdir();
+			uploads.mkdir();
+			final String name = new Corpus(uploads, 49152).addFiles("upload", 1, 1 << 20, 2 << 20).get(0);
+			final File original = new File(uploads, name);
+			manager = new TCPServerManager(freePort(), 2);
+			manager.setDirectory(served);
+			start(manager);
+
+			// Uploads are refused until they are enabled.
+			TCPClient client = newUploadClient(manager.getPort());
+			try {
+				client.upload(original);
+				fail("Uploads should be disabled.");
+			} catch (ServerException e) {
+				assertTrue(e.getErrorCode() == ErrorCode.BAD_REQUEST);
+			} finally {
+				client.close();
+			}
+			manager.setUploadsEnabled(true);
+
+			// Names that are not plain file names, or are those of temporary
+			// files, are refused, and the connection stays usable.
+			client = newUploadClient(manager.getPort());
+			try {
+				for (String bad : new String[] { "../escaped.dat", "sub/file.dat", "..", "." + name + ".upload" }) {
+					try {
+						client.upload(original, bad);
+						fail("The name " + bad + " should be refused.");
+					} catch (ServerException e) {
+						assertTrue(e.getErrorCode() == ErrorCode.BAD_REQUEST);
+					}
 				}
+				assertFalse(new File(root, "escaped.dat").exists());
+				client.upload(original, "plain.dat");
+				assertEquals(-1, Files.mismatch(original.toPath(), new File(served, "plain.dat").toPath()));
+			} finally {
 				client.close();
-				server.close();
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+
+			// A flipped bit in the second chunk fails its checksum on the
+			// server, which asks for that chunk again before publishing.
+			proxy = new FaultProxy(manager.getPort());
+			proxy.setCorruptAt(0, 300 * 1024, true);
+			final LongAdder retries = MetricsRegistry.getDefault().counter("ftp_client_retries_total",
+					"Retries by kind.", "kind", "upload-chunk");
+			final long before = retries.sum();
+			client = newUploadClient(proxy.getPort());
+			try {
+				client.upload(original);
+				// The published file is in the catalog at once.
+				final ListPage page = client.list(ListRequest.forName(name));
+				assertEquals(name, page.getEntries().get(0).getName());
+				assertEquals(original.length(), page.getEntries().get(0).getSize());
+			} finally {
+				client.close();
+			}
+			assertEquals(1, retries.sum() - before);
+			assertEquals(-1, Files.mismatch(original.toPath(), new File(served, name).toPath()));
+
+			// A PUT too short to hold the file's size is malformed, and the
+			// server drops the connection.
+			try (Socket socket = openFramed(manager.getPort())) {
+				writeFrame(socket, OPCODE_PUT, 0, 1, new byte[3]);
+				assertTrue(isClosedByServer(socket));
+			}
+			for (String left : served.list()) {
+				assertFalse(left.endsWith(".upload"));
+			}
+		} finally {
+			if (proxy != null) {
+				proxy.close();
+			}
+			if (manager != null) {
+				manager.close();
+			}
+			LoadGenerator.delete(root);
+		}
+	}
+
+	private static TCPClient newUploadClient(int port) {
+		final TCPClient client = new TCPClient("localhost", port, WireProtocol.FRAMED);
+		client.setVerifyChecksums(true);
+		client.setCompression(false);
+		client.setFetchListing(false);
+		return client;
+	}
+
+	private static TCPClient newDeltaClient(int port, File downloads) {
+		final TCPClient client = new TCPClient("localhost", port, WireProtocol.FRAMED);
+		client.setDeltaSync(true);
+		client.setCompression(false);
+		client.setVerifyChecksums(false);
+		client.setFetchListing(false);
+		client.setDownloadDirectory(downloads);
+		return client;
+	}
+
+	// Lists every page of the request and checks the total, where the server
+	// counts it.
+	private static List<CatalogEntry> listAll(TCPClient client, ListRequest request) throws IOException {
+		final List<CatalogEntry> entries = new ArrayList<>();
+		ListPage page = client.list(request);
+		entries.addAll(page.getEntries());
+		while (page.hasMore()) {
+			assertTrue(page.getEntries().size() <= request.getLimit());
+			page = client.list(request.after(page.getLast()));
+			entries.addAll(page.getEntries());
+		}
+		assertTrue(page.getTotal() == -1 || page.getTotal() == entries.size());
+		return entries;
+	}
+
+	// Opens a framed connection without a TCPClient, for sending frames that
+	// a client never would.
+	private static Socket openFramed(int port) throws IOException {
+		final Socket socket = new Socket("localhost", port);
+		socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+		final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		out.writeInt(FRAME_MAGIC);
+		out.flush();
+		assertEquals(FRAME_MAGIC, new DataInputStream(socket.getInputStream()).readInt());
+		return socket;
+	}
+
+	// Writes a frame laid out as described in FrameHeader.
+	private static void writeFrame(Socket socket, int opcode, int flags, int requestId, byte[] payload)
+			throws IOException {
+		final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		out.writeByte(opcode);
+		out.writeByte(flags);
+		out.writeShort(0);
+		out.writeInt(requestId);
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.flush();
+	}
+
+	// Returns true if the server closes the connection without answering.
+	private static boolean isClosedByServer(Socket socket) {
+		try {
+			return socket.getInputStream().read() == -1;
+		} catch (IOException e) {
+			// The server reset the connection.
+			return true;
+		}
+	}
+
+	// Returns a port that nothing is listening on.
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
 		}
 	}
+
+	// Runs the server on a thread of its own.
+	private static void start(TCPServerManager manager) {
+		final Thread server = new Thread(manager, "TCPServerManager");
+		server.setDaemon(true);
+		server.start();
+	}
+
+	// Creates a PKCS12 key store in the directory with a self-signed
+	// certificate for localhost, which serves as the server's key store and
+	// the clients' trust store.
+	private static File createKeyStore(File directory) throws IOException, InterruptedException {
+		final File keyStore = new File(directory, "localhost.p12");
+		final String keytool = new File(System.getProperty("java.home"), "bin/keytool").getPath();
+		final Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost", "-keyalg", "EC",
+				"-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1", "-storetype",
+				"PKCS12", "-keystore", keyStore.getPath(), "-storepass", KEY_STORE_PASSWORD).inheritIO().start();
+		if (process.waitFor() != 0) {
+			throw new IOException("keytool could not create " + keyStore);
+		}
+		return keyStore;
+	}
+
+	private static LoadGenerator smallLoad() {
+		final LoadGenerator generator = new LoadGenerator();
+		generator.set("clients", "4");
+		generator.set("duration", "2");
+		generator.set("warmup", "0");
+		generator.set("small", "20:1k-64k");
+		generator.set("large", "2:1m-4m");
+		generator.set("loops", "2");
+		return generator;
+	}
 }